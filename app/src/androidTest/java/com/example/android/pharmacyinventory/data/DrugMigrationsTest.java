@@ -0,0 +1,249 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.*;
+
+/**
+ * Instrumentation test for {@link DrugMigrations}, which will execute on an Android device.
+ * Each test starts from a database frozen at the version 1 schema.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DrugMigrationsTest {
+
+    /** The drugs table exactly as version 1 of the app created it */
+    private static final String SQL_CREATE_DRUG_TABLE_V1 = "CREATE TABLE drugs ("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "name TEXT NOT NULL, "
+            + "quantity INTEGER DEFAULT 0, "
+            + "sales INTEGER DEFAULT 0, "
+            + "price REAL NOT NULL, "
+            + "image TEXT)";
+
+    private SQLiteDatabase mDb;
+
+    /** Version the database has been migrated to so far */
+    private int mVersion;
+
+    @Before
+    public void createVersion1Database() throws Exception {
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL(SQL_CREATE_DRUG_TABLE_V1);
+        mDb.execSQL("INSERT INTO drugs (name, quantity, sales, price, image) "
+                + "VALUES ('Ibuprofen', 5, 1, 3.0, 'content://images/1')");
+        mDb.execSQL("INSERT INTO drugs (name, quantity, sales, price, image) "
+                + "VALUES ('aspirin', 0, 7, 2.5, NULL)");
+        mDb.setVersion(1);
+        mVersion = 1;
+    }
+
+    @After
+    public void closeDatabase() throws Exception {
+        mDb.close();
+    }
+
+    @Test
+    public void everyStepPreservesRows() throws Exception {
+        for (int version = 1; version < DrugMigrations.LATEST_VERSION; version++) {
+            DrugMigrations.migrate(mDb, version, version + 1);
+            assertEquals("Rows lost migrating to version " + (version + 1),
+                    2, DatabaseUtils.queryNumEntries(mDb, "drugs"));
+        }
+
+        Cursor cursor = mDb.rawQuery("SELECT name, quantity, sales, image FROM drugs ORDER BY _id", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Ibuprofen", cursor.getString(0));
+            assertEquals(5, cursor.getInt(1));
+            assertEquals(1, cursor.getInt(2));
+            assertEquals("content://images/1", cursor.getString(3));
+            assertTrue(cursor.moveToNext());
+            assertEquals("aspirin", cursor.getString(0));
+            assertEquals(7, cursor.getInt(2));
+            assertTrue(cursor.isNull(3));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void migrationAddsLookupIndexes() throws Exception {
+        DrugMigrations.migrate(mDb, 1, DrugMigrations.LATEST_VERSION);
+
+        assertEquals(1, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM sqlite_master "
+                + "WHERE type = 'index' AND name = 'drugs_name_index'", null));
+        assertEquals(1, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM sqlite_master "
+                + "WHERE type = 'index' AND name = 'drugs_quantity_index'", null));
+    }
+
+    @Test
+    public void migrationTo4BackfillsFullTextIndex() throws Exception {
+        migrateTo(4);
+        assertEquals(1, DatabaseUtils.longForQuery(mDb,
+                "SELECT docid FROM drugs_fts WHERE drugs_fts MATCH 'ibuprofen'", null));
+        assertEquals(2, DatabaseUtils.longForQuery(mDb,
+                "SELECT docid FROM drugs_fts WHERE drugs_fts MATCH 'aspirin'", null));
+
+        // The triggers keep it up to date from then on
+        mDb.execSQL("UPDATE drugs SET name = 'Aspirin 300mg' WHERE _id = 2");
+        assertEquals(2, DatabaseUtils.longForQuery(mDb,
+                "SELECT docid FROM drugs_fts WHERE drugs_fts MATCH '300mg'", null));
+    }
+
+    @Test
+    public void migrationTo5ConvertsPricesToCents() throws Exception {
+        migrateTo(4);
+        // A price that isn't exact as a double, and a deleted last drug whose ID stays used
+        mDb.execSQL("INSERT INTO drugs (name, quantity, sales, price) "
+                + "VALUES ('Paracetamol', 1, 0, 19.99)");
+        mDb.execSQL("INSERT INTO drugs (name, quantity, sales, price) "
+                + "VALUES ('Deleted', 1, 0, 1.0)");
+        mDb.execSQL("DELETE FROM drugs WHERE _id = 4");
+
+        migrateTo(5);
+        Cursor cursor = mDb.rawQuery("SELECT price, typeof(price) FROM drugs ORDER BY _id", null);
+        try {
+            long[] cents = { 300, 250, 1999 };
+            for (long expected : cents) {
+                assertTrue(cursor.moveToNext());
+                assertEquals(expected, cursor.getLong(0));
+                assertEquals("integer", cursor.getString(1));
+            }
+            assertFalse(cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+
+        mDb.execSQL("INSERT INTO drugs (name, quantity, sales, price) VALUES ('New', 1, 0, 100)");
+        assertEquals(5, DatabaseUtils.longForQuery(mDb, "SELECT MAX(_id) FROM drugs", null));
+        // The full-text triggers survive the table swap
+        assertEquals(5, DatabaseUtils.longForQuery(mDb,
+                "SELECT docid FROM drugs_fts WHERE drugs_fts MATCH 'new'", null));
+    }
+
+    @Test
+    public void migrationTo6SeedsStatistics() throws Exception {
+        migrateTo(6);
+        // 5 Ibuprofen at 3.00 and no aspirin, both at or under the low stock threshold
+        assertStats(5, 1500, 8, 2);
+
+        mDb.execSQL("UPDATE drugs SET quantity = 10 WHERE _id = 2");
+        assertStats(15, 4000, 8, 1);
+    }
+
+    @Test
+    public void migrationTo7AddsEmptyLedger() throws Exception {
+        migrateTo(7);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "sales"));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "sales_daily"));
+        // The sales made so far are already in the totals
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                "SELECT folded_through FROM sales_ledger_state", null));
+    }
+
+    @Test
+    public void migrationTo8ProjectsNoStockout() throws Exception {
+        migrateTo(8);
+        assertEquals(2, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM drugs WHERE "
+                + "velocity_short = 0 AND velocity_long = 0 AND stockout_at = "
+                + DrugContract.DrugEntry.NEVER_STOCKOUT, null));
+
+        // 5 left, selling one a day
+        mDb.execSQL("UPDATE drugs SET velocity_updated_at = 1000, velocity_short = 1.0 WHERE _id = 1");
+        assertEquals(1000 + 5 * 86400000L, DatabaseUtils.longForQuery(mDb,
+                "SELECT stockout_at FROM drugs WHERE _id = 1", null));
+    }
+
+    @Test
+    public void migrationTo9StartsChangeSequence() throws Exception {
+        migrateTo(9);
+        assertEquals(0, DatabaseUtils.longForQuery(mDb, "SELECT MAX(change_seq) FROM drugs", null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                "SELECT COUNT(*) FROM drugs WHERE reorder_threshold != 0 OR reorder_quantity != 0 "
+                        + "OR on_order != 0", null));
+        assertEquals(1, DatabaseUtils.longForQuery(mDb, "SELECT next_order FROM reorder_state", null));
+
+        mDb.execSQL("UPDATE drugs SET reorder_threshold = 3 WHERE _id = 2");
+        assertEquals(1, DatabaseUtils.longForQuery(mDb,
+                "SELECT change_seq FROM drugs WHERE _id = 2", null));
+        assertEquals(1, DatabaseUtils.longForQuery(mDb,
+                "SELECT last_change_seq FROM reorder_state", null));
+    }
+
+    @Test
+    public void migrationTo10StartsRowVersions() throws Exception {
+        migrateTo(10);
+        assertEquals(2, DatabaseUtils.longForQuery(mDb,
+                "SELECT COUNT(*) FROM drugs WHERE version = 1", null));
+
+        mDb.execSQL("UPDATE drugs SET price = 350 WHERE _id = 1");
+        assertEquals(2, DatabaseUtils.longForQuery(mDb,
+                "SELECT version FROM drugs WHERE _id = 1", null));
+    }
+
+    @Test
+    public void migrationTo11BackfillsSyncIds() throws Exception {
+        migrateTo(11);
+        // Every drug is a change of all its columns, with all its stock still to push
+        assertEquals(2, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(DISTINCT sync_id) FROM drugs",
+                null));
+        assertEquals(2, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM drugs WHERE "
+                + "sync_seq = _id AND sync_fields_seq = _id AND synced_quantity = 0", null));
+        assertEquals(2, DatabaseUtils.longForQuery(mDb, "SELECT last_sync_seq FROM sync_state", null));
+        assertEquals(0, DatabaseUtils.longForQuery(mDb,
+                "SELECT pushed_through + pulled_through + applying FROM sync_state", null));
+        assertNotNull(DatabaseUtils.stringForQuery(mDb, "SELECT device_id FROM sync_state", null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "drug_tombstones"));
+
+        // New changes are numbered after the existing drugs
+        mDb.execSQL("UPDATE drugs SET quantity = 4 WHERE _id = 1");
+        assertEquals(3, DatabaseUtils.longForQuery(mDb, "SELECT sync_seq FROM drugs WHERE _id = 1",
+                null));
+        mDb.execSQL("DELETE FROM drugs WHERE _id = 2");
+        assertEquals(4, DatabaseUtils.longForQuery(mDb, "SELECT sync_seq FROM drug_tombstones",
+                null));
+    }
+
+    @Test
+    public void migrationTo12StartsWithNothingPending() throws Exception {
+        migrateTo(12);
+        assertEquals(1, DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM sync_state "
+                + "WHERE pending_through = 0 AND pending_body IS NULL", null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, "sync_outbox"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void migrationPastLatestVersionFails() throws Exception {
+        DrugMigrations.migrate(mDb, 1, DrugMigrations.LATEST_VERSION + 1);
+    }
+
+    /**
+     * Migrate the database from the version it's at to the given one.
+     */
+    private void migrateTo(int version) {
+        DrugMigrations.migrate(mDb, mVersion, version);
+        mVersion = version;
+    }
+
+    private void assertStats(long totalUnits, long stockValue, long totalSales, long lowStockCount) {
+        Cursor cursor = mDb.rawQuery("SELECT total_units, stock_value, total_sales, low_stock_count "
+                + "FROM inventory_stats", null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertEquals(totalUnits, cursor.getLong(0));
+            assertEquals(stockValue, cursor.getLong(1));
+            assertEquals(totalSales, cursor.getLong(2));
+            assertEquals(lowStockCount, cursor.getLong(3));
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pharmacyinventory;
+
+import android.content.AsyncQueryHandler;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.Button;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import com.example.android.pharmacyinventory.data.DrugContract.DrugEntry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * {@link DrugAdapter} is a {@link RecyclerView} adapter that uses pages of drug data, one
+ * {@link Cursor} each, as its data source. Every new page is read once into a list of rows, the
+ * pages whose drugs and versions didn't change are reused as they were read, and the difference
+ * with the previous list is computed on a background thread, so a single sale only rebinds the
+ * row that changed.
+ * Binding a row doesn't allocate anything.
+ */
+public class DrugAdapter extends RecyclerView.Adapter<DrugAdapter.DrugViewHolder> {
+
+    /**
+     * Listener for clicks on a drug in the list.
+     */
+    public interface OnDrugClickListener {
+        void onDrugClick(long id);
+    }
+
+    /** Computes the differences between lists, one at a time */
+    private static final Executor DIFF_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    /** Posts the computed differences back to the UI thread */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** Listener for clicks on a drug */
+    private final OnDrugClickListener mListener;
+
+    /** Rows currently shown by the list */
+    private List<DrugItem> mItems = Collections.emptyList();
+
+    /** Page cursors given to the last swap, and the rows read from each of them */
+    private List<Cursor> mPages = Collections.emptyList();
+    private List<List<DrugItem>> mPageItems = Collections.emptyList();
+
+    /** Sells drugs in the background, created with the first sale */
+    private SellHandler mSellHandler;
+
+    /** Incremented by every cursor swap, so only the latest difference is applied */
+    private int mGeneration;
+
+    /**
+     * Constructs a new {@link DrugAdapter}.
+     *
+     * @param listener notified when the user clicks on a drug
+     */
+    public DrugAdapter(OnDrugClickListener listener) {
+        mListener = listener;
+        setHasStableIds(true);
+    }
+
+    /**
+     * Show the drugs of the given pages, in order. A page that was already given to the last call
+     * is not read again, and a new one is only read during this call, so a page loader can close
+     * its cursor once it has delivered the next one. As a loader delivers one page at a time, a
+     * change only reads one page here, however many are shown. A reloaded page with the same drugs
+     * at the same versions as before keeps the rows read before, so only their IDs and versions
+     * are read. Must be called on the UI thread.
+     */
+    public void swapPages(List<Cursor> pages) {
+        final List<List<DrugItem>> pageItems = new ArrayList<>(pages.size());
+        for (int i = 0; i < pages.size(); i++) {
+            Cursor page = pages.get(i);
+            int old = mPages.indexOf(page);
+            if (old != -1) {
+                pageItems.add(mPageItems.get(old));
+            } else if (i < mPageItems.size() && sameRows(page, mPageItems.get(i))) {
+                pageItems.add(mPageItems.get(i));
+            } else {
+                pageItems.add(readItems(page));
+            }
+        }
+        mPages = new ArrayList<>(pages);
+        mPageItems = pageItems;
+
+        final List<DrugItem> oldItems = mItems;
+        final int generation = ++mGeneration;
+
+        DIFF_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<DrugItem> newItems = new ArrayList<>();
+                for (List<DrugItem> items : pageItems) {
+                    newItems.addAll(items);
+                }
+                // The list is sorted, so a drug that moves is shown as removed and inserted
+                final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                        new DrugDiff(oldItems, newItems), false);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        // A newer cursor was swapped in meanwhile, so this difference is stale
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mItems = newItems;
+                        diff.dispatchUpdatesTo(DrugAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns whether the cursor holds the same drugs, in the same order and at the same
+     * versions, as the given rows. A cursor without the version column never does.
+     */
+    private static boolean sameRows(Cursor cursor, List<DrugItem> items) {
+        int idColumnIndex = cursor.getColumnIndex(DrugEntry._ID);
+        int versionColumnIndex = cursor.getColumnIndex(DrugEntry.COLUMN_VERSION);
+        if (versionColumnIndex == -1 || cursor.getCount() != items.size()) {
+            return false;
+        }
+
+        for (int i = 0; i < items.size(); i++) {
+            cursor.moveToPosition(i);
+            DrugItem item = items.get(i);
+            if (cursor.getLong(idColumnIndex) != item.mId
+                    || cursor.getLong(versionColumnIndex) != item.mVersion) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read every row of the cursor into a list.
+     */
+    private static List<DrugItem> readItems(Cursor cursor) {
+        // Find the columns of drug attributes that we're interested in
+        int idColumnIndex = cursor.getColumnIndex(DrugEntry._ID);
+        int versionColumnIndex = cursor.getColumnIndex(DrugEntry.COLUMN_VERSION);
+        int nameColumnIndex = cursor.getColumnIndex(DrugEntry.COLUMN_DRUG_NAME);
+        int quantityColumnIndex = cursor.getColumnIndex(DrugEntry.COLUMN_DRUG_QUANTITY);
+
+        List<DrugItem> items = new ArrayList<>(cursor.getCount());
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            items.add(new DrugItem(cursor.getLong(idColumnIndex),
+                    versionColumnIndex == -1 ? -1 : cursor.getLong(versionColumnIndex),
+                    cursor.getString(nameColumnIndex),
+                    cursor.getString(quantityColumnIndex)));
+        }
+        return items;
+    }
+
+    @Override
+    public int getItemCount() {
+        return mItems.size();
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return mItems.get(position).mId;
+    }
+
+    /**
+     * Makes a new blank list item view and its holder. No data is set (or bound) to the views yet.
+     */
+    @Override
+    public DrugViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        // Inflate a list item view using the layout specified in list_item.xml
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.list_item, parent, false);
+        return new DrugViewHolder(view);
+    }
+
+    /**
+     * Binds the drug data at the given position to the views of the holder.
+     */
+    @Override
+    public void onBindViewHolder(DrugViewHolder holder, int position) {
+        DrugItem item = mItems.get(position);
+
+        // Update the TextViews with the attributes for the current drug
+        holder.mNameTextView.setText(item.mName);
+        holder.mQuantityTextView.setText(item.mQuantity);
+    }
+
+    /**
+     * Holds the views of a list item, and the listeners that act on whichever drug is bound to it.
+     */
+    class DrugViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+
+        final TextView mNameTextView;
+        final TextView mQuantityTextView;
+
+        DrugViewHolder(View view) {
+            super(view);
+
+            // Find individual views that we want to modify in the list item layout
+            mNameTextView = (TextView) view.findViewById(R.id.name);
+            mQuantityTextView = (TextView) view.findViewById(R.id.summary);
+
+            view.setOnClickListener(this);
+
+            // Find the sale button
+            Button forSaleButton = (Button) view.findViewById(R.id.sell);
+            forSaleButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View button) {
+                    if (getAdapterPosition() != RecyclerView.NO_POSITION) {
+                        sell(button.getContext(), getItemId());
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onClick(View view) {
+            if (getAdapterPosition() != RecyclerView.NO_POSITION) {
+                mListener.onDrugClick(getItemId());
+            }
+        }
+    }
+
+    /**
+     * Sell one unit of the drug with the given ID. The sale runs in the background, as the
+     * provider may have to load the stock first, and the list updates once the drug changed.
+     */
+    private void sell(Context context, long itemId) {
+        if (mSellHandler == null) {
+            mSellHandler = new SellHandler(context.getApplicationContext());
+        }
+
+        // Sell one unit through the provider. The provider checks and decrements the stock in a
+        // single statement, so the quantity shown by the list doesn't matter.
+        ContentValues sellValues = new ContentValues();
+        sellValues.put(DrugEntry.SELL_QUANTITY, 1);
+        mSellHandler.startUpdate(0, null, DrugEntry.buildSellUri(itemId), sellValues, null, null);
+    }
+
+    /**
+     * Runs the sales on the background thread of {@link AsyncQueryHandler}, and tells the user
+     * on the UI thread when a drug was out of stock.
+     */
+    private static final class SellHandler extends AsyncQueryHandler {
+
+        private final Context mContext;
+
+        SellHandler(Context context) {
+            super(context.getContentResolver());
+            mContext = context;
+        }
+
+        @Override
+        protected void onUpdateComplete(int token, Object cookie, int rowsSold) {
+            if (rowsSold == 0) {
+                Toast.makeText(mContext, "Drug out of stock", Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+
+    /**
+     * One row of the list, as read from the cursor.
+     */
+    static final class DrugItem {
+
+        final long mId;
+        final long mVersion;
+        final String mName;
+        final String mQuantity;
+
+        DrugItem(long id, long version, String name, String quantity) {
+            mId = id;
+            mVersion = version;
+            mName = name;
+            mQuantity = quantity;
+        }
+
+        boolean sameContentsAs(DrugItem other) {
+            return mName.equals(other.mName)
+                    && (mQuantity == null ? other.mQuantity == null : mQuantity.equals(other.mQuantity));
+        }
+    }
+
+    /**
+     * Compares two lists of rows: rows are the same drug when they have the same ID, and only
+     * need rebinding when the name or quantity changed.
+     */
+    private static final class DrugDiff extends DiffUtil.Callback {
+
+        private final List<DrugItem> mOld;
+        private final List<DrugItem> mNew;
+
+        DrugDiff(List<DrugItem> oldItems, List<DrugItem> newItems) {
+            mOld = oldItems;
+            mNew = newItems;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOld.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNew.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return mOld.get(oldPosition).mId == mNew.get(newPosition).mId;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return mOld.get(oldPosition).sameContentsAs(mNew.get(newPosition));
+        }
+    }
+}
@@ -18,8 +18,10 @@ package com.example.android.pharmacyinventory;
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.app.LoaderManager;
+import android.content.AsyncQueryHandler;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
@@ -41,8 +43,7 @@ import android.widget.ImageView;
 import android.widget.Toast;
 
 import com.example.android.pharmacyinventory.data.DrugContract;
-
-import static java.lang.Double.parseDouble;
+import com.example.android.pharmacyinventory.data.Money;
 
 /**
  * Allows user to create a new drug or edit an existing one.
@@ -52,6 +53,27 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     /** Identifier for the drug data loader */
     private static final int EXISTING_DRUG_LOADER = 0;
 
+    /**
+     * Columns of the drug the editor reads. Since the editor shows all drug attributes, it
+     * contains all columns from the drug table, plus the version to update it with.
+     */
+    private static final String[] DRUG_PROJECTION = {
+            DrugContract.DrugEntry._ID,
+            DrugContract.DrugEntry.COLUMN_DRUG_NAME,
+            DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY,
+            DrugContract.DrugEntry.COLUMN_DRUG_PRICE,
+            DrugContract.DrugEntry.COLUMN_DRUG_SOLD,
+            DrugContract.DrugEntry.COLUMN_DRUG_IMAGE,
+            DrugContract.DrugEntry.COLUMN_REORDER_THRESHOLD,
+            DrugContract.DrugEntry.COLUMN_REORDER_QUANTITY,
+            DrugContract.DrugEntry.COLUMN_VERSION};
+
+    /** How many times a save is merged with changes made elsewhere before giving up */
+    private static final int MAX_SAVE_ATTEMPTS = 3;
+
+    /** Saves the drug in the background, created with the first save */
+    private SaveHandler mSaveHandler;
+
     /** Content URI for the existing drug (null if it's a new drug) */
     private Uri mCurrentDrugUri;
 
@@ -67,8 +89,17 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
     /** Boolean flag that keeps track of whether the drug has been edited (true) or not (false) */
     private boolean mDrugHasChanged = false;
 
-    /** Global order button */
-    private Button orderButton;
+    /** Values of the existing drug the editor's fields were filled from (null if not loaded yet) */
+    private ContentValues mLoadedValues;
+
+    /** Version of the existing drug the editor's fields were filled from */
+    private long mLoadedVersion;
+
+    /** EditText field to enter the quantity at which the drug is reordered */
+    private EditText mReorderThresholdText;
+
+    /** EditText field to enter the number of units to reorder */
+    private EditText mReorderQuantityText;
 
     /** Global image */
     private Uri mDrugImageUri;
@@ -99,9 +130,6 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_editor);
 
-        // Find the order button
-        orderButton = (Button) findViewById(R.id.order_button);
-
         // Find the image
         mDrugImage = (ImageView) findViewById(R.id.drug_image);
 
@@ -151,6 +179,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText = (EditText) findViewById(R.id.edit_drug_name);
         mPriceEditText = (EditText) findViewById(R.id.edit_drug_price);
         mQuantityText = (EditText) findViewById(R.id.edit_drug_quantity);
+        mReorderThresholdText = (EditText) findViewById(R.id.edit_reorder_threshold);
+        mReorderQuantityText = (EditText) findViewById(R.id.edit_reorder_quantity);
 
         // Setup OnTouchListeners on all the input fields, so we can determine if the user
         // has touched or modified them. This will let us know if there are unsaved changes
@@ -158,6 +188,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText.setOnTouchListener(mTouchListener);
         mPriceEditText.setOnTouchListener(mTouchListener);
         mQuantityText.setOnTouchListener(mTouchListener);
+        mReorderThresholdText.setOnTouchListener(mTouchListener);
+        mReorderQuantityText.setOnTouchListener(mTouchListener);
 
         mAddImage.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -179,6 +211,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         String nameString = mNameEditText.getText().toString().trim();
         String priceString = mPriceEditText.getText().toString().trim();
         String quantityString = mQuantityText.getText().toString().trim();
+        String reorderThresholdString = mReorderThresholdText.getText().toString().trim();
+        String reorderQuantityString = mReorderQuantityText.getText().toString().trim();
         String imageString;
         if(mDrugImageUri != null){
             imageString = mDrugImageUri.toString();
@@ -212,53 +246,206 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         }
         values.put(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, quantity);
 
-        // If the price is not provided by the user, don't try to parse the string into an
-        // integer value. Use 0 by default.
-        Double price = 0.00;
+        // Without reorder settings the drug is never reordered, so use 0 by default
+        int reorderThreshold = 0;
+        if (!TextUtils.isEmpty(reorderThresholdString)) {
+            reorderThreshold = Integer.parseInt(reorderThresholdString);
+        }
+        values.put(DrugContract.DrugEntry.COLUMN_REORDER_THRESHOLD, reorderThreshold);
+        int reorderQuantity = 0;
+        if (!TextUtils.isEmpty(reorderQuantityString)) {
+            reorderQuantity = Integer.parseInt(reorderQuantityString);
+        }
+        values.put(DrugContract.DrugEntry.COLUMN_REORDER_QUANTITY, reorderQuantity);
+
+        // If the price is not provided by the user, don't try to parse the string into a
+        // number of cents. Use 0 by default.
+        long priceCents = 0;
         if (!TextUtils.isEmpty(priceString)) {
-            price = parseDouble(priceString);
+            try {
+                priceCents = Money.parseCents(priceString);
+            } catch (NumberFormatException e) {
+                Toast.makeText(this, R.string.editor_invalid_price, Toast.LENGTH_SHORT).show();
+                return;
+            }
         }
-        values.put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, price);
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, priceCents);
 
         if (!TextUtils.isEmpty(imageString)) {
             values.put(DrugContract.DrugEntry.COLUMN_DRUG_IMAGE, imageString);
         }
+        // The save runs in the background and may outlive the editor, which closes right away,
+        // so it tells the user how it went itself
+        if (mSaveHandler == null) {
+            mSaveHandler = new SaveHandler(getApplicationContext());
+        }
+
         // Determine if this is a new or existing drug by checking if mCurrentDrugUri is null or not
         if (mCurrentDrugUri == null) {
-            // This is a NEW drug, so insert a new drug into the provider,
-            // returning the content URI for the new drug.
-            Uri newUri = getContentResolver().insert(DrugContract.DrugEntry.CONTENT_URI, values);
-
-            // Show a toast message depending on whether or not the insertion was successful.
-            if (newUri == null) {
-                // If the new content URI is null, then there was an error with insertion.
-                Toast.makeText(this, getString(R.string.editor_insert_drug_failed),
-                        Toast.LENGTH_SHORT).show();
-            } else {
-                // Otherwise, the insertion was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_insert_drug_successful),
-                        Toast.LENGTH_SHORT).show();
-            }
+            // This is a NEW drug, so insert a new drug into the provider
+            mSaveHandler.startInsert(0, null, DrugContract.DrugEntry.CONTENT_URI, values);
+        } else if (mLoadedValues == null) {
+            // The drug may not have loaded yet, in which case there's nothing to merge with
+            mSaveHandler.startUpdate(0, null, mCurrentDrugUri, values, null, null);
         } else {
             // Otherwise this is an EXISTING drug, so update the drug with content URI: mCurrentDrugUri
-            // and pass in the new ContentValues. Pass in null for the selection and selection args
-            // because mCurrentDrugUri will already identify the correct row in the database that
-            // we want to modify.
-            int rowsAffected = getContentResolver().update(mCurrentDrugUri, values, null, null);
+            // and pass in the new ContentValues, merging them with any change made since it was loaded.
+            mSaveHandler.update(new Update(mCurrentDrugUri, values, mLoadedValues, mLoadedVersion));
+        }
+    }
+
+    /**
+     * An update of an existing drug, and what it's merged with if the drug changed while it was
+     * edited.
+     */
+    private static final class Update {
+
+        final Uri mDrugUri;
+
+        /** Values to write */
+        ContentValues mValues;
+
+        /** Values of the drug the update was made from */
+        ContentValues mBaseValues;
+
+        /** Version of the drug the update was made from */
+        long mBaseVersion;
+
+        /** Number of times the update was written so far */
+        int mAttempts;
+
+        Update(Uri drugUri, ContentValues values, ContentValues baseValues, long baseVersion) {
+            mDrugUri = drugUri;
+            mValues = values;
+            mBaseValues = baseValues;
+            mBaseVersion = baseVersion;
+        }
+    }
+
+    /**
+     * Saves drugs on the background thread of {@link AsyncQueryHandler}, and shows one toast with
+     * the outcome of each save.
+     *
+     * An update of an existing drug is only written if the drug is still at the version the editor
+     * loaded. A till may have sold it since, so if it changed, it's read again and merged: the
+     * quantity entered is applied as a change to the current quantity, so the units sold in the
+     * meantime stay sold, and the other fields are only written if they were edited. Then it's
+     * tried again with the new version, up to {@link #MAX_SAVE_ATTEMPTS} times.
+     */
+    private static final class SaveHandler extends AsyncQueryHandler {
+
+        private final Context mContext;
 
-            // Show a toast message depending on whether or not the update was successful.
-            if (rowsAffected == 0) {
+        SaveHandler(Context context) {
+            super(context.getContentResolver());
+            mContext = context;
+        }
+
+        /**
+         * Write the update, at the version it was made from.
+         */
+        void update(Update update) {
+            update.mAttempts++;
+            startUpdate(0, update, DrugContract.DrugEntry.buildVersionedUri(
+                    ContentUris.parseId(update.mDrugUri), update.mBaseVersion),
+                    update.mValues, null, null);
+        }
+
+        @Override
+        protected void onInsertComplete(int token, Object cookie, Uri newUri) {
+            // Show a toast message depending on whether or not the insertion was successful.
+            toast(newUri == null ? R.string.editor_insert_drug_failed
+                    : R.string.editor_insert_drug_successful);
+        }
+
+        @Override
+        protected void onUpdateComplete(int token, Object cookie, int rowsAffected) {
+            Update update = (Update) cookie;
+            if (rowsAffected != 0) {
+                toast(update != null && update.mAttempts > 1 ? R.string.editor_update_drug_merged
+                        : R.string.editor_update_drug_successful);
+            } else if (update == null || update.mAttempts >= MAX_SAVE_ATTEMPTS) {
                 // If no rows were affected, then there was an error with the update.
-                Toast.makeText(this, getString(R.string.editor_update_drug_failed),
-                        Toast.LENGTH_SHORT).show();
+                toast(R.string.editor_update_drug_failed);
             } else {
-                // Otherwise, the update was successful and we can display a toast.
-                Toast.makeText(this, getString(R.string.editor_update_drug_successful),
-                        Toast.LENGTH_SHORT).show();
+                // Nothing was written, so either the drug was deleted or it has a new version
+                startQuery(0, update, update.mDrugUri, DRUG_PROJECTION, null, null, null);
+            }
+        }
+
+        @Override
+        protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
+            Update update = (Update) cookie;
+            if (cursor == null) {
+                toast(R.string.editor_update_drug_failed);
+                return;
+            }
+            try {
+                if (!cursor.moveToFirst()) {
+                    toast(R.string.editor_update_drug_failed);
+                    return;
+                }
+                ContentValues current = readDrugValues(cursor);
+                update.mValues = mergeDrugValues(update.mBaseValues, update.mValues, current);
+                update.mBaseValues = current;
+                update.mBaseVersion = cursor.getLong(
+                        cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_VERSION));
+            } finally {
+                cursor.close();
             }
+            update(update);
+        }
+
+        private void toast(int message) {
+            Toast.makeText(mContext, mContext.getString(message), Toast.LENGTH_SHORT).show();
         }
     }
 
+    /**
+     * Returns the editable values of the drug at the current row of the cursor, with the same
+     * types the editor saves them with.
+     */
+    private static ContentValues readDrugValues(Cursor cursor) {
+        ContentValues values = new ContentValues();
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_NAME, cursor.getString(
+                cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_NAME)));
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, cursor.getInt(
+                cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY)));
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, cursor.getLong(
+                cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_PRICE)));
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_IMAGE, cursor.getString(
+                cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_IMAGE)));
+        values.put(DrugContract.DrugEntry.COLUMN_REORDER_THRESHOLD, cursor.getInt(
+                cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_REORDER_THRESHOLD)));
+        values.put(DrugContract.DrugEntry.COLUMN_REORDER_QUANTITY, cursor.getInt(
+                cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_REORDER_QUANTITY)));
+        return values;
+    }
+
+    /**
+     * Returns the values to write to a drug that changed while it was edited.
+     *
+     * @param base    values of the drug when it was loaded
+     * @param edited  values entered in the editor
+     * @param current values of the drug now
+     */
+    private static ContentValues mergeDrugValues(ContentValues base, ContentValues edited,
+                                                 ContentValues current) {
+        ContentValues merged = new ContentValues(edited);
+        for (String key : edited.keySet()) {
+            Object value = edited.get(key);
+            Object baseValue = base.get(key);
+            if (key.equals(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY)) {
+                int change = (Integer) value - (baseValue == null ? 0 : (Integer) baseValue);
+                merged.put(key, Math.max(0, current.getAsInteger(key) + change));
+            } else if (value == null ? baseValue == null : value.equals(baseValue)) {
+                // Not edited here, so keep whatever the drug has now
+                merged.remove(key);
+            }
+        }
+        return merged;
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         // Inflate the menu options from the res/menu/menu_editor.xml file.
@@ -354,32 +541,28 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
     @Override
     public Loader<Cursor> onCreateLoader(int i, Bundle bundle) {
-        // Since the editor shows all drug attributes, define a projection that contains
-        // all columns from the pet table
-        String[] projection = {
-                DrugContract.DrugEntry._ID,
-                DrugContract.DrugEntry.COLUMN_DRUG_NAME,
-                DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY,
-                DrugContract.DrugEntry.COLUMN_DRUG_PRICE,
-                DrugContract.DrugEntry.COLUMN_DRUG_SOLD,
-                DrugContract.DrugEntry.COLUMN_DRUG_IMAGE};
-
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
                 mCurrentDrugUri,         // Query the content URI for the current drug
-                projection,             // Columns to include in the resulting Cursor
+                DRUG_PROJECTION,        // Columns to include in the resulting Cursor
                 null,                   // No selection clause
                 null,                   // No selection arguments
                 null);                  // Default sort order
     }
 
     @Override
-    public void onLoadFinished(Loader<Cursor> loader, final Cursor cursor) {
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
         // Bail early if the cursor is null or there is less than 1 row in the cursor
         if (cursor == null || cursor.getCount() < 1) {
             return;
         }
 
+        // The loader reloads the drug whenever it changes, for instance when it's sold. Once the
+        // user started editing, keep their input; saving merges it with the changes.
+        if (mDrugHasChanged && mLoadedValues != null) {
+            return;
+        }
+
         // Proceed with moving to the first row of the cursor and reading data from it
         // (This should be the only row in the cursor)
         if (cursor.moveToFirst()) {
@@ -388,50 +571,33 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
             int quantityColumnIndex = cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY);
             int priceColumnIndex = cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_PRICE);
             int imageColumnIndex = cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_IMAGE);
+            int reorderThresholdColumnIndex =
+                    cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_REORDER_THRESHOLD);
+            int reorderQuantityColumnIndex =
+                    cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_REORDER_QUANTITY);
 
 
 
             // Extract out the value from the Cursor for the given column index
             String name = cursor.getString(nameColumnIndex);
             int quantity = cursor.getInt(quantityColumnIndex);
-            Double price = cursor.getDouble(priceColumnIndex);
+            long priceCents = cursor.getLong(priceColumnIndex);
             String picture = cursor.getString(imageColumnIndex);
+            int reorderThreshold = cursor.getInt(reorderThresholdColumnIndex);
+            int reorderQuantity = cursor.getInt(reorderQuantityColumnIndex);
+
+            // Remember what the fields were filled from, to save them as a change of this version
+            mLoadedValues = readDrugValues(cursor);
+            mLoadedVersion = cursor.getLong(cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_VERSION));
 
             // Update the views on the screen with the values from the database
             mNameEditText.setText(name);
             mQuantityText.setText(Integer.toString(quantity));
-            mPriceEditText.setText(Double.toString(price));
-            mDrugImage.setImageURI(Uri.parse(picture));
+            mPriceEditText.setText(Money.format(priceCents));
+            mReorderThresholdText.setText(Integer.toString(reorderThreshold));
+            mReorderQuantityText.setText(Integer.toString(reorderQuantity));
+            ImageLoader.get(this).load(picture == null ? null : Uri.parse(picture), mDrugImage);
         }
-
-        orderButton.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) {
-                // Get the Uri for the current drug
-                int IdColumnIndex = cursor.getColumnIndex(DrugContract.DrugEntry._ID);
-                final long itemId = cursor.getLong(IdColumnIndex);
-                Uri mCurrentDrugUri = ContentUris.withAppendedId(DrugContract.DrugEntry.CONTENT_URI, itemId);
-
-                // Find the columns of drug attributes that we're interested in
-                int nameColumnIndex = cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_NAME);
-
-
-                // Read the Drug attributes from the Cursor for the current drug
-                String name = cursor.getString(nameColumnIndex);
-
-                // Read the drug name to use in subject line
-                String subjectLine = "Need to order: " + name;
-
-                Intent intent = new Intent(Intent.ACTION_SENDTO);
-                intent.setData(Uri.parse("mailto:")); // only email apps should handle this
-                intent.putExtra(Intent.EXTRA_EMAIL, "orders@gmail.com");
-                intent.putExtra(Intent.EXTRA_SUBJECT, subjectLine);
-                if (intent.resolveActivity(getPackageManager()) != null) {
-                    startActivity(intent);
-                }
-            }
-        });
-
     }
 
 
@@ -526,6 +692,8 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
         mNameEditText.setText("");
         mQuantityText.setText("");
         mPriceEditText.setText("");
+        mReorderThresholdText.setText("");
+        mReorderQuantityText.setText("");
     }
 
     public void openImageSelector() {
@@ -557,7 +725,7 @@ public class EditorActivity extends AppCompatActivity implements LoaderManager.L
 
                 mDrugImageUri = resultData.getData();
 
-                mDrugImage.setImageURI(mDrugImageUri);
+                ImageLoader.get(this).load(mDrugImageUri, mDrugImage);
             }
         }
     }
@@ -0,0 +1,385 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.pharmacyinventory;
+
+import android.app.ActivityManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import com.example.android.pharmacyinventory.data.DrugProvider;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads drug images into {@link ImageView}s without blocking the UI thread. Images are decoded on
+ * background threads and downsampled to the size of the view, so a full resolution camera photo
+ * never has to fit in memory. Decoded images are kept in a size-bounded in-memory LRU cache, and
+ * their thumbnails in a size-bounded cache on disk, both keyed by the stored image URI and the
+ * target size.
+ */
+public final class ImageLoader {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = ImageLoader.class.getSimpleName();
+
+    /** Number of threads decoding images */
+    private static final int DECODE_THREADS = 2;
+
+    /** Share of the app's memory class used by the in-memory cache */
+    private static final int MEMORY_CACHE_DIVIDER = 8;
+
+    /** Maximum size of the thumbnails kept on disk, in bytes */
+    private static final long MAX_DISK_CACHE_BYTES = 20 * 1024 * 1024;
+
+    /** Size the disk cache is trimmed down to once it's full, so it isn't trimmed on every write */
+    private static final long TRIMMED_DISK_CACHE_BYTES = MAX_DISK_CACHE_BYTES * 3 / 4;
+
+    /** JPEG quality of the thumbnails kept on disk */
+    private static final int THUMBNAIL_QUALITY = 85;
+
+    /** Name of the thumbnail directory inside the app's cache directory */
+    private static final String THUMBNAIL_DIR = "thumbnails";
+
+    /** The single instance of the loader, created on first use */
+    private static ImageLoader sInstance;
+
+    private final ContentResolver mResolver;
+    private final File mThumbnailDir;
+    private final int mFallbackSize;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /** The request currently bound to each view. Only touched on the UI thread. */
+    private final WeakHashMap<ImageView, Request> mRequests = new WeakHashMap<>();
+
+    /**
+     * Bytes of thumbnails on disk, or -1 until the thumbnail directory is first measured. Guarded
+     * by this.
+     */
+    private long mDiskCacheBytes = -1;
+
+    /**
+     * Returns the image loader of the app.
+     */
+    public static synchronized ImageLoader get(Context context) {
+        if (sInstance == null) {
+            sInstance = new ImageLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ImageLoader(Context context) {
+        mResolver = context.getContentResolver();
+        mThumbnailDir = new File(context.getCacheDir(), THUMBNAIL_DIR);
+
+        // Views that haven't been laid out yet get images the size of the screen's short side
+        mFallbackSize = Math.min(context.getResources().getDisplayMetrics().widthPixels,
+                context.getResources().getDisplayMetrics().heightPixels);
+
+        int memoryClass = ((ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE))
+                .getMemoryClass();
+        mMemoryCache = new LruCache<String, Bitmap>(memoryClass * 1024 * 1024 / MEMORY_CACHE_DIVIDER) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+
+        mExecutor = Executors.newFixedThreadPool(DECODE_THREADS,
+                DrugProvider.backgroundThreadFactory(LOG_TAG));
+    }
+
+    /**
+     * Load the image at the given URI into the view, replacing any request the view was bound to.
+     * Must be called on the UI thread.
+     *
+     * @param uri of the image, or null to clear the view
+     * @param view to show the image in
+     */
+    public void load(Uri uri, ImageView view) {
+        // The view is being rebound, so whatever it was waiting for is stale
+        Request previous = mRequests.remove(view);
+        if (previous != null) {
+            previous.cancel();
+        }
+
+        if (uri == null) {
+            view.setImageDrawable(null);
+            return;
+        }
+
+        int width = view.getWidth() > 0 ? view.getWidth() : mFallbackSize;
+        int height = view.getHeight() > 0 ? view.getHeight() : mFallbackSize;
+        String key = uri + "@" + width + "x" + height;
+
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+
+        view.setImageDrawable(null);
+        Request request = new Request(uri, key, width, height, view);
+        mRequests.put(view, request);
+        request.mFuture = mExecutor.submit(request);
+    }
+
+    /**
+     * Decode the thumbnail of a request, from the disk cache if possible.
+     */
+    private Bitmap decode(Request request) throws IOException {
+        File thumbnail = new File(mThumbnailDir, hash(request.mKey));
+        if (thumbnail.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (bitmap != null) {
+                // Mark the thumbnail as recently used, so it's the last one evicted
+                thumbnail.setLastModified(System.currentTimeMillis());
+                return bitmap;
+            }
+        }
+
+        Bitmap bitmap = decodeSampled(request.mUri, request.mWidth, request.mHeight);
+        if (bitmap != null) {
+            writeThumbnail(thumbnail, bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decode the image at the given URI, skipping pixels so it's no more than twice the size of
+     * the target on each side.
+     */
+    private Bitmap decodeSampled(Uri uri, int width, int height) throws IOException {
+        // First only read the size of the image
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        InputStream input = openInputStream(uri);
+        try {
+            BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            input.close();
+        }
+
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= width
+                && options.outHeight / (sampleSize * 2) >= height) {
+            sampleSize *= 2;
+        }
+
+        // Then decode it, downsampled
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        input = openInputStream(uri);
+        try {
+            return BitmapFactory.decodeStream(input, null, options);
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Open the image at the given URI, which a provider can answer with no stream at all.
+     */
+    private InputStream openInputStream(Uri uri) throws FileNotFoundException {
+        InputStream input = mResolver.openInputStream(uri);
+        if (input == null) {
+            throw new FileNotFoundException("No stream for " + uri);
+        }
+        return input;
+    }
+
+    /**
+     * Write a thumbnail to the disk cache, then evict the least recently used thumbnails if the
+     * cache grew past its maximum size. The size of the cache is kept in {@link #mDiskCacheBytes},
+     * so the directory is only listed to measure it once, and then to evict.
+     */
+    private synchronized void writeThumbnail(File thumbnail, Bitmap bitmap) {
+        if (!mThumbnailDir.isDirectory() && !mThumbnailDir.mkdirs()) {
+            return;
+        }
+        if (mDiskCacheBytes == -1) {
+            mDiskCacheBytes = 0;
+            File[] thumbnails = mThumbnailDir.listFiles();
+            if (thumbnails != null) {
+                for (File file : thumbnails) {
+                    mDiskCacheBytes += file.length();
+                }
+            }
+        }
+
+        // A thumbnail written again replaces the old one, which is 0 bytes if there was none
+        long replacedBytes = thumbnail.length();
+        try {
+            FileOutputStream output = new FileOutputStream(thumbnail);
+            try {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_QUALITY, output);
+            } finally {
+                output.close();
+            }
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Failed to cache thumbnail " + thumbnail, e);
+            thumbnail.delete();
+            mDiskCacheBytes -= replacedBytes;
+            return;
+        }
+        mDiskCacheBytes += thumbnail.length() - replacedBytes;
+        if (mDiskCacheBytes <= MAX_DISK_CACHE_BYTES) {
+            return;
+        }
+
+        // The directory is the truth, whatever else removed files from it since it was measured
+        File[] thumbnails = mThumbnailDir.listFiles();
+        if (thumbnails == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : thumbnails) {
+            totalBytes += file.length();
+        }
+
+        Arrays.sort(thumbnails, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long difference = a.lastModified() - b.lastModified();
+                return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+            }
+        });
+        for (File file : thumbnails) {
+            if (totalBytes <= TRIMMED_DISK_CACHE_BYTES) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                totalBytes -= length;
+            }
+        }
+        mDiskCacheBytes = totalBytes;
+    }
+
+    /**
+     * Returns a file name for a cache key, which can hold any character of a URI.
+     */
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // MD5 and UTF-8 are always available on Android
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A request to load one image into one view.
+     */
+    private final class Request implements Runnable {
+
+        final Uri mUri;
+        final String mKey;
+        final int mWidth;
+        final int mHeight;
+
+        /** View to show the image in, which the request doesn't keep alive */
+        final WeakReference<ImageView> mView;
+
+        /** Future of the decoding task, so it can be interrupted */
+        volatile Future<?> mFuture;
+
+        /** Set when the view got rebound before the image was decoded */
+        volatile boolean mCancelled;
+
+        Request(Uri uri, String key, int width, int height, ImageView view) {
+            mUri = uri;
+            mKey = key;
+            mWidth = width;
+            mHeight = height;
+            mView = new WeakReference<>(view);
+        }
+
+        void cancel() {
+            mCancelled = true;
+            Future<?> future = mFuture;
+            if (future != null) {
+                future.cancel(true);
+            }
+        }
+
+        @Override
+        public void run() {
+            Bitmap bitmap = null;
+            try {
+                if (!mCancelled) {
+                    bitmap = decode(this);
+                }
+                if (bitmap != null) {
+                    mMemoryCache.put(mKey, bitmap);
+                }
+            } catch (IOException | SecurityException e) {
+                Log.w(LOG_TAG, "Failed to load image " + mUri, e);
+            } finally {
+                // However the request ended, its view stops waiting for it
+                finish(bitmap);
+            }
+        }
+
+        /**
+         * Unbind the view from this request on the UI thread, showing the image if there is one.
+         */
+        private void finish(final Bitmap bitmap) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // Only touch the view if it's still bound to this request
+                    ImageView view = mView.get();
+                    if (view == null || mRequests.get(view) != Request.this) {
+                        return;
+                    }
+                    mRequests.remove(view);
+                    if (!mCancelled && bitmap != null) {
+                        view.setImageBitmap(bitmap);
+                    }
+                }
+            });
+        }
+    }
+}
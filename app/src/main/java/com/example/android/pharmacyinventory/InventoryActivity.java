@@ -16,36 +16,87 @@
 package com.example.android.pharmacyinventory;
 
 import android.app.LoaderManager;
+import android.app.ProgressDialog;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.CursorLoader;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.Loader;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
-import android.widget.AdapterView;
 import android.widget.Button;
-import android.widget.ListView;
+import android.widget.Toast;
 
+import com.example.android.pharmacyinventory.data.CatalogImporter;
 import com.example.android.pharmacyinventory.data.DrugContract;
 
+import java.util.ArrayList;
+
 /**
  * Displays list of drugs that were entered and stored in the app.
  */
 public class InventoryActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor> {
 
-    /** Identifier for the drug data loader */
+    /** Identifier for the loader of the first page of drugs. Page i uses DRUG_LOADER + i. */
     private static final int DRUG_LOADER = 0;
 
-    /** Adapter for the ListView */
-    DrugCursorAdapter mCursorAdapter;
+    /** Number of drugs loaded by each page loader */
+    private static final int PAGE_SIZE = 50;
+
+    /** Start loading the next page when the user scrolls this close to the end of the list */
+    private static final int PREFETCH_DISTANCE = 20;
+
+    /**
+     * Loader arguments holding the name, or the stock-out time when the list is sorted by it, and
+     * the ID of the row a page continues from
+     */
+    private static final String ARG_AFTER_NAME = "after_name";
+    private static final String ARG_AFTER_STOCKOUT = "after_stockout";
+    private static final String ARG_AFTER_ID = "after_id";
+
+    /** Saved state key of whether the list is sorted by stock-out time */
+    private static final String STATE_SORT_BY_STOCKOUT = "sort_by_stockout";
+
+    /** Request code of the file picker for the catalog to import */
+    private static final int IMPORT_CATALOG_REQUEST = 1;
+
+    /** Adapter for the RecyclerView */
+    DrugAdapter mAdapter;
+
+    /** View shown instead of the list when there are no drugs */
+    private View mEmptyView;
+
+    /** Cursors of the pages that have finished loading, by page index */
+    private final SparseArray<Cursor> mPages = new SparseArray<>();
+
+    /** Arguments each page loader was started with, by page index */
+    private final SparseArray<Bundle> mPageArgs = new SparseArray<>();
+
+    /** Number of pages whose loaders have been started */
+    private int mRequestedPages;
+
+    /** Whether the drugs that run out first are listed first, instead of sorting by name */
+    private boolean mSortByStockout;
+
+    /** Catalog import in progress, or null */
+    private CatalogImporter mImporter;
+
+    /** Dialog showing the progress of the import */
+    private ProgressDialog mImportDialog;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -62,26 +113,23 @@ public class InventoryActivity extends AppCompatActivity implements
             }
         });
 
-        // Find the ListView which will be populated with the pet data
-        ListView drugListView = (ListView) findViewById(R.id.list);
-
-        // Find and set empty view on the ListView, so that it only shows when the list has 0 items.
-        View emptyView = findViewById(R.id.empty_view);
-        drugListView.setEmptyView(emptyView);
+        // Find the RecyclerView which will be populated with the drug data
+        RecyclerView drugListView = (RecyclerView) findViewById(R.id.list);
+        final LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        drugListView.setLayoutManager(layoutManager);
 
-        // Setup an Adapter to create a list item for each row of drug data in the Cursor.
-        // There is no drug data yet (until the loader finishes) so pass in null for the Cursor.
-        mCursorAdapter = new DrugCursorAdapter(this, null);
-        drugListView.setAdapter(mCursorAdapter);
+        // Find the empty view, so that it only shows when the list has 0 items.
+        mEmptyView = findViewById(R.id.empty_view);
 
-        // Setup the item click listener
-        drugListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+        // Setup an Adapter to create a list item for each row of drug data.
+        // There is no drug data yet (until the loader finishes).
+        mAdapter = new DrugAdapter(new DrugAdapter.OnDrugClickListener() {
             @Override
-            public void onItemClick(AdapterView<?> adapterView, View view, int position, long id) {
+            public void onDrugClick(long id) {
                 // Create new intent to go to {@link EditorActivity}
                 Intent intent = new Intent(InventoryActivity.this, EditorActivity.class);
 
-                // Form the content URI that represents the specific pet that was clicked on,
+                // Form the content URI that represents the specific drug that was clicked on,
                 // by appending the "id" (passed as input to this method) onto the
                 // {@link DrugEntry#CONTENT_URI}.
                 // For example, the URI would be "content://com.example.android.pharmacyinventory/pharmacyinventory/2"
@@ -95,11 +143,136 @@ public class InventoryActivity extends AppCompatActivity implements
                 startActivity(intent);
             }
         });
+        drugListView.setAdapter(mAdapter);
+
+        // Show the empty view whenever the list becomes empty
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onChanged() {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+
+            @Override
+            public void onItemRangeRemoved(int positionStart, int itemCount) {
+                updateEmptyView();
+            }
+        });
+
+        // Load the next page before the user reaches the end of the list. This is also called
+        // with no scroll when the visible rows change after a layout.
+        drugListView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                if (layoutManager.findLastVisibleItemPosition()
+                        >= mAdapter.getItemCount() - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        if (savedInstanceState != null) {
+            mSortByStockout = savedInstanceState.getBoolean(STATE_SORT_BY_STOCKOUT);
+        }
 
-        // Kick off the loader
+        // Kick off the loader of the first page
+        mRequestedPages = 1;
         getLoaderManager().initLoader(DRUG_LOADER, null, this);
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        // The page loaders are kept, so the list must come back in the order they load
+        outState.putBoolean(STATE_SORT_BY_STOCKOUT, mSortByStockout);
+    }
+
+    /**
+     * Show the empty view instead of the list when there are no drugs.
+     */
+    private void updateEmptyView() {
+        mEmptyView.setVisibility(mAdapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    }
+
+    /**
+     * Start the loader of the page after the last requested one, unless that page is still
+     * loading or was the last page of the catalog.
+     */
+    private void loadNextPage() {
+        Cursor lastPage = mPages.get(mRequestedPages - 1);
+        if (lastPage == null || lastPage.getCount() < PAGE_SIZE) {
+            return;
+        }
+
+        Bundle args = continueAfter(lastPage);
+        mPageArgs.put(mRequestedPages, args);
+        getLoaderManager().initLoader(DRUG_LOADER + mRequestedPages, args, this);
+        mRequestedPages++;
+    }
+
+    /**
+     * Returns the loader arguments of the page that continues after the last row of the given page.
+     */
+    private Bundle continueAfter(Cursor page) {
+        page.moveToLast();
+        Bundle args = new Bundle();
+        if (mSortByStockout) {
+            args.putLong(ARG_AFTER_STOCKOUT,
+                    page.getLong(page.getColumnIndex(DrugContract.DrugEntry.COLUMN_STOCKOUT_AT)));
+        } else {
+            args.putString(ARG_AFTER_NAME,
+                    page.getString(page.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_NAME)));
+        }
+        args.putLong(ARG_AFTER_ID, page.getLong(page.getColumnIndex(DrugContract.DrugEntry._ID)));
+        return args;
+    }
+
+    /**
+     * Returns whether two pages continue after the same row.
+     */
+    private static boolean sameStart(Bundle args, Bundle oldArgs) {
+        String name = args.getString(ARG_AFTER_NAME);
+        return (name == null ? oldArgs.getString(ARG_AFTER_NAME) == null
+                : name.equals(oldArgs.getString(ARG_AFTER_NAME)))
+                && args.getLong(ARG_AFTER_STOCKOUT) == oldArgs.getLong(ARG_AFTER_STOCKOUT)
+                && args.getLong(ARG_AFTER_ID) == oldArgs.getLong(ARG_AFTER_ID);
+    }
+
+    /**
+     * Switch the list between the name order and the stock-out order, starting again from the
+     * first page.
+     */
+    private void setSortByStockout(boolean sortByStockout) {
+        if (sortByStockout == mSortByStockout) {
+            return;
+        }
+        mSortByStockout = sortByStockout;
+
+        for (int page = 1; page < mRequestedPages; page++) {
+            getLoaderManager().destroyLoader(DRUG_LOADER + page);
+        }
+        mPages.clear();
+        mPageArgs.clear();
+        mRequestedPages = 1;
+        showLoadedPages();
+        getLoaderManager().restartLoader(DRUG_LOADER, null, this);
+    }
+
+    /**
+     * Show all the pages that are loaded without a gap from the first one.
+     */
+    private void showLoadedPages() {
+        ArrayList<Cursor> pages = new ArrayList<>();
+        for (int page = 0; page < mRequestedPages && mPages.get(page) != null; page++) {
+            pages.add(mPages.get(page));
+        }
+        mAdapter.swapPages(pages);
+    }
+
     /**
      * Helper method to insert hardcoded drug data into the database. For debugging purposes only.
      */
@@ -109,7 +282,7 @@ public class InventoryActivity extends AppCompatActivity implements
         ContentValues values = new ContentValues();
         values.put(DrugContract.DrugEntry.COLUMN_DRUG_NAME, R.string.drug_name);
         values.put(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, 5);
-        values.put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, 3.00) ;
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, 300L);
         values.put(DrugContract.DrugEntry.COLUMN_DRUG_SOLD, 0);
 
 
@@ -120,6 +293,146 @@ public class InventoryActivity extends AppCompatActivity implements
         Uri newUri = getContentResolver().insert(DrugContract.DrugEntry.CONTENT_URI, values);
     }
 
+    /**
+     * Let the user pick a supplier catalog CSV file to import.
+     */
+    private void openCatalogSelector() {
+        Intent intent;
+
+        if (Build.VERSION.SDK_INT < 19) {
+            intent = new Intent(Intent.ACTION_GET_CONTENT);
+        } else {
+            intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+            intent.addCategory(Intent.CATEGORY_OPENABLE);
+        }
+
+        // CSV files are reported with several MIME types, so accept any file
+        intent.setType("*/*");
+        startActivityForResult(Intent.createChooser(intent, getString(R.string.action_import_catalog)),
+                IMPORT_CATALOG_REQUEST);
+    }
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent resultData) {
+        if (requestCode == IMPORT_CATALOG_REQUEST && resultCode == RESULT_OK
+                && resultData != null && resultData.getData() != null) {
+            importCatalog(resultData.getData());
+            return;
+        }
+        super.onActivityResult(requestCode, resultCode, resultData);
+    }
+
+    /**
+     * Import the catalog at the given URI in the background, with a progress dialog that lets the
+     * user cancel it.
+     */
+    private void importCatalog(Uri catalogUri) {
+        if (mImporter != null) {
+            return;
+        }
+
+        mImportDialog = new ProgressDialog(this);
+        mImportDialog.setMessage(getString(R.string.import_in_progress));
+        mImportDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        mImportDialog.setMax(100);
+        mImportDialog.setProgressNumberFormat(null);
+        mImportDialog.setCancelable(false);
+        mImportDialog.setButton(DialogInterface.BUTTON_NEGATIVE, getString(R.string.cancel),
+                new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (mImporter != null) {
+                            mImporter.cancel();
+                        }
+                    }
+                });
+        mImportDialog.show();
+
+        mImporter = new CatalogImporter(getContentResolver(), catalogUri, new CatalogImporter.Listener() {
+            @Override
+            public void onProgress(long bytesRead, long totalBytes, int imported, int rejected) {
+                if (totalBytes > 0) {
+                    mImportDialog.setProgress((int) (bytesRead * 100 / totalBytes));
+                } else {
+                    mImportDialog.setIndeterminate(true);
+                }
+            }
+
+            @Override
+            public void onFinished(CatalogImporter.Result result) {
+                mImporter = null;
+                mImportDialog.dismiss();
+                mImportDialog = null;
+
+                String message;
+                if (result.error != null) {
+                    message = getString(R.string.import_failed, result.imported, result.error.getMessage());
+                } else if (result.cancelled) {
+                    message = getString(R.string.import_cancelled, result.imported);
+                } else {
+                    message = getString(R.string.import_finished, result.imported, result.rejected);
+                }
+                Toast.makeText(InventoryActivity.this, message, Toast.LENGTH_LONG).show();
+                for (String rejection : result.rejections) {
+                    Log.w("InventoryActivity", "Skipped catalog " + rejection);
+                }
+            }
+        });
+        mImporter.start();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // The import reports to this activity, so it can't outlive it. The drugs it already
+        // inserted stay.
+        if (mImporter != null) {
+            mImporter.cancel();
+            mImporter = null;
+        }
+        if (mImportDialog != null) {
+            mImportDialog.dismiss();
+            mImportDialog = null;
+        }
+    }
+
+    /**
+     * Order the drugs that are low on stock right away, instead of waiting for the provider's next
+     * run. The provider may have to finish writing sales first, so it's called off the UI thread.
+     */
+    private void reorderNow() {
+        final ContentResolver resolver = getContentResolver();
+        final Context appContext = getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String message;
+                try {
+                    Bundle result = resolver.call(DrugContract.DrugEntry.CONTENT_URI,
+                            DrugContract.METHOD_RUN_REORDERS, null, null);
+                    String orderFile = result.getString(DrugContract.EXTRA_ORDER_FILE);
+                    if (orderFile == null) {
+                        message = appContext.getString(R.string.reorder_nothing);
+                    } else {
+                        message = appContext.getString(R.string.reorder_finished,
+                                result.getInt(DrugContract.EXTRA_ORDER_LINES), orderFile);
+                    }
+                } catch (RuntimeException e) {
+                    Log.e("InventoryActivity", "Failed to reorder drugs", e);
+                    message = appContext.getString(R.string.reorder_failed, e.getMessage());
+                }
+
+                final String toast = message;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(appContext, toast, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        }, "ReorderNow").start();
+    }
+
     /**
      * Helper method to delete all drugs in the database.
      */
@@ -133,6 +446,7 @@ public class InventoryActivity extends AppCompatActivity implements
         // Inflate the menu options from the res/menu/menu_catalog.xml file.
         // This adds menu items to the app bar.
         getMenuInflater().inflate(R.menu.menu_catalog, menu);
+        menu.findItem(R.id.action_sort_by_stockout).setChecked(mSortByStockout);
         return true;
     }
 
@@ -140,10 +454,23 @@ public class InventoryActivity extends AppCompatActivity implements
     public boolean onOptionsItemSelected(MenuItem item) {
         // User clicked on a menu option in the app bar overflow menu
         switch (item.getItemId()) {
+            // Respond to a click on the "Runs out first" menu option
+            case R.id.action_sort_by_stockout:
+                item.setChecked(!item.isChecked());
+                setSortByStockout(item.isChecked());
+                return true;
+            // Respond to a click on the "Reorder now" menu option
+            case R.id.action_reorder_now:
+                reorderNow();
+                return true;
             // Respond to a click on the "Insert dummy data" menu option
             case R.id.action_insert_dummy_data:
                 insertDrug();
                 return true;
+            // Respond to a click on the "Import catalog" menu option
+            case R.id.action_import_catalog:
+                openCatalogSelector();
+                return true;
             // Respond to a click on the "Delete all entries" menu option
             case R.id.action_delete_all_entries:
                 deleteAllPets();
@@ -157,28 +484,67 @@ public class InventoryActivity extends AppCompatActivity implements
         // Define a projection that specifies the columns from the table we care about.
         String[] projection = {
                 DrugContract.DrugEntry._ID,
+                DrugContract.DrugEntry.COLUMN_VERSION,
                 DrugContract.DrugEntry.COLUMN_DRUG_NAME,
                 DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY,
-                DrugContract.DrugEntry.COLUMN_DRUG_SOLD};
+                DrugContract.DrugEntry.COLUMN_DRUG_SOLD,
+                DrugContract.DrugEntry.COLUMN_STOCKOUT_AT};
+
+        // The first page has no arguments, the other ones continue after the previous page
+        long afterId = bundle == null ? 0 : bundle.getLong(ARG_AFTER_ID);
+        Uri pageUri;
+        if (mSortByStockout) {
+            Long afterStockout = bundle == null ? null : bundle.getLong(ARG_AFTER_STOCKOUT);
+            pageUri = DrugContract.DrugEntry.buildStockoutPageUri(PAGE_SIZE, afterStockout, afterId);
+        } else {
+            String afterName = bundle == null ? null : bundle.getString(ARG_AFTER_NAME);
+            pageUri = DrugContract.DrugEntry.buildPageUri(PAGE_SIZE, afterName, afterId);
+        }
 
         // This loader will execute the ContentProvider's query method on a background thread
         return new CursorLoader(this,   // Parent activity context
-                DrugContract.DrugEntry.CONTENT_URI,   // Provider content URI to query
+                pageUri,                // Page URI, which also gives the sort order
                 projection,             // Columns to include in the resulting Cursor
                 null,                   // No selection clause
                 null,                   // No selection arguments
-                null);                  // Default sort order
+                null);                  // Pages are sorted by the page URI
     }
 
     @Override
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
-        // Update {@link DrugCursorAdapter} with this new cursor containing updated drug data
-        mCursorAdapter.swapCursor(data);
+        int page = loader.getId() - DRUG_LOADER;
+        mPages.put(page, data);
+
+        int nextPage = page + 1;
+        if (nextPage < mRequestedPages) {
+            if (data.getCount() < PAGE_SIZE) {
+                // This page shrank and is now the last one, so drop the pages after it
+                for (int stale = nextPage; stale < mRequestedPages; stale++) {
+                    mPages.remove(stale);
+                    mPageArgs.remove(stale);
+                    getLoaderManager().destroyLoader(DRUG_LOADER + stale);
+                }
+                mRequestedPages = nextPage;
+            } else {
+                // Rows may have moved in or out of this page, so the next page has to continue
+                // from this page's new last row. This cascades down the following pages.
+                Bundle args = continueAfter(data);
+                Bundle oldArgs = mPageArgs.get(nextPage);
+                if (!sameStart(args, oldArgs)) {
+                    mPageArgs.put(nextPage, args);
+                    getLoaderManager().restartLoader(DRUG_LOADER + nextPage, args, this);
+                }
+            }
+        }
+
+        // Update {@link DrugAdapter} with the pages containing updated drug data
+        showLoadedPages();
     }
 
     @Override
     public void onLoaderReset(Loader<Cursor> loader) {
         // Callback called when the data needs to be deleted
-        mCursorAdapter.swapCursor(null);
+        mPages.remove(loader.getId() - DRUG_LOADER);
+        showLoadedPages();
     }
 }
@@ -0,0 +1,546 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Imports a supplier catalog CSV file into the drugs table. The file is streamed through a
+ * pipeline, so it can have any number of lines:
+ * <ol>
+ *     <li>a reader thread splits the file into chunks of records,</li>
+ *     <li>parser threads turn every record into the values of a drug, or reject it,</li>
+ *     <li>a single writer thread inserts every chunk with one
+ *     {@link ContentResolver#bulkInsert}, which is one transaction.</li>
+ * </ol>
+ * The stages hand over chunks through bounded queues, so a slow stage holds back the ones before
+ * it and the memory used stays the same whatever the size of the file.
+ *
+ * The first line of the file names the columns. "name" and "price" are required, "quantity" is
+ * optional, other columns are ignored. Fields may be quoted with double quotes, in which case they
+ * can hold commas, line breaks and doubled double quotes.
+ *
+ * Cancelling stops the import after the chunk being written. The chunks written before stay in
+ * the database.
+ */
+public final class CatalogImporter {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = CatalogImporter.class.getSimpleName();
+
+    /** Records per chunk, which is also the number of drugs inserted per transaction */
+    private static final int CHUNK_SIZE = 500;
+
+    /** Chunks each queue holds before the stage feeding it has to wait */
+    private static final int QUEUE_CAPACITY = 4;
+
+    /** Longest record, so a stray quote can't pull the rest of the file into one record */
+    private static final int MAX_RECORD_CHARS = 64 * 1024;
+
+    /** Most rejected lines described in the result */
+    private static final int MAX_REJECTION_MESSAGES = 20;
+
+    /**
+     * Receives the progress and the result of an import, on the UI thread.
+     */
+    public interface Listener {
+
+        /**
+         * Called after each chunk is written.
+         *
+         * @param bytesRead  bytes of the file read so far
+         * @param totalBytes size of the file, or -1 if it isn't known
+         * @param imported   drugs inserted so far
+         * @param rejected   lines rejected so far
+         */
+        void onProgress(long bytesRead, long totalBytes, int imported, int rejected);
+
+        /**
+         * Called once when the import is over, whether it completed, was cancelled or failed.
+         */
+        void onFinished(Result result);
+    }
+
+    /**
+     * Outcome of an import.
+     */
+    public static final class Result {
+
+        /** Number of drugs inserted */
+        public final int imported;
+
+        /** Number of lines that were rejected, and weren't inserted */
+        public final int rejected;
+
+        /** Descriptions of the first rejected lines, such as "line 12: invalid price" */
+        public final List<String> rejections;
+
+        /** Whether the import was cancelled before the end of the file */
+        public final boolean cancelled;
+
+        /** What stopped the import, or null if it wasn't stopped by an error */
+        public final Exception error;
+
+        Result(int imported, int rejected, List<String> rejections, boolean cancelled,
+               Exception error) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.rejections = rejections;
+            this.cancelled = cancelled;
+            this.error = error;
+        }
+    }
+
+    /** A chunk of records with the line number of each one */
+    private static final class Chunk {
+        final String[] records;
+        final int[] lines;
+        final int size;
+
+        Chunk(String[] records, int[] lines, int size) {
+            this.records = records;
+            this.lines = lines;
+            this.size = size;
+        }
+    }
+
+    /** Put in a queue to tell the next stage that there is nothing more to come */
+    private static final Chunk END_OF_RECORDS = new Chunk(new String[0], new int[0], 0);
+    private static final ContentValues[] END_OF_DRUGS = new ContentValues[0];
+
+    private final ContentResolver mResolver;
+    private final Uri mSource;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final int mParsers = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final BlockingQueue<Chunk> mRecords = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final BlockingQueue<ContentValues[]> mDrugs = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicInteger mRejected = new AtomicInteger();
+    private final List<String> mRejections = new ArrayList<>();
+    private volatile long mTotalBytes = -1;
+    private volatile boolean mCancelled;
+    private volatile Exception mError;
+
+    /** Index of each required or optional column, read from the header by the reader */
+    private volatile int mNameColumn = -1;
+    private volatile int mQuantityColumn = -1;
+    private volatile int mPriceColumn = -1;
+
+    private ExecutorService mExecutor;
+
+    /**
+     * @param resolver to read the file and insert the drugs with
+     * @param source   URI of the CSV file
+     * @param listener receives the progress and the result on the UI thread
+     */
+    public CatalogImporter(ContentResolver resolver, Uri source, Listener listener) {
+        mResolver = resolver;
+        mSource = source;
+        mListener = listener;
+    }
+
+    /**
+     * Start the import in the background. Can only be called once.
+     */
+    public void start() {
+        if (mExecutor != null) {
+            throw new IllegalStateException("Import already started");
+        }
+        mExecutor = Executors.newFixedThreadPool(mParsers + 2, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, LOG_TAG);
+            }
+        });
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                read();
+            }
+        });
+        for (int i = 0; i < mParsers; i++) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    parse();
+                }
+            });
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Stop the import. The listener still gets {@link Listener#onFinished}.
+     */
+    public void cancel() {
+        mCancelled = true;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reader stage: split the file into records and hand them to the parsers in chunks.
+     */
+    private void read() {
+        boolean interrupted = false;
+        try {
+            AssetFileDescriptor descriptor = mResolver.openAssetFileDescriptor(mSource, "r");
+            if (descriptor == null) {
+                throw new IOException("Cannot open " + mSource);
+            }
+            mTotalBytes = descriptor.getLength();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new CountingInputStream(descriptor.createInputStream()), "UTF-8"));
+            try {
+                readRecords(reader);
+            } finally {
+                reader.close();
+                descriptor.close();
+            }
+        } catch (InterruptedException e) {
+            // Cancelled, so the parsers were interrupted too
+            interrupted = true;
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to read " + mSource, e);
+            mError = e;
+        }
+
+        // Tell every parser that there are no more records, so they finish the queued ones
+        if (!interrupted) {
+            try {
+                for (int i = 0; i < mParsers; i++) {
+                    mRecords.put(END_OF_RECORDS);
+                }
+            } catch (InterruptedException e) {
+                // Cancelled
+            }
+        }
+    }
+
+    private void readRecords(BufferedReader reader) throws IOException, InterruptedException {
+        String[] records = new String[CHUNK_SIZE];
+        int[] lines = new int[CHUNK_SIZE];
+        int size = 0;
+        int lineNumber = 0;
+        boolean header = true;
+
+        String line;
+        while ((line = reader.readLine()) != null && !mCancelled && mError == null) {
+            lineNumber++;
+            int firstLine = lineNumber;
+
+            // A quoted field can hold line breaks, so keep reading until the quotes are balanced.
+            // A record that never balances them is rejected by the parser.
+            String record = line;
+            int quotes = countQuotes(line);
+            while (quotes % 2 != 0 && record.length() < MAX_RECORD_CHARS
+                    && (line = reader.readLine()) != null) {
+                lineNumber++;
+                record = record + "\n" + line;
+                quotes += countQuotes(line);
+            }
+
+            if (header) {
+                readHeader(record);
+                header = false;
+                continue;
+            }
+            if (record.trim().isEmpty()) {
+                continue;
+            }
+
+            records[size] = record;
+            lines[size] = firstLine;
+            size++;
+            if (size == CHUNK_SIZE) {
+                mRecords.put(new Chunk(records, lines, size));
+                records = new String[CHUNK_SIZE];
+                lines = new int[CHUNK_SIZE];
+                size = 0;
+            }
+        }
+        if (size > 0) {
+            mRecords.put(new Chunk(records, lines, size));
+        }
+        if (header && !mCancelled) {
+            throw new IOException("The catalog is empty");
+        }
+    }
+
+    /**
+     * Find the columns in the header line.
+     */
+    private void readHeader(String record) throws IOException {
+        List<String> columns = parseRecord(record);
+        for (int i = 0; i < columns.size(); i++) {
+            String column = columns.get(i).trim().toLowerCase(Locale.US);
+            if (column.equals(DrugContract.DrugEntry.COLUMN_DRUG_NAME)) {
+                mNameColumn = i;
+            } else if (column.equals(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY)) {
+                mQuantityColumn = i;
+            } else if (column.equals(DrugContract.DrugEntry.COLUMN_DRUG_PRICE)) {
+                mPriceColumn = i;
+            }
+        }
+        if (mNameColumn == -1 || mPriceColumn == -1) {
+            throw new IOException("The catalog requires name and price columns");
+        }
+    }
+
+    /**
+     * Parser stage: turn every record of a chunk into the values of a drug, and hand the valid
+     * ones to the writer.
+     */
+    private void parse() {
+        try {
+            while (true) {
+                Chunk chunk = mRecords.take();
+                if (chunk == END_OF_RECORDS) {
+                    break;
+                }
+                ContentValues[] drugs = new ContentValues[chunk.size];
+                int valid = 0;
+                for (int i = 0; i < chunk.size; i++) {
+                    try {
+                        drugs[valid] = toDrug(parseRecord(chunk.records[i]));
+                        valid++;
+                    } catch (IllegalArgumentException e) {
+                        reject("line " + chunk.lines[i] + ": " + e.getMessage());
+                    }
+                }
+                if (valid > 0) {
+                    mDrugs.put(valid == drugs.length ? drugs : Arrays.copyOf(drugs, valid));
+                }
+            }
+            mDrugs.put(END_OF_DRUGS);
+        } catch (InterruptedException e) {
+            // Cancelled
+        }
+    }
+
+    /**
+     * Returns the values of the drug described by the fields of a record.
+     *
+     * @throws IllegalArgumentException describing why the record isn't a valid drug
+     */
+    private ContentValues toDrug(List<String> fields) {
+        String name = field(fields, mNameColumn);
+        if (name == null || name.isEmpty()) {
+            throw new IllegalArgumentException("missing name");
+        }
+
+        long price;
+        try {
+            price = Money.parseCents(field(fields, mPriceColumn));
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new IllegalArgumentException("invalid price");
+        }
+
+        int quantity = 0;
+        String quantityField = field(fields, mQuantityColumn);
+        if (quantityField != null && !quantityField.isEmpty()) {
+            try {
+                quantity = Integer.parseInt(quantityField);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid quantity");
+            }
+            if (quantity < 0) {
+                throw new IllegalArgumentException("invalid quantity");
+            }
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_NAME, name);
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, quantity);
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, price);
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_SOLD, 0);
+        return values;
+    }
+
+    /**
+     * Returns the trimmed field at the given column, or null if the record doesn't have it.
+     */
+    private static String field(List<String> fields, int column) {
+        return column >= 0 && column < fields.size() ? fields.get(column).trim() : null;
+    }
+
+    private void reject(String message) {
+        mRejected.incrementAndGet();
+        synchronized (mRejections) {
+            if (mRejections.size() < MAX_REJECTION_MESSAGES) {
+                mRejections.add(message);
+            }
+        }
+    }
+
+    /**
+     * Writer stage: insert every chunk of drugs in its own transaction, then report the result.
+     */
+    private void write() {
+        int imported = 0;
+        int finishedParsers = 0;
+        try {
+            while (finishedParsers < mParsers && !mCancelled) {
+                ContentValues[] drugs = mDrugs.take();
+                if (drugs == END_OF_DRUGS) {
+                    finishedParsers++;
+                    continue;
+                }
+                imported += mResolver.bulkInsert(DrugContract.DrugEntry.CONTENT_URI, drugs);
+                postProgress(imported);
+            }
+        } catch (InterruptedException e) {
+            // Cancelled
+        } catch (RuntimeException e) {
+            Log.e(LOG_TAG, "Failed to write the catalog", e);
+            mError = e;
+            mExecutor.shutdownNow();
+        }
+
+        List<String> rejections;
+        synchronized (mRejections) {
+            rejections = new ArrayList<>(mRejections);
+        }
+        final Result result = new Result(imported, mRejected.get(), rejections,
+                mCancelled && mError == null, mError);
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onFinished(result);
+            }
+        });
+    }
+
+    private void postProgress(final int imported) {
+        final long bytesRead = mBytesRead.get();
+        final long totalBytes = mTotalBytes;
+        final int rejected = mRejected.get();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    mListener.onProgress(bytesRead, totalBytes, imported, rejected);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the number of double quotes in a string.
+     */
+    private static int countQuotes(String text) {
+        int quotes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '"') {
+                quotes++;
+            }
+        }
+        return quotes;
+    }
+
+    /**
+     * Split a CSV record into its fields. A field in double quotes can hold commas and line
+     * breaks, and a doubled double quote inside it stands for one double quote.
+     *
+     * @throws IllegalArgumentException if a quoted field isn't closed
+     */
+    static List<String> parseRecord(String record) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < record.length(); i++) {
+            char c = record.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < record.length() && record.charAt(i + 1) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c != '\r') {
+                field.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("unclosed quote");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Counts the bytes read from the file, for the progress.
+     */
+    private final class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mBytesRead.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mBytesRead.addAndGet(read);
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the change notifications of {@link DrugProvider}. Changed URIs are collected for a
+ * short window and then notified once each, so a burst of sales becomes one notification per
+ * changed drug instead of one per write. Row URIs (drugs/#) are kept as they are, so observers can
+ * tell which drugs changed, and so is the store they belong to. A burst that touches too many rows
+ * is notified as a single change to the whole table of each store it touched.
+ *
+ * A page of the drug list watches a URI of its own, drugs/page/#, which a row URI doesn't reach.
+ * A changed row is also notified to the pages holding it, see {@link #watchPage}, so a sale only
+ * reloads the page the drug is on. A change to the whole table reaches every page.
+ */
+final class DrugChangeNotifier {
+
+    /** Path segment of the notification URIs of pages, under the drugs table */
+    private static final String PATH_PAGE = "page";
+
+    /** How long to wait for more changes before notifying, in milliseconds */
+    static final long COALESCE_WINDOW_MS = 50;
+
+    /** Above this many changed rows in one window, notify the table URI instead of every row */
+    static final int MAX_ROW_NOTIFICATIONS = 32;
+
+    /** Resolver used to send the notifications */
+    private final ContentResolver mResolver;
+
+    /** Handler of the background thread that sends the notifications */
+    private final Handler mHandler;
+
+    /** URIs changed since the last flush, in the order they changed. Guarded by this. */
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<>();
+
+    /** Whether a flush is already scheduled. Guarded by this. */
+    private boolean mScheduled;
+
+    /** Open pages, by their notification URI. Guarded by this. */
+    private final HashMap<Uri, Page> mPages = new HashMap<>();
+
+    /** Number of the next page to watch. Guarded by this. */
+    private long mNextPage;
+
+    /** Number of notifications sent so far, for the provider's metrics */
+    private final AtomicLong mSent = new AtomicLong();
+
+    /** Sends the pending notifications */
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    DrugChangeNotifier(ContentResolver resolver) {
+        mResolver = resolver;
+
+        HandlerThread thread = new HandlerThread("DrugChangeNotifier",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Record that the data at the given URI has changed. Listeners are notified at the end of the
+     * current window. Every query parameter but the store is dropped, so a drug changed through
+     * URIs with different page parameters is notified once, and a change to the table is
+     * recognized as one whatever its parameters. The default store is notified without the
+     * parameter, like the URIs that don't name a store.
+     */
+    void changed(Uri uri) {
+        if (uri.getQuery() != null) {
+            String store = uri.getQueryParameter(DrugContract.QUERY_PARAM_STORE);
+            uri = uri.buildUpon().clearQuery().build();
+            if (store != null && !DrugContract.DEFAULT_STORE.equals(store)) {
+                uri = DrugContract.forStore(uri, store);
+            }
+        }
+        synchronized (this) {
+            mPending.add(uri);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        mHandler.postDelayed(mFlush, COALESCE_WINDOW_MS);
+    }
+
+    /**
+     * Notify all listeners of the URIs that changed since the last flush.
+     */
+    void flush() {
+        ArrayList<Uri> changed;
+        synchronized (this) {
+            changed = new ArrayList<>(mPending);
+            mPending.clear();
+            mScheduled = false;
+        }
+
+        // A change to the whole table already reaches the observers of every row
+        boolean wholeTable = changed.size() > MAX_ROW_NOTIFICATIONS;
+        LinkedHashSet<Uri> tables = new LinkedHashSet<>();
+        for (Uri uri : changed) {
+            Uri table = tableOf(uri);
+            tables.add(table);
+            wholeTable |= uri.equals(table);
+        }
+        if (wholeTable) {
+            for (Uri table : tables) {
+                mResolver.notifyChange(table, null);
+            }
+            mSent.addAndGet(tables.size());
+            return;
+        }
+        for (Uri uri : changed) {
+            mResolver.notifyChange(uri, null);
+        }
+        ArrayList<Uri> pages = pagesHolding(changed);
+        for (Uri page : pages) {
+            mResolver.notifyChange(page, null);
+        }
+        mSent.addAndGet(changed.size() + pages.size());
+    }
+
+    /**
+     * Returns the given page of drugs, watching a notification URI of its own instead of the
+     * table: it's notified when one of its rows changes, or when the whole table of its store does.
+     * A row that moves onto the page isn't on it yet, so a write that can move a row to another
+     * page, such as an insert or a rename, has to notify the table.
+     *
+     * @param table the drugs table URI of the page's store
+     * @param followsEveryRow whether every row change reloads the page, for a page whose order
+     *                        moves with the stock, or one read without its IDs
+     */
+    Cursor watchPage(Cursor page, Uri table, boolean followsEveryRow) {
+        long[] ids = null;
+        int idColumn = page.getColumnIndex(DrugContract.DrugEntry._ID);
+        if (!followsEveryRow && idColumn != -1) {
+            ids = new long[page.getCount()];
+            for (int i = 0; page.moveToPosition(i); i++) {
+                ids[i] = page.getLong(idColumn);
+            }
+            page.moveToPosition(-1);
+            Arrays.sort(ids);
+        }
+
+        final Uri uri;
+        synchronized (this) {
+            uri = table.buildUpon().appendPath(PATH_PAGE)
+                    .appendPath(String.valueOf(mNextPage++)).build();
+            mPages.put(uri, new Page(table, ids));
+        }
+
+        Cursor cursor = new CursorWrapper(page) {
+            @Override
+            public void close() {
+                super.close();
+                synchronized (DrugChangeNotifier.this) {
+                    mPages.remove(uri);
+                }
+            }
+        };
+        cursor.setNotificationUri(mResolver, uri);
+        return cursor;
+    }
+
+    /**
+     * Returns the notification URIs of the open pages that hold one of the given changed rows.
+     */
+    private synchronized ArrayList<Uri> pagesHolding(ArrayList<Uri> rows) {
+        ArrayList<Uri> pages = new ArrayList<>();
+        for (Map.Entry<Uri, Page> entry : mPages.entrySet()) {
+            Page page = entry.getValue();
+            for (Uri row : rows) {
+                if (page.table.equals(tableOf(row)) && page.holds(row)) {
+                    pages.add(entry.getKey());
+                    break;
+                }
+            }
+        }
+        return pages;
+    }
+
+    /**
+     * Returns the URI of the drugs table of the store of the given URI.
+     */
+    private static Uri tableOf(Uri uri) {
+        String store = uri.getQueryParameter(DrugContract.QUERY_PARAM_STORE);
+        return store == null ? DrugContract.DrugEntry.CONTENT_URI
+                : DrugContract.forStore(DrugContract.DrugEntry.CONTENT_URI, store);
+    }
+
+    /**
+     * Returns the number of notifications sent so far.
+     */
+    long sentCount() {
+        return mSent.get();
+    }
+
+    /**
+     * A page watched through {@link #watchPage}.
+     */
+    private static final class Page {
+
+        /** Drugs table URI of the page's store */
+        final Uri table;
+
+        /** IDs of the drugs on the page, sorted, or null if every row change reloads it */
+        final long[] ids;
+
+        Page(Uri table, long[] ids) {
+            this.table = table;
+            this.ids = ids;
+        }
+
+        /**
+         * Returns whether a change to the given row URI reloads this page.
+         */
+        boolean holds(Uri row) {
+            if (ids == null) {
+                return true;
+            }
+            String id = row.getLastPathSegment();
+            try {
+                return Arrays.binarySearch(ids, Long.parseLong(id)) >= 0;
+            } catch (NumberFormatException e) {
+                // Not a row of the table, so it can't be on the page
+                return false;
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 package com.example.android.pharmacyinventory.data;
 
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -50,6 +51,269 @@ public final class DrugContract {
      */
     public static final String PATH_DRUG = "drugs";
 
+    /**
+     * Path appended to a single drug URI to sell units of that drug, for instance
+     * content://com.example.android.pharmacyinventory/drugs/3/sell.
+     */
+    public static final String PATH_SELL = "sell";
+
+    /**
+     * Path appended to the drugs URI to read the inventory statistics, that is
+     * content://com.example.android.pharmacyinventory/drugs/stats.
+     */
+    public static final String PATH_STATS = "stats";
+
+    /**
+     * Path appended to the drugs URI to search drugs by name, for instance
+     * content://com.example.android.pharmacyinventory/drugs/search?q=ibu.
+     */
+    public static final String PATH_SEARCH = "search";
+
+    /**
+     * Path appended to the drugs URI to read the provider's performance metrics, that is
+     * content://com.example.android.pharmacyinventory/drugs/_metrics.
+     */
+    public static final String PATH_METRICS = "_metrics";
+
+    /**
+     * Path appended to the drugs URI to export every drug as a file, that is
+     * content://com.example.android.pharmacyinventory/drugs/export.
+     */
+    public static final String PATH_EXPORT = "export";
+
+    /**
+     * Query parameter holding the text to search for. Every word in it must match the start of a
+     * word in the drug name.
+     */
+    public static final String QUERY_PARAM_QUERY = "q";
+
+    /**
+     * Query parameter of {@link DrugEntry#EXPORT_URI} choosing the format of the export,
+     * {@link #FORMAT_CSV} (the default) or {@link #FORMAT_JSON}.
+     */
+    public static final String QUERY_PARAM_FORMAT = "format";
+
+    /** Value of {@link #QUERY_PARAM_FORMAT} for a CSV export */
+    public static final String FORMAT_CSV = "csv";
+
+    /** Value of {@link #QUERY_PARAM_FORMAT} for a JSON export */
+    public static final String FORMAT_JSON = "json";
+
+    /**
+     * Line an export ends with when it failed part way, in either format, after whatever rows
+     * were written. A complete export never holds it, so a file that does is not the whole
+     * catalog. From KitKat on the failure is also reported by
+     * {@link android.os.ParcelFileDescriptor#checkError} on the read end.
+     */
+    public static final String EXPORT_ERROR_MARKER = "#ERROR export failed";
+
+    /**
+     * Name of the {@link android.content.ContentProvider#call} method that sells a whole basket
+     * of drugs in one transaction. The extras must hold {@link #EXTRA_DRUG_IDS} and
+     * {@link #EXTRA_QUANTITIES} arrays of the same length.
+     */
+    public static final String METHOD_CHECKOUT = "checkout";
+
+    /**
+     * Query parameter that limits how many drugs a query on {@link DrugEntry#CONTENT_URI} returns.
+     * When it's present, the drugs are returned one page at a time in
+     * {@link DrugEntry#PAGE_SORT_ORDER}, starting after the row given by
+     * {@link #QUERY_PARAM_AFTER_NAME} and {@link #QUERY_PARAM_AFTER_ID}.
+     */
+    public static final String QUERY_PARAM_LIMIT = "limit";
+
+    /** Query parameter holding the name of the last drug on the previous page */
+    public static final String QUERY_PARAM_AFTER_NAME = "after_name";
+
+    /** Query parameter holding the ID of the last drug on the previous page */
+    public static final String QUERY_PARAM_AFTER_ID = "after_id";
+
+    /**
+     * Query parameter choosing the order of a paged query. Pages are sorted by name unless it's
+     * {@link #SORT_STOCKOUT}.
+     */
+    public static final String QUERY_PARAM_SORT = "sort";
+
+    /**
+     * Value of {@link #QUERY_PARAM_SORT} that sorts the pages in
+     * {@link DrugEntry#STOCKOUT_SORT_ORDER}, continuing after the row given by
+     * {@link #QUERY_PARAM_AFTER_STOCKOUT} and {@link #QUERY_PARAM_AFTER_ID}.
+     */
+    public static final String SORT_STOCKOUT = "stockout";
+
+    /** Query parameter holding the stock-out time of the last drug on the previous page */
+    public static final String QUERY_PARAM_AFTER_STOCKOUT = "after_stockout";
+
+    /**
+     * Query parameter choosing the store a drugs URI reads or writes. Every store has a database
+     * of its own, and URIs without this parameter go to {@link #DEFAULT_STORE}. See
+     * {@link #forStore}.
+     */
+    public static final String QUERY_PARAM_STORE = "store";
+
+    /** The store of the URIs that don't name one, which holds the drugs of a single pharmacy */
+    public static final String DEFAULT_STORE = "main";
+
+    /**
+     * Extra choosing the store a {@link android.content.ContentProvider#call} method works on,
+     * like {@link #QUERY_PARAM_STORE}. Defaults to {@link #DEFAULT_STORE}.
+     */
+    public static final String EXTRA_STORE = "store";
+
+    /**
+     * Path appended to the drugs URI for the views over every store at once, that is
+     * content://com.example.android.pharmacyinventory/drugs/chain.
+     */
+    public static final String PATH_CHAIN = "chain";
+
+    /**
+     * Path appended to the chain URI for the drugs low on stock in any store, that is
+     * content://com.example.android.pharmacyinventory/drugs/chain/low_stock.
+     */
+    public static final String PATH_LOW_STOCK = "low_stock";
+
+    /**
+     * Query parameter of {@link ChainEntry#CONTENT_URI} that only returns the drug with this
+     * name, ignoring case.
+     */
+    public static final String QUERY_PARAM_NAME = "name";
+
+    /**
+     * Returns whether the given store ID is valid: 1 to 32 letters, digits, '-' or '_'.
+     */
+    public static boolean isValidStore(String store) {
+        return store != null && store.matches("[A-Za-z0-9_-]{1,32}");
+    }
+
+    /**
+     * Returns the given drugs URI, going to the given store instead of {@link #DEFAULT_STORE}.
+     */
+    public static Uri forStore(Uri uri, String store) {
+        if (!isValidStore(store)) {
+            throw new IllegalArgumentException("Invalid store " + store);
+        }
+        return uri.buildUpon().appendQueryParameter(QUERY_PARAM_STORE, store).build();
+    }
+
+    /**
+     * Query parameter that turns an update of a single drug URI into a compare-and-set: the drug
+     * is only updated if its {@link DrugEntry#COLUMN_VERSION} still has this value. Otherwise
+     * nothing is written and the update returns 0, and the caller can read the drug again, merge
+     * its changes and retry with the new version. See {@link DrugEntry#buildVersionedUri}.
+     */
+    public static final String QUERY_PARAM_EXPECTED_VERSION = "expected_version";
+
+    /** Extra holding the long[] of drug IDs in a checkout basket */
+    public static final String EXTRA_DRUG_IDS = "drug_ids";
+
+    /** Extra holding the int[] of units sold for each drug in a checkout basket */
+    public static final String EXTRA_QUANTITIES = "quantities";
+
+    /** Result extra holding the total number of units sold by a checkout */
+    public static final String EXTRA_UNITS_SOLD = "units_sold";
+
+    /**
+     * Result extra holding the ID of the first drug that didn't have enough stock. It is only
+     * present when the checkout failed, in which case nothing from the basket was sold.
+     */
+    public static final String EXTRA_OUT_OF_STOCK_ID = "out_of_stock_id";
+
+    /**
+     * Name of the {@link android.content.ContentProvider#call} method that turns the slow query
+     * log on or off. The argument is the threshold in milliseconds above which statements are
+     * logged, or null to turn the log off.
+     */
+    public static final String METHOD_SET_SLOW_QUERY_THRESHOLD = "set_slow_query_threshold";
+
+    /**
+     * Name of the {@link android.content.ContentProvider#call} method that returns the slow query
+     * log in {@link #EXTRA_SLOW_QUERIES}.
+     */
+    public static final String METHOD_DUMP_SLOW_QUERIES = "dump_slow_queries";
+
+    /**
+     * Result extra holding the String[] of slow query log entries, oldest first. Each entry holds
+     * the time, the duration, the SQL, the shape of its arguments and its query plan, and says
+     * "FULL SCAN" when the plan reads the whole drugs table.
+     */
+    public static final String EXTRA_SLOW_QUERIES = "slow_queries";
+
+    /**
+     * Name of the {@link android.content.ContentProvider#call} method that writes a snapshot of
+     * every drug. The argument is the file name of the snapshot in the app's snapshot directory,
+     * an existing snapshot with that name is replaced. The result holds
+     * {@link #EXTRA_SNAPSHOT_ROWS} and {@link #EXTRA_SNAPSHOT_BYTES}.
+     */
+    public static final String METHOD_WRITE_SNAPSHOT = "write_snapshot";
+
+    /**
+     * Name of the {@link android.content.ContentProvider#call} method that replaces every drug
+     * with the ones of a snapshot written by {@link #METHOD_WRITE_SNAPSHOT}, in one transaction.
+     * The argument is the file name of the snapshot. A snapshot that fails its checksums is
+     * rejected before anything is changed. The result holds {@link #EXTRA_SNAPSHOT_ROWS}.
+     */
+    public static final String METHOD_RESTORE_SNAPSHOT = "restore_snapshot";
+
+    /** Result extra holding the int number of drugs written to or restored from a snapshot */
+    public static final String EXTRA_SNAPSHOT_ROWS = "snapshot_rows";
+
+    /** Result extra holding the long size of a snapshot in bytes */
+    public static final String EXTRA_SNAPSHOT_BYTES = "snapshot_bytes";
+
+    /**
+     * Name of the {@link android.content.ContentProvider#call} method that folds the sales
+     * recorded since the last compaction into the drugs' totals right away, and rolls up the
+     * sales older than {@link SaleEntry#RETENTION_DAYS}. It also runs on its own every few
+     * minutes. The result holds {@link #EXTRA_SALES_FOLDED} and {@link #EXTRA_SALES_ROLLED_UP}.
+     */
+    public static final String METHOD_COMPACT_SALES = "compact_sales";
+
+    /** Result extra holding the int number of sales folded into the drugs' totals */
+    public static final String EXTRA_SALES_FOLDED = "sales_folded";
+
+    /** Result extra holding the int number of sales rolled up into the daily totals */
+    public static final String EXTRA_SALES_ROLLED_UP = "sales_rolled_up";
+
+    /**
+     * Name of the {@link android.content.ContentProvider#call} method that orders the drugs that
+     * fell to their {@link DrugEntry#COLUMN_REORDER_THRESHOLD} right away. It also runs on its own
+     * every few minutes. Only the drugs whose quantity or reorder settings changed since the last
+     * run are looked at. The drugs to order are written as one purchase order to the outbox, and
+     * the result holds {@link #EXTRA_ORDER_LINES} and, if there were any,
+     * {@link #EXTRA_ORDER_FILE}.
+     */
+    public static final String METHOD_RUN_REORDERS = "run_reorders";
+
+    /** Result extra holding the int number of drugs ordered */
+    public static final String EXTRA_ORDER_LINES = "order_lines";
+
+    /** Result extra holding the String file name of the purchase order in the outbox */
+    public static final String EXTRA_ORDER_FILE = "order_file";
+
+    /**
+     * Name of the {@link android.content.ContentProvider#call} method that synchronizes the drugs
+     * of a store with a sync server, whose URL is the arg. It pushes the changes made on this
+     * device since the last push the server acknowledged, then pulls the changes other devices
+     * pushed since the last pull, both as compressed batches. An interrupted sync resumes after
+     * the last batch that went through. Quantities are synced as changes, so the units sold on
+     * every device between two syncs add up, while the name, price, image and reorder settings
+     * pushed last win. It does network I/O, so don't call it on the main thread. The result holds {@link #EXTRA_SYNC_PUSHED}, {@link #EXTRA_SYNC_PULLED},
+     * {@link #EXTRA_SYNC_BYTES_SENT} and {@link #EXTRA_SYNC_BYTES_RECEIVED}.
+     */
+    public static final String METHOD_SYNC = "sync";
+
+    /** Result extra holding the int number of changed and deleted drugs pushed */
+    public static final String EXTRA_SYNC_PUSHED = "sync_pushed";
+
+    /** Result extra holding the int number of changed and deleted drugs pulled and applied */
+    public static final String EXTRA_SYNC_PULLED = "sync_pulled";
+
+    /** Result extra holding the long number of compressed bytes sent to the server */
+    public static final String EXTRA_SYNC_BYTES_SENT = "sync_bytes_sent";
+
+    /** Result extra holding the long number of compressed bytes received from the server */
+    public static final String EXTRA_SYNC_BYTES_RECEIVED = "sync_bytes_received";
+
     /**
      * Inner class that defines constant values for the drugs database table.
      * Each entry in the table represents a single drug.
@@ -71,6 +335,27 @@ public final class DrugContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DRUG;
 
+        /**
+         * The content URI to export every drug as a file. Open it with
+         * {@link ContentResolver#openInputStream}, in the format given by
+         * {@link DrugContract#QUERY_PARAM_FORMAT}, or open {@link #CONTENT_URI} or this URI with
+         * {@link ContentResolver#openTypedAssetFileDescriptor} and the MIME type wanted. The file
+         * is streamed as it's read, so it can be read before the whole catalog is.
+         */
+        public static final Uri EXPORT_URI = Uri.withAppendedPath(CONTENT_URI, PATH_EXPORT);
+
+        /**
+         * The MIME type of the CSV export. The first line names the columns, and the price is
+         * written with two decimals, so the file can be imported back as a catalog.
+         */
+        public static final String EXPORT_CSV_TYPE = "text/csv";
+
+        /**
+         * The MIME type of the JSON export, an array with one object per drug. The price is
+         * written in cents.
+         */
+        public static final String EXPORT_JSON_TYPE = "application/json";
+
         /** Name of database table for drugs */
         public final static String TABLE_NAME = "drugs";
 
@@ -96,14 +381,16 @@ public final class DrugContract {
         public final static String COLUMN_DRUG_QUANTITY = "quantity";
 
         /**
-         * Quantity sold drug.
+         * Quantity sold drug. Sales are recorded in {@link SaleEntry#TABLE_NAME} and folded into
+         * this total in the background. A query or an export that names this column counts the
+         * sales not folded in yet, but a selection on it only sees the folded total.
          *
          * Type: INTEGER
          */
         public final static String COLUMN_DRUG_SOLD = "sales";
 
         /**
-         * Price of the drug.
+         * Price of the drug, in cents. See {@link Money} to parse and format it.
          *
          * Type: INTEGER
          */
@@ -116,8 +403,543 @@ public final class DrugContract {
          */
         public final static String COLUMN_DRUG_IMAGE = "image";
 
+        /**
+         * Sales velocity over the last week or so, in units per day, as of
+         * {@link #COLUMN_VELOCITY_UPDATED_AT}. It's an exponentially weighted moving average
+         * updated by every sale, so older sales count for less and less.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_VELOCITY_SHORT = "velocity_short";
+
+        /**
+         * Sales velocity over the last month or so, in units per day, as of
+         * {@link #COLUMN_VELOCITY_UPDATED_AT}. Comparing it with {@link #COLUMN_VELOCITY_SHORT}
+         * tells whether a drug is selling faster or slower than usual.
+         *
+         * Type: REAL
+         */
+        public final static String COLUMN_VELOCITY_LONG = "velocity_long";
+
+        /**
+         * When the velocities were last updated, in milliseconds since the epoch, or 0 if the
+         * drug was never sold.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_VELOCITY_UPDATED_AT = "velocity_updated_at";
+
+        /**
+         * When the drug is projected to run out of stock at its {@link #COLUMN_VELOCITY_SHORT}
+         * velocity, in milliseconds since the epoch, or {@link #NEVER_STOCKOUT} if it isn't
+         * selling. The database updates it whenever the quantity or the velocity changes, and it's
+         * indexed, so the drugs can be listed in {@link #STOCKOUT_SORT_ORDER} without a scan.
+         * See {@link #daysToStockout}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOCKOUT_AT = "stockout_at";
+
+        /** Value of {@link #COLUMN_STOCKOUT_AT} for drugs that aren't projected to run out */
+        public static final long NEVER_STOCKOUT = Long.MAX_VALUE;
+
+        /**
+         * The drug is ordered when its quantity falls to or below this many units. Only used when
+         * {@link #COLUMN_REORDER_QUANTITY} is above 0.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_REORDER_THRESHOLD = "reorder_threshold";
+
+        /**
+         * Number of units to order when the drug falls to its {@link #COLUMN_REORDER_THRESHOLD},
+         * or 0 to never order it.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_REORDER_QUANTITY = "reorder_quantity";
+
+        /**
+         * Number of units ordered and not yet received, or 0. It's set when the drug is put on a
+         * purchase order, and cleared once its quantity is back above the threshold, so the drug
+         * is only ordered once each time it runs low. Read only.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ON_ORDER = "on_order";
+
+        /**
+         * Version of the drug, which the database increments on every change to its name,
+         * quantity, price, image or reorder settings, including sales. Pass it back with
+         * {@link #buildVersionedUri} to update the drug only if nobody changed it since it was
+         * read. Read only.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_VERSION = "version";
+
+        /**
+         * Sequence number of the last change to the quantity or the reorder settings of the drug,
+         * set by the database from a counter shared by all the drugs. It's indexed, so the drugs
+         * changed since a given number can be found without a scan. Read only.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_CHANGE_SEQ = "change_seq";
+
+        /**
+         * ID of the drug shared by every device that syncs the store, see
+         * {@link DrugContract#METHOD_SYNC}. The local {@link #_ID} differs between devices.
+         * Read only.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_SYNC_ID = "sync_id";
+
+        /**
+         * Sequence number of the last change to the drug on this device that has to be pushed to
+         * the sync server, from a counter shared by all the drugs. Changes pulled from the server
+         * don't get one, so they aren't pushed back. Read only.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SYNC_SEQ = "sync_seq";
+
+        /**
+         * Sequence number of the last change on this device to the name, price, image or reorder
+         * settings of the drug, from the same counter as {@link #COLUMN_SYNC_SEQ}. Only the drugs
+         * with such a change push those columns. Read only.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SYNC_FIELDS_SEQ = "sync_fields_seq";
+
+        /**
+         * Quantity of the drug that the sync server has already been told about, by this device
+         * or by the others. The difference between {@link #COLUMN_DRUG_QUANTITY} and it is what
+         * the next push sends. Read only.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SYNCED_QUANTITY = "synced_quantity";
 
+        /**
+         * A drug counts as low on stock when its quantity is at or below this threshold.
+         * The statistics triggers are built with this value, so changing it needs a migration.
+         */
+        public static final int LOW_STOCK_THRESHOLD = 5;
+
+        /**
+         * Key of the number of units to sell when updating a sell URI built by
+         * {@link #buildSellUri(long)}. Defaults to 1 when it's missing.
+         *
+         * Type: INTEGER
+         */
+        public final static String SELL_QUANTITY = "sell_quantity";
+
+        /**
+         * Sort order of paged queries. The ID breaks ties between drugs with the same name, so
+         * that every row has a unique position to continue from.
+         */
+        public static final String PAGE_SORT_ORDER =
+                COLUMN_DRUG_NAME + " COLLATE NOCASE, " + _ID;
+
+        /**
+         * Sort order of the drugs that run out first, such as pages sorted by
+         * {@link DrugContract#SORT_STOCKOUT}. The drugs that aren't selling come last.
+         */
+        public static final String STOCKOUT_SORT_ORDER = COLUMN_STOCKOUT_AT + ", " + _ID;
+
+        /**
+         * Returns the number of days until a drug runs out, which is 0 if it already has, or
+         * {@link Double#POSITIVE_INFINITY} if it isn't selling.
+         *
+         * @param stockoutAt value of {@link #COLUMN_STOCKOUT_AT}
+         * @param now current time, in milliseconds since the epoch
+         */
+        public static double daysToStockout(long stockoutAt, long now) {
+            if (stockoutAt == NEVER_STOCKOUT) {
+                return Double.POSITIVE_INFINITY;
+            }
+            return Math.max(0, (stockoutAt - now) / (24.0 * 60 * 60 * 1000));
+        }
+
+        /**
+         * Returns the URI of a page of at most pageSize drugs, in {@link #STOCKOUT_SORT_ORDER}.
+         *
+         * @param pageSize maximum number of drugs on the page
+         * @param afterStockoutAt stock-out time of the last drug on the previous page, or null for
+         *                        the first page
+         * @param afterId ID of the last drug on the previous page (ignored for the first page)
+         */
+        public static Uri buildStockoutPageUri(int pageSize, Long afterStockoutAt, long afterId) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(pageSize))
+                    .appendQueryParameter(QUERY_PARAM_SORT, SORT_STOCKOUT);
+            if (afterStockoutAt != null) {
+                builder.appendQueryParameter(QUERY_PARAM_AFTER_STOCKOUT, String.valueOf(afterStockoutAt))
+                        .appendQueryParameter(QUERY_PARAM_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the URI of a page of at most pageSize drugs, in {@link #PAGE_SORT_ORDER}.
+         *
+         * @param pageSize maximum number of drugs on the page
+         * @param afterName name of the last drug on the previous page, or null for the first page
+         * @param afterId ID of the last drug on the previous page (ignored for the first page)
+         */
+        public static Uri buildPageUri(int pageSize, String afterName, long afterId) {
+            Uri.Builder builder = CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(pageSize));
+            if (afterName != null) {
+                builder.appendQueryParameter(QUERY_PARAM_AFTER_NAME, afterName)
+                        .appendQueryParameter(QUERY_PARAM_AFTER_ID, String.valueOf(afterId));
+            }
+            return builder.build();
+        }
+
+        /**
+         * Returns the URI that searches drugs by name. The best matches come first: drugs whose
+         * name starts with the search text, then shorter names.
+         *
+         * @param query text typed by the user
+         * @param limit maximum number of matches to return
+         */
+        public static Uri buildSearchUri(String query, int limit) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_SEARCH)
+                    .appendQueryParameter(QUERY_PARAM_QUERY, query)
+                    .appendQueryParameter(QUERY_PARAM_LIMIT, String.valueOf(limit))
+                    .build();
+        }
+
+        /**
+         * Returns the URI that updates the drug with the given ID only if it's still at the given
+         * {@link #COLUMN_VERSION}, see {@link DrugContract#QUERY_PARAM_EXPECTED_VERSION}.
+         */
+        public static Uri buildVersionedUri(long id, long version) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_EXPECTED_VERSION, String.valueOf(version))
+                    .build();
+        }
+
+        /**
+         * Returns the URI that sells units of the drug with the given ID when it's updated.
+         */
+        public static Uri buildSellUri(long id) {
+            return ContentUris.withAppendedId(CONTENT_URI, id).buildUpon()
+                    .appendPath(PATH_SELL)
+                    .build();
+        }
     }
 
-}
+    /**
+     * Inner class that defines constant values for the sales ledger. Every sale appends a row,
+     * and rows are never updated. A compactor folds new rows into
+     * {@link DrugEntry#COLUMN_DRUG_SOLD}, and moves the rows older than {@link #RETENTION_DAYS}
+     * into {@link DailySalesEntry#TABLE_NAME}, so the ledger stays small and the history is kept.
+     */
+    public static final class SaleEntry implements BaseColumns {
+
+        /** Name of database table for the sales ledger */
+        public final static String TABLE_NAME = "sales";
+
+        /**
+         * Unique ID number for the sale, in the order the sales were recorded.
+         *
+         * Type: INTEGER
+         */
+        public final static String _ID = BaseColumns._ID;
+
+        /**
+         * ID of the drug sold. The sale is kept if the drug is deleted.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DRUG_ID = "drug_id";
+
+        /**
+         * Units sold.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * Price of one unit when it was sold, in cents.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_PRICE = "price";
+
+        /**
+         * When the sale was made, in milliseconds since the epoch.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_SOLD_AT = "sold_at";
+
+        /** Sales are kept one by one for this many days, then rolled up into daily totals */
+        public static final int RETENTION_DAYS = 90;
+    }
+
+    /**
+     * Inner class that defines constant values for the daily sales totals, which keep the history
+     * of the sales rolled up out of {@link SaleEntry#TABLE_NAME}. There is one row per drug and day.
+     */
+    public static final class DailySalesEntry implements BaseColumns {
+
+        /** Name of database table for the daily sales totals */
+        public final static String TABLE_NAME = "sales_daily";
+
+        /**
+         * ID of the drug sold.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DRUG_ID = "drug_id";
+
+        /**
+         * Day of the sales, in days since the epoch in UTC.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_DAY = "day";
+
+        /**
+         * Units sold that day.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * Revenue of the sales that day, in cents.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_REVENUE = "revenue";
+    }
+
+    /**
+     * Inner class that defines constant values for the inventory statistics. The statistics are a
+     * single row that the database keeps up to date on every write to the drugs table, so reading
+     * them never scans the drugs.
+     */
+    public static final class StatsEntry {
+
+        /** The content URI to read the inventory statistics from the provider */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(DrugEntry.CONTENT_URI, PATH_STATS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the inventory statistics.
+         */
+        public static final String CONTENT_ITEM_TYPE =
+                ContentResolver.CURSOR_ITEM_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_STATS;
+
+        /** Name of database table for the inventory statistics */
+        public final static String TABLE_NAME = "inventory_stats";
+
+        /**
+         * Total units in stock over all drugs.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TOTAL_UNITS = "total_units";
+
+        /**
+         * Total value of the stock (quantity times price over all drugs), in cents.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STOCK_VALUE = "stock_value";
+
+        /**
+         * Total units sold over all drugs.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TOTAL_SALES = "total_sales";
+
+        /**
+         * Number of drugs at or below {@link DrugEntry#LOW_STOCK_THRESHOLD}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOW_STOCK_COUNT = "low_stock_count";
+    }
+
+    /**
+     * Inner class that defines constant values for the views over every store of the chain. They
+     * are read only, and computed by querying every store's database in parallel.
+     */
+    public static final class ChainEntry implements BaseColumns {
+
+        /**
+         * Content URI of the chain-wide stock, with one row per drug name across all the stores,
+         * in name order. Add {@link #QUERY_PARAM_NAME} for the stock of one drug. The
+         * {@link #_ID} of its rows is only their position.
+         */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(DrugEntry.CONTENT_URI, PATH_CHAIN);
+
+        /**
+         * Content URI of the drugs low on stock in any store, with one row per drug and store,
+         * lowest quantity first.
+         */
+        public static final Uri LOW_STOCK_URI = Uri.withAppendedPath(CONTENT_URI, PATH_LOW_STOCK);
+
+        /**
+         * The MIME type of the chain views.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_DRUG
+                        + "/" + PATH_CHAIN;
+
+        /**
+         * Name of the drug. Drugs with the same name in different stores are the same drug.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_NAME = "name";
+
+        /**
+         * Units of the drug in stock, over all the stores.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TOTAL_QUANTITY = "total_quantity";
+
+        /**
+         * Number of stores that carry the drug.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_STORES = "stores";
+
+        /**
+         * Number of stores where the drug is at or below {@link DrugEntry#LOW_STOCK_THRESHOLD}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_LOW_STOCK_STORES = "low_stock_stores";
+
+        /**
+         * Store of a row of {@link #LOW_STOCK_URI}, whose {@link #_ID} is the drug's ID in that
+         * store.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_STORE = "store";
+
+        /**
+         * Units of the drug in stock in the store of a row of {@link #LOW_STOCK_URI}.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_QUANTITY = "quantity";
+
+        /**
+         * Returns the URI of the chain-wide stock of the drug with the given name.
+         */
+        public static Uri buildStockUri(String name) {
+            return CONTENT_URI.buildUpon().appendQueryParameter(QUERY_PARAM_NAME, name).build();
+        }
+    }
+
+    /**
+     * Inner class that defines constant values for the provider's performance metrics. Querying
+     * {@link #CONTENT_URI} returns one row per provider operation and URI, with latency counted
+     * since the provider started. The metrics are read-only.
+     */
+    public static final class MetricsEntry {
+
+        /** The content URI to read the provider's performance metrics from */
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(DrugEntry.CONTENT_URI, PATH_METRICS);
+
+        /**
+         * The MIME type of the {@link #CONTENT_URI} for the performance metrics.
+         */
+        public static final String CONTENT_LIST_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
+
+        /**
+         * Provider operation: "query", "insert", "update", "delete", "getType", "bulkInsert",
+         * "applyBatch" or "call". The row named "notify" counts the changes handed to the notifier and "notify_sent" the notifications
+         * it actually sent after coalescing them. Only their count is set.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_OPERATION = "operation";
+
+        /**
+         * Kind of URI the operation was called with, for instance "DRUGS" or "DRUG_ID", or
+         * "UNKNOWN" for URIs the provider doesn't support. A batch has the URI of its first
+         * operation, and a call has its method, for instance "checkout" or "sync".
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_MATCH = "match";
+
+        /**
+         * Number of calls, including the failed ones.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_COUNT = "count";
 
+        /**
+         * Number of calls that threw an exception.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ERRORS = "errors";
+
+        /**
+         * Total rows returned by queries, or affected by writes, or operations applied by batches.
+         * Calls don't count rows.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_ROWS = "rows";
+
+        /**
+         * Total time spent in the calls, in nanoseconds.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_TOTAL_NANOS = "total_nanos";
+
+        /**
+         * Median latency in nanoseconds, rounded up to the upper bound of its histogram bucket.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_P50_NANOS = "p50_nanos";
+
+        /**
+         * 99th percentile latency in nanoseconds, rounded up to the upper bound of its histogram
+         * bucket.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_P99_NANOS = "p99_nanos";
+
+        /**
+         * Longest call, in nanoseconds.
+         *
+         * Type: INTEGER
+         */
+        public final static String COLUMN_MAX_NANOS = "max_nanos";
+
+        /**
+         * Latency histogram as comma-separated counts. Bucket i counts the calls that took from
+         * 2^i up to 2^(i+1) nanoseconds.
+         *
+         * Type: TEXT
+         */
+        public final static String COLUMN_HISTOGRAM = "histogram";
+    }
+
+}
@@ -18,6 +18,7 @@ package com.example.android.pharmacyinventory.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
 /**
  * Database helper for Pharmacy Inventory app. Manages database creation and version management.
@@ -26,25 +27,151 @@ public class DrugDbHelper extends SQLiteOpenHelper {
 
     public static final String LOG_TAG = DrugDbHelper.class.getSimpleName();
 
-    /** Name of the database file */
+    /** Name of the database file of {@link DrugContract#DEFAULT_STORE} */
     private static final String DATABASE_NAME = "inventory.db";
 
+    /** Prefix and suffix of the database file names of the other stores, around the store ID */
+    private static final String STORE_DATABASE_PREFIX = "inventory_";
+    private static final String STORE_DATABASE_SUFFIX = ".db";
+
     /**
-     * Database version. If you change the database schema, you must increment the database version.
+     * Database version. If you change the database schema, add a step to {@link DrugMigrations},
+     * which increments the database version.
      */
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = DrugMigrations.LATEST_VERSION;
 
     /**
-     * Constructs a new instance of {@link DrugDbHelper}.
+     * How hard the database works to make each commit durable. Every profile uses write-ahead
+     * logging, in which a reader such as the list's CursorLoader and a writer don't lock each
+     * other out. How much that and each profile save hasn't been measured on a device.
+     */
+    public enum Durability {
+
+        /**
+         * For point of sale tills: commits are only synced to disk at WAL checkpoints, and the
+         * writer's page cache is larger. A power cut can lose the last few commits, but it can't
+         * corrupt the database.
+         */
+        POS_FAST("NORMAL", 2000),
+
+        /** Every commit is synced to disk before it returns. */
+        STRICT("FULL", 0);
+
+        /** Value of PRAGMA synchronous */
+        final String synchronous;
+
+        /**
+         * Value of PRAGMA cache_size, in pages, or 0 to keep SQLite's default. Only the primary
+         * connection, which does every write, gets it. See {@link #onOpen}.
+         */
+        final int cachePages;
+
+        Durability(String synchronous, int cachePages) {
+            this.synchronous = synchronous;
+            this.cachePages = cachePages;
+        }
+    }
+
+    /** Durability profile picked when this helper was constructed */
+    private final Durability mDurability;
+
+    /**
+     * Constructs a new instance of {@link DrugDbHelper} with the {@link Durability#STRICT} profile.
      *
      * @param context of the app
      */
     public DrugDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, Durability.STRICT);
+    }
+
+    /**
+     * Constructs a new instance of {@link DrugDbHelper}.
+     *
+     * @param context of the app
+     * @param durability profile used for every connection opened by this helper
+     */
+    public DrugDbHelper(Context context, Durability durability) {
+        this(context, DrugContract.DEFAULT_STORE, durability);
+    }
+
+    /**
+     * Constructs a new instance of {@link DrugDbHelper} for the database of one store. Every store
+     * has a database file of its own, with the same schema.
+     *
+     * @param context of the app
+     * @param store ID of the store, see {@link DrugContract#isValidStore}
+     * @param durability profile used for every connection opened by this helper
+     */
+    public DrugDbHelper(Context context, String store, Durability durability) {
+        super(context, databaseName(store), null, DATABASE_VERSION);
+        mDurability = durability;
+
+        // From Jelly Bean on, write-ahead logging is turned on before the database is opened.
+        // Older versions turn it on in onOpen().
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
     }
 
     /**
-     * This is called when the database is created for the first time.
+     * Returns the name of the database file of the given store.
+     */
+    static String databaseName(String store) {
+        if (!DrugContract.isValidStore(store)) {
+            throw new IllegalArgumentException("Invalid store " + store);
+        }
+        if (DrugContract.DEFAULT_STORE.equals(store)) {
+            return DATABASE_NAME;
+        }
+        return STORE_DATABASE_PREFIX + store + STORE_DATABASE_SUFFIX;
+    }
+
+    /**
+     * Returns the store whose database file has the given name, or null if it isn't the database
+     * of a store, such as a journal file.
+     */
+    static String storeOf(String databaseName) {
+        if (DATABASE_NAME.equals(databaseName)) {
+            return DrugContract.DEFAULT_STORE;
+        }
+        if (!databaseName.startsWith(STORE_DATABASE_PREFIX)
+                || !databaseName.endsWith(STORE_DATABASE_SUFFIX)) {
+            return null;
+        }
+        String store = databaseName.substring(STORE_DATABASE_PREFIX.length(),
+                databaseName.length() - STORE_DATABASE_SUFFIX.length());
+        return DrugContract.isValidStore(store) && !DrugContract.DEFAULT_STORE.equals(store)
+                ? store : null;
+    }
+
+    /**
+     * This is called every time the database is opened. Apply the durability profile.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+
+        if (db.isReadOnly()) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            db.enableWriteAheadLogging();
+        }
+
+        // These pragmas only apply to the primary connection, which is the one that writes.
+        // SQLiteDatabase runs the reads of the other connections in its pool without a hook to
+        // set pragmas on them, so they keep the default cache size. The synchronous setting only
+        // matters to commits, which the primary connection does alone.
+        db.execSQL("PRAGMA synchronous = " + mDurability.synchronous);
+        if (mDurability.cachePages > 0) {
+            db.execSQL("PRAGMA cache_size = " + mDurability.cachePages);
+        }
+    }
+
+    /**
+     * This is called when the database is created for the first time. The table is created with
+     * the version 1 schema and then goes through every migration step, exactly like an upgraded
+     * database would.
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
@@ -59,13 +186,17 @@ public class DrugDbHelper extends SQLiteOpenHelper {
 
         // Execute the SQL statement
         db.execSQL(SQL_CREATE_DRUG_TABLE);
+
+        // Bring the version 1 schema up to date
+        DrugMigrations.migrate(db, 1, DATABASE_VERSION);
     }
 
     /**
-     * This is called when the database needs to be upgraded.
+     * This is called when the database needs to be upgraded. It runs inside a transaction, so a
+     * failing step leaves the database at its old version.
      */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // The database is still at version 1, so there's nothing to do be done here.
+        DrugMigrations.migrate(db, oldVersion, newVersion);
     }
 }
\ No newline at end of file
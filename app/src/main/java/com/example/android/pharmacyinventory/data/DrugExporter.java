@@ -0,0 +1,259 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Writes every drug as CSV or JSON to a stream, for the exports served by
+ * {@link DrugProvider}. The drugs are read in chunks in ID order, each chunk starting right
+ * after the last ID of the one before, so the exporter only ever holds one chunk however big the
+ * table is, and the first rows are written before the rest are read.
+ *
+ * Every chunk is a query of its own, not one long read transaction, so the writers are never held
+ * up by a slow reader. A drug changed during the export is written as it was when its chunk was
+ * read, and every drug is written once.
+ */
+final class DrugExporter {
+
+    /** Drugs read per query */
+    private static final int CHUNK_SIZE = 500;
+
+    /** Columns of the export, in order */
+    private static final String[] COLUMNS = {
+            DrugContract.DrugEntry._ID,
+            DrugContract.DrugEntry.COLUMN_DRUG_NAME,
+            DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY,
+            DrugContract.DrugEntry.COLUMN_DRUG_SOLD,
+            DrugContract.DrugEntry.COLUMN_DRUG_PRICE,
+            DrugContract.DrugEntry.COLUMN_DRUG_IMAGE};
+
+    /** Positions of the columns in {@link #COLUMNS} */
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int QUANTITY = 2;
+    private static final int SOLD = 3;
+    private static final int PRICE = 4;
+    private static final int IMAGE = 5;
+
+    /**
+     * Reads the next chunk of drugs, after the ID bound to it, with the sales not folded into
+     * the totals yet
+     */
+    private static final String SQL_CHUNK = "SELECT " + join(SalesLedger.withCurrentSold(COLUMNS))
+            + " FROM " + DrugContract.DrugEntry.TABLE_NAME
+            + " WHERE " + DrugContract.DrugEntry._ID + " > ?"
+            + " ORDER BY " + DrugContract.DrugEntry._ID
+            + " LIMIT " + CHUNK_SIZE;
+
+    private final DrugDbHelper mDbHelper;
+
+    DrugExporter(DrugDbHelper dbHelper) {
+        mDbHelper = dbHelper;
+    }
+
+    /**
+     * Returns whether the given MIME type is one the exporter writes.
+     */
+    static boolean isSupported(String mimeType) {
+        return DrugContract.DrugEntry.EXPORT_CSV_TYPE.equals(mimeType)
+                || DrugContract.DrugEntry.EXPORT_JSON_TYPE.equals(mimeType);
+    }
+
+    /**
+     * Write every drug to the given stream, which is left open.
+     *
+     * @param mimeType {@link DrugContract.DrugEntry#EXPORT_CSV_TYPE} or
+     *                 {@link DrugContract.DrugEntry#EXPORT_JSON_TYPE}
+     * @throws IOException if the stream can't be written, for instance because the reader closed
+     *                     its end of the pipe
+     */
+    void export(OutputStream output, String mimeType) throws IOException {
+        if (!isSupported(mimeType)) {
+            throw new IllegalArgumentException("Cannot export drugs as " + mimeType);
+        }
+        boolean json = DrugContract.DrugEntry.EXPORT_JSON_TYPE.equals(mimeType);
+
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, Charset.forName("UTF-8")));
+        if (json) {
+            writer.write('[');
+        } else {
+            writer.write(join(COLUMNS));
+            writer.write("\r\n");
+        }
+
+        SQLiteDatabase database = mDbHelper.getReadableDatabase();
+        long lastId = 0;
+        boolean first = true;
+        while (true) {
+            Cursor cursor = database.rawQuery(SQL_CHUNK, new String[] { String.valueOf(lastId) });
+            int rows = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    if (json) {
+                        writeJson(writer, cursor, first);
+                    } else {
+                        writeCsv(writer, cursor);
+                    }
+                    lastId = cursor.getLong(ID);
+                    first = false;
+                    rows++;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            // Hand the chunk to the reader now rather than when the buffer happens to fill
+            writer.flush();
+            if (rows < CHUNK_SIZE) {
+                break;
+            }
+        }
+
+        if (json) {
+            writer.write(first ? "]" : "\n]");
+        }
+        writer.flush();
+    }
+
+    /**
+     * Write {@link DrugContract#EXPORT_ERROR_MARKER} on a line of its own, to end an export that
+     * failed. It goes straight to the stream, after whatever part of a row reached it, and leaves
+     * a JSON array unclosed, so the file can't be read as a whole export.
+     */
+    static void writeFailure(OutputStream output) throws IOException {
+        output.write(("\r\n" + DrugContract.EXPORT_ERROR_MARKER + "\r\n")
+                .getBytes(Charset.forName("UTF-8")));
+        output.flush();
+    }
+
+    /**
+     * Write the current row as a CSV record. The price is written with two decimals, so the
+     * export can be imported back with {@link CatalogImporter}.
+     */
+    private static void writeCsv(Writer writer, Cursor cursor) throws IOException {
+        writer.write(String.valueOf(cursor.getLong(ID)));
+        writer.write(',');
+        writeCsvField(writer, cursor.getString(NAME));
+        writer.write(',');
+        writer.write(String.valueOf(cursor.getInt(QUANTITY)));
+        writer.write(',');
+        if (!cursor.isNull(SOLD)) {
+            writer.write(String.valueOf(cursor.getInt(SOLD)));
+        }
+        writer.write(',');
+        writer.write(Money.format(cursor.getLong(PRICE)));
+        writer.write(',');
+        writeCsvField(writer, cursor.getString(IMAGE));
+        writer.write("\r\n");
+    }
+
+    /**
+     * Write a text field, quoted if it holds a comma, a quote or a line break. Null is written as
+     * an empty field.
+     */
+    private static void writeCsvField(Writer writer, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\r' || c == '\n';
+        }
+        if (!quote) {
+            writer.write(value);
+            return;
+        }
+        writer.write('"');
+        writer.write(value.replace("\"", "\"\""));
+        writer.write('"');
+    }
+
+    /**
+     * Write the current row as a JSON object. The price is written in cents, like it's stored.
+     */
+    private static void writeJson(Writer writer, Cursor cursor, boolean first) throws IOException {
+        writer.write(first ? "\n{\"" : ",\n{\"");
+        writer.write(COLUMNS[ID]);
+        writer.write("\":");
+        writer.write(String.valueOf(cursor.getLong(ID)));
+        writer.write(",\"");
+        writer.write(COLUMNS[NAME]);
+        writer.write("\":");
+        writeJsonString(writer, cursor.getString(NAME));
+        writer.write(",\"");
+        writer.write(COLUMNS[QUANTITY]);
+        writer.write("\":");
+        writer.write(String.valueOf(cursor.getInt(QUANTITY)));
+        writer.write(",\"");
+        writer.write(COLUMNS[SOLD]);
+        writer.write("\":");
+        writer.write(cursor.isNull(SOLD) ? "null" : String.valueOf(cursor.getInt(SOLD)));
+        writer.write(",\"");
+        writer.write(COLUMNS[PRICE]);
+        writer.write("\":");
+        writer.write(String.valueOf(cursor.getLong(PRICE)));
+        writer.write(",\"");
+        writer.write(COLUMNS[IMAGE]);
+        writer.write("\":");
+        writeJsonString(writer, cursor.getString(IMAGE));
+        writer.write('}');
+    }
+
+    /**
+     * Write a JSON string literal, or null.
+     */
+    static void writeJsonString(Writer writer, String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    writer.write("\\\"");
+                    break;
+                case '\\':
+                    writer.write("\\\\");
+                    break;
+                case '\n':
+                    writer.write("\\n");
+                    break;
+                case '\r':
+                    writer.write("\\r");
+                    break;
+                case '\t':
+                    writer.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        writer.write(String.format(Locale.US, "\\u%04x", (int) c));
+                    } else {
+                        writer.write(c);
+                    }
+            }
+        }
+        writer.write('"');
+    }
+
+    private static String join(String[] columns) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(columns[i]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,462 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.example.android.pharmacyinventory.data.DrugContract.DailySalesEntry;
+import com.example.android.pharmacyinventory.data.DrugContract.DrugEntry;
+import com.example.android.pharmacyinventory.data.DrugContract.SaleEntry;
+import com.example.android.pharmacyinventory.data.DrugContract.StatsEntry;
+
+/**
+ * Ordered schema migrations for the Pharmacy Inventory database. Each step moves the schema from
+ * one version to the next one without losing data. A new database is created at version 1 and
+ * then runs every step too, so new and upgraded databases always end up with the same schema.
+ */
+final class DrugMigrations {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = DrugMigrations.class.getSimpleName();
+
+    /** Index used to look up and sort drugs by name, ignoring case */
+    static final String SQL_CREATE_NAME_INDEX = "CREATE INDEX IF NOT EXISTS drugs_name_index ON "
+            + DrugEntry.TABLE_NAME + " (" + DrugEntry.COLUMN_DRUG_NAME + " COLLATE NOCASE)";
+
+    /** Index used to find drugs that are low on stock */
+    static final String SQL_CREATE_QUANTITY_INDEX = "CREATE INDEX IF NOT EXISTS drugs_quantity_index ON "
+            + DrugEntry.TABLE_NAME + " (" + DrugEntry.COLUMN_DRUG_QUANTITY + ")";
+
+    /** Name of the full-text index over drug names. Its docid is the drug's _id. */
+    static final String FTS_TABLE_NAME = "drugs_fts";
+
+    /**
+     * Triggers that keep {@link #FTS_TABLE_NAME} in sync with every write to the drugs table,
+     * whichever code path makes it.
+     */
+    static final String[] SQL_CREATE_FTS_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS drugs_fts_insert AFTER INSERT ON " + DrugEntry.TABLE_NAME
+                    + " BEGIN INSERT INTO " + FTS_TABLE_NAME + " (docid, " + DrugEntry.COLUMN_DRUG_NAME
+                    + ") VALUES (NEW." + DrugEntry._ID + ", NEW." + DrugEntry.COLUMN_DRUG_NAME + "); END",
+            "CREATE TRIGGER IF NOT EXISTS drugs_fts_update AFTER UPDATE OF " + DrugEntry.COLUMN_DRUG_NAME
+                    + " ON " + DrugEntry.TABLE_NAME + " BEGIN UPDATE " + FTS_TABLE_NAME + " SET "
+                    + DrugEntry.COLUMN_DRUG_NAME + " = NEW." + DrugEntry.COLUMN_DRUG_NAME
+                    + " WHERE docid = NEW." + DrugEntry._ID + "; END",
+            "CREATE TRIGGER IF NOT EXISTS drugs_fts_delete AFTER DELETE ON " + DrugEntry.TABLE_NAME
+                    + " BEGIN DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = OLD." + DrugEntry._ID + "; END",
+    };
+
+    /**
+     * Triggers that apply the change of every write to the drugs table to the single row of
+     * {@link StatsEntry#TABLE_NAME}, so the statistics never need a full scan to stay correct.
+     */
+    static final String[] SQL_CREATE_STATS_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS drugs_stats_insert AFTER INSERT ON " + DrugEntry.TABLE_NAME
+                    + " BEGIN " + statsUpdate("+", "NEW") + "; END",
+            "CREATE TRIGGER IF NOT EXISTS drugs_stats_update AFTER UPDATE OF "
+                    + DrugEntry.COLUMN_DRUG_QUANTITY + ", " + DrugEntry.COLUMN_DRUG_PRICE + ", "
+                    + DrugEntry.COLUMN_DRUG_SOLD + " ON " + DrugEntry.TABLE_NAME
+                    + " BEGIN " + statsUpdate("-", "OLD") + "; " + statsUpdate("+", "NEW") + "; END",
+            "CREATE TRIGGER IF NOT EXISTS drugs_stats_delete AFTER DELETE ON " + DrugEntry.TABLE_NAME
+                    + " BEGIN " + statsUpdate("-", "OLD") + "; END",
+    };
+
+    /**
+     * Increments the version of a drug whenever a column a client can see changes, whichever code
+     * path writes it. Columns only maintained by the database, such as the stock-out time, don't
+     * count as a change.
+     */
+    static final String SQL_CREATE_VERSION_TRIGGER = "CREATE TRIGGER IF NOT EXISTS drugs_version_update"
+            + " AFTER UPDATE OF " + DrugEntry.COLUMN_DRUG_NAME + ", " + DrugEntry.COLUMN_DRUG_QUANTITY
+            + ", " + DrugEntry.COLUMN_DRUG_PRICE + ", " + DrugEntry.COLUMN_DRUG_IMAGE + ", "
+            + DrugEntry.COLUMN_REORDER_THRESHOLD + ", " + DrugEntry.COLUMN_REORDER_QUANTITY
+            + " ON " + DrugEntry.TABLE_NAME + " BEGIN UPDATE " + DrugEntry.TABLE_NAME
+            + " SET " + DrugEntry.COLUMN_VERSION + " = OLD." + DrugEntry.COLUMN_VERSION + " + 1"
+            + " WHERE " + DrugEntry._ID + " = NEW." + DrugEntry._ID + "; END";
+
+    /**
+     * Name of the single-row table holding the ID of the last sale folded into the drugs' totals
+     * by {@link SalesLedger#compact}.
+     */
+    static final String LEDGER_STATE_TABLE_NAME = "sales_ledger_state";
+
+    /** Column of {@link #LEDGER_STATE_TABLE_NAME} holding the ID of the last sale folded */
+    static final String COLUMN_FOLDED_THROUGH = "folded_through";
+
+    /**
+     * Name of the single-row table holding the change sequence counter of the drugs and the
+     * progress of {@link ReorderEngine}.
+     */
+    static final String REORDER_STATE_TABLE_NAME = "reorder_state";
+
+    /** Column of {@link #REORDER_STATE_TABLE_NAME} holding the last change sequence number given */
+    static final String COLUMN_LAST_CHANGE_SEQ = "last_change_seq";
+
+    /** Column of {@link #REORDER_STATE_TABLE_NAME} holding the last change sequence number reordered */
+    static final String COLUMN_PROCESSED_THROUGH = "processed_through";
+
+    /** Column of {@link #REORDER_STATE_TABLE_NAME} holding the number of the next purchase order */
+    static final String COLUMN_NEXT_ORDER = "next_order";
+
+    /** Single-row table holding the state of the {@link SyncEngine} */
+    static final String SYNC_STATE_TABLE_NAME = "sync_state";
+
+    /** Random ID of this database, which the sync server uses to tell devices apart */
+    static final String COLUMN_DEVICE_ID = "device_id";
+
+    /** Last {@link DrugEntry#COLUMN_SYNC_SEQ} given to a change */
+    static final String COLUMN_LAST_SYNC_SEQ = "last_sync_seq";
+
+    /** Last {@link DrugEntry#COLUMN_SYNC_SEQ} the sync server acknowledged */
+    static final String COLUMN_PUSHED_THROUGH = "pushed_through";
+
+    /** Sequence number of the sync server the last pull went up to */
+    static final String COLUMN_PULLED_THROUGH = "pulled_through";
+
+    /** 1 while pulled changes are being applied, which the sync triggers skip */
+    static final String COLUMN_APPLYING = "applying";
+
+    /** Sync IDs of the drugs deleted on this device, until the deletions are pushed */
+    static final String TOMBSTONE_TABLE_NAME = "drug_tombstones";
+
+    /**
+     * Column of {@link #SYNC_STATE_TABLE_NAME} holding the sequence number the push sent but not
+     * yet acknowledged goes up to, which is also its batch ID, or 0 if there is none
+     */
+    static final String COLUMN_PENDING_THROUGH = "pending_through";
+
+    /** Column of {@link #SYNC_STATE_TABLE_NAME} holding the request body of that push */
+    static final String COLUMN_PENDING_BODY = "pending_body";
+
+    /** Quantity changes of the push sent but not yet acknowledged, by sync ID */
+    static final String OUTBOX_TABLE_NAME = "sync_outbox";
+
+    /** Column of {@link #OUTBOX_TABLE_NAME} holding the units sent */
+    static final String COLUMN_QUANTITY_DELTA = "quantity_delta";
+
+    /**
+     * Recomputes the statistics with one scan of the drugs, for writes that bypass the statistics
+     * triggers, such as restoring a {@link DrugSnapshot}.
+     */
+    static final String SQL_RECOMPUTE_STATS = "INSERT OR REPLACE INTO " + StatsEntry.TABLE_NAME
+            + " SELECT 1, "
+            + "IFNULL(SUM(IFNULL(" + DrugEntry.COLUMN_DRUG_QUANTITY + ", 0)), 0), "
+            + "IFNULL(SUM(IFNULL(" + DrugEntry.COLUMN_DRUG_QUANTITY + ", 0) * "
+            + DrugEntry.COLUMN_DRUG_PRICE + "), 0), "
+            + "IFNULL(SUM(IFNULL(" + DrugEntry.COLUMN_DRUG_SOLD + ", 0)), 0), "
+            + "IFNULL(SUM(IFNULL(" + DrugEntry.COLUMN_DRUG_QUANTITY + ", 0) <= "
+            + DrugEntry.LOW_STOCK_THRESHOLD + "), 0)"
+            + " FROM " + DrugEntry.TABLE_NAME;
+
+    /**
+     * Returns the statement that adds ("+") or removes ("-") the given row ("NEW" or "OLD") to or
+     * from the statistics.
+     */
+    private static String statsUpdate(String sign, String row) {
+        String quantity = "IFNULL(" + row + "." + DrugEntry.COLUMN_DRUG_QUANTITY + ", 0)";
+        return "UPDATE " + StatsEntry.TABLE_NAME + " SET "
+                + StatsEntry.COLUMN_TOTAL_UNITS + " = " + StatsEntry.COLUMN_TOTAL_UNITS + " "
+                + sign + " " + quantity + ", "
+                + StatsEntry.COLUMN_STOCK_VALUE + " = " + StatsEntry.COLUMN_STOCK_VALUE + " "
+                + sign + " " + quantity + " * " + row + "." + DrugEntry.COLUMN_DRUG_PRICE + ", "
+                + StatsEntry.COLUMN_TOTAL_SALES + " = " + StatsEntry.COLUMN_TOTAL_SALES + " "
+                + sign + " IFNULL(" + row + "." + DrugEntry.COLUMN_DRUG_SOLD + ", 0), "
+                + StatsEntry.COLUMN_LOW_STOCK_COUNT + " = " + StatsEntry.COLUMN_LOW_STOCK_COUNT + " "
+                + sign + " (" + quantity + " <= " + DrugEntry.LOW_STOCK_THRESHOLD + ")"
+                + " WHERE _id = 1";
+    }
+
+    /**
+     * One migration step. The step at position i of {@link #STEPS} upgrades the schema from
+     * version i + 1 to version i + 2.
+     */
+    abstract static class Step {
+
+        /** Short description of the step for the logs */
+        final String description;
+
+        Step(String description) {
+            this.description = description;
+        }
+
+        /**
+         * Apply this step. It's called inside the upgrade transaction, so it must not begin or
+         * end transactions on its own.
+         */
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    /**
+     * All the migration steps, in order. To change the schema, append a new step here. Never
+     * edit or reorder a step that has already shipped.
+     */
+    static final Step[] STEPS = {
+            // Version 1 -> 2
+            new Step("add NOCASE index on drug name") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_NAME_INDEX);
+                }
+            },
+            // Version 2 -> 3
+            new Step("add index on drug quantity") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(SQL_CREATE_QUANTITY_INDEX);
+                }
+            },
+            // Version 3 -> 4
+            new Step("add full-text index on drug name") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4("
+                            + DrugEntry.COLUMN_DRUG_NAME + ")");
+                    db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (docid, " + DrugEntry.COLUMN_DRUG_NAME
+                            + ") SELECT " + DrugEntry._ID + ", " + DrugEntry.COLUMN_DRUG_NAME
+                            + " FROM " + DrugEntry.TABLE_NAME);
+                    for (String trigger : SQL_CREATE_FTS_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                }
+            },
+            // Version 4 -> 5
+            new Step("store prices as integer cents") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // SQLite can't change the type of a column, so copy the drugs into a new
+                    // table with an INTEGER price column and swap the tables
+                    db.execSQL("CREATE TABLE drugs_new ("
+                            + DrugEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + DrugEntry.COLUMN_DRUG_NAME + " TEXT NOT NULL, "
+                            + DrugEntry.COLUMN_DRUG_QUANTITY + " INTEGER DEFAULT 0, "
+                            + DrugEntry.COLUMN_DRUG_SOLD + " INTEGER DEFAULT 0, "
+                            + DrugEntry.COLUMN_DRUG_PRICE + " INTEGER NOT NULL, "
+                            + DrugEntry.COLUMN_DRUG_IMAGE + " TEXT)");
+                    db.execSQL("INSERT INTO drugs_new (" + DrugEntry._ID + ", "
+                            + DrugEntry.COLUMN_DRUG_NAME + ", " + DrugEntry.COLUMN_DRUG_QUANTITY + ", "
+                            + DrugEntry.COLUMN_DRUG_SOLD + ", " + DrugEntry.COLUMN_DRUG_PRICE + ", "
+                            + DrugEntry.COLUMN_DRUG_IMAGE + ") SELECT " + DrugEntry._ID + ", "
+                            + DrugEntry.COLUMN_DRUG_NAME + ", " + DrugEntry.COLUMN_DRUG_QUANTITY + ", "
+                            + DrugEntry.COLUMN_DRUG_SOLD + ", CAST(ROUND(" + DrugEntry.COLUMN_DRUG_PRICE
+                            + " * 100) AS INTEGER), " + DrugEntry.COLUMN_DRUG_IMAGE
+                            + " FROM " + DrugEntry.TABLE_NAME);
+
+                    // Keep the AUTOINCREMENT counter, so the IDs of deleted drugs are never reused.
+                    // The new table has no counter yet if every drug was deleted, and
+                    // sqlite_sequence has no key to replace on, so swap its row for the old one's.
+                    db.execSQL("DELETE FROM sqlite_sequence WHERE name = 'drugs_new'");
+                    db.execSQL("INSERT INTO sqlite_sequence (name, seq) SELECT 'drugs_new', seq"
+                            + " FROM sqlite_sequence WHERE name = '" + DrugEntry.TABLE_NAME + "'");
+
+                    // Dropping the old table also drops its indexes and triggers
+                    db.execSQL("DROP TABLE " + DrugEntry.TABLE_NAME);
+                    db.execSQL("ALTER TABLE drugs_new RENAME TO " + DrugEntry.TABLE_NAME);
+                    db.execSQL(SQL_CREATE_NAME_INDEX);
+                    db.execSQL(SQL_CREATE_QUANTITY_INDEX);
+                    for (String trigger : SQL_CREATE_FTS_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                }
+            },
+            // Version 5 -> 6
+            new Step("add incrementally maintained inventory statistics") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("CREATE TABLE " + StatsEntry.TABLE_NAME + " ("
+                            + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                            + StatsEntry.COLUMN_TOTAL_UNITS + " INTEGER NOT NULL, "
+                            + StatsEntry.COLUMN_STOCK_VALUE + " INTEGER NOT NULL, "
+                            + StatsEntry.COLUMN_TOTAL_SALES + " INTEGER NOT NULL, "
+                            + StatsEntry.COLUMN_LOW_STOCK_COUNT + " INTEGER NOT NULL)");
+
+                    // Seed the statistics with one scan of the existing drugs, the last one needed
+                    String quantity = "IFNULL(" + DrugEntry.COLUMN_DRUG_QUANTITY + ", 0)";
+                    db.execSQL("INSERT INTO " + StatsEntry.TABLE_NAME + " SELECT 1, "
+                            + "IFNULL(SUM(" + quantity + "), 0), "
+                            + "IFNULL(SUM(" + quantity + " * " + DrugEntry.COLUMN_DRUG_PRICE + "), 0), "
+                            + "IFNULL(SUM(IFNULL(" + DrugEntry.COLUMN_DRUG_SOLD + ", 0)), 0), "
+                            + "IFNULL(SUM(" + quantity + " <= " + DrugEntry.LOW_STOCK_THRESHOLD + "), 0)"
+                            + " FROM " + DrugEntry.TABLE_NAME);
+                    for (String trigger : SQL_CREATE_STATS_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                }
+            },
+            // Version 6 -> 7
+            new Step("add append-only sales ledger") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // AUTOINCREMENT, so the ID of a rolled up sale is never reused and the folded
+                    // through watermark stays meaningful
+                    db.execSQL("CREATE TABLE " + SaleEntry.TABLE_NAME + " ("
+                            + SaleEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                            + SaleEntry.COLUMN_DRUG_ID + " INTEGER NOT NULL, "
+                            + SaleEntry.COLUMN_QUANTITY + " INTEGER NOT NULL, "
+                            + SaleEntry.COLUMN_PRICE + " INTEGER NOT NULL, "
+                            + SaleEntry.COLUMN_SOLD_AT + " INTEGER NOT NULL)");
+                    db.execSQL("CREATE INDEX sales_sold_at_index ON " + SaleEntry.TABLE_NAME
+                            + " (" + SaleEntry.COLUMN_SOLD_AT + ")");
+
+                    db.execSQL("CREATE TABLE " + DailySalesEntry.TABLE_NAME + " ("
+                            + DailySalesEntry._ID + " INTEGER PRIMARY KEY, "
+                            + DailySalesEntry.COLUMN_DRUG_ID + " INTEGER NOT NULL, "
+                            + DailySalesEntry.COLUMN_DAY + " INTEGER NOT NULL, "
+                            + DailySalesEntry.COLUMN_QUANTITY + " INTEGER NOT NULL, "
+                            + DailySalesEntry.COLUMN_REVENUE + " INTEGER NOT NULL, "
+                            + "UNIQUE (" + DailySalesEntry.COLUMN_DRUG_ID + ", "
+                            + DailySalesEntry.COLUMN_DAY + "))");
+
+                    // The existing totals already count every sale made so far
+                    db.execSQL("CREATE TABLE " + LEDGER_STATE_TABLE_NAME + " ("
+                            + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                            + COLUMN_FOLDED_THROUGH + " INTEGER NOT NULL)");
+                    db.execSQL("INSERT INTO " + LEDGER_STATE_TABLE_NAME + " VALUES (1, 0)");
+                }
+            },
+            // Version 7 -> 8
+            new Step("add sales velocities and stock-out projection") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Every drug starts with no velocity, so it's projected to never run out
+                    // until it sells
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_VELOCITY_SHORT + " REAL NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_VELOCITY_LONG + " REAL NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_VELOCITY_UPDATED_AT + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_STOCKOUT_AT + " INTEGER NOT NULL DEFAULT "
+                            + DrugEntry.NEVER_STOCKOUT);
+                    db.execSQL(SalesVelocity.SQL_CREATE_STOCKOUT_INDEX);
+                    db.execSQL(SalesVelocity.SQL_CREATE_STOCKOUT_TRIGGER);
+                }
+            },
+            // Version 8 -> 9
+            new Step("add reorder thresholds and change sequence") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    // Existing drugs have no reorder settings, so they're never ordered until
+                    // they get some, which also gives them a change sequence number
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_REORDER_THRESHOLD + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_REORDER_QUANTITY + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_ON_ORDER + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_CHANGE_SEQ + " INTEGER NOT NULL DEFAULT 0");
+
+                    db.execSQL("CREATE TABLE " + REORDER_STATE_TABLE_NAME + " ("
+                            + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                            + COLUMN_LAST_CHANGE_SEQ + " INTEGER NOT NULL, "
+                            + COLUMN_PROCESSED_THROUGH + " INTEGER NOT NULL, "
+                            + COLUMN_NEXT_ORDER + " INTEGER NOT NULL)");
+                    db.execSQL("INSERT INTO " + REORDER_STATE_TABLE_NAME + " VALUES (1, 0, 0, 1)");
+
+                    db.execSQL(ReorderEngine.SQL_CREATE_CHANGE_SEQ_INDEX);
+                    for (String trigger : ReorderEngine.SQL_CREATE_CHANGE_SEQ_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                }
+            },
+            // Version 9 -> 10
+            new Step("add row versions for optimistic concurrency") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_VERSION + " INTEGER NOT NULL DEFAULT 1");
+                    db.execSQL(SQL_CREATE_VERSION_TRIGGER);
+                }
+            },
+            // Version 10 -> 11
+            new Step("add sync IDs, sync sequence and tombstones") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_SYNC_ID + " TEXT");
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_SYNC_SEQ + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_SYNC_FIELDS_SEQ + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + DrugEntry.TABLE_NAME + " ADD COLUMN "
+                            + DrugEntry.COLUMN_SYNCED_QUANTITY + " INTEGER NOT NULL DEFAULT 0");
+
+                    // Every existing drug is a change the server hasn't seen yet, with all of its
+                    // stock still to tell it about
+                    db.execSQL("UPDATE " + DrugEntry.TABLE_NAME + " SET "
+                            + DrugEntry.COLUMN_SYNC_ID + " = " + SyncEngine.SQL_NEW_SYNC_ID + ", "
+                            + DrugEntry.COLUMN_SYNC_SEQ + " = " + DrugEntry._ID + ", "
+                            + DrugEntry.COLUMN_SYNC_FIELDS_SEQ + " = " + DrugEntry._ID);
+
+                    db.execSQL("CREATE TABLE " + TOMBSTONE_TABLE_NAME + " ("
+                            + DrugEntry.COLUMN_SYNC_ID + " TEXT PRIMARY KEY, "
+                            + DrugEntry.COLUMN_SYNC_SEQ + " INTEGER NOT NULL)");
+                    db.execSQL("CREATE TABLE " + SYNC_STATE_TABLE_NAME + " ("
+                            + "_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                            + COLUMN_DEVICE_ID + " TEXT NOT NULL, "
+                            + COLUMN_LAST_SYNC_SEQ + " INTEGER NOT NULL, "
+                            + COLUMN_PUSHED_THROUGH + " INTEGER NOT NULL, "
+                            + COLUMN_PULLED_THROUGH + " INTEGER NOT NULL, "
+                            + COLUMN_APPLYING + " INTEGER NOT NULL)");
+                    db.execSQL("INSERT INTO " + SYNC_STATE_TABLE_NAME + " SELECT 1, "
+                            + SyncEngine.SQL_NEW_SYNC_ID + ", IFNULL(MAX(" + DrugEntry._ID
+                            + "), 0), 0, 0, 0 FROM " + DrugEntry.TABLE_NAME);
+
+                    for (String statement : SyncEngine.SQL_CREATE_SYNC_INDEXES) {
+                        db.execSQL(statement);
+                    }
+                    for (String trigger : SyncEngine.SQL_CREATE_SYNC_TRIGGERS) {
+                        db.execSQL(trigger);
+                    }
+                }
+            },
+            // Version 11 -> 12
+            new Step("keep the unacknowledged push for resending") {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + SYNC_STATE_TABLE_NAME + " ADD COLUMN "
+                            + COLUMN_PENDING_THROUGH + " INTEGER NOT NULL DEFAULT 0");
+                    db.execSQL("ALTER TABLE " + SYNC_STATE_TABLE_NAME + " ADD COLUMN "
+                            + COLUMN_PENDING_BODY + " BLOB");
+                    db.execSQL("CREATE TABLE " + OUTBOX_TABLE_NAME + " ("
+                            + DrugEntry.COLUMN_SYNC_ID + " TEXT PRIMARY KEY, "
+                            + COLUMN_QUANTITY_DELTA + " INTEGER NOT NULL)");
+                }
+            },
+    };
+
+    /** The schema version reached after running every step */
+    static final int LATEST_VERSION = STEPS.length + 1;
+
+    // This class only holds static helpers, so it should never be instantiated.
+    private DrugMigrations() {}
+
+    /**
+     * Run every step needed to upgrade the database from oldVersion to newVersion, and log how
+     * long each step took.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 1 || newVersion > LATEST_VERSION || oldVersion > newVersion) {
+            throw new IllegalArgumentException("Cannot migrate drugs database from version "
+                    + oldVersion + " to " + newVersion);
+        }
+
+        long totalStart = SystemClock.elapsedRealtime();
+        for (int version = oldVersion; version < newVersion; version++) {
+            Step step = STEPS[version - 1];
+
+            long stepStart = SystemClock.elapsedRealtime();
+            step.migrate(db);
+            long stepMillis = SystemClock.elapsedRealtime() - stepStart;
+
+            Log.i(LOG_TAG, "Migrated drugs database from version " + version + " to "
+                    + (version + 1) + " (" + step.description + ") in " + stepMillis + " ms");
+        }
+
+        if (oldVersion != newVersion) {
+            Log.i(LOG_TAG, "Migrated drugs database from version " + oldVersion + " to "
+                    + newVersion + " in " + (SystemClock.elapsedRealtime() - totalStart) + " ms");
+        }
+    }
+}
@@ -1,16 +1,58 @@
 package com.example.android.pharmacyinventory.data;
 
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
+import android.content.res.AssetFileDescriptor;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 /**
  * {@link ContentProvider} for Pharmacy Inventory app.
+ *
+ * Every store of the chain has a database of its own. The drugs URIs go to the store given by
+ * {@link DrugContract#QUERY_PARAM_STORE}, or the default one, and are served by that store's
+ * {@link Shard}. The chain views query every store in parallel and merge the results.
  */
 public class DrugProvider extends ContentProvider {
 
@@ -23,6 +65,72 @@ public class DrugProvider extends ContentProvider {
     /** URI matcher code for the content URI for a single drug in the drugs table */
     private static final int DRUG_ID = 101;
 
+    /** URI matcher code for the content URI that sells units of a single drug */
+    private static final int DRUG_SELL = 102;
+
+    /** URI matcher code for the content URI that searches drugs by name */
+    private static final int DRUG_SEARCH = 103;
+
+    /** URI matcher code for the content URI of the inventory statistics */
+    private static final int DRUG_STATS = 104;
+
+    /** URI matcher code for the content URI of the provider's performance metrics */
+    private static final int DRUG_METRICS = 105;
+
+    /** URI matcher code for the content URI that exports every drug as a file */
+    private static final int DRUG_EXPORT = 106;
+
+    /** URI matcher code for the content URI of the chain-wide stock */
+    private static final int DRUG_CHAIN = 107;
+
+    /** URI matcher code for the content URI of the drugs low on stock in any store */
+    private static final int DRUG_CHAIN_LOW_STOCK = 108;
+
+    /** MIME types the drugs can be exported as, the default first */
+    private static final String[] EXPORT_TYPES = {
+            DrugContract.DrugEntry.EXPORT_CSV_TYPE,
+            DrugContract.DrugEntry.EXPORT_JSON_TYPE};
+
+    /** Columns of the inventory statistics, in the order they are cached */
+    private static final String[] STATS_COLUMNS = {
+            DrugContract.StatsEntry.COLUMN_TOTAL_UNITS,
+            DrugContract.StatsEntry.COLUMN_STOCK_VALUE,
+            DrugContract.StatsEntry.COLUMN_TOTAL_SALES,
+            DrugContract.StatsEntry.COLUMN_LOW_STOCK_COUNT};
+
+    /** Columns of the chain-wide stock, in the order they are merged */
+    private static final String[] CHAIN_COLUMNS = {
+            DrugContract.ChainEntry._ID,
+            DrugContract.ChainEntry.COLUMN_NAME,
+            DrugContract.ChainEntry.COLUMN_TOTAL_QUANTITY,
+            DrugContract.ChainEntry.COLUMN_STORES,
+            DrugContract.ChainEntry.COLUMN_LOW_STOCK_STORES};
+
+    /** Columns of the chain-wide low stock, in the order they are merged */
+    private static final String[] CHAIN_LOW_STOCK_COLUMNS = {
+            DrugContract.ChainEntry._ID,
+            DrugContract.ChainEntry.COLUMN_STORE,
+            DrugContract.ChainEntry.COLUMN_NAME,
+            DrugContract.ChainEntry.COLUMN_QUANTITY};
+
+    /** Number of search matches returned when the search URI doesn't give a limit */
+    private static final String DEFAULT_SEARCH_LIMIT = "50";
+
+    /** Directory of the snapshots, in the app's files directory */
+    private static final String SNAPSHOT_DIRECTORY = "snapshots";
+
+    /** Number of entries kept by the slow query log */
+    private static final int SLOW_QUERY_LOG_CAPACITY = 64;
+
+    /** Minutes between two compactions of the sales ledger */
+    private static final long SALES_COMPACTION_INTERVAL_MINUTES = 5;
+
+    /** Minutes between two runs of the {@link ReorderEngine} */
+    private static final long REORDER_INTERVAL_MINUTES = 15;
+
+    /** Directory under the app's files where the purchase orders are written */
+    private static final String OUTBOX_DIRECTORY = "outbox";
+
     /**
      * UriMatcher object to match a content URI to a corresponding code.
      * The input passed into the constructor represents the code to return for the root URI.
@@ -49,236 +157,1992 @@ public class DrugProvider extends ContentProvider {
         // For example, "content://com.example.android.pharmacyinventory/pharmacyinventory/3" matches, but
         // "content://com.example.android.pharmacyinventory/pharmacyinventory" (without a number at the end) doesn't match.
         sUriMatcher.addURI(DrugContract.CONTENT_AUTHORITY, DrugContract.PATH_DRUG + "/#", DRUG_ID);
+
+        // The content URI of the form "content://com.example.android.pharmacyinventory/drugs/#/sell"
+        // will map to the integer code {@link #DRUG_SELL}. Updating this URI sells units of ONE
+        // single drug.
+        sUriMatcher.addURI(DrugContract.CONTENT_AUTHORITY,
+                DrugContract.PATH_DRUG + "/#/" + DrugContract.PATH_SELL, DRUG_SELL);
+
+        // The content URI of the form "content://com.example.android.pharmacyinventory/drugs/search"
+        // will map to the integer code {@link #DRUG_SEARCH}. Querying this URI searches drugs by name.
+        sUriMatcher.addURI(DrugContract.CONTENT_AUTHORITY,
+                DrugContract.PATH_DRUG + "/" + DrugContract.PATH_SEARCH, DRUG_SEARCH);
+
+        // The content URI of the form "content://com.example.android.pharmacyinventory/drugs/stats"
+        // will map to the integer code {@link #DRUG_STATS}. Querying this URI reads the inventory
+        // statistics.
+        sUriMatcher.addURI(DrugContract.CONTENT_AUTHORITY,
+                DrugContract.PATH_DRUG + "/" + DrugContract.PATH_STATS, DRUG_STATS);
+
+        // The content URI of the form "content://com.example.android.pharmacyinventory/drugs/_metrics"
+        // will map to the integer code {@link #DRUG_METRICS}. Querying this URI reads the
+        // provider's performance metrics.
+        sUriMatcher.addURI(DrugContract.CONTENT_AUTHORITY,
+                DrugContract.PATH_DRUG + "/" + DrugContract.PATH_METRICS, DRUG_METRICS);
+
+        // The content URI of the form "content://com.example.android.pharmacyinventory/drugs/export"
+        // will map to the integer code {@link #DRUG_EXPORT}. Opening this URI streams every drug
+        // as CSV or JSON.
+        sUriMatcher.addURI(DrugContract.CONTENT_AUTHORITY,
+                DrugContract.PATH_DRUG + "/" + DrugContract.PATH_EXPORT, DRUG_EXPORT);
+
+        // The content URIs of the form "content://com.example.android.pharmacyinventory/drugs/chain"
+        // and ".../drugs/chain/low_stock" will map to the integer codes {@link #DRUG_CHAIN} and
+        // {@link #DRUG_CHAIN_LOW_STOCK}. Querying them reads every store at once.
+        sUriMatcher.addURI(DrugContract.CONTENT_AUTHORITY,
+                DrugContract.PATH_DRUG + "/" + DrugContract.PATH_CHAIN, DRUG_CHAIN);
+        sUriMatcher.addURI(DrugContract.CONTENT_AUTHORITY,
+                DrugContract.PATH_DRUG + "/" + DrugContract.PATH_CHAIN + "/" + DrugContract.PATH_LOW_STOCK,
+                DRUG_CHAIN_LOW_STOCK);
     }
 
-    /** Database helper object */
-    private DrugDbHelper mDbHelper;
+    /** Coalesces the change notifications sent to the listeners */
+    private DrugChangeNotifier mNotifier;
+
+    /** Statements slower than a threshold, with their query plans, once it's turned on */
+    private final SlowQueryLog mSlowQueries = new SlowQueryLog(SLOW_QUERY_LOG_CAPACITY);
+
+    /** Latency and row counts of every call, by operation and match code */
+    private final ProviderMetrics mMetrics = new ProviderMetrics(
+            new int[] { DRUGS, DRUG_ID, DRUG_SELL, DRUG_SEARCH, DRUG_STATS, DRUG_METRICS, DRUG_EXPORT,
+                    DRUG_CHAIN, DRUG_CHAIN_LOW_STOCK },
+            new String[] { "DRUGS", "DRUG_ID", "DRUG_SELL", "DRUG_SEARCH", "DRUG_STATS", "DRUG_METRICS",
+                    "DRUG_EXPORT", "DRUG_CHAIN", "DRUG_CHAIN_LOW_STOCK" },
+            new String[] { DrugContract.METHOD_CHECKOUT, DrugContract.METHOD_SYNC,
+                    DrugContract.METHOD_COMPACT_SALES, DrugContract.METHOD_RUN_REORDERS,
+                    DrugContract.METHOD_WRITE_SNAPSHOT, DrugContract.METHOD_RESTORE_SNAPSHOT,
+                    DrugContract.METHOD_SET_SLOW_QUERY_THRESHOLD, DrugContract.METHOD_DUMP_SLOW_QUERIES });
+
+    /**
+     * Set while {@link #bulkInsert} or {@link #applyBatch} runs on the calling thread, so the
+     * single-row paths hold back their notifications until the whole batch has committed.
+     */
+    private final ThreadLocal<Boolean> mApplyingBatch = new ThreadLocal<>();
+
+    /** The stores opened so far, by ID. Guarded by itself. */
+    private final HashMap<String, Shard> mShards = new HashMap<>();
+
+    /**
+     * Runs the per-store parts of the chain views. It has one thread per core, so a chain view
+     * takes as long as the stores divided by the cores, and many stores don't mean many threads.
+     */
+    private ExecutorService mFanOut;
+
+    /**
+     * Writes the exports. An export holds its thread for as long as the reader takes, so every open
+     * export gets a thread of its own rather than queueing behind a slow reader, and a shared pool
+     * of the app isn't tied up by them.
+     */
+    private ExecutorService mExports;
 
     @Override
     public boolean onCreate() {
-        mDbHelper = new DrugDbHelper(getContext());
+        mNotifier = new DrugChangeNotifier(getContext().getContentResolver());
+        mFanOut = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                backgroundThreadFactory("DrugFanOut"));
+        mExports = Executors.newCachedThreadPool(backgroundThreadFactory("DrugExport"));
+
+        // Start the default store right away, so its sales ledger is compacted on schedule even
+        // before the first write
+        shardFor(DrugContract.DEFAULT_STORE).writeBehind();
         return true;
     }
 
+    /**
+     * Returns a factory of background priority threads with the given name, for the app's other
+     * background executors too.
+     */
+    public static ThreadFactory backgroundThreadFactory(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, name);
+            }
+        };
+    }
+
+    /**
+     * Returns the shard of the store the given URI goes to.
+     */
+    private Shard shardFor(Uri uri) {
+        return shardFor(uri.getQueryParameter(DrugContract.QUERY_PARAM_STORE));
+    }
+
+    /**
+     * Returns the shard of the given store, or of the default store if it's null, opening it if
+     * it isn't open yet. A store that doesn't exist yet gets an empty database on its first write.
+     */
+    private Shard shardFor(String store) {
+        if (store == null) {
+            store = DrugContract.DEFAULT_STORE;
+        }
+        if (!DrugContract.isValidStore(store)) {
+            throw new IllegalArgumentException("Invalid store " + store);
+        }
+        synchronized (mShards) {
+            Shard shard = mShards.get(store);
+            if (shard == null) {
+                shard = new Shard(store);
+                mShards.put(store, shard);
+            }
+            return shard;
+        }
+    }
+
+    /**
+     * Returns the shards of every store that has a database, opening the ones that aren't open yet.
+     * A shard opened here only opens its database: its write-behind thread and its in-memory
+     * stock wait for the first write or sale, so a chain view reads a store without starting it.
+     */
+    private ArrayList<Shard> allShards() {
+        for (String databaseName : getContext().databaseList()) {
+            String store = DrugDbHelper.storeOf(databaseName);
+            if (store != null) {
+                shardFor(store);
+            }
+        }
+        synchronized (mShards) {
+            return new ArrayList<>(mShards.values());
+        }
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
-        // Get readable database
-        SQLiteDatabase database = mDbHelper.getReadableDatabase();
-
-        // This cursor will hold the result of the query
-        Cursor cursor;
-
         // Figure out if the URI matcher can match the URI to a specific code
         int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rows = 0;
+        boolean failed = true;
+        try {
+            Cursor cursor = queryMatch(match, uri, projection, selection, selectionArgs, sortOrder);
+            // Counting the rows runs the query now instead of on the first read, so it's timed.
+            // The loaders count them right away anyway.
+            rows = cursor.getCount();
+            failed = false;
+            return cursor;
+        } finally {
+            mMetrics.record(ProviderMetrics.QUERY, match, System.nanoTime() - start, rows, failed);
+        }
+    }
+
+    /**
+     * Query the given URI, which the URI matcher matched to the given code. Only the views that
+     * don't belong to a single store are read here, the others are read by the store's shard.
+     */
+    private Cursor queryMatch(int match, Uri uri, String[] projection, String selection,
+                              String[] selectionArgs, String sortOrder) {
+        Cursor cursor;
         switch (match) {
-            case DRUGS:
-                // For the DRUGS code, query the drugs table directly with the given
-                // projection, selection, selection arguments, and sort order. The cursor
-                // could contain multiple rows of the pets table.
-                cursor = database.query(DrugContract.DrugEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+            case DRUG_METRICS:
+                // A snapshot, so it isn't watched for changes
+                return mMetrics.snapshot(projection, mNotifier.sentCount());
+            case DRUG_CHAIN:
+                cursor = queryChainStock(uri, projection);
                 break;
-            case DRUG_ID:
-                // For the DRUG_ID code, extract out the ID from the URI.
-                // For an example URI such as "content://com.example.android.pharmacyinventory/pharmacyinventory/3",
-                // the selection will be "_id=?" and the selection argument will be a
-                // String array containing the actual ID of 3 in this case.
-                //
-                // For every "?" in the selection, we need to have an element in the selection
-                // arguments that will fill in the "?". Since we have 1 question mark in the
-                // selection, we have 1 String in the selection arguments' String array.
-                selection = DrugContract.DrugEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-
-                // This will perform a query on the drugs table where the _id equals 3 to return a
-                // Cursor containing that row of the table.
-                cursor = database.query(DrugContract.DrugEntry.TABLE_NAME, projection, selection, selectionArgs,
-                        null, null, sortOrder);
+            case DRUG_CHAIN_LOW_STOCK:
+                cursor = queryChainLowStock(projection);
                 break;
             default:
-                throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+                return shardFor(uri).queryMatch(match, uri, projection, selection, selectionArgs,
+                        sortOrder);
+        }
+
+        // The chain views change whenever a drug of any store changes. The notifications don't
+        // carry the store, so watch the whole table.
+        cursor.setNotificationUri(getContext().getContentResolver(),
+                DrugContract.DrugEntry.CONTENT_URI);
+        return cursor;
+    }
+
+    /**
+     * Return the stock of every drug name over all the stores, or of the drug named by
+     * {@link DrugContract#QUERY_PARAM_NAME}. Every store sums its own drugs by name in parallel,
+     * then the sums are merged by name, ignoring case.
+     */
+    private Cursor queryChainStock(Uri uri, String[] projection) {
+        String name = uri.getQueryParameter(DrugContract.QUERY_PARAM_NAME);
+        final String sql = "SELECT " + DrugContract.DrugEntry.COLUMN_DRUG_NAME + ", SUM(IFNULL("
+                + DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY + ", 0)) FROM "
+                + DrugContract.DrugEntry.TABLE_NAME
+                + (name == null ? "" : " WHERE " + DrugContract.DrugEntry.COLUMN_DRUG_NAME
+                        + " = ? COLLATE NOCASE")
+                + " GROUP BY " + DrugContract.DrugEntry.COLUMN_DRUG_NAME + " COLLATE NOCASE";
+        final String[] args = name == null ? null : new String[] { name };
+
+        ArrayList<Callable<ArrayList<Object[]>>> tasks = new ArrayList<>();
+        for (final Shard shard : allShards()) {
+            tasks.add(new Callable<ArrayList<Object[]>>() {
+                @Override
+                public ArrayList<Object[]> call() {
+                    ArrayList<Object[]> rows = new ArrayList<>();
+                    Cursor cursor = rawQueryLogged(shard.mDbHelper.getReadableDatabase(), sql, args);
+                    try {
+                        while (cursor.moveToNext()) {
+                            rows.add(new Object[] { cursor.getString(0), cursor.getLong(1) });
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    return rows;
+                }
+            });
+        }
+
+        // Total units, stores and low stock stores of every name
+        TreeMap<String, long[]> totals = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (ArrayList<Object[]> rows : fanOut(tasks)) {
+            for (Object[] row : rows) {
+                String drugName = (String) row[0];
+                long quantity = (Long) row[1];
+                long[] total = totals.get(drugName);
+                if (total == null) {
+                    total = new long[3];
+                    totals.put(drugName, total);
+                }
+                total[0] += quantity;
+                total[1]++;
+                if (quantity <= DrugContract.DrugEntry.LOW_STOCK_THRESHOLD) {
+                    total[2]++;
+                }
+            }
+        }
+
+        ArrayList<Object[]> rows = new ArrayList<>(totals.size());
+        for (Map.Entry<String, long[]> entry : totals.entrySet()) {
+            long[] total = entry.getValue();
+            // The row number stands in for an ID, so the rows can back a CursorAdapter
+            rows.add(new Object[] { rows.size() + 1, entry.getKey(), total[0], total[1], total[2] });
+        }
+        return chainCursor(CHAIN_COLUMNS, projection, rows);
+    }
+
+    /**
+     * Return the drugs at or below {@link DrugContract.DrugEntry#LOW_STOCK_THRESHOLD} in every
+     * store, lowest quantity first. Every store reads its own in parallel, then they are merged.
+     */
+    private Cursor queryChainLowStock(String[] projection) {
+        final String sql = "SELECT " + DrugContract.DrugEntry._ID + ", "
+                + DrugContract.DrugEntry.COLUMN_DRUG_NAME + ", IFNULL("
+                + DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY + ", 0) AS quantity FROM "
+                + DrugContract.DrugEntry.TABLE_NAME + " WHERE IFNULL("
+                + DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY + ", 0) <= "
+                + DrugContract.DrugEntry.LOW_STOCK_THRESHOLD;
+
+        ArrayList<Callable<ArrayList<Object[]>>> tasks = new ArrayList<>();
+        for (final Shard shard : allShards()) {
+            tasks.add(new Callable<ArrayList<Object[]>>() {
+                @Override
+                public ArrayList<Object[]> call() {
+                    ArrayList<Object[]> rows = new ArrayList<>();
+                    Cursor cursor = rawQueryLogged(shard.mDbHelper.getReadableDatabase(), sql, null);
+                    try {
+                        while (cursor.moveToNext()) {
+                            rows.add(new Object[] { cursor.getLong(0), shard.mStoreId,
+                                    cursor.getString(1), cursor.getLong(2) });
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    return rows;
+                }
+            });
+        }
+
+        ArrayList<Object[]> rows = new ArrayList<>();
+        for (ArrayList<Object[]> storeRows : fanOut(tasks)) {
+            rows.addAll(storeRows);
+        }
+        Collections.sort(rows, new Comparator<Object[]>() {
+            @Override
+            public int compare(Object[] a, Object[] b) {
+                int byQuantity = ((Long) a[3]).compareTo((Long) b[3]);
+                if (byQuantity != 0) {
+                    return byQuantity;
+                }
+                int byStore = ((String) a[1]).compareTo((String) b[1]);
+                return byStore != 0 ? byStore : ((Long) a[0]).compareTo((Long) b[0]);
+            }
+        });
+        return chainCursor(CHAIN_LOW_STOCK_COLUMNS, projection, rows);
+    }
+
+    /**
+     * Run the given tasks on {@link #mFanOut} and wait for all of them. Return their results in
+     * the same order.
+     */
+    private <T> ArrayList<T> fanOut(List<Callable<T>> tasks) {
+        ArrayList<T> results = new ArrayList<>(tasks.size());
+        try {
+            for (Future<T> future : mFanOut.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while reading the stores", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to read a store", e);
+        }
+        return results;
+    }
+
+    /**
+     * Returns the given rows, whose values are in the order of the given columns, as a cursor
+     * with the given projection, or every column if it's null.
+     */
+    private static Cursor chainCursor(String[] columns, String[] projection,
+                                      ArrayList<Object[]> rows) {
+        if (projection == null) {
+            projection = columns;
+        }
+        int[] indexes = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            indexes[i] = Arrays.asList(columns).indexOf(projection[i]);
+            if (indexes[i] == -1) {
+                throw new IllegalArgumentException("Unknown chain column " + projection[i]);
+            }
         }
-        // Set notifcation URI on the cursor
-        // So what know what content URI the cursor was created
-        // If the data at this URI changes, we know we need to update the cursor
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
 
-        // return the cursor
+        MatrixCursor cursor = new MatrixCursor(projection, rows.size());
+        for (Object[] row : rows) {
+            Object[] values = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                values[i] = row[indexes[i]];
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    /**
+     * Run a query, and record it in the slow query log if the log is on and the query is slow.
+     * A cursor only runs its query on the first read, so the rows are counted here to time it.
+     */
+    private Cursor rawQueryLogged(SQLiteDatabase database, String sql, String[] args) {
+        if (!mSlowQueries.isEnabled()) {
+            return database.rawQuery(sql, args);
+        }
+
+        long start = System.nanoTime();
+        Cursor cursor = database.rawQuery(sql, args);
+        cursor.getCount();
+        long nanos = System.nanoTime() - start;
+        if (mSlowQueries.isSlow(nanos)) {
+            mSlowQueries.record(database, sql, args, nanos);
+        }
         return cursor;
     }
 
     @Override
     public Uri insert(Uri uri, ContentValues contentValues) {
         final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case DRUGS:
-                return insertDrug(uri, contentValues);
-            default:
-                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+        long start = System.nanoTime();
+        Uri newUri = null;
+        boolean failed = true;
+        try {
+            newUri = shardFor(uri).insertMatch(match, uri, contentValues);
+            failed = false;
+            return newUri;
+        } finally {
+            mMetrics.record(ProviderMetrics.INSERT, match, System.nanoTime() - start,
+                    newUri == null ? 0 : 1, failed);
         }
     }
 
     /**
-     * Insert a drug into the database with the given content values. Return the new content URI
-     * for that specific row in the database.
+     * Insert all the given drugs into the URI's store in a single transaction, see
+     * {@link Shard#bulkInsert}. Return the number of rows that were inserted.
      */
-    private Uri insertDrug(Uri uri, ContentValues values) {
-        // Check that the name is not null
-        String name = values.getAsString(DrugContract.DrugEntry.COLUMN_DRUG_NAME);
-        if (name == null) {
-            throw new IllegalArgumentException("Drug requires a name");
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        long start = System.nanoTime();
+        int rowsInserted = 0;
+        boolean failed = true;
+        try {
+            rowsInserted = shardFor(uri).bulkInsert(uri, values);
+            failed = false;
+            return rowsInserted;
+        } finally {
+            mMetrics.record(ProviderMetrics.BULK_INSERT, sUriMatcher.match(uri),
+                    System.nanoTime() - start, rowsInserted, failed);
         }
+    }
 
-        // Check that the price is not null
-        Double price = values.getAsDouble(DrugContract.DrugEntry.COLUMN_DRUG_PRICE);
-        if (price == null) {
-            throw new IllegalArgumentException("Drug requires valid price");
+    /**
+     * Apply all the given operations in a single transaction, so a failing operation rolls back
+     * the whole batch. A transaction can't span two databases, so every operation must go to the
+     * same store. Listeners are notified once, after the transaction has committed.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        // Batches are recorded under the URI of their first operation
+        int match = operations.isEmpty() ? UriMatcher.NO_MATCH
+                : sUriMatcher.match(operations.get(0).getUri());
+        long start = System.nanoTime();
+        ContentProviderResult[] results = null;
+        boolean failed = true;
+        try {
+            results = applyBatchToStore(operations);
+            failed = false;
+            return results;
+        } finally {
+            mMetrics.record(ProviderMetrics.APPLY_BATCH, match, System.nanoTime() - start,
+                    results == null ? 0 : results.length, failed);
         }
+    }
+
+    /**
+     * Apply the batch to the store all its operations go to.
+     */
+    private ContentProviderResult[] applyBatchToStore(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        String store = null;
+        for (ContentProviderOperation operation : operations) {
+            String operationStore = operation.getUri().getQueryParameter(DrugContract.QUERY_PARAM_STORE);
+            if (operationStore == null) {
+                operationStore = DrugContract.DEFAULT_STORE;
+            }
+            if (store == null) {
+                store = operationStore;
+            } else if (!store.equals(operationStore)) {
+                throw new IllegalArgumentException("Batch must only write one store, not "
+                        + store + " and " + operationStore);
+            }
+        }
+        return shardFor(store).applyBatch(operations);
+    }
 
-        // No need to check the image, any value is valid (including null).
+    @Override
+    public int update(Uri uri, ContentValues contentValues, String selection,
+                      String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rowsUpdated = 0;
+        boolean failed = true;
+        try {
+            rowsUpdated = shardFor(uri).updateMatch(match, uri, contentValues, selection,
+                    selectionArgs);
+            failed = false;
+            return rowsUpdated;
+        } finally {
+            mMetrics.record(ProviderMetrics.UPDATE, match, System.nanoTime() - start,
+                    rowsUpdated, failed);
+        }
+    }
 
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            Bundle result = callMethod(method, arg, extras);
+            failed = false;
+            return result;
+        } finally {
+            mMetrics.recordCall(method, System.nanoTime() - start, failed);
+        }
+    }
 
-        // Insert the new drug with the given values
-        long id = database.insert(DrugContract.DrugEntry.TABLE_NAME, null, values);
-        // If the ID is -1, then the insertion failed. Log an error and return null.
-        if (id == -1) {
-            Log.e(LOG_TAG, "Failed to insert row for " + uri);
+    /**
+     * Call the given provider method.
+     */
+    private Bundle callMethod(String method, String arg, Bundle extras) {
+        if (DrugContract.METHOD_SET_SLOW_QUERY_THRESHOLD.equals(method)) {
+            try {
+                mSlowQueries.setThresholdMillis(arg == null ? -1 : Long.parseLong(arg));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Slow query threshold must be a number of milliseconds");
+            }
             return null;
         }
+        if (DrugContract.METHOD_DUMP_SLOW_QUERIES.equals(method)) {
+            Bundle result = new Bundle();
+            result.putStringArray(DrugContract.EXTRA_SLOW_QUERIES, mSlowQueries.dump());
+            return result;
+        }
 
-        // Notify all listeners that the data has changed for the drug content URI
-        getContext().getContentResolver().notifyChange(uri, null);
+        // Every other method works on one store
+        Shard shard = shardFor(extras == null ? null : extras.getString(DrugContract.EXTRA_STORE));
+        Bundle result = shard.call(method, arg, extras);
+        if (result != null) {
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
 
-        // Return the new URI with the ID (of the newly inserted row) appended at the end
-        return ContentUris.withAppendedId(uri, id);
+    /**
+     * Check the reorder settings in the given values, if they hold any.
+     */
+    private static void checkReorderValues(ContentValues values) {
+        String[] keys = {
+                DrugContract.DrugEntry.COLUMN_REORDER_THRESHOLD,
+                DrugContract.DrugEntry.COLUMN_REORDER_QUANTITY};
+        for (String key : keys) {
+            if (values.containsKey(key)) {
+                Integer value = values.getAsInteger(key);
+                if (value == null || value < 0) {
+                    throw new IllegalArgumentException("Drug requires valid " + key);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check that the given values don't write the columns only the database and the
+     * {@link ReorderEngine} and the {@link SyncEngine} maintain: the units on order, the change
+     * sequence, the version and the sync columns.
+     */
+    private static void checkReadOnlyValues(ContentValues values) {
+        String[] keys = {
+                DrugContract.DrugEntry.COLUMN_ON_ORDER,
+                DrugContract.DrugEntry.COLUMN_CHANGE_SEQ,
+                DrugContract.DrugEntry.COLUMN_VERSION,
+                DrugContract.DrugEntry.COLUMN_SYNC_ID,
+                DrugContract.DrugEntry.COLUMN_SYNC_SEQ,
+                DrugContract.DrugEntry.COLUMN_SYNC_FIELDS_SEQ,
+                DrugContract.DrugEntry.COLUMN_SYNCED_QUANTITY};
+        for (String key : keys) {
+            if (values.containsKey(key)) {
+                throw new IllegalArgumentException("Drug " + key + " is read only");
+            }
+        }
     }
 
     @Override
-    public int update(Uri uri, ContentValues contentValues, String selection,
-                      String[] selectionArgs) {
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        int rowsDeleted = 0;
+        boolean failed = true;
+        try {
+            rowsDeleted = shardFor(uri).delete(match, uri, selection, selectionArgs);
+            failed = false;
+            return rowsDeleted;
+        } finally {
+            mMetrics.record(ProviderMetrics.DELETE, match, System.nanoTime() - start,
+                    rowsDeleted, failed);
+        }
+    }
+
+    @Override
+    public String getType(Uri uri) {
         final int match = sUriMatcher.match(uri);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            String type = getTypeMatch(match, uri);
+            failed = false;
+            return type;
+        } finally {
+            mMetrics.record(ProviderMetrics.GET_TYPE, match, System.nanoTime() - start, 0, failed);
+        }
+    }
+
+    /**
+     * Returns the MIME type of the given URI, which the URI matcher matched to the given code.
+     */
+    private String getTypeMatch(int match, Uri uri) {
         switch (match) {
             case DRUGS:
-                return updateDrug(uri, contentValues, selection, selectionArgs);
+            case DRUG_SEARCH:
+                return DrugContract.DrugEntry.CONTENT_LIST_TYPE;
             case DRUG_ID:
-                // For the DRUG_ID code, extract out the ID from the URI,
-                // so we know which row to update. Selection will be "_id=?" and selection
-                // arguments will be a String array containing the actual ID.
-                selection = DrugContract.DrugEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                return updateDrug(uri, contentValues, selection, selectionArgs);
+            case DRUG_SELL:
+                return DrugContract.DrugEntry.CONTENT_ITEM_TYPE;
+            case DRUG_STATS:
+                return DrugContract.StatsEntry.CONTENT_ITEM_TYPE;
+            case DRUG_METRICS:
+                return DrugContract.MetricsEntry.CONTENT_LIST_TYPE;
+            case DRUG_EXPORT:
+                return exportType(uri);
+            case DRUG_CHAIN:
+            case DRUG_CHAIN_LOW_STOCK:
+                return DrugContract.ChainEntry.CONTENT_LIST_TYPE;
             default:
-                throw new IllegalArgumentException("Update is not supported for " + uri);
+                throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
+        }
+    }
+
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        switch (sUriMatcher.match(uri)) {
+            case DRUGS:
+            case DRUG_EXPORT:
+                ArrayList<String> types = new ArrayList<>();
+                for (String type : EXPORT_TYPES) {
+                    if (ClipDescription.compareMimeTypes(type, mimeTypeFilter)) {
+                        types.add(type);
+                    }
+                }
+                return types.isEmpty() ? null : types.toArray(new String[types.size()]);
+            default:
+                return null;
         }
     }
 
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        String[] types = getStreamTypes(uri, mimeTypeFilter);
+        if (types == null) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+        return new AssetFileDescriptor(shardFor(uri).openExport(uri, types[0]), 0,
+                AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != DRUG_EXPORT) {
+            throw new FileNotFoundException("Cannot open unknown URI " + uri);
+        }
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Export can only be opened for reading " + uri);
+        }
+        return shardFor(uri).openExport(uri, exportType(uri));
+    }
+
     /**
-     * Update drugs in the database with the given content values. Apply the changes to the rows
-     * specified in the selection and selection arguments (which could be 0 or 1 or more drugs).
-     * Return the number of rows that were successfully updated.
+     * Returns the MIME type of the export asked for by the format parameter of the given URI.
      */
-    private int updateDrug(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        // If the {@link DrugEntry#COLUMN_DRUG_NAME} key is present,
-        // check that the name value is not null.
-        if (values.containsKey(DrugContract.DrugEntry.COLUMN_DRUG_NAME)) {
+    private static String exportType(Uri uri) {
+        String format = uri.getQueryParameter(DrugContract.QUERY_PARAM_FORMAT);
+        if (format == null || DrugContract.FORMAT_CSV.equals(format)) {
+            return DrugContract.DrugEntry.EXPORT_CSV_TYPE;
+        }
+        if (DrugContract.FORMAT_JSON.equals(format)) {
+            return DrugContract.DrugEntry.EXPORT_JSON_TYPE;
+        }
+        throw new IllegalArgumentException("Cannot export drugs as " + format);
+    }
+
+    /**
+     * The database of one store, with everything that goes with it: the in-memory stock, the
+     * thread writing its sales and the cached statistics. Stores share nothing but the change
+     * notifications and the metrics, so a busy store never waits for another one.
+     */
+    private final class Shard {
+
+        /** ID of the store, see {@link DrugContract#isValidStore} */
+        private final String mStoreId;
+
+        /** Database helper object */
+        private final DrugDbHelper mDbHelper;
+
+        /** Writes the exports of the drugs table */
+        private final DrugExporter mExporter;
+
+        /** Last statistics read from the database, in {@link #STATS_COLUMNS} order, or null */
+        private volatile long[] mStatsCache;
+
+        /**
+         * Incremented by every write, so a statistics read that raced with a write doesn't put
+         * stale values in the cache.
+         */
+        private final AtomicLong mStatsGeneration = new AtomicLong();
+
+        /**
+         * Stock levels of every drug, so sales are checked and taken out of stock in memory. The
+         * sales are then written to the database in the background by {@link #mWriteBehind}.
+         */
+        private final InventoryStore mStore = new InventoryStore(0);
+
+        /** Whether {@link #mStore} matches the database, once sales waiting to be written are */
+        private volatile boolean mStoreValid;
+
+        /**
+         * Held for reading while selling from {@link #mStore}, and for writing by every other write,
+         * so the store and the database never change under each other.
+         */
+        private final ReentrantReadWriteLock mStoreLock = new ReentrantReadWriteLock();
+
+        /**
+         * Single thread writing the sales of {@link #mStore} to the database, in order. Between two
+         * sales, it also compacts the sales ledger and runs the reorders every few minutes. Started
+         * by {@link #writeBehind} on the first write, so a store that is only read never has one.
+         * Guarded by this.
+         */
+        private ScheduledExecutorService mWriteBehind;
+
+        /**
+         * Sales taken out of {@link #mStore} that aren't in the database yet, as {ID, units} in the
+         * order they were made. Between two writes, these are the sales whose write failed, which
+         * the next write tries again first. Only used on {@link #mWriteBehind}.
+         */
+        private final ArrayList<long[]> mUnwrittenSales = new ArrayList<>();
+
+        /** Held for the whole of a sync with the server */
+        private final Object mSyncLock = new Object();
+
+        Shard(String storeId) {
+            mStoreId = storeId;
+            // The provider serves the tills, so favour fast commits over syncing every single one
+            mDbHelper = new DrugDbHelper(getContext(), storeId, DrugDbHelper.Durability.POS_FAST);
+            mExporter = new DrugExporter(mDbHelper);
+        }
+
+        /**
+         * Returns the thread writing the sales of this store, starting it with the compaction and
+         * reorder schedules if it isn't running yet.
+         */
+        private synchronized ScheduledExecutorService writeBehind() {
+            if (mWriteBehind == null) {
+                mWriteBehind = Executors.newSingleThreadScheduledExecutor(
+                        backgroundThreadFactory("DrugWriteBehind-" + mStoreId));
+                mWriteBehind.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            compactSales();
+                        } catch (RuntimeException e) {
+                            // Letting it through would cancel the next compactions
+                            Log.e(LOG_TAG, "Failed to compact the sales ledger of store "
+                                    + mStoreId, e);
+                        }
+                    }
+                }, SALES_COMPACTION_INTERVAL_MINUTES, SALES_COMPACTION_INTERVAL_MINUTES,
+                        TimeUnit.MINUTES);
+                mWriteBehind.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            runReorders();
+                        } catch (RuntimeException e) {
+                            // Letting it through would cancel the next runs. The changes are
+                            // picked up again by the next one.
+                            Log.e(LOG_TAG, "Failed to reorder drugs of store " + mStoreId, e);
+                        }
+                    }
+                }, REORDER_INTERVAL_MINUTES, REORDER_INTERVAL_MINUTES, TimeUnit.MINUTES);
+            }
+            return mWriteBehind;
+        }
+
+        /**
+         * Query the given URI, which the URI matcher matched to the given code.
+         */
+        private Cursor queryMatch(int match, Uri uri, String[] projection, String selection,
+                                  String[] selectionArgs, String sortOrder) {
+            // Get readable database
+            SQLiteDatabase database = mDbHelper.getReadableDatabase();
+
+            // This cursor will hold the result of the query
+            Cursor cursor;
+
+            switch (match) {
+                case DRUGS:
+                    // If the URI asks for a page of drugs, only read that page. Only the changes to its
+                    // own rows reload it, unless its order moves with the stock of every drug.
+                    if (uri.getQueryParameter(DrugContract.QUERY_PARAM_LIMIT) != null) {
+                        cursor = queryDrugPage(database, uri, projection, selection, selectionArgs);
+                        return mNotifier.watchPage(cursor, inStore(DrugContract.DrugEntry.CONTENT_URI),
+                                DrugContract.SORT_STOCKOUT.equals(
+                                        uri.getQueryParameter(DrugContract.QUERY_PARAM_SORT)));
+                    }
+
+                    // For the DRUGS code, query the drugs table directly with the given
+                    // projection, selection, selection arguments, and sort order. The cursor
+                    // could contain multiple rows of the pets table.
+                    cursor = queryDrugs(database, projection, selection, selectionArgs, sortOrder, null);
+                    break;
+                case DRUG_ID:
+                    // For the DRUG_ID code, extract out the ID from the URI.
+                    // For an example URI such as "content://com.example.android.pharmacyinventory/pharmacyinventory/3",
+                    // the selection will be "_id=?" and the selection argument will be a
+                    // String array containing the actual ID of 3 in this case.
+                    //
+                    // For every "?" in the selection, we need to have an element in the selection
+                    // arguments that will fill in the "?". Since we have 1 question mark in the
+                    // selection, we have 1 String in the selection arguments' String array.
+                    selection = DrugContract.DrugEntry._ID + "=?";
+                    selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+
+                    // This will perform a query on the drugs table where the _id equals 3 to return a
+                    // Cursor containing that row of the table.
+                    cursor = queryDrugs(database, projection, selection, selectionArgs, sortOrder, null);
+                    break;
+                case DRUG_STATS:
+                    cursor = queryStats(projection);
+
+                    // The statistics change whenever any drug changes, so watch the whole table
+                    cursor.setNotificationUri(getContext().getContentResolver(),
+                            inStore(DrugContract.DrugEntry.CONTENT_URI));
+                    return cursor;
+                case DRUG_SEARCH:
+                    cursor = searchDrugs(database, uri, projection, selection, selectionArgs);
+
+                    // Search results change whenever any drug changes, so watch the whole table
+                    cursor.setNotificationUri(getContext().getContentResolver(),
+                            inStore(DrugContract.DrugEntry.CONTENT_URI));
+                    return cursor;
+                default:
+                    throw new IllegalArgumentException("Cannot query unknown URI " + uri);
+            }
+            // Set notifcation URI on the cursor
+            // So what know what content URI the cursor was created
+            // If the data at this URI changes, we know we need to update the cursor
+            cursor.setNotificationUri(getContext().getContentResolver(), uri);
+
+            // return the cursor
+            return cursor;
+        }
+
+        /**
+         * Query one page of drugs in {@link DrugContract.DrugEntry#PAGE_SORT_ORDER}. Instead of an
+         * OFFSET, the page starts right after the (name, ID) of the last row of the previous page, so
+         * the name index can seek straight to it no matter how deep into the catalog the page is.
+         */
+        private Cursor queryDrugPage(SQLiteDatabase database, Uri uri, String[] projection,
+                                     String selection, String[] selectionArgs) {
+            String limit = uri.getQueryParameter(DrugContract.QUERY_PARAM_LIMIT);
+            String afterName = uri.getQueryParameter(DrugContract.QUERY_PARAM_AFTER_NAME);
+            String afterStockout = uri.getQueryParameter(DrugContract.QUERY_PARAM_AFTER_STOCKOUT);
+            String afterId = uri.getQueryParameter(DrugContract.QUERY_PARAM_AFTER_ID);
+            boolean byStockout = DrugContract.SORT_STOCKOUT.equals(
+                    uri.getQueryParameter(DrugContract.QUERY_PARAM_SORT));
+
+            // Check that the limit is a positive number and the ID to continue from is a number
+            try {
+                if (Integer.parseInt(limit) <= 0) {
+                    throw new IllegalArgumentException("Page requires a positive limit " + uri);
+                }
+                if (byStockout ? afterStockout != null : afterName != null) {
+                    afterId = String.valueOf(Long.parseLong(afterId));
+                }
+                if (byStockout && afterStockout != null) {
+                    afterStockout = String.valueOf(Long.parseLong(afterStockout));
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Page requires a valid limit and ID " + uri);
+            }
+
+            if (byStockout) {
+                if (afterStockout != null) {
+                    // Same keyset as the name order, over the stock-out index
+                    String keyset = DrugContract.DrugEntry.COLUMN_STOCKOUT_AT + " >= ? AND ("
+                            + DrugContract.DrugEntry.COLUMN_STOCKOUT_AT + " > ? OR "
+                            + DrugContract.DrugEntry._ID + " > ?)";
+                    selection = DatabaseUtils.concatenateWhere(selection, keyset);
+                    selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                            new String[] { afterStockout, afterStockout, afterId });
+                }
+                return queryDrugs(database, projection, selection, selectionArgs,
+                        DrugContract.DrugEntry.STOCKOUT_SORT_ORDER, limit);
+            }
+
+            if (afterName != null) {
+                // The first term lets SQLite seek the name index, the second one skips the rows
+                // with the same name that were already on the previous page
+                String keyset = DrugContract.DrugEntry.COLUMN_DRUG_NAME + " COLLATE NOCASE >= ? AND ("
+                        + DrugContract.DrugEntry.COLUMN_DRUG_NAME + " COLLATE NOCASE > ? OR "
+                        + DrugContract.DrugEntry._ID + " > ?)";
+                selection = DatabaseUtils.concatenateWhere(selection, keyset);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
+                        new String[] { afterName, afterName, afterId });
+            }
+
+            return queryDrugs(database, projection, selection, selectionArgs,
+                    DrugContract.DrugEntry.PAGE_SORT_ORDER, limit);
+        }
+
+        /**
+         * Query the drugs table, like {@link SQLiteDatabase#query}, through the slow query log. The
+         * sales total counts the sales not folded into it yet, see {@link SalesLedger#withCurrentSold}.
+         */
+        private Cursor queryDrugs(SQLiteDatabase database, String[] projection, String selection,
+                                  String[] selectionArgs, String sortOrder, String limit) {
+            String sql = SQLiteQueryBuilder.buildQueryString(false, DrugContract.DrugEntry.TABLE_NAME,
+                    SalesLedger.withCurrentSold(projection), selection, null, null, sortOrder, limit);
+            return rawQueryLogged(database, sql, selectionArgs);
+        }
+
+        /**
+         * Return the inventory statistics as a single row. The database keeps them up to date on
+         * every write, except for the sales not folded into the totals yet, which are added to the
+         * total sales here. They are cached until the next write.
+         */
+        private Cursor queryStats(String[] projection) {
+            long[] stats = mStatsCache;
+            if (stats == null) {
+                long generation = mStatsGeneration.get();
+
+                stats = new long[STATS_COLUMNS.length];
+                String[] columns = STATS_COLUMNS.clone();
+                for (int i = 0; i < columns.length; i++) {
+                    if (DrugContract.StatsEntry.COLUMN_TOTAL_SALES.equals(columns[i])) {
+                        columns[i] += " + " + SalesLedger.SQL_UNFOLDED_TOTAL;
+                    }
+                }
+                Cursor cursor = mDbHelper.getReadableDatabase().query(DrugContract.StatsEntry.TABLE_NAME,
+                        columns, null, null, null, null, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        for (int i = 0; i < STATS_COLUMNS.length; i++) {
+                            stats[i] = cursor.getLong(i);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                // Only cache the statistics if no write happened while they were read
+                if (mStatsGeneration.get() == generation) {
+                    mStatsCache = stats;
+                }
+            }
+
+            if (projection == null) {
+                projection = STATS_COLUMNS;
+            }
+            MatrixCursor cursor = new MatrixCursor(projection, 1);
+            Object[] row = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                int column = Arrays.asList(STATS_COLUMNS).indexOf(projection[i]);
+                if (column == -1) {
+                    throw new IllegalArgumentException("Unknown statistics column " + projection[i]);
+                }
+                row[i] = stats[column];
+            }
+            cursor.addRow(row);
+            return cursor;
+        }
+
+        /**
+         * Search drugs by name through the full-text index, so only the matching rows are read
+         * instead of scanning every name with LIKE. Every word of the search text is matched as a
+         * prefix, so "ibu 200" finds "Ibuprofen 200mg".
+         */
+        private Cursor searchDrugs(SQLiteDatabase database, Uri uri, String[] projection,
+                                   String selection, String[] selectionArgs) {
+            String query = uri.getQueryParameter(DrugContract.QUERY_PARAM_QUERY);
+            String limit = uri.getQueryParameter(DrugContract.QUERY_PARAM_LIMIT);
+            if (limit == null) {
+                limit = DEFAULT_SEARCH_LIMIT;
+            }
+
+            // Check that the limit is a positive number
+            try {
+                if (Integer.parseInt(limit) <= 0) {
+                    throw new IllegalArgumentException("Search requires a positive limit " + uri);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Search requires a valid limit " + uri);
+            }
+
+            // Turn every word into a prefix term. Anything that isn't a letter or a digit is dropped,
+            // so the user can't type FTS operators by accident.
+            StringBuilder match = new StringBuilder();
+            String firstWord = null;
+            for (String word : (query == null ? "" : query).split("[^\\p{L}\\p{N}]+")) {
+                if (word.isEmpty()) {
+                    continue;
+                }
+                if (firstWord == null) {
+                    firstWord = word;
+                }
+                match.append(word).append("* ");
+            }
+
+            // Without a single word there is nothing to match, so return no rows
+            if (firstWord == null) {
+                return database.query(DrugContract.DrugEntry.TABLE_NAME, projection, "0", null,
+                        null, null, null);
+            }
+
+            // Only the matching IDs are read from the index, then joined back to the drugs
+            String tables = DrugContract.DrugEntry.TABLE_NAME + " JOIN (SELECT docid FROM "
+                    + DrugMigrations.FTS_TABLE_NAME + " WHERE " + DrugMigrations.FTS_TABLE_NAME
+                    + " MATCH ?) AS matches ON " + DrugContract.DrugEntry.TABLE_NAME + "."
+                    + DrugContract.DrugEntry._ID + " = matches.docid";
+
+            // Names starting with the first word rank first, then shorter (closer) names
+            String rankOrder = "(" + DrugContract.DrugEntry.COLUMN_DRUG_NAME + " LIKE ?) DESC, length("
+                    + DrugContract.DrugEntry.COLUMN_DRUG_NAME + "), "
+                    + DrugContract.DrugEntry.COLUMN_DRUG_NAME + " COLLATE NOCASE";
+
+            String sql = SQLiteQueryBuilder.buildQueryString(false, tables,
+                    SalesLedger.withCurrentSold(projection), selection, null, null, rankOrder, limit);
+
+            // Arguments are bound in the order they appear: the match, the selection, the rank.
+            // appendSelectionArgs() can't append null, which is what callers without a selection pass.
+            String[] args = DatabaseUtils.appendSelectionArgs(new String[] { match.toString().trim() },
+                    selectionArgs == null ? new String[0] : selectionArgs);
+            args = DatabaseUtils.appendSelectionArgs(args, new String[] { firstWord + "%" });
+
+            return rawQueryLogged(database, sql, args);
+        }
+
+        /**
+         * Insert into the given URI, which the URI matcher matched to the given code.
+         */
+        private Uri insertMatch(int match, Uri uri, ContentValues contentValues) {
+            switch (match) {
+                case DRUGS:
+                    beginWrite();
+                    try {
+                        return insertDrug(uri, contentValues);
+                    } finally {
+                        mStoreLock.writeLock().unlock();
+                    }
+                default:
+                    throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+        }
+
+        /**
+         * Insert a drug into the database with the given content values. Return the new content URI
+         * for that specific row in the database.
+         */
+        private Uri insertDrug(Uri uri, ContentValues values) {
+            // Check that the name is not null
             String name = values.getAsString(DrugContract.DrugEntry.COLUMN_DRUG_NAME);
             if (name == null) {
                 throw new IllegalArgumentException("Drug requires a name");
             }
 
+            // Check that the price is a valid number of cents
+            Long price = values.getAsLong(DrugContract.DrugEntry.COLUMN_DRUG_PRICE);
+            if (price == null || price < 0) {
+                throw new IllegalArgumentException("Drug requires valid price");
+            }
+
+            checkReorderValues(values);
+            checkReadOnlyValues(values);
+
+            // No need to check the image, any value is valid (including null).
+
+            // Get writeable database
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+            // Insert the new drug with the given values
+            long id = database.insert(DrugContract.DrugEntry.TABLE_NAME, null, values);
+            // If the ID is -1, then the insertion failed. Log an error and return null.
+            if (id == -1) {
+                Log.e(LOG_TAG, "Failed to insert row for " + uri);
+                return null;
+            }
+
+            // Keep the in-memory stock in step. The quantity column defaults to 0.
+            if (mStoreValid) {
+                Integer quantity = values.getAsInteger(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY);
+                mStore.put(id, quantity == null ? 0 : quantity);
+            }
+
+            // Return the new URI with the ID (of the newly inserted row) appended at the end
+            Uri newUri = ContentUris.withAppendedId(uri, id);
+
+            // Notify all listeners that the data has changed. The new drug can land on any page of
+            // the list, so this is a change to the whole table.
+            notifyChange(uri);
+
+            return newUri;
         }
 
-        // If the {@link DrugEntry#COLUMN_DRUG_QUANTITY} key is present,
-        // check that the quantity value is valid.
-        if (values.containsKey(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY)) {
-            Integer quantity = values.getAsInteger(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY);
-            if (quantity == null) {
-                throw new IllegalArgumentException("Drug requires valid quanity");
+        /**
+         * Insert all the given drugs in a single transaction. Every row is validated like
+         * {@link #insertDrug}, and if one of them is invalid or fails to insert nothing is inserted.
+         * Listeners are notified once, after the transaction has committed.
+         * Return the number of rows that were inserted, which is every one of them.
+         */
+        private int bulkInsert(Uri uri, ContentValues[] values) {
+            final int match = sUriMatcher.match(uri);
+            if (match != DRUGS) {
+                throw new IllegalArgumentException("Insertion is not supported for " + uri);
+            }
+
+            // Get writeable database
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+            int rowsInserted = 0;
+            boolean committed = false;
+            beginWrite();
+            mApplyingBatch.set(true);
+            database.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    // A row the database refused fails the whole batch, so nothing is committed
+                    if (insertDrug(uri, value) == null) {
+                        throw new SQLException("Failed to insert row for " + uri);
+                    }
+                    rowsInserted++;
+                }
+                database.setTransactionSuccessful();
+                committed = true;
+            } finally {
+                try {
+                    database.endTransaction();
+                } catch (RuntimeException e) {
+                    committed = false;
+                    throw e;
+                } finally {
+                    mApplyingBatch.set(false);
+
+                    // The inserted drugs were put in the store one by one. A rolled back batch leaves
+                    // them there, so only then reload it next time. Imports call this for every chunk.
+                    if (!committed) {
+                        mStoreValid = false;
+                    }
+                    mStoreLock.writeLock().unlock();
+                }
+            }
+
+            // If 1 or more rows were inserted, then notify all listeners once for the whole batch
+            if (rowsInserted != 0) {
+                notifyChange(uri);
             }
+
+            return rowsInserted;
         }
 
-        // If the {@link DrugEntry#COLUMN_DRUG_PRICE} key is present,
-        // check that the price value is valid.
-        if (values.containsKey(DrugContract.DrugEntry.COLUMN_DRUG_PRICE)) {
-            // Check that the price not null
-            Double price = values.getAsDouble(DrugContract.DrugEntry.COLUMN_DRUG_PRICE);
-            if (price == null) {
-                throw new IllegalArgumentException("Drug requires valid price");
+        /**
+         * Apply all the given operations in a single transaction, so a failing operation rolls back
+         * the whole batch. Listeners are notified once, after the transaction has committed.
+         */
+        private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            // Get writeable database
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+            ContentProviderResult[] results;
+            beginWrite();
+            mApplyingBatch.set(true);
+            database.beginTransaction();
+            try {
+                results = DrugProvider.super.applyBatch(operations);
+                database.setTransactionSuccessful();
+            } finally {
+                try {
+                    database.endTransaction();
+                } finally {
+                    mApplyingBatch.set(false);
+
+                    // The operations may be any mix of writes, and may have been rolled back, so
+                    // reload the store next time rather than replaying them
+                    mStoreValid = false;
+                    mStoreLock.writeLock().unlock();
+                }
+            }
+
+            // Notify all listeners once that the drug data has changed
+            if (!operations.isEmpty()) {
+                notifyChange(DrugContract.DrugEntry.CONTENT_URI);
             }
+
+            return results;
         }
 
-        // No need to check the image, any value is valid (including null).
+        /**
+         * Start a write that doesn't go through {@link #mStore}: wait for the sales that are still
+         * being written, then hold off new ones until the caller unlocks the write lock of
+         * {@link #mStoreLock}. Must not be called inside a transaction, or the sales being written
+         * would wait for it forever.
+         */
+        private void beginWrite() {
+            // A store that is written gets its ledger compacted and its reorders run from now on
+            writeBehind();
+            mStoreLock.writeLock().lock();
+            // A nested write (from inside a batch) already waited for the sales
+            if (mStoreLock.getWriteHoldCount() == 1) {
+                try {
+                    awaitWriteBehind();
+                } catch (RuntimeException e) {
+                    mStoreLock.writeLock().unlock();
+                    throw e;
+                }
+            }
+        }
 
-        // If there are no values to update, then don't try to update the database
-        if (values.size() == 0) {
-            return 0;
+        /**
+         * Wait until every sale handed to {@link #mWriteBehind} so far is written, and try the
+         * sales whose write failed again.
+         *
+         * @return the sales that still aren't in the database, as {ID, units}
+         */
+        private List<long[]> awaitWriteBehind() {
+            synchronized (this) {
+                if (mWriteBehind == null) {
+                    // Not started, so no sale was ever handed to it
+                    return Collections.emptyList();
+                }
+            }
+            return runOnWriteBehind(new Callable<List<long[]>>() {
+                @Override
+                public List<long[]> call() {
+                    // This only runs once the sales before it are written
+                    if (!mUnwrittenSales.isEmpty()) {
+                        writeSalesNow(new long[0], new int[0]);
+                    }
+                    return new ArrayList<>(mUnwrittenSales);
+                }
+            });
         }
 
-        // Otherwise, get writeable database to update the data
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+        /**
+         * Run a task on {@link #mWriteBehind}, after every sale handed to it so far, and wait for its
+         * result.
+         */
+        private <T> T runOnWriteBehind(Callable<T> task) {
+            try {
+                return writeBehind().submit(task).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while writing sales", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to write sales", e);
+            }
+        }
+
+        /**
+         * Fold the sales recorded since the last compaction into the drugs' totals and roll up the
+         * old ones, see {@link SalesLedger#compact}, then decay the stale sales velocities, see
+         * {@link SalesVelocity#refreshStale}. Must run on {@link #mWriteBehind}, so it never races
+         * with the sales being written.
+         */
+        private SalesLedger.Compaction compactSales() {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            long now = System.currentTimeMillis();
+            SalesLedger.Compaction compaction = SalesLedger.compact(database, now);
 
-        // Returns the number of database rows affected by the update statement
-        int rowUpdated = database.update(DrugContract.DrugEntry.TABLE_NAME, values, selection, selectionArgs);
+            // Drugs that stopped selling would otherwise keep the stock-out time of their last sale
+            int refreshed = SalesVelocity.refreshStale(database, now);
 
-        // if 1 or more rows were updated, then notify all listeners that the data at
-        // the given URI has changed
-        if (rowUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            if (compaction.folded != 0 || refreshed != 0) {
+                // Any number of drugs may have new totals or stock-out times
+                notifyChange(DrugContract.DrugEntry.CONTENT_URI);
+            }
+            return compaction;
         }
 
-        // Return the number of rows updated
-        return rowUpdated;
-    }
+        /**
+         * Order the drugs that fell to their threshold since the last run, see {@link ReorderEngine}.
+         * Must run on {@link #mWriteBehind}, so the sales before it are in the database.
+         */
+        private ReorderEngine.Run runReorders() {
+            File outbox = storeDirectory(OUTBOX_DIRECTORY);
 
-    @Override
-    public int delete(Uri uri, String selection, String[] selectionArgs) {
-        // Get writeable database
-        SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            ReorderEngine.Run run;
+            try {
+                run = ReorderEngine.run(mDbHelper.getWritableDatabase(), outbox,
+                        System.currentTimeMillis());
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to write purchase order", e);
+            }
 
-        // Track the number of rows that were deleted
-        int rowsDeleted;
+            if (run.orderFile != null) {
+                Log.i(LOG_TAG, "Ordered " + run.lines + " drugs for store " + mStoreId + " in "
+                        + run.orderFile.getName());
+            }
+            if (run.changed != 0) {
+                notifyChange(DrugContract.DrugEntry.CONTENT_URI);
+            }
+            return run;
+        }
 
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case DRUGS:
-                // Delete all rows that match the selection and selection args
-                // For case DRUGS
-                rowsDeleted = database.delete(DrugContract.DrugEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-            case DRUG_ID:
-                // Delete a single row given by the ID in the URI
-                selection = DrugContract.DrugEntry._ID + "=?";
-                selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
-                // For case DRUG_ID:
-                // Delete a single row given by the ID in the URI
-                rowsDeleted = database.delete(DrugContract.DrugEntry.TABLE_NAME, selection, selectionArgs);
-                break;
-            default:
-                throw new IllegalArgumentException("Deletion is not supported for " + uri);
+        /**
+         * Hold the read lock of {@link #mStoreLock} over an {@link #mStore} that matches the
+         * database, loading every drug's quantity first if it doesn't.
+         */
+        private void lockStoreForSale() {
+            while (true) {
+                if (!mStoreValid) {
+                    mStoreLock.writeLock().lock();
+                    try {
+                        if (!mStoreValid) {
+                            loadStore();
+                        }
+                    } finally {
+                        mStoreLock.writeLock().unlock();
+                    }
+                }
+
+                mStoreLock.readLock().lock();
+                if (mStoreValid) {
+                    return;
+                }
+                // Another write invalidated the store between the two locks, so load it again
+                mStoreLock.readLock().unlock();
+            }
         }
-        // If 1 or more rows were deleted, then notify all listeners that the data at the
-        // given URI has changed
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+
+        /**
+         * Replace the contents of {@link #mStore} with the quantities in the database.
+         * Must be called with the write lock of {@link #mStoreLock} held.
+         */
+        private void loadStore() {
+            // Sales still being written would be missing from the quantities read below
+            List<long[]> unwritten = awaitWriteBehind();
+
+            mStore.clear();
+            Cursor cursor = mDbHelper.getReadableDatabase().query(DrugContract.DrugEntry.TABLE_NAME,
+                    new String[] { DrugContract.DrugEntry._ID, DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY },
+                    null, null, null, null, null);
+            try {
+                while (cursor.moveToNext()) {
+                    mStore.put(cursor.getLong(0), cursor.getInt(1));
+                }
+            } finally {
+                cursor.close();
+            }
+            // The sales that failed to be written are still sold, and still to be written
+            for (long[] sale : unwritten) {
+                mStore.restock(sale[0], (int) -sale[1]);
+            }
+            mStoreValid = true;
         }
 
-        // Return the number of rows updated
-        return rowsDeleted;
-    }
+        /**
+         * Write sales that were already taken out of {@link #mStore} to the database in the
+         * background, then notify the listeners of the drugs that were sold.
+         */
+        private void writeSales(final long[] ids, final int[] units) {
+            writeBehind().execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeSalesNow(ids, units);
+                }
+            });
+        }
 
-    @Override
-    public String getType(Uri uri) {
-        final int match = sUriMatcher.match(uri);
-        switch (match) {
-            case DRUGS:
-                return DrugContract.DrugEntry.CONTENT_LIST_TYPE;
-            case DRUG_ID:
-                return DrugContract.DrugEntry.CONTENT_ITEM_TYPE;
-            default:
-                throw new IllegalStateException("Unknown URI " + uri + " with match " + match);
+        /**
+         * Write the sales whose write failed before, then the given ones, in one transaction. If
+         * it fails, they're all kept to be written again, and {@link #mStore} is loaded again
+         * before the next sale, which writes them first. Must run on {@link #mWriteBehind}.
+         */
+        private void writeSalesNow(long[] ids, int[] units) {
+            for (int i = 0; i < ids.length; i++) {
+                mUnwrittenSales.add(new long[] { ids[i], units[i] });
+            }
+            SQLiteDatabase database;
+            try {
+                database = mDbHelper.getWritableDatabase();
+                long soldAt = System.currentTimeMillis();
+                database.beginTransaction();
+                SalesLedger.Seller seller = new SalesLedger.Seller(database);
+                try {
+                    for (long[] sale : mUnwrittenSales) {
+                        if (seller.sell(sale[0], (int) sale[1], soldAt) == 0) {
+                            // The database disagrees with the store, which only happens if it
+                            // was written behind the provider's back. Trust the database.
+                            Log.e(LOG_TAG, "Failed to write sale of drug " + sale[0] + " in store "
+                                    + mStoreId);
+                            mStoreValid = false;
+                        }
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    seller.close();
+                    database.endTransaction();
+                }
+            } catch (RuntimeException e) {
+                // Letting it through would lose the sales without a trace
+                Log.e(LOG_TAG, "Failed to write " + mUnwrittenSales.size() + " sales of store "
+                        + mStoreId + ", they will be written again", e);
+                mStoreValid = false;
+                return;
+            }
+
+            for (long[] sale : mUnwrittenSales) {
+                notifyChange(ContentUris.withAppendedId(DrugContract.DrugEntry.CONTENT_URI, sale[0]));
+            }
+            mUnwrittenSales.clear();
+        }
+
+        /**
+         * Notify all listeners that the data at the given URI has changed, unless a batch is being
+         * applied on this thread, in which case the batch notifies once when it's done. Notifications
+         * are coalesced by {@link DrugChangeNotifier}, so listeners hear about a burst of writes once.
+         */
+        private void notifyChange(Uri uri) {
+            // Every write ends up here, so this is where the cached statistics go stale
+            mStatsGeneration.incrementAndGet();
+            mStatsCache = null;
+
+            if (Boolean.TRUE.equals(mApplyingBatch.get())) {
+                return;
+            }
+            mMetrics.recordNotification();
+            mNotifier.changed(inStore(uri));
+        }
+
+        /**
+         * Returns the given drugs URI with this store in it, so observers can tell which store
+         * changed. URIs built by the provider itself don't name the store, and the default store
+         * keeps the plain URIs.
+         */
+        private Uri inStore(Uri uri) {
+            if (DrugContract.DEFAULT_STORE.equals(mStoreId)
+                    || uri.getQueryParameter(DrugContract.QUERY_PARAM_STORE) != null) {
+                return uri;
+            }
+            return DrugContract.forStore(uri, mStoreId);
+        }
+
+        /**
+         * Update the given URI, which the URI matcher matched to the given code.
+         */
+        private int updateMatch(int match, Uri uri, ContentValues contentValues, String selection,
+                                String[] selectionArgs) {
+            switch (match) {
+                case DRUGS:
+                    beginWrite();
+                    try {
+                        int rowsUpdated = updateDrug(uri, contentValues, selection, selectionArgs);
+                        // Any number of quantities may have changed, so reload the store next time
+                        if (rowsUpdated != 0
+                                && contentValues.containsKey(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY)) {
+                            mStoreValid = false;
+                        }
+                        return rowsUpdated;
+                    } finally {
+                        mStoreLock.writeLock().unlock();
+                    }
+                case DRUG_ID:
+                    // For the DRUG_ID code, extract out the ID from the URI,
+                    // so we know which row to update. Selection will be "_id=?" and selection
+                    // arguments will be a String array containing the actual ID.
+                    long id = ContentUris.parseId(uri);
+                    selection = DrugContract.DrugEntry._ID + "=?";
+                    selectionArgs = new String[] { String.valueOf(id) };
+
+                    // With an expected version, only update the drug if nobody changed it since the
+                    // caller read it. The sales still being written are waited for first, so a sale
+                    // the till already accepted counts as a change.
+                    String expectedVersion = uri.getQueryParameter(
+                            DrugContract.QUERY_PARAM_EXPECTED_VERSION);
+                    if (expectedVersion != null) {
+                        try {
+                            Long.parseLong(expectedVersion);
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Expected version must be a number: " + uri);
+                        }
+                        selection += " AND " + DrugContract.DrugEntry.COLUMN_VERSION + "=?";
+                        selectionArgs = new String[] { String.valueOf(id), expectedVersion };
+                    }
+
+                    // Listeners of the drug don't care which version was expected
+                    Uri drugUri = ContentUris.withAppendedId(DrugContract.DrugEntry.CONTENT_URI, id);
+                    beginWrite();
+                    try {
+                        int rowsUpdated = updateDrug(drugUri, contentValues, selection, selectionArgs);
+                        // Keep the in-memory stock of this drug in step
+                        if (rowsUpdated != 0 && mStoreValid
+                                && contentValues.containsKey(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY)) {
+                            mStore.put(id, contentValues.getAsInteger(
+                                    DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY));
+                        }
+                        return rowsUpdated;
+                    } finally {
+                        mStoreLock.writeLock().unlock();
+                    }
+                case DRUG_SELL:
+                    return sellDrug(uri, contentValues);
+                default:
+                    throw new IllegalArgumentException("Update is not supported for " + uri);
+            }
+        }
+
+        /**
+         * Sell units of the drug given by the sell URI. The number of units is read from
+         * {@link DrugContract.DrugEntry#SELL_QUANTITY} and defaults to 1. The stock is checked and
+         * decremented in memory, and the sale is written to the database in the background.
+         * Return 1 if the drug was sold, or 0 if it doesn't exist or is out of stock.
+         */
+        private int sellDrug(Uri uri, ContentValues values) {
+            // The ID is the segment before "sell", so ContentUris.parseId() can't be used here
+            long id = Long.parseLong(uri.getPathSegments().get(1));
+
+            int units = 1;
+            if (values != null && values.containsKey(DrugContract.DrugEntry.SELL_QUANTITY)) {
+                Integer sellQuantity = values.getAsInteger(DrugContract.DrugEntry.SELL_QUANTITY);
+                if (sellQuantity == null || sellQuantity <= 0) {
+                    throw new IllegalArgumentException("Sale requires a positive quantity");
+                }
+                units = sellQuantity;
+            }
+
+            // Inside a batch the sale has to be part of its transaction, so sell in the database.
+            // The batch reloads the store when it's done.
+            if (Boolean.TRUE.equals(mApplyingBatch.get())) {
+                SalesLedger.Seller seller = new SalesLedger.Seller(mDbHelper.getWritableDatabase());
+                int rowsSold;
+                try {
+                    rowsSold = seller.sell(id, units, System.currentTimeMillis());
+                } finally {
+                    seller.close();
+                }
+                if (rowsSold != 0) {
+                    notifyChange(ContentUris.withAppendedId(DrugContract.DrugEntry.CONTENT_URI, id));
+                }
+                return rowsSold;
+            }
+
+            lockStoreForSale();
+            try {
+                if (mStore.sell(id, units) != InventoryStore.SOLD) {
+                    return 0;
+                }
+                // Listeners are notified once the sale is in the database
+                writeSales(new long[] { id }, new int[] { units });
+                return 1;
+            } finally {
+                mStoreLock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Call one of the provider methods that work on a single store.
+         * Return its result, or null if the method isn't one of them.
+         */
+        private Bundle call(String method, String arg, Bundle extras) {
+            if (DrugContract.METHOD_CHECKOUT.equals(method)) {
+                return checkout(extras);
+            }
+            if (DrugContract.METHOD_COMPACT_SALES.equals(method)) {
+                SalesLedger.Compaction compaction = runOnWriteBehind(new Callable<SalesLedger.Compaction>() {
+                    @Override
+                    public SalesLedger.Compaction call() {
+                        return compactSales();
+                    }
+                });
+                Bundle result = new Bundle();
+                result.putInt(DrugContract.EXTRA_SALES_FOLDED, compaction.folded);
+                result.putInt(DrugContract.EXTRA_SALES_ROLLED_UP, compaction.rolledUp);
+                return result;
+            }
+            if (DrugContract.METHOD_RUN_REORDERS.equals(method)) {
+                ReorderEngine.Run run = runOnWriteBehind(new Callable<ReorderEngine.Run>() {
+                    @Override
+                    public ReorderEngine.Run call() {
+                        return runReorders();
+                    }
+                });
+                Bundle result = new Bundle();
+                result.putInt(DrugContract.EXTRA_ORDER_LINES, run.lines);
+                if (run.orderFile != null) {
+                    result.putString(DrugContract.EXTRA_ORDER_FILE, run.orderFile.getName());
+                }
+                return result;
+            }
+            if (DrugContract.METHOD_SYNC.equals(method)) {
+                return sync(arg);
+            }
+            if (DrugContract.METHOD_WRITE_SNAPSHOT.equals(method)) {
+                return writeSnapshot(snapshotFile(arg));
+            }
+            if (DrugContract.METHOD_RESTORE_SNAPSHOT.equals(method)) {
+                return restoreSnapshot(snapshotFile(arg));
+            }
+            return null;
+        }
+
+        /**
+         * Push the changes made to this store since the last sync to the given sync server, then
+         * pull the changes other devices made, see {@link SyncEngine}. The network requests are
+         * made without holding any lock, and every page pulled is applied like any other write.
+         */
+        private Bundle sync(String server) {
+            URL url;
+            try {
+                url = new URL(server);
+            } catch (MalformedURLException e) {
+                throw new IllegalArgumentException("Sync requires a server URL, not " + server);
+            }
+
+            SyncEngine engine = new SyncEngine(mDbHelper.getWritableDatabase(), url);
+            int pushed;
+            int pulled = 0;
+            // Two syncs of the same store at once would push the same changes twice
+            synchronized (mSyncLock) {
+                try {
+                    // Include the sales made before the sync started
+                    awaitWriteBehind();
+                    pushed = engine.push();
+
+                    SyncEngine.Page page;
+                    do {
+                        page = engine.fetch();
+                        int applied;
+                        beginWrite();
+                        try {
+                            applied = engine.apply(page);
+                            // Any number of quantities may have changed, so reload the store
+                            if (applied != 0) {
+                                mStoreValid = false;
+                            }
+                        } finally {
+                            mStoreLock.writeLock().unlock();
+                        }
+                        if (applied != 0) {
+                            notifyChange(DrugContract.DrugEntry.CONTENT_URI);
+                        }
+                        pulled += applied;
+                    } while (page.more);
+                } catch (IOException e) {
+                    // What went through is kept, so the next sync picks up from there
+                    throw new IllegalStateException("Failed to sync store " + mStoreId + " with "
+                            + server, e);
+                }
+            }
+            Log.i(LOG_TAG, "Synced store " + mStoreId + ": pushed " + pushed + ", pulled " + pulled
+                    + ", " + engine.bytesSent() + " bytes sent, " + engine.bytesReceived()
+                    + " bytes received");
+
+            Bundle result = new Bundle();
+            result.putInt(DrugContract.EXTRA_SYNC_PUSHED, pushed);
+            result.putInt(DrugContract.EXTRA_SYNC_PULLED, pulled);
+            result.putLong(DrugContract.EXTRA_SYNC_BYTES_SENT, engine.bytesSent());
+            result.putLong(DrugContract.EXTRA_SYNC_BYTES_RECEIVED, engine.bytesReceived());
+            return result;
+        }
+
+        /**
+         * Returns the file of the snapshot with the given name, which can't point outside the
+         * snapshot directory.
+         */
+        private File snapshotFile(String name) {
+            if (name == null || name.isEmpty() || name.contains("/") || name.equals(".")
+                    || name.equals("..")) {
+                throw new IllegalArgumentException("Snapshot requires a file name");
+            }
+            return new File(storeDirectory(SNAPSHOT_DIRECTORY), name);
+        }
+
+        /**
+         * Returns the given directory of the app's files for this store, creating it if needed.
+         * The default store uses the directory itself, and the others a subdirectory named after
+         * them, so existing snapshots and purchase orders stay where they are.
+         */
+        private File storeDirectory(String name) {
+            File directory = new File(getContext().getFilesDir(), name);
+            if (!DrugContract.DEFAULT_STORE.equals(mStoreId)) {
+                directory = new File(directory, mStoreId);
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IllegalStateException("Failed to create " + directory);
+            }
+            return directory;
+        }
+
+        /**
+         * Write a snapshot of every drug, see {@link DrugSnapshot}. The columns are read in one
+         * transaction, so they all come from the same version of the table, and sales wait for the
+         * snapshot to finish.
+         */
+        private Bundle writeSnapshot(File file) {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            int rows;
+            SalesLedger.Compaction compaction;
+            beginWrite();
+            try {
+                database.beginTransaction();
+                try {
+                    // Fold the recorded sales first, so the totals in the snapshot count them all
+                    compaction = SalesLedger.compact(database, System.currentTimeMillis());
+                    rows = DrugSnapshot.write(database, file);
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to write snapshot " + file.getName(), e);
+            } finally {
+                mStoreLock.writeLock().unlock();
+            }
+
+            if (compaction.folded != 0) {
+                notifyChange(DrugContract.DrugEntry.CONTENT_URI);
+            }
+
+            Bundle result = new Bundle();
+            result.putInt(DrugContract.EXTRA_SNAPSHOT_ROWS, rows);
+            result.putLong(DrugContract.EXTRA_SNAPSHOT_BYTES, file.length());
+            return result;
+        }
+
+        /**
+         * Replace every drug with the ones in a snapshot, see {@link DrugSnapshot}, and notify the
+         * listeners of the whole table once.
+         */
+        private Bundle restoreSnapshot(File file) {
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+            int rows;
+            beginWrite();
+            try {
+                rows = DrugSnapshot.restore(database, file);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot restore snapshot " + file.getName()
+                        + ": " + e.getMessage());
+            } finally {
+                // Every quantity may have changed
+                mStoreValid = false;
+                mStoreLock.writeLock().unlock();
+            }
+
+            notifyChange(DrugContract.DrugEntry.CONTENT_URI);
+
+            Bundle result = new Bundle();
+            result.putInt(DrugContract.EXTRA_SNAPSHOT_ROWS, rows);
+            return result;
+        }
+
+        /**
+         * Sell every line of a basket from the in-memory stock, then write it to the database in one
+         * transaction in the background. Either the whole basket is sold, or nothing is and the
+         * result holds {@link DrugContract#EXTRA_OUT_OF_STOCK_ID} for the first line that didn't have
+         * enough stock. Listeners are notified once for the whole basket.
+         */
+        private Bundle checkout(Bundle extras) {
+            long[] ids = extras == null ? null : extras.getLongArray(DrugContract.EXTRA_DRUG_IDS);
+            int[] quantities = extras == null ? null : extras.getIntArray(DrugContract.EXTRA_QUANTITIES);
+            if (ids == null || quantities == null || ids.length != quantities.length) {
+                throw new IllegalArgumentException("Checkout requires matching drug IDs and quantities");
+            }
+            for (int quantity : quantities) {
+                if (quantity <= 0) {
+                    throw new IllegalArgumentException("Sale requires a positive quantity");
+                }
+            }
+
+            Bundle result = new Bundle();
+            int unitsSold = 0;
+
+            lockStoreForSale();
+            try {
+                // The store puts back the lines that were already sold if one of them can't be
+                int failedLine = mStore.checkout(ids, quantities);
+                if (failedLine != -1) {
+                    result.putLong(DrugContract.EXTRA_OUT_OF_STOCK_ID, ids[failedLine]);
+                } else {
+                    for (int quantity : quantities) {
+                        unitsSold += quantity;
+                    }
+                    // Listeners of the drugs that changed are notified once the basket is in the
+                    // database. The notifier sends them together.
+                    writeSales(ids.clone(), quantities.clone());
+                }
+            } finally {
+                mStoreLock.readLock().unlock();
+            }
+
+            result.putInt(DrugContract.EXTRA_UNITS_SOLD, unitsSold);
+            return result;
+        }
+
+        /**
+         * Update drugs in the database with the given content values. Apply the changes to the rows
+         * specified in the selection and selection arguments (which could be 0 or 1 or more drugs).
+         * Return the number of rows that were successfully updated.
+         */
+        private int updateDrug(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+            // If the {@link DrugEntry#COLUMN_DRUG_NAME} key is present,
+            // check that the name value is not null.
+            if (values.containsKey(DrugContract.DrugEntry.COLUMN_DRUG_NAME)) {
+                String name = values.getAsString(DrugContract.DrugEntry.COLUMN_DRUG_NAME);
+                if (name == null) {
+                    throw new IllegalArgumentException("Drug requires a name");
+                }
+
+            }
+
+            // If the {@link DrugEntry#COLUMN_DRUG_QUANTITY} key is present,
+            // check that the quantity value is valid.
+            if (values.containsKey(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY)) {
+                Integer quantity = values.getAsInteger(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY);
+                if (quantity == null) {
+                    throw new IllegalArgumentException("Drug requires valid quanity");
+                }
+            }
+
+            // If the {@link DrugEntry#COLUMN_DRUG_PRICE} key is present,
+            // check that the price value is valid.
+            if (values.containsKey(DrugContract.DrugEntry.COLUMN_DRUG_PRICE)) {
+                // Check that the price is a valid number of cents
+                Long price = values.getAsLong(DrugContract.DrugEntry.COLUMN_DRUG_PRICE);
+                if (price == null || price < 0) {
+                    throw new IllegalArgumentException("Drug requires valid price");
+                }
+            }
+
+            checkReorderValues(values);
+            checkReadOnlyValues(values);
+
+            // No need to check the image, any value is valid (including null).
+
+            // If there are no values to update, then don't try to update the database
+            if (values.size() == 0) {
+                return 0;
+            }
+
+            // Otherwise, get writeable database to update the data
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+            // Returns the number of database rows affected by the update statement
+            long start = System.nanoTime();
+            int rowUpdated = database.update(DrugContract.DrugEntry.TABLE_NAME, values, selection, selectionArgs);
+            long nanos = System.nanoTime() - start;
+            if (mSlowQueries.isSlow(nanos)) {
+                // Rebuild the statement SQLiteDatabase ran, so its plan can be read
+                StringBuilder sql = new StringBuilder("UPDATE " + DrugContract.DrugEntry.TABLE_NAME + " SET ");
+                ArrayList<String> args = new ArrayList<>();
+                for (String key : values.keySet()) {
+                    sql.append(args.isEmpty() ? "" : ", ").append(key).append(" = ?");
+                    Object value = values.get(key);
+                    args.add(value == null ? null : value.toString());
+                }
+                if (selection != null) {
+                    sql.append(" WHERE ").append(selection);
+                }
+                if (selectionArgs != null) {
+                    args.addAll(Arrays.asList(selectionArgs));
+                }
+                mSlowQueries.record(database, sql.toString(), args.toArray(new String[args.size()]), nanos);
+            }
+
+            // if 1 or more rows were updated, then notify all listeners that the data at
+            // the given URI has changed. A renamed drug can move to another page of the list,
+            // which only a change to the whole table reloads.
+            if (rowUpdated != 0) {
+                notifyChange(values.containsKey(DrugContract.DrugEntry.COLUMN_DRUG_NAME)
+                        ? DrugContract.DrugEntry.CONTENT_URI : uri);
+            }
+
+            // Return the number of rows updated
+            return rowUpdated;
+        }
+
+        /**
+         * Delete the drugs given by the URI, which the URI matcher matched to the given code, while
+         * sales wait for the deletion to finish.
+         */
+        private int delete(int match, Uri uri, String selection, String[] selectionArgs) {
+            beginWrite();
+            try {
+                return deleteDrugs(match, uri, selection, selectionArgs);
+            } finally {
+                mStoreLock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Delete the drugs given by the URI, which the URI matcher matched to the given code, and the
+         * selection and selection arguments. Return the number of rows that were deleted.
+         */
+        private int deleteDrugs(int match, Uri uri, String selection, String[] selectionArgs) {
+            // Get writeable database
+            SQLiteDatabase database = mDbHelper.getWritableDatabase();
+
+            // Track the number of rows that were deleted
+            int rowsDeleted;
+
+            switch (match) {
+                case DRUGS:
+                    // Delete all rows that match the selection and selection args
+                    // For case DRUGS
+                    long start = System.nanoTime();
+                    rowsDeleted = database.delete(DrugContract.DrugEntry.TABLE_NAME, selection, selectionArgs);
+                    long nanos = System.nanoTime() - start;
+                    if (mSlowQueries.isSlow(nanos)) {
+                        mSlowQueries.record(database, "DELETE FROM " + DrugContract.DrugEntry.TABLE_NAME
+                                + (selection == null ? "" : " WHERE " + selection), selectionArgs, nanos);
+                    }
+                    // Any number of drugs may be gone, so reload the store next time
+                    if (rowsDeleted != 0) {
+                        mStoreValid = false;
+                    }
+                    break;
+                case DRUG_ID:
+                    // Delete a single row given by the ID in the URI
+                    selection = DrugContract.DrugEntry._ID + "=?";
+                    selectionArgs = new String[] { String.valueOf(ContentUris.parseId(uri)) };
+                    // For case DRUG_ID:
+                    // Delete a single row given by the ID in the URI
+                    rowsDeleted = database.delete(DrugContract.DrugEntry.TABLE_NAME, selection, selectionArgs);
+                    mStore.remove(ContentUris.parseId(uri));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Deletion is not supported for " + uri);
+            }
+            // If 1 or more rows were deleted, then notify all listeners that the data at the
+            // given URI has changed
+            if (rowsDeleted != 0) {
+                notifyChange(uri);
+            }
+
+            // Return the number of rows updated
+            return rowsDeleted;
+        }
+
+        /**
+         * Returns the read end of a pipe that the drugs are written to, in the given MIME type, by a
+         * background thread. The rows are written chunk by chunk as the reader takes them, so the
+         * export never holds more than a chunk and the first bytes arrive right away.
+         *
+         * If the export fails part way the file ends with {@link DrugContract#EXPORT_ERROR_MARKER},
+         * and from KitKat on the pipe is also closed with the error, so a truncated export can't
+         * pass for a whole one.
+         */
+        private ParcelFileDescriptor openExport(final Uri uri, final String mimeType)
+                throws FileNotFoundException {
+            final ParcelFileDescriptor[] pipe;
+            try {
+                // Only a reliable pipe carries an error over to the reader
+                pipe = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                        ? ParcelFileDescriptor.createReliablePipe()
+                        : ParcelFileDescriptor.createPipe();
+            } catch (IOException e) {
+                throw new FileNotFoundException("Failed to create a pipe for " + uri);
+            }
+
+            mExports.execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeExport(pipe[1], uri, mimeType);
+                }
+            });
+            return pipe[0];
+        }
+
+        /**
+         * Write the export to the given write end of a pipe and close it.
+         */
+        private void writeExport(ParcelFileDescriptor output, Uri uri, String mimeType) {
+            FileOutputStream stream = new FileOutputStream(output.getFileDescriptor());
+            String error = null;
+            try {
+                // Include the sales made before the export was opened
+                awaitWriteBehind();
+                mExporter.export(stream, mimeType);
+            } catch (IOException e) {
+                // Most likely the reader closed the pipe before the end, which is its choice
+                Log.w(LOG_TAG, "Export of " + uri + " stopped", e);
+            } catch (RuntimeException e) {
+                // This thread has nobody to throw to, so the reader is told through the pipe
+                Log.e(LOG_TAG, "Export of " + uri + " failed", e);
+                error = "Export failed: " + e;
+                try {
+                    DrugExporter.writeFailure(stream);
+                } catch (IOException ignored) {
+                    // The reader is gone, nobody is left to tell
+                }
+            }
+
+            try {
+                if (error != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                    output.closeWithError(error);
+                } else {
+                    output.close();
+                }
+            } catch (IOException e) {
+                Log.w(LOG_TAG, "Failed to close the export of " + uri, e);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,615 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pharmacyinventory.data.DrugContract.DrugEntry;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Compact binary snapshot of the drugs table, used to back it up and restore it without copying
+ * the database file or replaying inserts.
+ *
+ * The snapshot is columnar: all the IDs, then all the names, and so on, each column encoded for
+ * what it holds. Integers are variable-length, so small quantities take one byte. IDs are stored
+ * as the difference to the previous ID, which is usually 1. Image URIs are stored as the length of
+ * the prefix they share with the previous one plus the rest, since they mostly differ only in
+ * their last segment. Indexes and the full-text table aren't stored at all, they are rebuilt on
+ * restore, and neither are the columns the database derives from the others: the stock-out
+ * projection is recomputed on restore, and every restored drug gets a new change sequence number,
+ * so the next reorder run looks at all of them. Every column carries a CRC32, and so does the
+ * header.
+ *
+ * Sync IDs are kept, so a restored drug stays the same drug on the other devices. Every restored
+ * drug gets a new sync sequence number, so the next sync pushes it, and the drugs the restore
+ * removes get tombstones, so the next sync deletes them everywhere.
+ *
+ * Layout, big-endian:
+ * <pre>
+ *   magic "DRGS", int version, int rows, int column count,
+ *   per column: int column ID, long offset, long length, int CRC32,
+ *   int CRC32 of the header so far,
+ *   then the columns at their offsets.
+ * </pre>
+ * Column encodings, one entry per row in ID order:
+ * <ul>
+ *     <li>IDs: zigzag varint of the difference to the previous ID (the first to 0)</li>
+ *     <li>names: varint length in bytes, then the UTF-8 bytes</li>
+ *     <li>quantities, sales, prices: varint, 0 for null, otherwise the zigzag value plus 1</li>
+ *     <li>velocities: varint of the bits of the double in reverse order, so 0 takes one byte</li>
+ *     <li>velocity times, reorder settings, units on order, versions: zigzag varint</li>
+ *     <li>images: varint, 0 for null, otherwise the length of the suffix plus 1, then a varint
+ *     of the bytes shared with the previous image that wasn't null, then the UTF-8 suffix</li>
+ *     <li>sync IDs: varint, 0 for null, otherwise the length in bytes plus 1, then the UTF-8
+ *     bytes</li>
+ * </ul>
+ */
+final class DrugSnapshot {
+
+    /** First bytes of every snapshot */
+    private static final int MAGIC = ('D' << 24) | ('R' << 16) | ('G' << 8) | 'S';
+
+    /** Version of the format written, and the only one read */
+    static final int VERSION = 3;
+
+    /** Column IDs, which are also their order in the file */
+    private static final int ID = 0;
+    private static final int NAME = 1;
+    private static final int QUANTITY = 2;
+    private static final int SOLD = 3;
+    private static final int PRICE = 4;
+    private static final int IMAGE = 5;
+    private static final int VELOCITY_SHORT = 6;
+    private static final int VELOCITY_LONG = 7;
+    private static final int VELOCITY_UPDATED_AT = 8;
+    private static final int REORDER_THRESHOLD = 9;
+    private static final int REORDER_QUANTITY = 10;
+    private static final int ON_ORDER = 11;
+    private static final int ROW_VERSION = 12;
+    private static final int SYNC_ID = 13;
+
+    /** Database columns, by column ID */
+    private static final String[] COLUMNS = {
+            DrugEntry._ID,
+            DrugEntry.COLUMN_DRUG_NAME,
+            DrugEntry.COLUMN_DRUG_QUANTITY,
+            DrugEntry.COLUMN_DRUG_SOLD,
+            DrugEntry.COLUMN_DRUG_PRICE,
+            DrugEntry.COLUMN_DRUG_IMAGE,
+            DrugEntry.COLUMN_VELOCITY_SHORT,
+            DrugEntry.COLUMN_VELOCITY_LONG,
+            DrugEntry.COLUMN_VELOCITY_UPDATED_AT,
+            DrugEntry.COLUMN_REORDER_THRESHOLD,
+            DrugEntry.COLUMN_REORDER_QUANTITY,
+            DrugEntry.COLUMN_ON_ORDER,
+            DrugEntry.COLUMN_VERSION,
+            DrugEntry.COLUMN_SYNC_ID};
+
+    /** Bytes of a column's entry in the header */
+    private static final int COLUMN_ENTRY_SIZE = 4 + 8 + 8 + 4;
+
+    /** Bytes of the header, including its CRC32 */
+    private static final int HEADER_SIZE = 4 * 4 + COLUMNS.length * COLUMN_ENTRY_SIZE + 4;
+
+    /**
+     * Temporary table holding the sync IDs of the drugs being replaced, and how much of their
+     * stock the sync server was told about
+     */
+    private static final String SYNCED_TABLE_NAME = "restore_synced";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // This class only holds static helpers, so it should never be instantiated.
+    private DrugSnapshot() {}
+
+    /**
+     * Write a snapshot of every drug to the given file, which is replaced only once the snapshot
+     * is complete. Must be called inside a transaction, so every column is read from the same
+     * version of the table.
+     *
+     * @return the number of drugs written
+     */
+    static int write(SQLiteDatabase database, File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        long[] offsets = new long[COLUMNS.length];
+        long[] lengths = new long[COLUMNS.length];
+        int[] checksums = new int[COLUMNS.length];
+        int rows = -1;
+
+        // Columns are written one after the other, each from its own scan in ID order, so only
+        // the buffer of the file is held in memory
+        ColumnWriter writer = new ColumnWriter(new BufferedOutputStream(new FileOutputStream(temp)));
+        boolean written = false;
+        try {
+            writer.skip(HEADER_SIZE);
+            for (int column = 0; column < COLUMNS.length; column++) {
+                offsets[column] = writer.position();
+                writer.startColumn();
+                int columnRows = writeColumn(database, column, writer);
+                if (rows != -1 && columnRows != rows) {
+                    throw new IllegalStateException("Snapshot must be written inside a transaction");
+                }
+                rows = columnRows;
+                lengths[column] = writer.position() - offsets[column];
+                checksums[column] = writer.checksum();
+            }
+            writer.close();
+            written = true;
+        } finally {
+            if (!written) {
+                writer.close();
+                temp.delete();
+            }
+        }
+
+        // Now that the columns are known, fill in the header
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(COLUMNS.length);
+        for (int column = 0; column < COLUMNS.length; column++) {
+            header.putInt(column).putLong(offsets[column]).putLong(lengths[column])
+                    .putInt(checksums[column]);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, header.position());
+        header.putInt((int) crc.getValue());
+
+        RandomAccessFile output = new RandomAccessFile(temp, "rw");
+        try {
+            output.write(header.array());
+            output.getFD().sync();
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            output.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to replace " + file);
+        }
+        return rows;
+    }
+
+    /**
+     * Write one column of every drug.
+     *
+     * @return the number of drugs written
+     */
+    private static int writeColumn(SQLiteDatabase database, int column, ColumnWriter writer)
+            throws IOException {
+        Cursor cursor = database.rawQuery("SELECT " + COLUMNS[column] + " FROM "
+                + DrugEntry.TABLE_NAME + " ORDER BY " + DrugEntry._ID, null);
+        try {
+            long previousId = 0;
+            byte[] previousImage = new byte[0];
+            while (cursor.moveToNext()) {
+                switch (column) {
+                    case ID:
+                        long id = cursor.getLong(0);
+                        writer.writeVarint(zigzag(id - previousId));
+                        previousId = id;
+                        break;
+                    case NAME:
+                        byte[] name = cursor.getString(0).getBytes(UTF_8);
+                        writer.writeVarint(name.length);
+                        writer.write(name, 0, name.length);
+                        break;
+                    case IMAGE:
+                        if (cursor.isNull(0)) {
+                            writer.writeVarint(0);
+                            break;
+                        }
+                        byte[] image = cursor.getString(0).getBytes(UTF_8);
+                        int shared = 0;
+                        int most = Math.min(image.length, previousImage.length);
+                        while (shared < most && image[shared] == previousImage[shared]) {
+                            shared++;
+                        }
+                        writer.writeVarint(image.length - shared + 1);
+                        writer.writeVarint(shared);
+                        writer.write(image, shared, image.length - shared);
+                        previousImage = image;
+                        break;
+                    case QUANTITY:
+                    case SOLD:
+                    case PRICE:
+                        writer.writeVarint(cursor.isNull(0) ? 0 : zigzag(cursor.getLong(0)) + 1);
+                        break;
+                    case VELOCITY_SHORT:
+                    case VELOCITY_LONG:
+                        writer.writeVarint(Long.reverse(Double.doubleToLongBits(cursor.getDouble(0))));
+                        break;
+                    case SYNC_ID:
+                        if (cursor.isNull(0)) {
+                            writer.writeVarint(0);
+                            break;
+                        }
+                        byte[] syncId = cursor.getString(0).getBytes(UTF_8);
+                        writer.writeVarint(syncId.length + 1);
+                        writer.write(syncId, 0, syncId.length);
+                        break;
+                    default:
+                        writer.writeVarint(zigzag(cursor.getLong(0)));
+                }
+            }
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Replace every drug with the ones in the given snapshot, in one transaction. The file is
+     * memory-mapped and every checksum is verified before the table is touched. The indexes and
+     * triggers of the drugs table are dropped during the load and created again after it, and the
+     * full-text index and the statistics are rebuilt in one pass each, which is much faster than
+     * maintaining them row by row. The sync state is kept up to date by hand, as the sync triggers
+     * would have.
+     *
+     * @return the number of drugs restored
+     * @throws IOException if the file can't be read, or isn't a valid snapshot
+     */
+    static int restore(SQLiteDatabase database, File file) throws IOException {
+        ByteBuffer snapshot;
+        FileInputStream input = new FileInputStream(file);
+        try {
+            FileChannel channel = input.getChannel();
+            // The mapping stays valid after the channel is closed, until it's garbage collected
+            snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            input.close();
+        }
+
+        ByteBuffer[] columns;
+        int rows;
+        try {
+            if (snapshot.remaining() < HEADER_SIZE || snapshot.getInt(0) != MAGIC) {
+                throw new IOException("Not a drug snapshot: " + file);
+            }
+            if (snapshot.getInt(4) != VERSION) {
+                throw new IOException("Unsupported snapshot version " + snapshot.getInt(4));
+            }
+            if (snapshot.getInt(12) != COLUMNS.length) {
+                throw new IOException("Snapshot has " + snapshot.getInt(12) + " columns");
+            }
+            if (checksum(snapshot, 0, HEADER_SIZE - 4) != snapshot.getInt(HEADER_SIZE - 4)) {
+                throw new IOException("Snapshot header is corrupt");
+            }
+
+            rows = snapshot.getInt(8);
+            columns = new ByteBuffer[COLUMNS.length];
+            for (int column = 0; column < COLUMNS.length; column++) {
+                int entry = 16 + column * COLUMN_ENTRY_SIZE;
+                long offset = snapshot.getLong(entry + 4);
+                long length = snapshot.getLong(entry + 12);
+                if (snapshot.getInt(entry) != column || rows < 0 || offset < HEADER_SIZE
+                        || length < 0 || offset + length > snapshot.limit()) {
+                    throw new IOException("Snapshot header is corrupt");
+                }
+                if (checksum(snapshot, (int) offset, (int) length) != snapshot.getInt(entry + 20)) {
+                    throw new IOException("Snapshot column " + COLUMNS[column] + " is corrupt");
+                }
+                ByteBuffer slice = snapshot.duplicate();
+                slice.limit((int) (offset + length)).position((int) offset);
+                columns[column] = slice.slice();
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Snapshot is truncated", e);
+        }
+
+        database.beginTransaction();
+        try {
+            // The restored drugs take the sync sequence numbers after the last one given
+            long firstSyncSeq = DatabaseUtils.longForQuery(database, "SELECT "
+                    + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " FROM "
+                    + DrugMigrations.SYNC_STATE_TABLE_NAME, null) + 1;
+            database.execSQL("CREATE TEMP TABLE " + SYNCED_TABLE_NAME + " AS SELECT "
+                    + DrugEntry.COLUMN_SYNC_ID + ", " + DrugEntry.COLUMN_SYNCED_QUANTITY + " FROM "
+                    + DrugEntry.TABLE_NAME + " WHERE " + DrugEntry.COLUMN_SYNC_ID + " IS NOT NULL");
+
+            ArrayList<String> schema = dropIndexesAndTriggers(database);
+            database.execSQL("DELETE FROM " + DrugEntry.TABLE_NAME);
+            database.execSQL("DELETE FROM " + DrugMigrations.FTS_TABLE_NAME);
+
+            loadRows(database, columns, rows, firstSyncSeq);
+
+            for (String sql : schema) {
+                database.execSQL(sql);
+            }
+            restoreSyncState(database, firstSyncSeq + rows);
+            database.execSQL("INSERT INTO " + DrugMigrations.FTS_TABLE_NAME + " (docid, "
+                    + DrugEntry.COLUMN_DRUG_NAME + ") SELECT " + DrugEntry._ID + ", "
+                    + DrugEntry.COLUMN_DRUG_NAME + " FROM " + DrugEntry.TABLE_NAME);
+            database.execSQL(DrugMigrations.SQL_RECOMPUTE_STATS);
+            database.execSQL(SalesVelocity.SQL_RECOMPUTE_STOCKOUT);
+            ReorderEngine.markAllChanged(database);
+
+            // The snapshot's totals already count the sales recorded before it was written, and
+            // the sales recorded after it are of the table being replaced
+            SalesLedger.skipUnfolded(database);
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+        return rows;
+    }
+
+    /**
+     * Bring the sync state in line with the restored drugs, which took the sync sequence numbers
+     * before the given one: a restored drug the server already knows about keeps what it was told
+     * about its stock, so only the difference is pushed, and every drug replaced gets a tombstone
+     * numbered from the given sequence number, unless it was restored.
+     */
+    private static void restoreSyncState(SQLiteDatabase database, long nextSyncSeq) {
+        database.execSQL("UPDATE " + DrugEntry.TABLE_NAME + " SET " + DrugEntry.COLUMN_SYNCED_QUANTITY
+                + " = (SELECT " + DrugEntry.COLUMN_SYNCED_QUANTITY + " FROM " + SYNCED_TABLE_NAME
+                + " WHERE " + SYNCED_TABLE_NAME + "." + DrugEntry.COLUMN_SYNC_ID + " = "
+                + DrugEntry.TABLE_NAME + "." + DrugEntry.COLUMN_SYNC_ID + ") WHERE "
+                + DrugEntry.COLUMN_SYNC_ID + " IN (SELECT " + DrugEntry.COLUMN_SYNC_ID + " FROM "
+                + SYNCED_TABLE_NAME + ")");
+
+        // A drug deleted before the restore and brought back by it is pushed as restored
+        database.execSQL("DELETE FROM " + DrugMigrations.TOMBSTONE_TABLE_NAME + " WHERE "
+                + DrugEntry.COLUMN_SYNC_ID + " IN (SELECT " + DrugEntry.COLUMN_SYNC_ID + " FROM "
+                + DrugEntry.TABLE_NAME + ")");
+        // The rows of the temporary table are numbered from 1 in the order they were copied
+        database.execSQL("INSERT OR REPLACE INTO " + DrugMigrations.TOMBSTONE_TABLE_NAME
+                + " SELECT " + DrugEntry.COLUMN_SYNC_ID + ", rowid + ? FROM " + SYNCED_TABLE_NAME
+                + " WHERE " + DrugEntry.COLUMN_SYNC_ID + " NOT IN (SELECT "
+                + DrugEntry.COLUMN_SYNC_ID + " FROM " + DrugEntry.TABLE_NAME + " WHERE "
+                + DrugEntry.COLUMN_SYNC_ID + " IS NOT NULL)", new Object[] { nextSyncSeq - 1 });
+        database.execSQL("UPDATE " + DrugMigrations.SYNC_STATE_TABLE_NAME + " SET "
+                + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " = ? + (SELECT IFNULL(MAX(rowid), 0) FROM "
+                + SYNCED_TABLE_NAME + ")", new Object[] { nextSyncSeq - 1 });
+        database.execSQL("DROP TABLE " + SYNCED_TABLE_NAME);
+    }
+
+    /**
+     * Drop the indexes and triggers of the drugs table.
+     *
+     * @return the statements that create them again
+     */
+    private static ArrayList<String> dropIndexesAndTriggers(SQLiteDatabase database) {
+        ArrayList<String> schema = new ArrayList<>();
+        ArrayList<String> drops = new ArrayList<>();
+        // The automatic index of a UNIQUE or PRIMARY KEY constraint has no SQL, and stays
+        Cursor cursor = database.rawQuery("SELECT type, name, sql FROM sqlite_master"
+                + " WHERE type IN ('index', 'trigger') AND tbl_name = ? AND sql IS NOT NULL",
+                new String[] { DrugEntry.TABLE_NAME });
+        try {
+            while (cursor.moveToNext()) {
+                drops.add("DROP " + cursor.getString(0).toUpperCase(Locale.US) + " \"" + cursor.getString(1) + "\"");
+                schema.add(cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String drop : drops) {
+            database.execSQL(drop);
+        }
+        return schema;
+    }
+
+    /**
+     * Insert every row of the snapshot's columns. The rows get the sync sequence numbers from the
+     * given one on, for all their columns, and a new sync ID if they have none.
+     */
+    private static void loadRows(SQLiteDatabase database, ByteBuffer[] columns, int rows,
+                                 long firstSyncSeq) throws IOException {
+        StringBuilder sql = new StringBuilder("INSERT INTO " + DrugEntry.TABLE_NAME + " (");
+        for (int column = 0; column < COLUMNS.length; column++) {
+            sql.append(column == 0 ? "" : ", ").append(COLUMNS[column]);
+        }
+        sql.append(", ").append(DrugEntry.COLUMN_SYNC_SEQ).append(", ")
+                .append(DrugEntry.COLUMN_SYNC_FIELDS_SEQ);
+        sql.append(") VALUES (?");
+        for (int column = 1; column < COLUMNS.length; column++) {
+            sql.append(column == SYNC_ID ? ", IFNULL(?, " + SyncEngine.SQL_NEW_SYNC_ID + ")" : ", ?");
+        }
+        sql.append(", ?, ?");
+        SQLiteStatement insert = database.compileStatement(sql.append(')').toString());
+        try {
+            long id = 0;
+            byte[] bytes = new byte[256];
+            byte[] image = new byte[256];
+            int imageLength = 0;
+            for (int row = 0; row < rows; row++) {
+                insert.clearBindings();
+
+                id += unzigzag(readVarint(columns[ID]));
+                insert.bindLong(ID + 1, id);
+
+                int nameLength = readLength(columns[NAME]);
+                bytes = ensureCapacity(bytes, nameLength, 0);
+                columns[NAME].get(bytes, 0, nameLength);
+                insert.bindString(NAME + 1, new String(bytes, 0, nameLength, UTF_8));
+
+                bindNullable(insert, QUANTITY + 1, columns[QUANTITY]);
+                bindNullable(insert, SOLD + 1, columns[SOLD]);
+                bindNullable(insert, PRICE + 1, columns[PRICE]);
+
+                int suffix = readLength(columns[IMAGE]) - 1;
+                if (suffix >= 0) {
+                    int shared = readLength(columns[IMAGE]);
+                    if (shared > imageLength) {
+                        throw new IOException("Snapshot column " + COLUMNS[IMAGE] + " is corrupt");
+                    }
+                    image = ensureCapacity(image, shared + suffix, shared);
+                    columns[IMAGE].get(image, shared, suffix);
+                    imageLength = shared + suffix;
+                    insert.bindString(IMAGE + 1, new String(image, 0, imageLength, UTF_8));
+                }
+
+                insert.bindDouble(VELOCITY_SHORT + 1,
+                        Double.longBitsToDouble(Long.reverse(readVarint(columns[VELOCITY_SHORT]))));
+                insert.bindDouble(VELOCITY_LONG + 1,
+                        Double.longBitsToDouble(Long.reverse(readVarint(columns[VELOCITY_LONG]))));
+                for (int column = VELOCITY_UPDATED_AT; column <= ROW_VERSION; column++) {
+                    insert.bindLong(column + 1, unzigzag(readVarint(columns[column])));
+                }
+
+                int syncIdLength = readLength(columns[SYNC_ID]) - 1;
+                if (syncIdLength >= 0) {
+                    bytes = ensureCapacity(bytes, syncIdLength, 0);
+                    columns[SYNC_ID].get(bytes, 0, syncIdLength);
+                    insert.bindString(SYNC_ID + 1, new String(bytes, 0, syncIdLength, UTF_8));
+                }
+                insert.bindLong(COLUMNS.length + 1, firstSyncSeq + row);
+                insert.bindLong(COLUMNS.length + 2, firstSyncSeq + row);
+
+                insert.executeInsert();
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Snapshot has fewer rows than its header says", e);
+        } finally {
+            insert.close();
+        }
+
+        for (ByteBuffer column : columns) {
+            if (column.hasRemaining()) {
+                throw new IOException("Snapshot has more rows than its header says");
+            }
+        }
+    }
+
+    private static void bindNullable(SQLiteStatement insert, int index, ByteBuffer column) {
+        long value = readVarint(column);
+        if (value != 0) {
+            insert.bindLong(index, unzigzag(value - 1));
+        }
+    }
+
+    /**
+     * Returns an array of at least the given length, keeping the first bytes to keep.
+     */
+    private static byte[] ensureCapacity(byte[] bytes, int length, int keep) {
+        if (bytes.length >= length) {
+            return bytes;
+        }
+        byte[] larger = new byte[Math.max(length, bytes.length * 2)];
+        System.arraycopy(bytes, 0, larger, 0, keep);
+        return larger;
+    }
+
+    /**
+     * Returns the CRC32 of a range of the given buffer.
+     */
+    private static int checksum(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[64 * 1024];
+        ByteBuffer range = buffer.duplicate();
+        range.limit(offset + length).position(offset);
+        while (range.hasRemaining()) {
+            int size = Math.min(chunk.length, range.remaining());
+            range.get(chunk, 0, size);
+            crc.update(chunk, 0, size);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Read an unsigned LEB128 varint.
+     */
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new BufferUnderflowException();
+    }
+
+    /**
+     * Read a varint that must be a length, that is fit in an int and in the rest of the file.
+     */
+    private static int readLength(ByteBuffer buffer) throws IOException {
+        long length = readVarint(buffer);
+        if (length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Snapshot holds an invalid length");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Output stream of a snapshot that counts its bytes and computes the CRC32 of the current
+     * column.
+     */
+    private static final class ColumnWriter {
+
+        private final OutputStream mOutput;
+        private final CRC32 mCrc = new CRC32();
+        private final byte[] mVarint = new byte[10];
+        private long mPosition;
+
+        ColumnWriter(OutputStream output) {
+            mOutput = output;
+        }
+
+        long position() {
+            return mPosition;
+        }
+
+        /** Write zeros, which don't count towards any column */
+        void skip(int length) throws IOException {
+            mOutput.write(new byte[length]);
+            mPosition += length;
+        }
+
+        void startColumn() {
+            mCrc.reset();
+        }
+
+        int checksum() {
+            return (int) mCrc.getValue();
+        }
+
+        void write(byte[] bytes, int offset, int length) throws IOException {
+            mOutput.write(bytes, offset, length);
+            mCrc.update(bytes, offset, length);
+            mPosition += length;
+        }
+
+        /** Write an unsigned LEB128 varint */
+        void writeVarint(long value) throws IOException {
+            int length = 0;
+            while ((value & ~0x7fL) != 0) {
+                mVarint[length++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            mVarint[length++] = (byte) value;
+            write(mVarint, 0, length);
+        }
+
+        void close() throws IOException {
+            mOutput.close();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.android.pharmacyinventory.data;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory stock levels of the catalog, so checking and decrementing stock doesn't cost a
+ * database transaction. Every drug ID maps to a slot through a {@link LongIntHashMap}, and the
+ * quantity of each slot is an atomic counter, so sales of different drugs never wait on each other
+ * and sales of the same drug are compare-and-set loops instead of locks. Adding and removing drugs
+ * changes the map itself, so they take a write lock that sales only hold for reading.
+ *
+ * This class has no Android dependencies, so it can be tested on the plain JVM.
+ */
+public final class InventoryStore {
+
+    /** Result of a sale that took the units out of stock */
+    public static final int SOLD = 1;
+
+    /** Result of a sale of a drug that doesn't have enough units in stock */
+    public static final int OUT_OF_STOCK = 0;
+
+    /** Result of a sale of a drug that isn't in the store */
+    public static final int UNKNOWN_DRUG = -1;
+
+    /** Returned by {@link #getQuantity} for a drug that isn't in the store */
+    public static final int NO_QUANTITY = Integer.MIN_VALUE;
+
+    /** Slot of each drug ID. Guarded by mLock. */
+    private final LongIntHashMap mSlots;
+
+    /** Quantity of each slot. The array is guarded by mLock, its elements are atomic. */
+    private AtomicIntegerArray mQuantities;
+
+    /** Slots freed by removed drugs, reused before new ones. Guarded by mLock's write lock. */
+    private int[] mFreeSlots = new int[16];
+    private int mFreeSlotCount;
+
+    /** Number of slots that were ever handed out. Guarded by mLock's write lock. */
+    private int mUsedSlots;
+
+    /** Held for reading by sales, for writing by anything that adds or removes drugs */
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+
+    /**
+     * Create an empty store.
+     *
+     * @param expectedSize number of drugs the store should hold without growing
+     */
+    public InventoryStore(int expectedSize) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("Expected size can't be negative");
+        }
+        mSlots = new LongIntHashMap(expectedSize);
+        mQuantities = new AtomicIntegerArray(Math.max(expectedSize, 16));
+    }
+
+    /**
+     * Add a drug, or set the quantity of a drug that is already in the store.
+     */
+    public void put(long id, int quantity) {
+        mLock.writeLock().lock();
+        try {
+            int slot = mSlots.get(id);
+            if (slot == LongIntHashMap.NO_VALUE) {
+                slot = allocateSlot();
+                mSlots.put(id, slot);
+            }
+            mQuantities.set(slot, quantity);
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a drug. Return true if it was in the store.
+     */
+    public boolean remove(long id) {
+        mLock.writeLock().lock();
+        try {
+            int slot = mSlots.remove(id);
+            if (slot == LongIntHashMap.NO_VALUE) {
+                return false;
+            }
+            if (mFreeSlotCount == mFreeSlots.length) {
+                int[] freeSlots = new int[mFreeSlots.length * 2];
+                System.arraycopy(mFreeSlots, 0, freeSlots, 0, mFreeSlotCount);
+                mFreeSlots = freeSlots;
+            }
+            mFreeSlots[mFreeSlotCount++] = slot;
+            return true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove every drug.
+     */
+    public void clear() {
+        mLock.writeLock().lock();
+        try {
+            mSlots.clear();
+            mFreeSlotCount = 0;
+            mUsedSlots = 0;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of drugs in the store.
+     */
+    public int size() {
+        mLock.readLock().lock();
+        try {
+            return mSlots.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the quantity in stock of a drug, or {@link #NO_QUANTITY} if it isn't in the store.
+     */
+    public int getQuantity(long id) {
+        mLock.readLock().lock();
+        try {
+            int slot = mSlots.get(id);
+            return slot == LongIntHashMap.NO_VALUE ? NO_QUANTITY : mQuantities.get(slot);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Take units of a drug out of stock, if there are enough of them.
+     *
+     * @return {@link #SOLD}, {@link #OUT_OF_STOCK} or {@link #UNKNOWN_DRUG}
+     */
+    public int sell(long id, int units) {
+        if (units <= 0) {
+            throw new IllegalArgumentException("Sale requires a positive quantity");
+        }
+        mLock.readLock().lock();
+        try {
+            int slot = mSlots.get(id);
+            if (slot == LongIntHashMap.NO_VALUE) {
+                return UNKNOWN_DRUG;
+            }
+            return trySell(slot, units) ? SOLD : OUT_OF_STOCK;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sell every line of a basket, or nothing. The lines are taken out of stock one by one, and
+     * if one of them can't be sold the lines before it are put back.
+     *
+     * @return -1 if the whole basket was sold, otherwise the index of the first line that wasn't
+     * in the store or didn't have enough stock
+     */
+    public int checkout(long[] ids, int[] units) {
+        if (ids.length != units.length) {
+            throw new IllegalArgumentException("Checkout requires matching drug IDs and quantities");
+        }
+        for (int quantity : units) {
+            if (quantity <= 0) {
+                throw new IllegalArgumentException("Sale requires a positive quantity");
+            }
+        }
+
+        mLock.readLock().lock();
+        try {
+            int[] slots = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                slots[i] = mSlots.get(ids[i]);
+                if (slots[i] == LongIntHashMap.NO_VALUE || !trySell(slots[i], units[i])) {
+                    // Put back the lines that were already taken out of stock
+                    for (int j = 0; j < i; j++) {
+                        mQuantities.addAndGet(slots[j], units[j]);
+                    }
+                    return i;
+                }
+            }
+            return -1;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Put units of a drug back in stock. Does nothing if the drug isn't in the store.
+     */
+    public void restock(long id, int units) {
+        mLock.readLock().lock();
+        try {
+            int slot = mSlots.get(id);
+            if (slot != LongIntHashMap.NO_VALUE) {
+                mQuantities.addAndGet(slot, units);
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Take units out of the stock of a slot, unless that would leave it below zero.
+     * Must be called with the read lock held.
+     */
+    private boolean trySell(int slot, int units) {
+        while (true) {
+            int quantity = mQuantities.get(slot);
+            if (quantity < units) {
+                return false;
+            }
+            if (mQuantities.compareAndSet(slot, quantity, quantity - units)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns a free slot, growing the quantities if they are all in use.
+     * Must be called with the write lock held.
+     */
+    private int allocateSlot() {
+        if (mFreeSlotCount > 0) {
+            return mFreeSlots[--mFreeSlotCount];
+        }
+        if (mUsedSlots == mQuantities.length()) {
+            AtomicIntegerArray quantities = new AtomicIntegerArray(mUsedSlots * 2);
+            for (int i = 0; i < mUsedSlots; i++) {
+                quantities.set(i, mQuantities.get(i));
+            }
+            mQuantities = quantities;
+        }
+        return mUsedSlots++;
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.android.pharmacyinventory.data;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from long keys to int values that stores both in primitive arrays, so looking up a key
+ * never boxes or allocates. It uses open addressing with linear probing. Keys must not be 0, which
+ * marks an empty bucket (drug IDs start at 1).
+ *
+ * This class isn't thread-safe.
+ */
+final class LongIntHashMap {
+
+    /** Value returned by {@link #get} when the key isn't in the map */
+    static final int NO_VALUE = -1;
+
+    /** Key of the empty buckets */
+    private static final long EMPTY = 0;
+
+    /** The map grows once it's more than this full */
+    private static final float MAX_LOAD = 0.5f;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mSize;
+
+    LongIntHashMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity * MAX_LOAD < expectedSize) {
+            capacity *= 2;
+        }
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the value of the given key, or {@link #NO_VALUE} if it isn't in the map.
+     */
+    int get(long key) {
+        int mask = mKeys.length - 1;
+        for (int i = bucket(key, mask); ; i = (i + 1) & mask) {
+            long k = mKeys[i];
+            if (k == key) {
+                return mValues[i];
+            }
+            if (k == EMPTY) {
+                return NO_VALUE;
+            }
+        }
+    }
+
+    /**
+     * Map the given key to the given value, replacing any previous value.
+     */
+    void put(long key, int value) {
+        if (key == EMPTY) {
+            throw new IllegalArgumentException("Key 0 is reserved");
+        }
+        if (mSize + 1 > mKeys.length * MAX_LOAD) {
+            grow();
+        }
+
+        int mask = mKeys.length - 1;
+        int i = bucket(key, mask);
+        while (mKeys[i] != EMPTY && mKeys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        if (mKeys[i] == EMPTY) {
+            mKeys[i] = key;
+            mSize++;
+        }
+        mValues[i] = value;
+    }
+
+    /**
+     * Remove the given key. Returns its value, or {@link #NO_VALUE} if it wasn't in the map.
+     */
+    int remove(long key) {
+        int mask = mKeys.length - 1;
+        int i = bucket(key, mask);
+        while (mKeys[i] != key) {
+            if (mKeys[i] == EMPTY) {
+                return NO_VALUE;
+            }
+            i = (i + 1) & mask;
+        }
+        int value = mValues[i];
+
+        // Shift the following entries of the probe sequence back, so no lookup stops early at
+        // the emptied bucket
+        int gap = i;
+        for (int j = (i + 1) & mask; mKeys[j] != EMPTY; j = (j + 1) & mask) {
+            int home = bucket(mKeys[j], mask);
+            // Move the entry if its home bucket isn't between the gap and its position
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                mKeys[gap] = mKeys[j];
+                mValues[gap] = mValues[j];
+                gap = j;
+            }
+        }
+        mKeys[gap] = EMPTY;
+        mSize--;
+        return value;
+    }
+
+    void clear() {
+        Arrays.fill(mKeys, EMPTY);
+        mSize = 0;
+    }
+
+    private void grow() {
+        long[] oldKeys = mKeys;
+        int[] oldValues = mValues;
+        mKeys = new long[oldKeys.length * 2];
+        mValues = new int[oldValues.length * 2];
+        mSize = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    /**
+     * Returns the home bucket of a key. The key is mixed first, so sequential IDs spread out.
+     */
+    private static int bucket(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.android.pharmacyinventory.data;
+
+/**
+ * Helpers for prices, which are held as a long number of cents from the editor through the
+ * provider to the database. Sums of cents are exact, unlike sums of doubles, and don't need any
+ * boxing.
+ */
+public final class Money {
+
+    /** Most digits accepted before the decimal point, so the cents always fit in a long */
+    private static final int MAX_WHOLE_DIGITS = 15;
+
+    // This class only holds static helpers, so it should never be instantiated.
+    private Money() {}
+
+    /**
+     * Parse a price typed by the user, such as "3", "3.5" or "3.05", into cents.
+     *
+     * @throws NumberFormatException if the text isn't a positive amount with at most two decimals
+     */
+    public static long parseCents(String text) {
+        int length = text.length();
+        int point = text.indexOf('.');
+        int wholeEnd = point == -1 ? length : point;
+        int fractionDigits = point == -1 ? 0 : length - point - 1;
+
+        if (wholeEnd > MAX_WHOLE_DIGITS || fractionDigits > 2 || (wholeEnd == 0 && fractionDigits == 0)) {
+            throw new NumberFormatException("Invalid price: " + text);
+        }
+
+        long cents = 0;
+        for (int i = 0; i < length; i++) {
+            if (i == point) {
+                continue;
+            }
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new NumberFormatException("Invalid price: " + text);
+            }
+            cents = cents * 10 + (c - '0');
+        }
+
+        // "3.5" means 350 cents, not 35
+        for (int i = fractionDigits; i < 2; i++) {
+            cents *= 10;
+        }
+        return cents;
+    }
+
+    /**
+     * Format cents as a price with two decimals, for instance 305 as "3.05".
+     */
+    public static String format(long cents) {
+        StringBuilder builder = new StringBuilder();
+        if (cents < 0) {
+            builder.append('-');
+        }
+        // Split before taking the absolute value, which Long.MIN_VALUE doesn't have
+        long remainder = Math.abs(cents % 100);
+        builder.append(Math.abs(cents / 100)).append('.');
+        if (remainder < 10) {
+            builder.append('0');
+        }
+        return builder.append(remainder).toString();
+    }
+}
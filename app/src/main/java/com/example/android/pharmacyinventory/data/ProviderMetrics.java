@@ -0,0 +1,275 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import com.example.android.pharmacyinventory.data.DrugContract.MetricsEntry;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters of {@link DrugProvider}, per operation and per kind of URI, and
+ * per method for {@link android.content.ContentProvider#call}.
+ * Recording a call only adds to a few slots of one flat {@link AtomicLongArray}, so it never
+ * allocates or takes a lock and costs little enough to stay on in the field. Latencies go into
+ * power-of-two buckets, which bounds the memory and still tells a 100 us call from a 10 ms one.
+ */
+final class ProviderMetrics {
+
+    /** Operations that are recorded */
+    static final int QUERY = 0;
+    static final int INSERT = 1;
+    static final int UPDATE = 2;
+    static final int DELETE = 3;
+    static final int GET_TYPE = 4;
+    static final int BULK_INSERT = 5;
+    static final int APPLY_BATCH = 6;
+
+    /** Names of the operations, by operation */
+    private static final String[] OPERATION_NAMES = { "query", "insert", "update", "delete", "getType",
+            "bulkInsert", "applyBatch" };
+
+    /** Name of the operation of the calls, which are recorded by method instead of URI */
+    private static final String CALL_NAME = "call";
+
+    /** Number of histogram buckets. The last one also holds every call longer than 2^39 ns. */
+    private static final int BUCKETS = 40;
+
+    /** Slots of a cell, followed by its histogram buckets */
+    private static final int COUNT = 0;
+    private static final int ERRORS = 1;
+    private static final int ROWS = 2;
+    private static final int TOTAL_NANOS = 3;
+    private static final int MAX_NANOS = 4;
+    private static final int HISTOGRAM = 5;
+    private static final int CELL_SIZE = HISTOGRAM + BUCKETS;
+
+    /** Columns of the snapshot, in the order they are filled */
+    private static final String[] COLUMNS = {
+            MetricsEntry.COLUMN_OPERATION,
+            MetricsEntry.COLUMN_MATCH,
+            MetricsEntry.COLUMN_COUNT,
+            MetricsEntry.COLUMN_ERRORS,
+            MetricsEntry.COLUMN_ROWS,
+            MetricsEntry.COLUMN_TOTAL_NANOS,
+            MetricsEntry.COLUMN_P50_NANOS,
+            MetricsEntry.COLUMN_P99_NANOS,
+            MetricsEntry.COLUMN_MAX_NANOS,
+            MetricsEntry.COLUMN_HISTOGRAM};
+
+    /** UriMatcher codes that get their own cells, and their names */
+    private final int[] mMatchCodes;
+    private final String[] mMatchNames;
+
+    /** Methods of {@link android.content.ContentProvider#call} that get their own cells */
+    private final String[] mMethods;
+
+    /**
+     * One cell per operation and match code, the last match slot being for unknown URIs, followed
+     * by one cell per method, the last one being for unknown methods
+     */
+    private final AtomicLongArray mCells;
+
+    /** Changes handed to the notifier */
+    private final AtomicLong mNotifications = new AtomicLong();
+
+    /**
+     * @param matchCodes the UriMatcher codes of the provider
+     * @param matchNames the names of those codes, in the same order
+     * @param methods    the methods of {@link android.content.ContentProvider#call} the provider
+     *                   supports
+     */
+    ProviderMetrics(int[] matchCodes, String[] matchNames, String[] methods) {
+        if (matchCodes.length != matchNames.length) {
+            throw new IllegalArgumentException("Every match code needs a name");
+        }
+        mMatchCodes = matchCodes.clone();
+        mMatchNames = matchNames.clone();
+        mMethods = methods.clone();
+        mCells = new AtomicLongArray((OPERATION_NAMES.length * (matchCodes.length + 1)
+                + methods.length + 1) * CELL_SIZE);
+    }
+
+    /**
+     * Record one call.
+     *
+     * @param operation one of {@link #QUERY}, {@link #INSERT}, {@link #UPDATE}, {@link #DELETE},
+     *                  {@link #GET_TYPE}, {@link #BULK_INSERT} or {@link #APPLY_BATCH}
+     * @param match     UriMatcher code of the URI
+     * @param nanos     how long the call took
+     * @param rows      rows returned or affected
+     * @param failed    whether the call threw
+     */
+    void record(int operation, int match, long nanos, long rows, boolean failed) {
+        recordCell((operation * (mMatchCodes.length + 1) + slot(match)) * CELL_SIZE, nanos, rows,
+                failed);
+    }
+
+    /**
+     * Record one call of a provider method.
+     *
+     * @param method name of the method
+     * @param nanos  how long the call took
+     * @param failed whether the call threw
+     */
+    void recordCall(String method, long nanos, boolean failed) {
+        int slot = Arrays.asList(mMethods).indexOf(method);
+        if (slot == -1) {
+            slot = mMethods.length;
+        }
+        recordCell((OPERATION_NAMES.length * (mMatchCodes.length + 1) + slot) * CELL_SIZE, nanos, 0,
+                failed);
+    }
+
+    private void recordCell(int cell, long nanos, long rows, boolean failed) {
+        mCells.incrementAndGet(cell + COUNT);
+        if (failed) {
+            mCells.incrementAndGet(cell + ERRORS);
+        }
+        if (rows > 0) {
+            mCells.addAndGet(cell + ROWS, rows);
+        }
+        mCells.addAndGet(cell + TOTAL_NANOS, nanos);
+        mCells.incrementAndGet(cell + HISTOGRAM + bucket(nanos));
+
+        long max = mCells.get(cell + MAX_NANOS);
+        while (nanos > max && !mCells.compareAndSet(cell + MAX_NANOS, max, nanos)) {
+            max = mCells.get(cell + MAX_NANOS);
+        }
+    }
+
+    /**
+     * Record that a change was handed to the notifier.
+     */
+    void recordNotification() {
+        mNotifications.incrementAndGet();
+    }
+
+    /**
+     * Returns the metrics of every operation and URI that was called at least once.
+     *
+     * @param projection        columns to return, or null for all of them
+     * @param notificationsSent notifications the notifier actually sent
+     */
+    Cursor snapshot(String[] projection, long notificationsSent) {
+        if (projection == null) {
+            projection = COLUMNS;
+        }
+        int[] columns = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            columns[i] = Arrays.asList(COLUMNS).indexOf(projection[i]);
+            if (columns[i] == -1) {
+                throw new IllegalArgumentException("Unknown metrics column " + projection[i]);
+            }
+        }
+
+        MatrixCursor cursor = new MatrixCursor(projection);
+        Object[] values = new Object[COLUMNS.length];
+        for (int operation = 0; operation < OPERATION_NAMES.length; operation++) {
+            for (int slot = 0; slot <= mMatchCodes.length; slot++) {
+                addCellRow(cursor, columns, values,
+                        (operation * (mMatchCodes.length + 1) + slot) * CELL_SIZE,
+                        OPERATION_NAMES[operation],
+                        slot < mMatchCodes.length ? mMatchNames[slot] : "UNKNOWN");
+            }
+        }
+        for (int slot = 0; slot <= mMethods.length; slot++) {
+            addCellRow(cursor, columns, values,
+                    (OPERATION_NAMES.length * (mMatchCodes.length + 1) + slot) * CELL_SIZE,
+                    CALL_NAME, slot < mMethods.length ? mMethods[slot] : "UNKNOWN");
+        }
+
+        Arrays.fill(values, null);
+        values[0] = "notify";
+        values[2] = mNotifications.get();
+        addRow(cursor, columns, values);
+        values[0] = "notify_sent";
+        values[2] = notificationsSent;
+        addRow(cursor, columns, values);
+        return cursor;
+    }
+
+    /**
+     * Add the row of one cell to the snapshot, unless the cell was never called.
+     */
+    private void addCellRow(MatrixCursor cursor, int[] columns, Object[] values, int cell,
+                            String operation, String match) {
+        long count = mCells.get(cell + COUNT);
+        if (count == 0) {
+            return;
+        }
+
+        long[] histogram = new long[BUCKETS];
+        StringBuilder buckets = new StringBuilder();
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            histogram[bucket] = mCells.get(cell + HISTOGRAM + bucket);
+            if (bucket > 0) {
+                buckets.append(',');
+            }
+            buckets.append(histogram[bucket]);
+        }
+
+        values[0] = operation;
+        values[1] = match;
+        values[2] = count;
+        values[3] = mCells.get(cell + ERRORS);
+        values[4] = mCells.get(cell + ROWS);
+        values[5] = mCells.get(cell + TOTAL_NANOS);
+        values[6] = percentile(histogram, 0.50);
+        values[7] = percentile(histogram, 0.99);
+        values[8] = mCells.get(cell + MAX_NANOS);
+        values[9] = buckets.toString();
+        addRow(cursor, columns, values);
+    }
+
+    private static void addRow(MatrixCursor cursor, int[] columns, Object[] values) {
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            row[i] = values[columns[i]];
+        }
+        cursor.addRow(row);
+    }
+
+    /**
+     * Returns the index of the cells of a match code.
+     */
+    private int slot(int match) {
+        for (int i = 0; i < mMatchCodes.length; i++) {
+            if (mMatchCodes[i] == match) {
+                return i;
+            }
+        }
+        return mMatchCodes.length;
+    }
+
+    /**
+     * Returns the histogram bucket of a latency: the position of its highest set bit.
+     */
+    private static int bucket(long nanos) {
+        if (nanos <= 1) {
+            return 0;
+        }
+        return Math.min(63 - Long.numberOfLeadingZeros(nanos), BUCKETS - 1);
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given share of the calls.
+     */
+    private static long percentile(long[] histogram, double share) {
+        long total = 0;
+        for (long count : histogram) {
+            total += count;
+        }
+        long target = (long) Math.ceil(total * share);
+        long seen = 0;
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= target) {
+                return 1L << (bucket + 1);
+            }
+        }
+        return 1L << histogram.length;
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pharmacyinventory.data.DrugContract.DrugEntry;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Orders the drugs that fall to their {@link DrugEntry#COLUMN_REORDER_THRESHOLD}, with one
+ * consolidated purchase order per run written to an outbox directory.
+ *
+ * Every change to a drug's quantity or reorder settings gives it the next number of a counter
+ * kept in {@link DrugMigrations#REORDER_STATE_TABLE_NAME}, in {@link DrugEntry#COLUMN_CHANGE_SEQ}.
+ * A run only reads the drugs numbered after the last one it processed, through the index on that
+ * column, so it costs as much as the drugs changed since the last run, whatever the size of the
+ * catalog. A drug changed many times between two runs is still read once.
+ *
+ * Purchase orders are JSON documents named after their order number:
+ * <pre>
+ *   {"order":42,"created_at":1476612000000,"lines":[
+ *   {"drug_id":3,"name":"Ibuprofen","quantity":100,"price":499}]}
+ * </pre>
+ * The number is taken from the database in the same transaction that marks the drugs as ordered,
+ * so if the transaction doesn't commit after the file was written, the next run writes the same
+ * order again under the same name rather than a second one.
+ */
+final class ReorderEngine {
+
+    /** Name of the purchase order files, from the order number */
+    private static final String ORDER_FILE_FORMAT = "PO-%06d.json";
+
+    /**
+     * Triggers that give a drug the next change sequence number whenever it's inserted, or its
+     * quantity or reorder settings really change, whichever code path writes it.
+     */
+    static final String[] SQL_CREATE_CHANGE_SEQ_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS drugs_change_seq_insert AFTER INSERT ON "
+                    + DrugEntry.TABLE_NAME + " BEGIN " + nextChangeSeq() + "; END",
+            "CREATE TRIGGER IF NOT EXISTS drugs_change_seq_update AFTER UPDATE OF "
+                    + DrugEntry.COLUMN_DRUG_QUANTITY + ", " + DrugEntry.COLUMN_REORDER_THRESHOLD + ", "
+                    + DrugEntry.COLUMN_REORDER_QUANTITY + " ON " + DrugEntry.TABLE_NAME
+                    + " WHEN OLD." + DrugEntry.COLUMN_DRUG_QUANTITY + " IS NOT NEW." + DrugEntry.COLUMN_DRUG_QUANTITY
+                    + " OR OLD." + DrugEntry.COLUMN_REORDER_THRESHOLD + " IS NOT NEW." + DrugEntry.COLUMN_REORDER_THRESHOLD
+                    + " OR OLD." + DrugEntry.COLUMN_REORDER_QUANTITY + " IS NOT NEW." + DrugEntry.COLUMN_REORDER_QUANTITY
+                    + " BEGIN " + nextChangeSeq() + "; END",
+    };
+
+    /** Index used to find the drugs changed since the last run */
+    static final String SQL_CREATE_CHANGE_SEQ_INDEX = "CREATE INDEX IF NOT EXISTS drugs_change_seq_index ON "
+            + DrugEntry.TABLE_NAME + " (" + DrugEntry.COLUMN_CHANGE_SEQ + ")";
+
+    /** Returns the state of the engine: last change number, last one processed, next order. */
+    private static final String SQL_READ_STATE = "SELECT " + DrugMigrations.COLUMN_LAST_CHANGE_SEQ
+            + ", " + DrugMigrations.COLUMN_PROCESSED_THROUGH + ", " + DrugMigrations.COLUMN_NEXT_ORDER
+            + " FROM " + DrugMigrations.REORDER_STATE_TABLE_NAME;
+
+    /** Sets the units on order of one drug. Bind order: units, drug ID. */
+    private static final String SQL_SET_ON_ORDER = "UPDATE " + DrugEntry.TABLE_NAME
+            + " SET " + DrugEntry.COLUMN_ON_ORDER + " = ? WHERE " + DrugEntry._ID + " = ?";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * One line of a purchase order.
+     */
+    private static final class Line {
+
+        final long drugId;
+        final String name;
+        final int quantity;
+        final long price;
+
+        Line(long drugId, String name, int quantity, long price) {
+            this.drugId = drugId;
+            this.name = name;
+            this.quantity = quantity;
+            this.price = price;
+        }
+    }
+
+    /**
+     * Outcome of one run.
+     */
+    static final class Run {
+
+        /** Drugs put on the purchase order */
+        final int lines;
+
+        /** Purchase order written, or null if nothing needed ordering */
+        final File orderFile;
+
+        /** Drugs whose units on order were set or cleared */
+        final int changed;
+
+        Run(int lines, File orderFile, int changed) {
+            this.lines = lines;
+            this.orderFile = orderFile;
+            this.changed = changed;
+        }
+    }
+
+    // This class only holds static helpers, so it should never be instantiated.
+    private ReorderEngine() {}
+
+    /**
+     * Returns the trigger statements that move the counter on and give its new value to the row.
+     */
+    private static String nextChangeSeq() {
+        return "UPDATE " + DrugMigrations.REORDER_STATE_TABLE_NAME + " SET "
+                + DrugMigrations.COLUMN_LAST_CHANGE_SEQ + " = " + DrugMigrations.COLUMN_LAST_CHANGE_SEQ
+                + " + 1; UPDATE " + DrugEntry.TABLE_NAME + " SET " + DrugEntry.COLUMN_CHANGE_SEQ
+                + " = (SELECT " + DrugMigrations.COLUMN_LAST_CHANGE_SEQ + " FROM "
+                + DrugMigrations.REORDER_STATE_TABLE_NAME + ") WHERE " + DrugEntry._ID
+                + " = NEW." + DrugEntry._ID;
+    }
+
+    /**
+     * Give every drug one new change sequence number, so the next run looks at all of them. Used
+     * after the drugs were loaded without the triggers, for instance by a snapshot restore.
+     */
+    static void markAllChanged(SQLiteDatabase database) {
+        database.execSQL("UPDATE " + DrugMigrations.REORDER_STATE_TABLE_NAME + " SET "
+                + DrugMigrations.COLUMN_LAST_CHANGE_SEQ + " = " + DrugMigrations.COLUMN_LAST_CHANGE_SEQ
+                + " + 1");
+        database.execSQL("UPDATE " + DrugEntry.TABLE_NAME + " SET " + DrugEntry.COLUMN_CHANGE_SEQ
+                + " = (SELECT " + DrugMigrations.COLUMN_LAST_CHANGE_SEQ + " FROM "
+                + DrugMigrations.REORDER_STATE_TABLE_NAME + ")");
+    }
+
+    /**
+     * Look at the drugs changed since the last run, in one transaction. A drug at or below its
+     * threshold that isn't on order yet is put on the purchase order, and a drug back above it
+     * stops being on order. The purchase order, if any, is written to the given directory before
+     * the transaction commits.
+     *
+     * @param now current time, in milliseconds since the epoch
+     */
+    static Run run(SQLiteDatabase database, File outbox, long now) throws IOException {
+        database.beginTransaction();
+        try {
+            long lastChangeSeq;
+            long processedThrough;
+            long orderNumber;
+            Cursor state = database.rawQuery(SQL_READ_STATE, null);
+            try {
+                state.moveToFirst();
+                lastChangeSeq = state.getLong(0);
+                processedThrough = state.getLong(1);
+                orderNumber = state.getLong(2);
+            } finally {
+                state.close();
+            }
+            if (lastChangeSeq <= processedThrough) {
+                database.setTransactionSuccessful();
+                return new Run(0, null, 0);
+            }
+
+            ArrayList<Line> lines = new ArrayList<>();
+            int changed = 0;
+            SQLiteStatement setOnOrder = database.compileStatement(SQL_SET_ON_ORDER);
+            Cursor cursor = database.rawQuery("SELECT " + DrugEntry._ID + ", "
+                    + DrugEntry.COLUMN_DRUG_NAME + ", " + DrugEntry.COLUMN_DRUG_QUANTITY + ", "
+                    + DrugEntry.COLUMN_REORDER_THRESHOLD + ", " + DrugEntry.COLUMN_REORDER_QUANTITY + ", "
+                    + DrugEntry.COLUMN_ON_ORDER + ", " + DrugEntry.COLUMN_DRUG_PRICE
+                    + " FROM " + DrugEntry.TABLE_NAME + " WHERE " + DrugEntry.COLUMN_CHANGE_SEQ + " > ?"
+                    + " ORDER BY " + DrugEntry.COLUMN_CHANGE_SEQ,
+                    new String[] { String.valueOf(processedThrough) });
+            try {
+                while (cursor.moveToNext()) {
+                    long id = cursor.getLong(0);
+                    int quantity = cursor.getInt(2);
+                    int reorderQuantity = cursor.getInt(4);
+                    boolean low = reorderQuantity > 0 && quantity <= cursor.getInt(3);
+                    boolean onOrder = cursor.getInt(5) > 0;
+                    if (low == onOrder) {
+                        continue;
+                    }
+
+                    if (low) {
+                        lines.add(new Line(id, cursor.getString(1), reorderQuantity, cursor.getLong(6)));
+                    }
+                    setOnOrder.bindLong(1, low ? reorderQuantity : 0);
+                    setOnOrder.bindLong(2, id);
+                    setOnOrder.executeUpdateDelete();
+                    changed++;
+                }
+            } finally {
+                cursor.close();
+                setOnOrder.close();
+            }
+
+            File orderFile = null;
+            if (!lines.isEmpty()) {
+                orderFile = new File(outbox, String.format(Locale.US, ORDER_FILE_FORMAT, orderNumber));
+                writeOrder(orderFile, orderNumber, now, lines);
+                orderNumber++;
+            }
+
+            // Setting the units on order doesn't change the sequence numbers, so the drugs read
+            // are all at or below the last number read before them
+            database.execSQL("UPDATE " + DrugMigrations.REORDER_STATE_TABLE_NAME + " SET "
+                    + DrugMigrations.COLUMN_PROCESSED_THROUGH + " = ?, "
+                    + DrugMigrations.COLUMN_NEXT_ORDER + " = ?",
+                    new Object[] { lastChangeSeq, orderNumber });
+            database.setTransactionSuccessful();
+            return new Run(lines.size(), orderFile, changed);
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Write a purchase order to a temporary file, then rename it, so the outbox never holds a
+     * partial order.
+     */
+    private static void writeOrder(File file, long orderNumber, long now, ArrayList<Line> lines)
+            throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream output = new FileOutputStream(temp);
+        boolean written = false;
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(output, UTF_8));
+            writer.write("{\"order\":" + orderNumber + ",\"created_at\":" + now + ",\"lines\":[");
+            for (int i = 0; i < lines.size(); i++) {
+                Line line = lines.get(i);
+                writer.write(i == 0 ? "\n{\"drug_id\":" : ",\n{\"drug_id\":");
+                writer.write(String.valueOf(line.drugId));
+                writer.write(",\"name\":");
+                DrugExporter.writeJsonString(writer, line.name);
+                writer.write(",\"quantity\":" + line.quantity + ",\"price\":" + line.price + "}");
+            }
+            writer.write("]}\n");
+            writer.flush();
+            output.getFD().sync();
+            written = true;
+        } finally {
+            output.close();
+            if (!written) {
+                temp.delete();
+            }
+        }
+
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Failed to move purchase order to " + file);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pharmacyinventory.data.DrugContract.DailySalesEntry;
+import com.example.android.pharmacyinventory.data.DrugContract.DrugEntry;
+import com.example.android.pharmacyinventory.data.DrugContract.SaleEntry;
+
+/**
+ * Records sales in the append-only {@link SaleEntry#TABLE_NAME} ledger, and compacts it.
+ *
+ * A sale takes the units out of the drug's quantity, which stays exact at all times, appends one
+ * row to the ledger and updates the drug's {@link SalesVelocity}, all in one write of the drug's
+ * row. The triggers on that row also write the single-row statistics, reorder and sync state
+ * tables, so every sale, of any drug, contends on those rows too, and sales are only as concurrent
+ * as the database's single writer allows. The ledger doesn't change that. It keeps the history of
+ * every sale, and leaves the drug's sales total alone. {@link #compact} later folds the new rows
+ * into the totals in one pass, and rolls the rows older than {@link SaleEntry#RETENTION_DAYS} up
+ * into {@link DailySalesEntry#TABLE_NAME}. Until then, readers add the unfolded rows to the stored
+ * totals with {@link #SQL_CURRENT_SOLD} and {@link #SQL_UNFOLDED_TOTAL}.
+ */
+final class SalesLedger {
+
+    /** Milliseconds in a day */
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /**
+     * Takes units of one drug out of stock, if it has enough of them, and replaces its sales
+     * velocities in the same write. Bind order: units, short average, long average, time of the
+     * averages, drug ID, units.
+     */
+    private static final String SQL_TAKE_STOCK = "UPDATE " + DrugEntry.TABLE_NAME
+            + " SET " + DrugEntry.COLUMN_DRUG_QUANTITY + " = " + DrugEntry.COLUMN_DRUG_QUANTITY + " - ?, "
+            + DrugEntry.COLUMN_VELOCITY_SHORT + " = ?, " + DrugEntry.COLUMN_VELOCITY_LONG + " = ?, "
+            + DrugEntry.COLUMN_VELOCITY_UPDATED_AT + " = ?"
+            + " WHERE " + DrugEntry._ID + " = ? AND " + DrugEntry.COLUMN_DRUG_QUANTITY + " >= ?";
+
+    /**
+     * Appends a sale to the ledger, at the drug's current price. Bind order: units, time, drug ID.
+     */
+    private static final String SQL_RECORD_SALE = "INSERT INTO " + SaleEntry.TABLE_NAME + " ("
+            + SaleEntry.COLUMN_DRUG_ID + ", " + SaleEntry.COLUMN_QUANTITY + ", "
+            + SaleEntry.COLUMN_PRICE + ", " + SaleEntry.COLUMN_SOLD_AT + ") SELECT "
+            + DrugEntry._ID + ", ?, " + DrugEntry.COLUMN_DRUG_PRICE + ", ? FROM "
+            + DrugEntry.TABLE_NAME + " WHERE " + DrugEntry._ID + " = ?";
+
+    /** Sales recorded after the last compaction, which aren't in the totals yet */
+    private static final String SQL_UNFOLDED = " FROM " + SaleEntry.TABLE_NAME + " WHERE "
+            + SaleEntry._ID + " > (SELECT " + DrugMigrations.COLUMN_FOLDED_THROUGH + " FROM "
+            + DrugMigrations.LEDGER_STATE_TABLE_NAME + ")";
+
+    /**
+     * Expression of the sales total of the drug of the current row of {@link DrugEntry#TABLE_NAME},
+     * as {@link #compact} would leave it: the stored total plus the sales not folded into it yet.
+     * Those are read by ID range from the watermark, so only the last few minutes of the ledger are
+     * scanned.
+     */
+    static final String SQL_CURRENT_SOLD = "(SELECT CASE WHEN COUNT(*) = 0 THEN "
+            + DrugEntry.TABLE_NAME + "." + DrugEntry.COLUMN_DRUG_SOLD + " ELSE IFNULL("
+            + DrugEntry.TABLE_NAME + "." + DrugEntry.COLUMN_DRUG_SOLD + ", 0) + SUM("
+            + SaleEntry.COLUMN_QUANTITY + ") END" + SQL_UNFOLDED + " AND "
+            + SaleEntry.COLUMN_DRUG_ID + " = " + DrugEntry.TABLE_NAME + "." + DrugEntry._ID + ")";
+
+    /**
+     * Expression of the units sold that aren't folded into the drugs' totals yet, leaving out the
+     * sales of deleted drugs like {@link #compact} does.
+     */
+    static final String SQL_UNFOLDED_TOTAL = "(SELECT IFNULL(SUM(" + SaleEntry.COLUMN_QUANTITY
+            + "), 0)" + SQL_UNFOLDED + " AND " + SaleEntry.COLUMN_DRUG_ID + " IN (SELECT "
+            + DrugEntry._ID + " FROM " + DrugEntry.TABLE_NAME + "))";
+
+    /** Returns the ID of the last sale folded into the totals */
+    private static final String SQL_FOLDED_THROUGH = "SELECT "
+            + DrugMigrations.COLUMN_FOLDED_THROUGH + " FROM " + DrugMigrations.LEDGER_STATE_TABLE_NAME;
+
+    /** Adds sales to the total of one drug. Bind order: units, drug ID. */
+    private static final String SQL_ADD_SALES = "UPDATE " + DrugEntry.TABLE_NAME
+            + " SET " + DrugEntry.COLUMN_DRUG_SOLD + " = IFNULL(" + DrugEntry.COLUMN_DRUG_SOLD + ", 0) + ?"
+            + " WHERE " + DrugEntry._ID + " = ?";
+
+    /**
+     * Adds the folded sales made before a time to the daily totals, merging them with the totals
+     * already there for the same drug and day. Bind order: last folded ID, time.
+     */
+    private static final String SQL_ROLL_UP = "INSERT OR REPLACE INTO " + DailySalesEntry.TABLE_NAME
+            + " (" + DailySalesEntry._ID + ", " + DailySalesEntry.COLUMN_DRUG_ID + ", "
+            + DailySalesEntry.COLUMN_DAY + ", " + DailySalesEntry.COLUMN_QUANTITY + ", "
+            + DailySalesEntry.COLUMN_REVENUE + ")"
+            + " SELECT d." + DailySalesEntry._ID + ", s.drug_id, s.day,"
+            + " s.units + IFNULL(d." + DailySalesEntry.COLUMN_QUANTITY + ", 0),"
+            + " s.revenue + IFNULL(d." + DailySalesEntry.COLUMN_REVENUE + ", 0)"
+            + " FROM (SELECT " + SaleEntry.COLUMN_DRUG_ID + " AS drug_id, "
+            + SaleEntry.COLUMN_SOLD_AT + " / " + DAY_MILLIS + " AS day, "
+            + "SUM(" + SaleEntry.COLUMN_QUANTITY + ") AS units, "
+            + "SUM(" + SaleEntry.COLUMN_QUANTITY + " * " + SaleEntry.COLUMN_PRICE + ") AS revenue"
+            + " FROM " + SaleEntry.TABLE_NAME
+            + " WHERE " + SaleEntry._ID + " <= ? AND " + SaleEntry.COLUMN_SOLD_AT + " < ?"
+            + " GROUP BY drug_id, day) s"
+            + " LEFT JOIN " + DailySalesEntry.TABLE_NAME + " d ON d." + DailySalesEntry.COLUMN_DRUG_ID
+            + " = s.drug_id AND d." + DailySalesEntry.COLUMN_DAY + " = s.day";
+
+    /**
+     * Sells units of drugs, with the statements compiled once for a whole basket. Not thread-safe,
+     * and must be closed.
+     */
+    static final class Seller {
+
+        private final SQLiteDatabase mDatabase;
+        private final SQLiteStatement mTakeStock;
+        private final SQLiteStatement mRecordSale;
+
+        Seller(SQLiteDatabase database) {
+            mDatabase = database;
+            mTakeStock = database.compileStatement(SQL_TAKE_STOCK);
+            try {
+                mRecordSale = database.compileStatement(SQL_RECORD_SALE);
+            } catch (RuntimeException e) {
+                mTakeStock.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Sell units of a drug, which must be called inside a transaction so the stock and the
+         * ledger change together. The drug's averages are read first, so its row is written
+         * once, stock and velocities together.
+         *
+         * @return 1 if the drug was sold, or 0 if it doesn't exist or doesn't have enough stock
+         */
+        int sell(long id, int units, long soldAt) {
+            mTakeStock.clearBindings();
+            Cursor cursor = mDatabase.rawQuery(SalesVelocity.SQL_READ,
+                    new String[] { String.valueOf(id) });
+            try {
+                if (!cursor.moveToFirst()) {
+                    return 0;
+                }
+                SalesVelocity.bind(mTakeStock, 2, cursor.getDouble(0), cursor.getDouble(1),
+                        cursor.getLong(2), soldAt, units);
+            } finally {
+                cursor.close();
+            }
+            mTakeStock.bindLong(1, units);
+            mTakeStock.bindLong(5, id);
+            mTakeStock.bindLong(6, units);
+            if (mTakeStock.executeUpdateDelete() == 0) {
+                return 0;
+            }
+
+            mRecordSale.clearBindings();
+            mRecordSale.bindLong(1, units);
+            mRecordSale.bindLong(2, soldAt);
+            mRecordSale.bindLong(3, id);
+            mRecordSale.executeInsert();
+            return 1;
+        }
+
+        void close() {
+            mTakeStock.close();
+            mRecordSale.close();
+        }
+    }
+
+    /**
+     * Counts of one compaction.
+     */
+    static final class Compaction {
+
+        /** Sales folded into the drugs' totals */
+        final int folded;
+
+        /** Sales rolled up into the daily totals and removed from the ledger */
+        final int rolledUp;
+
+        Compaction(int folded, int rolledUp) {
+            this.folded = folded;
+            this.rolledUp = rolledUp;
+        }
+    }
+
+    // This class only holds static helpers, so it should never be instantiated.
+    private SalesLedger() {}
+
+    /**
+     * Returns the given projection of {@link DrugEntry#TABLE_NAME} with the sales total read
+     * through {@link #SQL_CURRENT_SOLD}, so it counts the sales made since the last compaction.
+     * A null projection, which reads every column as stored, is returned as it is.
+     */
+    static String[] withCurrentSold(String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        String[] columns = projection.clone();
+        for (int i = 0; i < columns.length; i++) {
+            if (DrugEntry.COLUMN_DRUG_SOLD.equals(columns[i])) {
+                columns[i] = SQL_CURRENT_SOLD + " AS " + DrugEntry.COLUMN_DRUG_SOLD;
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Fold the sales recorded since the last compaction into the drugs' totals, then roll the
+     * folded sales older than {@link SaleEntry#RETENTION_DAYS} up into the daily totals, all in
+     * one transaction. Sales of deleted drugs are only kept in the history.
+     *
+     * @param now current time, in milliseconds since the epoch
+     */
+    static Compaction compact(SQLiteDatabase database, long now) {
+        database.beginTransaction();
+        try {
+            int folded = fold(database, foldedThrough(database));
+
+            // Only whole days are rolled up, so a day's total is never split between two rows
+            long cutoff = (now / DAY_MILLIS - SaleEntry.RETENTION_DAYS) * DAY_MILLIS;
+            String[] args = { String.valueOf(foldedThrough(database)), String.valueOf(cutoff) };
+            database.execSQL(SQL_ROLL_UP, args);
+            int rolledUp = database.delete(SaleEntry.TABLE_NAME,
+                    SaleEntry._ID + " <= ? AND " + SaleEntry.COLUMN_SOLD_AT + " < ?", args);
+
+            database.setTransactionSuccessful();
+            return new Compaction(folded, rolledUp);
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Fold every sale after the given ID into the drugs' totals, and move the watermark past them.
+     *
+     * @return the number of sales folded
+     */
+    private static int fold(SQLiteDatabase database, long from) {
+        long to = DatabaseUtils.longForQuery(database, "SELECT IFNULL(MAX(" + SaleEntry._ID
+                + "), 0) FROM " + SaleEntry.TABLE_NAME, null);
+        if (to <= from) {
+            return 0;
+        }
+
+        int folded = 0;
+        SQLiteStatement addSales = database.compileStatement(SQL_ADD_SALES);
+        Cursor cursor = database.rawQuery("SELECT " + SaleEntry.COLUMN_DRUG_ID + ", SUM("
+                + SaleEntry.COLUMN_QUANTITY + "), COUNT(*) FROM " + SaleEntry.TABLE_NAME
+                + " WHERE " + SaleEntry._ID + " > ? AND " + SaleEntry._ID + " <= ?"
+                + " GROUP BY " + SaleEntry.COLUMN_DRUG_ID,
+                new String[] { String.valueOf(from), String.valueOf(to) });
+        try {
+            while (cursor.moveToNext()) {
+                addSales.bindLong(1, cursor.getLong(1));
+                addSales.bindLong(2, cursor.getLong(0));
+                addSales.executeUpdateDelete();
+                folded += cursor.getInt(2);
+            }
+        } finally {
+            cursor.close();
+            addSales.close();
+        }
+
+        setFoldedThrough(database, to);
+        return folded;
+    }
+
+    /**
+     * Mark every sale in the ledger as folded without adding it to any total, for when the drugs'
+     * totals were replaced, such as by restoring a {@link DrugSnapshot}.
+     */
+    static void skipUnfolded(SQLiteDatabase database) {
+        long to = DatabaseUtils.longForQuery(database, "SELECT IFNULL(MAX(" + SaleEntry._ID
+                + "), 0) FROM " + SaleEntry.TABLE_NAME, null);
+        setFoldedThrough(database, Math.max(to, foldedThrough(database)));
+    }
+
+    private static long foldedThrough(SQLiteDatabase database) {
+        return DatabaseUtils.longForQuery(database, SQL_FOLDED_THROUGH, null);
+    }
+
+    private static void setFoldedThrough(SQLiteDatabase database, long id) {
+        database.execSQL("UPDATE " + DrugMigrations.LEDGER_STATE_TABLE_NAME + " SET "
+                + DrugMigrations.COLUMN_FOLDED_THROUGH + " = ?", new Object[] { id });
+    }
+}
@@ -0,0 +1,170 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.pharmacyinventory.data.DrugContract.DrugEntry;
+
+/**
+ * Per-drug sales velocities, kept as exponentially weighted moving averages of the units sold
+ * per day. A sale only needs the drug's current averages and the time they were computed, so
+ * updating them is O(1) however long the sales history is:
+ * <pre>
+ *   rate = rate * exp(-days since the last update / window) + units / window
+ * </pre>
+ * Without sales, the average decays towards 0 with the given window as its time constant.
+ *
+ * The database turns the short window average into {@link DrugEntry#COLUMN_STOCKOUT_AT}
+ * whenever the quantity or the average changes. That projection assumes the average as of its
+ * last update, so {@link #refreshStale} decays the averages of the drugs that are projected to
+ * run out soon but haven't sold in a while.
+ */
+final class SalesVelocity {
+
+    /** Time constant of the short window average, in days */
+    static final double SHORT_WINDOW_DAYS = 7;
+
+    /** Time constant of the long window average, in days */
+    static final double LONG_WINDOW_DAYS = 28;
+
+    /** Milliseconds in a day */
+    private static final double DAY_MILLIS = 24.0 * 60 * 60 * 1000;
+
+    /** Drugs projected to run out within this many days are kept accurate by the refresh */
+    private static final long REFRESH_HORIZON_DAYS = 30;
+
+    /** Averages older than this are decayed by the refresh, in milliseconds */
+    private static final long REFRESH_AGE_MILLIS = 24L * 60 * 60 * 1000;
+
+    /** Projections further than this many days away count as never running out */
+    private static final long MAX_PROJECTION_DAYS = 100000;
+
+    /**
+     * Keeps {@link DrugEntry#COLUMN_STOCKOUT_AT} up to date on every write that changes the
+     * quantity or the short window average, whichever code path makes it.
+     */
+    static final String SQL_CREATE_STOCKOUT_TRIGGER = "CREATE TRIGGER IF NOT EXISTS drugs_stockout_update"
+            + " AFTER UPDATE OF " + DrugEntry.COLUMN_DRUG_QUANTITY + ", " + DrugEntry.COLUMN_VELOCITY_SHORT
+            + " ON " + DrugEntry.TABLE_NAME + " BEGIN UPDATE " + DrugEntry.TABLE_NAME
+            + " SET " + DrugEntry.COLUMN_STOCKOUT_AT + " = " + stockoutAt("NEW")
+            + " WHERE " + DrugEntry._ID + " = NEW." + DrugEntry._ID + "; END";
+
+    /**
+     * Recomputes {@link DrugEntry#COLUMN_STOCKOUT_AT} of every drug, as the trigger would have,
+     * after rows were loaded without it.
+     */
+    static final String SQL_RECOMPUTE_STOCKOUT = "UPDATE " + DrugEntry.TABLE_NAME
+            + " SET " + DrugEntry.COLUMN_STOCKOUT_AT + " = " + stockoutAt(DrugEntry.TABLE_NAME);
+
+    /** Index used to list the drugs in {@link DrugEntry#STOCKOUT_SORT_ORDER} */
+    static final String SQL_CREATE_STOCKOUT_INDEX = "CREATE INDEX IF NOT EXISTS drugs_stockout_index ON "
+            + DrugEntry.TABLE_NAME + " (" + DrugEntry.COLUMN_STOCKOUT_AT + ")";
+
+    /** Reads the averages of one drug. Bind order: drug ID. */
+    static final String SQL_READ = "SELECT " + DrugEntry.COLUMN_VELOCITY_SHORT + ", "
+            + DrugEntry.COLUMN_VELOCITY_LONG + ", " + DrugEntry.COLUMN_VELOCITY_UPDATED_AT
+            + " FROM " + DrugEntry.TABLE_NAME + " WHERE " + DrugEntry._ID + " = ?";
+
+    /** Replaces the averages of one drug. Bind order: short, long, time, drug ID. */
+    private static final String SQL_WRITE = "UPDATE " + DrugEntry.TABLE_NAME + " SET "
+            + DrugEntry.COLUMN_VELOCITY_SHORT + " = ?, " + DrugEntry.COLUMN_VELOCITY_LONG + " = ?, "
+            + DrugEntry.COLUMN_VELOCITY_UPDATED_AT + " = ? WHERE " + DrugEntry._ID + " = ?";
+
+    // This class only holds static helpers, so it should never be instantiated.
+    private SalesVelocity() {}
+
+    /**
+     * Returns the SQL expression of the stock-out time of the given row ("NEW" or "OLD" in a
+     * trigger, the table name in a plain UPDATE): the time of its averages plus the days its
+     * quantity lasts at the short window average.
+     */
+    private static String stockoutAt(String row) {
+        String quantity = "MAX(IFNULL(" + row + "." + DrugEntry.COLUMN_DRUG_QUANTITY + ", 0), 0)";
+        String velocity = row + "." + DrugEntry.COLUMN_VELOCITY_SHORT;
+        return "CASE WHEN " + velocity + " > 0 AND " + quantity + " < " + velocity + " * "
+                + MAX_PROJECTION_DAYS + " THEN " + row + "." + DrugEntry.COLUMN_VELOCITY_UPDATED_AT
+                + " + CAST(" + quantity + " * " + (long) DAY_MILLIS + ".0 / " + velocity
+                + " AS INTEGER) ELSE " + DrugEntry.NEVER_STOCKOUT + " END";
+    }
+
+    /**
+     * Returns an average as of now, after adding the given units sold now.
+     *
+     * @param rate       average as of updatedAt, in units per day
+     * @param updatedAt  time of the average, or 0 if there is none yet
+     * @param now        current time
+     * @param units      units sold now, or 0 to only decay the average
+     * @param windowDays time constant of the average
+     */
+    static double update(double rate, long updatedAt, long now, int units, double windowDays) {
+        double decayed = rate;
+        if (updatedAt > 0 && now > updatedAt) {
+            decayed = rate * Math.exp(-(now - updatedAt) / DAY_MILLIS / windowDays);
+        }
+        return decayed + units / windowDays;
+    }
+
+    /**
+     * Decay the averages of the drugs in stock projected to run out within
+     * {@link #REFRESH_HORIZON_DAYS} that haven't sold for a day, so a drug that stopped selling
+     * doesn't stay at the top of the stock-out list. A drug without stock is left alone: its
+     * projection is the time of its last sale whatever the average, and decaying it would rewrite
+     * it every day for nothing. The drugs projected within the horizon are read through the
+     * stock-out index, so the cost grows with how many of them there are, not with the catalog.
+     * A drug the refresh decayed projects further away each day, until it leaves the horizon.
+     *
+     * @return the number of drugs refreshed
+     */
+    static int refreshStale(SQLiteDatabase database, long now) {
+        int refreshed = 0;
+        database.beginTransaction();
+        SQLiteStatement write = database.compileStatement(SQL_WRITE);
+        Cursor cursor = database.rawQuery("SELECT " + DrugEntry._ID + ", "
+                + DrugEntry.COLUMN_VELOCITY_SHORT + ", " + DrugEntry.COLUMN_VELOCITY_LONG + ", "
+                + DrugEntry.COLUMN_VELOCITY_UPDATED_AT + " FROM " + DrugEntry.TABLE_NAME
+                + " WHERE " + DrugEntry.COLUMN_STOCKOUT_AT + " < ? AND "
+                + DrugEntry.COLUMN_VELOCITY_UPDATED_AT + " < ? AND "
+                + DrugEntry.COLUMN_DRUG_QUANTITY + " > 0",
+                new String[] {
+                        String.valueOf(now + REFRESH_HORIZON_DAYS * (long) DAY_MILLIS),
+                        String.valueOf(now - REFRESH_AGE_MILLIS) });
+        try {
+            while (cursor.moveToNext()) {
+                write(write, cursor.getLong(0), cursor.getDouble(1), cursor.getDouble(2),
+                        cursor.getLong(3), now, 0);
+                refreshed++;
+            }
+            database.setTransactionSuccessful();
+        } finally {
+            cursor.close();
+            write.close();
+            database.endTransaction();
+        }
+        return refreshed;
+    }
+
+    private static void write(SQLiteStatement write, long id, double shortRate, double longRate,
+                              long updatedAt, long now, int units) {
+        write.clearBindings();
+        bind(write, 1, shortRate, longRate, updatedAt, now, units);
+        write.bindLong(4, id);
+        write.executeUpdateDelete();
+    }
+
+    /**
+     * Bind the short average, the long average and their time as of now, after adding the given
+     * units sold now, to three parameters of a statement in that order.
+     *
+     * @param index     index of the first of the three parameters
+     * @param shortRate short window average as of updatedAt, read with {@link #SQL_READ}
+     * @param longRate  long window average as of updatedAt
+     * @param updatedAt time of the averages, or 0 if there are none yet
+     */
+    static void bind(SQLiteStatement statement, int index, double shortRate, double longRate,
+                     long updatedAt, long now, int units) {
+        statement.bindDouble(index, update(shortRate, updatedAt, now, units, SHORT_WINDOW_DAYS));
+        statement.bindDouble(index + 1, update(longRate, updatedAt, now, units, LONG_WINDOW_DAYS));
+        statement.bindLong(index + 2, Math.max(now, updatedAt));
+    }
+}
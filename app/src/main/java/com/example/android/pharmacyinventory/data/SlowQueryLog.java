@@ -0,0 +1,156 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * Opt-in log of the statements {@link DrugProvider} ran that took longer than a threshold. Each
+ * entry holds the SQL, the shape of its arguments (not their values), how long it took and the
+ * query plan SQLite chose, and is flagged when the plan scans the whole drugs table. The entries
+ * are kept in a ring buffer, so the log never grows past its capacity however long it's on.
+ *
+ * The log is off until a threshold is set. While it's off, checking a statement costs one
+ * volatile read.
+ */
+final class SlowQueryLog {
+
+    /** Tag for the log messages */
+    private static final String LOG_TAG = SlowQueryLog.class.getSimpleName();
+
+    /** Threshold value that turns the log off */
+    private static final long OFF = -1;
+
+    /**
+     * Plan step of a full scan of the drugs table, with or without an index giving the order.
+     * Older SQLite versions write "SCAN TABLE drugs", newer ones "SCAN drugs".
+     */
+    private static final Pattern FULL_SCAN = Pattern.compile(
+            "^SCAN (TABLE )?" + DrugContract.DrugEntry.TABLE_NAME + "\\b.*");
+
+    /** Statements slower than this are logged, or OFF */
+    private volatile long mThresholdNanos = OFF;
+
+    /** The entries, oldest first starting at mNext once the buffer is full. Guarded by this. */
+    private final String[] mEntries;
+
+    /** Position of the next entry to write. Guarded by this. */
+    private int mNext;
+
+    /** Number of entries written so far, including the overwritten ones. Guarded by this. */
+    private long mWritten;
+
+    /**
+     * @param capacity most entries kept, the oldest are overwritten first
+     */
+    SlowQueryLog(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Slow query log requires a positive capacity");
+        }
+        mEntries = new String[capacity];
+    }
+
+    /**
+     * Log the statements slower than the given number of milliseconds, or turn the log off if
+     * it's negative.
+     */
+    void setThresholdMillis(long millis) {
+        mThresholdNanos = millis < 0 ? OFF : millis * 1000000;
+    }
+
+    /**
+     * Returns whether statements are being timed.
+     */
+    boolean isEnabled() {
+        return mThresholdNanos != OFF;
+    }
+
+    /**
+     * Returns whether a statement that took the given time must be recorded.
+     */
+    boolean isSlow(long nanos) {
+        long threshold = mThresholdNanos;
+        return threshold != OFF && nanos >= threshold;
+    }
+
+    /**
+     * Record a slow statement along with its query plan, which is read from the given database.
+     */
+    void record(SQLiteDatabase database, String sql, String[] args, long nanos) {
+        StringBuilder plan = new StringBuilder();
+        boolean fullScan = false;
+        try {
+            Cursor cursor = database.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+            try {
+                int detail = cursor.getColumnIndexOrThrow("detail");
+                while (cursor.moveToNext()) {
+                    String step = cursor.getString(detail);
+                    fullScan |= FULL_SCAN.matcher(step).matches();
+                    plan.append("\n  ").append(step);
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (SQLiteException | IllegalArgumentException e) {
+            plan.append("\n  (no plan: ").append(e.getMessage()).append(')');
+        }
+
+        String entry = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS", Locale.US).format(new Date())
+                + String.format(Locale.US, " %.1f ms", nanos / 1e6)
+                + (fullScan ? " FULL SCAN" : "")
+                + "\nSQL: " + sql
+                + "\nargs: " + shape(args)
+                + "\nplan:" + plan;
+        Log.w(LOG_TAG, entry);
+
+        synchronized (this) {
+            mEntries[mNext] = entry;
+            mNext = (mNext + 1) % mEntries.length;
+            mWritten++;
+        }
+    }
+
+    /**
+     * Returns the entries in the buffer, oldest first.
+     */
+    synchronized String[] dump() {
+        int count = (int) Math.min(mWritten, mEntries.length);
+        String[] entries = new String[count];
+        int first = mWritten > mEntries.length ? mNext : 0;
+        for (int i = 0; i < count; i++) {
+            entries[i] = mEntries[(first + i) % mEntries.length];
+        }
+        return entries;
+    }
+
+    /**
+     * Returns the shape of the arguments: whether each one is a number, text (and how long) or
+     * null. The values themselves stay out of the log.
+     */
+    private static String shape(String[] args) {
+        if (args == null) {
+            return "[]";
+        }
+        StringBuilder shape = new StringBuilder("[");
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) {
+                shape.append(", ");
+            }
+            String arg = args[i];
+            if (arg == null) {
+                shape.append("null");
+            } else if (arg.matches("-?\\d+(\\.\\d+)?")) {
+                shape.append("number");
+            } else {
+                shape.append("text(").append(arg.length()).append(')');
+            }
+        }
+        return shape.append(']').toString();
+    }
+}
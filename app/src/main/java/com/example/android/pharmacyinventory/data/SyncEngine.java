@@ -0,0 +1,784 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.example.android.pharmacyinventory.data.DrugContract.DrugEntry;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Synchronizes the drugs of one database with a sync server, sending and receiving only what
+ * changed since the last sync.
+ *
+ * Every change made on this device to a drug's name, quantity, price, image or reorder settings
+ * gives it the next number of a counter kept in {@link DrugMigrations#SYNC_STATE_TABLE_NAME}, in
+ * {@link DrugEntry#COLUMN_SYNC_SEQ}, and deleting a drug leaves a tombstone with the next number.
+ * A change to anything but the quantity also sets {@link DrugEntry#COLUMN_SYNC_FIELDS_SEQ}.
+ * A push sends the drugs and tombstones numbered after the last number the server acknowledged,
+ * oldest first, a batch at a time, and moves that watermark after every batch, so an interrupted
+ * push resumes with the batch that didn't go through. A drug changed many times is sent once, so
+ * a day of sales sends one line per drug sold rather than the whole table.
+ *
+ * A batch is saved before it's sent, together with its ID, the last sequence number in it. Until
+ * the server acknowledges it, every push sends that same batch again, and the server ignores a
+ * batch ID it already applied for the device. So a batch whose reply was lost isn't counted twice,
+ * and it's resent as it was rather than rebuilt with the sales made since.
+ *
+ * The quantity is sent as the units it gained or lost since the server was last told about it,
+ * {@link DrugEntry#COLUMN_SYNCED_QUANTITY}, and the other columns only if they changed. Tills
+ * selling the same drug between two syncs each push their own sales, and every device adds up
+ * the changes it pulls, so no sale is lost whatever order the devices sync in.
+ *
+ * A pull asks for the changes other devices pushed after the server's sequence number the last
+ * pull went up to, a page at a time. Every page is applied in one transaction together with the
+ * new watermark, so an interrupted pull resumes with the page that didn't go through. A pulled
+ * quantity change is always added. For the other columns, a drug with a local change to them that
+ * isn't pushed yet keeps it, and the next push makes it the server's latest. Otherwise the change
+ * the server received last wins. A drug deleted elsewhere while it changed here is kept, and
+ * pushed again whole, so the other devices get it back.
+ *
+ * The protocol, with every body gzip compressed JSON:
+ * <pre>
+ *   POST {server}/push
+ *   {"device":"9f1c...","batch":1250,"changes":[
+ *   {"id":"4b0e...","quantity_delta":-4,"name":"Ibuprofen","price":499,"image":null,
+ *   "reorder_threshold":10,"reorder_quantity":100},
+ *   {"id":"5c3d...","quantity_delta":-2},
+ *   {"id":"77a2...","deleted":true}]}
+ *
+ *   GET {server}/pull?device=9f1c...&since=1200&limit=500
+ *   {"through":1250,"more":false,"changes":[...as pushed...]}
+ * </pre>
+ * The server ignores a batch whose ID isn't above the last one it applied for the device, but still
+ * acknowledges it. It leaves out of a pull the changes the asking device pushed, and "through" is
+ * the sequence number to pull from next time.
+ */
+final class SyncEngine {
+
+    /** SQL expression of a new random sync ID */
+    static final String SQL_NEW_SYNC_ID = "lower(hex(randomblob(16)))";
+
+    /** Changes sent per push request */
+    private static final int PUSH_BATCH_SIZE = 500;
+
+    /** Changes asked for per pull request */
+    private static final int PULL_PAGE_SIZE = 500;
+
+    /** Timeouts of the requests to the server, in milliseconds */
+    private static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    private static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    /** Condition that is true unless pulled changes are being applied */
+    private static final String NOT_APPLYING = "(SELECT " + DrugMigrations.COLUMN_APPLYING + " FROM "
+            + DrugMigrations.SYNC_STATE_TABLE_NAME + ") = 0";
+
+    /** Indexes used to look drugs up by sync ID and to find the changes to push */
+    static final String[] SQL_CREATE_SYNC_INDEXES = {
+            "CREATE UNIQUE INDEX IF NOT EXISTS drugs_sync_id_index ON " + DrugEntry.TABLE_NAME
+                    + " (" + DrugEntry.COLUMN_SYNC_ID + ")",
+            "CREATE INDEX IF NOT EXISTS drugs_sync_seq_index ON " + DrugEntry.TABLE_NAME
+                    + " (" + DrugEntry.COLUMN_SYNC_SEQ + ")",
+            "CREATE INDEX IF NOT EXISTS drug_tombstones_sync_seq_index ON "
+                    + DrugMigrations.TOMBSTONE_TABLE_NAME + " (" + DrugEntry.COLUMN_SYNC_SEQ + ")",
+    };
+
+    /**
+     * Triggers that give every new drug a sync ID, and give a drug the next sync sequence number
+     * whenever it's inserted, or a synced column really changes, or leave a tombstone when it's
+     * deleted, whichever code path writes it. Changes pulled from the server are skipped.
+     */
+    static final String[] SQL_CREATE_SYNC_TRIGGERS = {
+            "CREATE TRIGGER IF NOT EXISTS drugs_sync_insert AFTER INSERT ON " + DrugEntry.TABLE_NAME
+                    + " BEGIN UPDATE " + DrugEntry.TABLE_NAME + " SET " + DrugEntry.COLUMN_SYNC_ID
+                    + " = " + SQL_NEW_SYNC_ID + " WHERE " + DrugEntry._ID + " = NEW." + DrugEntry._ID
+                    + " AND NEW." + DrugEntry.COLUMN_SYNC_ID + " IS NULL; " + nextSyncSeq(true)
+                    + "; END",
+            "CREATE TRIGGER IF NOT EXISTS drugs_sync_update AFTER UPDATE OF "
+                    + DrugEntry.COLUMN_DRUG_NAME + ", " + DrugEntry.COLUMN_DRUG_PRICE + ", "
+                    + DrugEntry.COLUMN_DRUG_IMAGE + ", " + DrugEntry.COLUMN_REORDER_THRESHOLD + ", "
+                    + DrugEntry.COLUMN_REORDER_QUANTITY
+                    + " ON " + DrugEntry.TABLE_NAME + " WHEN " + NOT_APPLYING + " AND ("
+                    + changed(DrugEntry.COLUMN_DRUG_NAME) + " OR " + changed(DrugEntry.COLUMN_DRUG_PRICE)
+                    + " OR " + changed(DrugEntry.COLUMN_DRUG_IMAGE)
+                    + " OR " + changed(DrugEntry.COLUMN_REORDER_THRESHOLD)
+                    + " OR " + changed(DrugEntry.COLUMN_REORDER_QUANTITY) + ")"
+                    + " BEGIN " + nextSyncSeq(true) + "; END",
+            "CREATE TRIGGER IF NOT EXISTS drugs_sync_quantity AFTER UPDATE OF "
+                    + DrugEntry.COLUMN_DRUG_QUANTITY + " ON " + DrugEntry.TABLE_NAME
+                    + " WHEN " + NOT_APPLYING + " AND " + changed(DrugEntry.COLUMN_DRUG_QUANTITY)
+                    + " BEGIN " + nextSyncSeq(false) + "; END",
+            "CREATE TRIGGER IF NOT EXISTS drugs_sync_delete AFTER DELETE ON " + DrugEntry.TABLE_NAME
+                    + " WHEN " + NOT_APPLYING + " AND OLD." + DrugEntry.COLUMN_SYNC_ID + " IS NOT NULL"
+                    + " BEGIN UPDATE " + DrugMigrations.SYNC_STATE_TABLE_NAME + " SET "
+                    + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " = " + DrugMigrations.COLUMN_LAST_SYNC_SEQ
+                    + " + 1; INSERT OR REPLACE INTO " + DrugMigrations.TOMBSTONE_TABLE_NAME + " SELECT OLD."
+                    + DrugEntry.COLUMN_SYNC_ID + ", " + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " FROM "
+                    + DrugMigrations.SYNC_STATE_TABLE_NAME + "; END",
+    };
+
+    /** Returns the device ID, last sync sequence number, push and pull watermarks. */
+    private static final String SQL_READ_STATE = "SELECT " + DrugMigrations.COLUMN_DEVICE_ID + ", "
+            + DrugMigrations.COLUMN_LAST_SYNC_SEQ + ", " + DrugMigrations.COLUMN_PUSHED_THROUGH + ", "
+            + DrugMigrations.COLUMN_PULLED_THROUGH + " FROM " + DrugMigrations.SYNC_STATE_TABLE_NAME;
+
+    /**
+     * Returns the changed drugs and the tombstones after a sequence number, oldest first: the
+     * sequence number, sync ID, whether it's a tombstone, the quantity change, the sequence
+     * number of the last change to the other columns, and those columns.
+     * Bind order: sequence number, sequence number, limit.
+     */
+    private static final String SQL_READ_CHANGES = "SELECT " + DrugEntry.COLUMN_SYNC_SEQ + ", "
+            + DrugEntry.COLUMN_SYNC_ID + ", 0, IFNULL(" + DrugEntry.COLUMN_DRUG_QUANTITY + ", 0) - "
+            + DrugEntry.COLUMN_SYNCED_QUANTITY + ", " + DrugEntry.COLUMN_SYNC_FIELDS_SEQ + ", "
+            + DrugEntry.COLUMN_DRUG_NAME + ", " + DrugEntry.COLUMN_DRUG_PRICE + ", "
+            + DrugEntry.COLUMN_DRUG_IMAGE + ", " + DrugEntry.COLUMN_REORDER_THRESHOLD + ", "
+            + DrugEntry.COLUMN_REORDER_QUANTITY + " FROM " + DrugEntry.TABLE_NAME
+            + " WHERE " + DrugEntry.COLUMN_SYNC_SEQ + " > ?"
+            + " UNION ALL SELECT " + DrugEntry.COLUMN_SYNC_SEQ + ", " + DrugEntry.COLUMN_SYNC_ID
+            + ", 1, 0, 0, NULL, NULL, NULL, NULL, NULL FROM " + DrugMigrations.TOMBSTONE_TABLE_NAME
+            + " WHERE " + DrugEntry.COLUMN_SYNC_SEQ + " > ?"
+            + " ORDER BY 1 LIMIT ?";
+
+    /** Returns the batch sent but not acknowledged: its ID, request body and number of changes */
+    private static final String SQL_READ_PENDING = "SELECT " + DrugMigrations.COLUMN_PENDING_THROUGH
+            + ", " + DrugMigrations.COLUMN_PENDING_BODY + ", (SELECT COUNT(*) FROM "
+            + DrugMigrations.OUTBOX_TABLE_NAME + ") FROM " + DrugMigrations.SYNC_STATE_TABLE_NAME;
+
+    /** Saves a quantity change of the batch being sent. Bind order: sync ID, change. */
+    private static final String SQL_SAVE_OUTBOX = "INSERT OR REPLACE INTO "
+            + DrugMigrations.OUTBOX_TABLE_NAME + " (" + DrugEntry.COLUMN_SYNC_ID + ", "
+            + DrugMigrations.COLUMN_QUANTITY_DELTA + ") VALUES (?, ?)";
+
+    /** Adds the quantity changes of the acknowledged batch to what the server was told about */
+    private static final String SQL_MARK_QUANTITY_PUSHED = "UPDATE " + DrugEntry.TABLE_NAME
+            + " SET " + DrugEntry.COLUMN_SYNCED_QUANTITY + " = " + DrugEntry.COLUMN_SYNCED_QUANTITY
+            + " + (SELECT " + DrugMigrations.COLUMN_QUANTITY_DELTA + " FROM "
+            + DrugMigrations.OUTBOX_TABLE_NAME + " WHERE " + DrugMigrations.OUTBOX_TABLE_NAME + "."
+            + DrugEntry.COLUMN_SYNC_ID + " = " + DrugEntry.TABLE_NAME + "." + DrugEntry.COLUMN_SYNC_ID
+            + ") WHERE " + DrugEntry.COLUMN_SYNC_ID + " IN (SELECT " + DrugEntry.COLUMN_SYNC_ID
+            + " FROM " + DrugMigrations.OUTBOX_TABLE_NAME + ")";
+
+    /**
+     * Adds a pulled quantity change to one drug, which the server already knows about.
+     * Bind order: change, change, drug ID.
+     */
+    private static final String SQL_ADD_QUANTITY = "UPDATE " + DrugEntry.TABLE_NAME + " SET "
+            + DrugEntry.COLUMN_DRUG_QUANTITY + " = IFNULL(" + DrugEntry.COLUMN_DRUG_QUANTITY + ", 0) + ?, "
+            + DrugEntry.COLUMN_SYNCED_QUANTITY + " = " + DrugEntry.COLUMN_SYNCED_QUANTITY + " + ?"
+            + " WHERE " + DrugEntry._ID + " = ?";
+
+    /** Replaces the synced columns other than the quantity of one drug. Bind order: the columns, drug ID. */
+    private static final String SQL_UPDATE_FIELDS = "UPDATE " + DrugEntry.TABLE_NAME + " SET "
+            + DrugEntry.COLUMN_DRUG_NAME + " = ?, " + DrugEntry.COLUMN_DRUG_PRICE + " = ?, "
+            + DrugEntry.COLUMN_DRUG_IMAGE + " = ?, " + DrugEntry.COLUMN_REORDER_THRESHOLD + " = ?, "
+            + DrugEntry.COLUMN_REORDER_QUANTITY + " = ? WHERE " + DrugEntry._ID + " = ?";
+
+    /**
+     * Inserts a drug pulled from the server, whose quantity is the change pulled.
+     * Bind order: the columns, quantity, quantity, sync ID.
+     */
+    private static final String SQL_INSERT_DRUG = "INSERT INTO " + DrugEntry.TABLE_NAME + " ("
+            + DrugEntry.COLUMN_DRUG_NAME + ", " + DrugEntry.COLUMN_DRUG_PRICE + ", "
+            + DrugEntry.COLUMN_DRUG_IMAGE + ", " + DrugEntry.COLUMN_REORDER_THRESHOLD + ", "
+            + DrugEntry.COLUMN_REORDER_QUANTITY + ", " + DrugEntry.COLUMN_DRUG_QUANTITY + ", "
+            + DrugEntry.COLUMN_SYNCED_QUANTITY + ", " + DrugEntry.COLUMN_SYNC_ID
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Gives a drug the next sync sequence number for all its columns, and forgets what the server
+     * was told about its quantity, so the next push sends it whole. Run after moving the counter
+     * on. Bind order: drug ID.
+     */
+    private static final String SQL_PUSH_AGAIN_WHOLE = "UPDATE " + DrugEntry.TABLE_NAME + " SET "
+            + DrugEntry.COLUMN_SYNC_SEQ + " = (SELECT " + DrugMigrations.COLUMN_LAST_SYNC_SEQ
+            + " FROM " + DrugMigrations.SYNC_STATE_TABLE_NAME + "), " + DrugEntry.COLUMN_SYNC_FIELDS_SEQ
+            + " = (SELECT " + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " FROM "
+            + DrugMigrations.SYNC_STATE_TABLE_NAME + "), " + DrugEntry.COLUMN_SYNCED_QUANTITY
+            + " = 0 WHERE " + DrugEntry._ID + " = ?";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * One change to a drug, as sent to and received from the server.
+     */
+    static final class Change {
+
+        final String syncId;
+        final boolean deleted;
+
+        /** Units the drug gained or lost */
+        final int quantityDelta;
+
+        /** The other columns, or a null name if they didn't change */
+        final String name;
+        final long price;
+        final String image;
+        final int reorderThreshold;
+        final int reorderQuantity;
+
+        Change(String syncId, boolean deleted, int quantityDelta, String name, long price,
+               String image, int reorderThreshold, int reorderQuantity) {
+            this.syncId = syncId;
+            this.deleted = deleted;
+            this.quantityDelta = quantityDelta;
+            this.name = name;
+            this.price = price;
+            this.image = image;
+            this.reorderThreshold = reorderThreshold;
+            this.reorderQuantity = reorderQuantity;
+        }
+    }
+
+    /**
+     * One page of changes pulled from the server.
+     */
+    static final class Page {
+
+        final ArrayList<Change> changes;
+
+        /** Server sequence number to pull from next time */
+        final long through;
+
+        /** Whether the server has more changes after this page */
+        final boolean more;
+
+        Page(ArrayList<Change> changes, long through, boolean more) {
+            this.changes = changes;
+            this.through = through;
+            this.more = more;
+        }
+    }
+
+    private final SQLiteDatabase mDatabase;
+    private final URL mServer;
+
+    /** Compressed bytes sent and received so far */
+    private long mBytesSent;
+    private long mBytesReceived;
+
+    /**
+     * @param database database of the store to sync
+     * @param server   base URL of the store on the sync server
+     */
+    SyncEngine(SQLiteDatabase database, URL server) {
+        mDatabase = database;
+        mServer = server;
+    }
+
+    long bytesSent() {
+        return mBytesSent;
+    }
+
+    long bytesReceived() {
+        return mBytesReceived;
+    }
+
+    /**
+     * Returns the trigger statements that move the counter on and give its new value to the row,
+     * unless pulled changes are being applied.
+     *
+     * @param fields whether the columns other than the quantity changed too
+     */
+    private static String nextSyncSeq(boolean fields) {
+        String seq = "(SELECT " + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " FROM "
+                + DrugMigrations.SYNC_STATE_TABLE_NAME + ")";
+        return "UPDATE " + DrugMigrations.SYNC_STATE_TABLE_NAME + " SET "
+                + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " = " + DrugMigrations.COLUMN_LAST_SYNC_SEQ
+                + " + 1 WHERE " + DrugMigrations.COLUMN_APPLYING + " = 0; UPDATE " + DrugEntry.TABLE_NAME
+                + " SET " + DrugEntry.COLUMN_SYNC_SEQ + " = " + seq
+                + (fields ? ", " + DrugEntry.COLUMN_SYNC_FIELDS_SEQ + " = " + seq : "")
+                + " WHERE " + DrugEntry._ID + " = NEW." + DrugEntry._ID + " AND " + NOT_APPLYING;
+    }
+
+    /**
+     * Returns the trigger condition that the given column really changed.
+     */
+    private static String changed(String column) {
+        return "OLD." + column + " IS NOT NEW." + column;
+    }
+
+    /**
+     * Push every change made on this device since the last acknowledged one, a batch at a time,
+     * starting with the batch sent last time if it wasn't acknowledged.
+     *
+     * @return the number of changes pushed
+     */
+    int push() throws IOException {
+        int pushed = 0;
+        while (true) {
+            long batchThrough;
+            byte[] body;
+            int batchSize;
+            Cursor pending = mDatabase.rawQuery(SQL_READ_PENDING, null);
+            try {
+                pending.moveToFirst();
+                batchThrough = pending.getLong(0);
+                body = pending.getBlob(1);
+                batchSize = pending.getInt(2);
+            } finally {
+                pending.close();
+            }
+
+            if (batchThrough == 0) {
+                batchThrough = saveBatch();
+                if (batchThrough == 0) {
+                    return pushed;
+                }
+                continue;
+            }
+
+            HttpURLConnection connection = open("push");
+            try {
+                connection.setDoOutput(true);
+                connection.setRequestMethod("POST");
+                connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+                connection.setRequestProperty("Content-Encoding", "gzip");
+                connection.setFixedLengthStreamingMode(body.length);
+                OutputStream output = connection.getOutputStream();
+                try {
+                    output.write(body);
+                } finally {
+                    output.close();
+                }
+                mBytesSent += body.length;
+                readResponse(connection).close();
+            } finally {
+                connection.disconnect();
+            }
+
+            markPushed(batchThrough);
+            pushed += batchSize;
+        }
+    }
+
+    /**
+     * Read the next batch of changes and save it as the one to send, with its quantity changes
+     * in the outbox, in one transaction.
+     *
+     * @return the ID of the batch, or 0 if there are no changes to push
+     */
+    private long saveBatch() throws IOException {
+        String deviceId;
+        long pushedThrough;
+        Cursor state = mDatabase.rawQuery(SQL_READ_STATE, null);
+        try {
+            state.moveToFirst();
+            deviceId = state.getString(0);
+            pushedThrough = state.getLong(2);
+        } finally {
+            state.close();
+        }
+
+        // The batch ID is only known once the changes are read, so they go to the body first
+        ByteArrayOutputStream changes = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(changes, UTF_8);
+        long batchThrough = pushedThrough;
+        ArrayList<String> syncIds = new ArrayList<>();
+        ArrayList<Integer> quantityDeltas = new ArrayList<>();
+        String since = String.valueOf(pushedThrough);
+        Cursor cursor = mDatabase.rawQuery(SQL_READ_CHANGES,
+                new String[] { since, since, String.valueOf(PUSH_BATCH_SIZE) });
+        try {
+            while (cursor.moveToNext()) {
+                writer.write(syncIds.isEmpty() ? "\n" : ",\n");
+                writeChange(writer, cursor, pushedThrough);
+                batchThrough = cursor.getLong(0);
+                // A tombstone is in the outbox too, with no quantity change, so it's counted
+                syncIds.add(cursor.getString(1));
+                quantityDeltas.add(cursor.getInt(2) == 0 ? cursor.getInt(3) : 0);
+            }
+        } finally {
+            cursor.close();
+        }
+        writer.close();
+        if (syncIds.isEmpty()) {
+            return 0;
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        OutputStream gzip = new GZIPOutputStream(body);
+        gzip.write(("{\"device\":" + jsonString(deviceId) + ",\"batch\":" + batchThrough
+                + ",\"changes\":[").getBytes(UTF_8));
+        changes.writeTo(gzip);
+        gzip.write("]}\n".getBytes(UTF_8));
+        gzip.close();
+
+        mDatabase.beginTransaction();
+        SQLiteStatement saveOutbox = mDatabase.compileStatement(SQL_SAVE_OUTBOX);
+        try {
+            for (int i = 0; i < syncIds.size(); i++) {
+                saveOutbox.bindString(1, syncIds.get(i));
+                saveOutbox.bindLong(2, quantityDeltas.get(i));
+                saveOutbox.executeInsert();
+            }
+            mDatabase.execSQL("UPDATE " + DrugMigrations.SYNC_STATE_TABLE_NAME + " SET "
+                    + DrugMigrations.COLUMN_PENDING_THROUGH + " = ?, "
+                    + DrugMigrations.COLUMN_PENDING_BODY + " = ?",
+                    new Object[] { batchThrough, body.toByteArray() });
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            saveOutbox.close();
+            mDatabase.endTransaction();
+        }
+        return batchThrough;
+    }
+
+    private static String jsonString(String value) throws IOException {
+        StringWriter writer = new StringWriter();
+        DrugExporter.writeJsonString(writer, value);
+        return writer.toString();
+    }
+
+    /**
+     * Write the change in the current row of a {@link #SQL_READ_CHANGES} cursor as JSON. The
+     * columns other than the quantity are only written if they changed after the given sequence
+     * number, which the server acknowledged.
+     */
+    private static void writeChange(Writer writer, Cursor cursor, long pushedThrough)
+            throws IOException {
+        writer.write("{\"id\":");
+        DrugExporter.writeJsonString(writer, cursor.getString(1));
+        if (cursor.getInt(2) != 0) {
+            writer.write(",\"deleted\":true}");
+            return;
+        }
+        writer.write(",\"quantity_delta\":" + cursor.getInt(3));
+        if (cursor.getLong(4) > pushedThrough) {
+            writer.write(",\"name\":");
+            DrugExporter.writeJsonString(writer, cursor.getString(5));
+            writer.write(",\"price\":" + cursor.getLong(6) + ",\"image\":");
+            DrugExporter.writeJsonString(writer, cursor.getString(7));
+            writer.write(",\"reorder_threshold\":" + cursor.getInt(8) + ",\"reorder_quantity\":"
+                    + cursor.getInt(9));
+        }
+        writer.write('}');
+    }
+
+    /**
+     * Move the push watermark to the given sequence number, which the server acknowledged, add
+     * the quantity changes in the outbox to what the server was told about, and forget the batch
+     * and the tombstones up to it. The quantities are added to rather than set, so the sales made
+     * while the batch was on its way stay to be pushed.
+     */
+    private void markPushed(long through) {
+        mDatabase.beginTransaction();
+        try {
+            mDatabase.execSQL(SQL_MARK_QUANTITY_PUSHED);
+            mDatabase.delete(DrugMigrations.OUTBOX_TABLE_NAME, null, null);
+            mDatabase.execSQL("UPDATE " + DrugMigrations.SYNC_STATE_TABLE_NAME + " SET "
+                    + DrugMigrations.COLUMN_PUSHED_THROUGH + " = ?, "
+                    + DrugMigrations.COLUMN_PENDING_THROUGH + " = 0, "
+                    + DrugMigrations.COLUMN_PENDING_BODY + " = NULL", new Object[] { through });
+            mDatabase.delete(DrugMigrations.TOMBSTONE_TABLE_NAME,
+                    DrugEntry.COLUMN_SYNC_SEQ + " <= ?", new String[] { String.valueOf(through) });
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    /**
+     * Ask the server for the next page of changes pushed by other devices since the last pull.
+     * Nothing is written to the database, see {@link #apply}.
+     */
+    Page fetch() throws IOException {
+        String deviceId;
+        long pulledThrough;
+        Cursor state = mDatabase.rawQuery(SQL_READ_STATE, null);
+        try {
+            state.moveToFirst();
+            deviceId = state.getString(0);
+            pulledThrough = state.getLong(3);
+        } finally {
+            state.close();
+        }
+
+        HttpURLConnection connection = open("pull?device=" + URLEncoder.encode(deviceId, "UTF-8")
+                + "&since=" + pulledThrough + "&limit=" + PULL_PAGE_SIZE);
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(readResponse(connection), UTF_8));
+            try {
+                return readPage(reader, pulledThrough);
+            } finally {
+                reader.close();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static Page readPage(JsonReader reader, long since) throws IOException {
+        ArrayList<Change> changes = new ArrayList<>();
+        long through = since;
+        boolean more = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("through".equals(name)) {
+                through = reader.nextLong();
+            } else if ("more".equals(name)) {
+                more = reader.nextBoolean();
+            } else if ("changes".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    changes.add(readChange(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // A server going backwards would make the next pull apply old changes again
+        if (through < since) {
+            throw new IOException("Sync server went back from " + since + " to " + through);
+        }
+        return new Page(changes, through, more);
+    }
+
+    private static Change readChange(JsonReader reader) throws IOException {
+        String syncId = null;
+        boolean deleted = false;
+        int quantityDelta = 0;
+        String name = null;
+        long price = 0;
+        String image = null;
+        int reorderThreshold = 0;
+        int reorderQuantity = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String key = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if ("id".equals(key)) {
+                syncId = reader.nextString();
+            } else if ("deleted".equals(key)) {
+                deleted = reader.nextBoolean();
+            } else if ("name".equals(key)) {
+                name = reader.nextString();
+            } else if ("quantity_delta".equals(key)) {
+                quantityDelta = reader.nextInt();
+            } else if ("price".equals(key)) {
+                price = reader.nextLong();
+            } else if ("image".equals(key)) {
+                image = reader.nextString();
+            } else if ("reorder_threshold".equals(key)) {
+                reorderThreshold = reader.nextInt();
+            } else if ("reorder_quantity".equals(key)) {
+                reorderQuantity = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (syncId == null) {
+            throw new IOException("Sync server sent a change without an ID");
+        }
+        return new Change(syncId, deleted, quantityDelta, name, price, image, reorderThreshold,
+                reorderQuantity);
+    }
+
+    /**
+     * Apply a page of pulled changes and move the pull watermark past it, in one transaction.
+     * Must not run while other writes change the drugs, so a drug can't get a local change
+     * between the check that it has none and the change being applied.
+     *
+     * @return the number of drugs inserted, updated or deleted
+     */
+    int apply(Page page) {
+        int applied = 0;
+        mDatabase.beginTransaction();
+        SQLiteStatement addQuantity = mDatabase.compileStatement(SQL_ADD_QUANTITY);
+        SQLiteStatement updateFields = mDatabase.compileStatement(SQL_UPDATE_FIELDS);
+        SQLiteStatement insert = mDatabase.compileStatement(SQL_INSERT_DRUG);
+        try {
+            // The sync triggers skip the writes below, so they aren't pushed back
+            setApplying(true);
+            long pushedThrough = DatabaseUtils.longForQuery(mDatabase, "SELECT "
+                    + DrugMigrations.COLUMN_PUSHED_THROUGH + " FROM "
+                    + DrugMigrations.SYNC_STATE_TABLE_NAME, null);
+
+            for (Change change : page.changes) {
+                String[] syncId = { change.syncId };
+
+                // A local deletion that isn't pushed yet wins, like a local change
+                if (DatabaseUtils.longForQuery(mDatabase, "SELECT COUNT(*) FROM "
+                        + DrugMigrations.TOMBSTONE_TABLE_NAME + " WHERE " + DrugEntry.COLUMN_SYNC_ID
+                        + " = ? AND " + DrugEntry.COLUMN_SYNC_SEQ + " > " + pushedThrough, syncId) != 0) {
+                    continue;
+                }
+
+                long id = -1;
+                boolean changedHere = false;
+                boolean fieldsChangedHere = false;
+                Cursor cursor = mDatabase.rawQuery("SELECT " + DrugEntry._ID + ", "
+                        + DrugEntry.COLUMN_SYNC_SEQ + ", " + DrugEntry.COLUMN_SYNC_FIELDS_SEQ
+                        + " FROM " + DrugEntry.TABLE_NAME + " WHERE " + DrugEntry.COLUMN_SYNC_ID
+                        + " = ?", syncId);
+                try {
+                    if (cursor.moveToFirst()) {
+                        id = cursor.getLong(0);
+                        changedHere = cursor.getLong(1) > pushedThrough;
+                        fieldsChangedHere = cursor.getLong(2) > pushedThrough;
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                if (change.deleted) {
+                    if (id == -1) {
+                        continue;
+                    }
+                    if (changedHere) {
+                        // The other devices no longer have the drug, so they need all of it
+                        mDatabase.execSQL("UPDATE " + DrugMigrations.SYNC_STATE_TABLE_NAME + " SET "
+                                + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " = "
+                                + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " + 1");
+                        mDatabase.execSQL(SQL_PUSH_AGAIN_WHOLE, new Object[] { id });
+                        continue;
+                    }
+                    mDatabase.delete(DrugEntry.TABLE_NAME, DrugEntry._ID + " = ?",
+                            new String[] { String.valueOf(id) });
+                    applied++;
+                    continue;
+                }
+
+                if (id == -1) {
+                    // Only the change that created the drug, or pushed it again whole, brings
+                    // the other columns. Without them the drug was deleted here, which the other
+                    // devices are told about.
+                    if (change.name == null) {
+                        continue;
+                    }
+                    bindFields(insert, change);
+                    insert.bindLong(6, change.quantityDelta);
+                    insert.bindLong(7, change.quantityDelta);
+                    insert.bindString(8, change.syncId);
+                    insert.executeInsert();
+                    applied++;
+                    continue;
+                }
+
+                // Quantity changes add up whatever was changed here
+                boolean changed = false;
+                if (change.quantityDelta != 0) {
+                    addQuantity.bindLong(1, change.quantityDelta);
+                    addQuantity.bindLong(2, change.quantityDelta);
+                    addQuantity.bindLong(3, id);
+                    addQuantity.executeUpdateDelete();
+                    changed = true;
+                }
+                if (change.name != null && !fieldsChangedHere) {
+                    bindFields(updateFields, change);
+                    updateFields.bindLong(6, id);
+                    updateFields.executeUpdateDelete();
+                    changed = true;
+                }
+                if (changed) {
+                    applied++;
+                }
+            }
+
+            mDatabase.execSQL("UPDATE " + DrugMigrations.SYNC_STATE_TABLE_NAME + " SET "
+                    + DrugMigrations.COLUMN_PULLED_THROUGH + " = ?", new Object[] { page.through });
+            setApplying(false);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            addQuantity.close();
+            updateFields.close();
+            insert.close();
+            mDatabase.endTransaction();
+        }
+        return applied;
+    }
+
+    /**
+     * Bind the columns of a change other than the quantity, in {@link #SQL_UPDATE_FIELDS} order.
+     */
+    private static void bindFields(SQLiteStatement statement, Change change) {
+        statement.clearBindings();
+        statement.bindString(1, change.name);
+        statement.bindLong(2, change.price);
+        if (change.image != null) {
+            statement.bindString(3, change.image);
+        }
+        statement.bindLong(4, change.reorderThreshold);
+        statement.bindLong(5, change.reorderQuantity);
+    }
+
+    private void setApplying(boolean applying) {
+        mDatabase.execSQL("UPDATE " + DrugMigrations.SYNC_STATE_TABLE_NAME + " SET "
+                + DrugMigrations.COLUMN_APPLYING + " = " + (applying ? 1 : 0));
+    }
+
+    /**
+     * Open a connection to the given path under the server URL.
+     */
+    private HttpURLConnection open(String path) throws IOException {
+        String base = mServer.toString();
+        URL url = new URL(base.endsWith("/") ? base + path : base + "/" + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        // Asking for gzip explicitly means the body is handed over compressed, so it's counted
+        // as it went over the network and decompressed here
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        return connection;
+    }
+
+    /**
+     * Returns the body of the server's response, decompressed if needed, or throws if the server
+     * didn't accept the request.
+     */
+    private InputStream readResponse(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if (code < 200 || code >= 300) {
+            throw new IOException("Sync server answered " + code + " to " + connection.getURL());
+        }
+        InputStream input = new FilterInputStream(connection.getInputStream()) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) {
+                    mBytesReceived++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                int read = super.read(buffer, offset, length);
+                if (read > 0) {
+                    mBytesReceived += read;
+                }
+                return read;
+            }
+        };
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding())) {
+            input = new GZIPInputStream(input);
+        }
+        return input;
+    }
+}
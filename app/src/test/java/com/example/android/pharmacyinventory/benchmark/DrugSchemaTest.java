@@ -0,0 +1,112 @@
+package com.example.android.pharmacyinventory.benchmark;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pharmacyinventory.BuildConfig;
+import com.example.android.pharmacyinventory.data.DrugDbHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link DrugSchema}, the benchmarks' copy of the schema written out as plain SQL,
+ * still creates the schema that {@link DrugDbHelper} and its migrations create.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class DrugSchemaTest {
+
+    private SQLiteDatabase mApp;
+    private SQLiteDatabase mBenchmark;
+
+    @Before
+    public void setUp() {
+        mApp = new DrugDbHelper(RuntimeEnvironment.application).getWritableDatabase();
+        mBenchmark = SQLiteDatabase.create(null);
+        for (String sql : DrugSchema.CREATE) {
+            mBenchmark.execSQL(sql);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mApp.close();
+        mBenchmark.close();
+    }
+
+    @Test
+    public void benchmarkSchemaMatchesTheApp() {
+        assertEquals(DrugSchema.VERSION, mApp.getVersion());
+        assertEquals(describe(mApp), describe(mBenchmark));
+    }
+
+    @Test
+    public void benchmarkStatementsRunOnTheApp() {
+        String[] statements = { DrugSchema.SQL_READ_VELOCITY, DrugSchema.SQL_SELL_DRUG,
+                DrugSchema.SQL_RECORD_SALE, DrugSchema.SQL_INSERT_DRUG };
+        for (String sql : statements) {
+            mApp.compileStatement(sql).close();
+        }
+    }
+
+    /**
+     * Returns every table, index and trigger of a database, one line each. Tables are described by
+     * their columns and row count, since the app builds them with ALTER TABLE and its CREATE
+     * statement doesn't read like the benchmarks' one. Indexes and triggers are described by their
+     * SQL, with the whitespace and IF NOT EXISTS left out.
+     */
+    private static List<String> describe(SQLiteDatabase database) {
+        List<String> objects = new ArrayList<>();
+        Cursor cursor = database.rawQuery("SELECT type, name, tbl_name, sql FROM sqlite_master"
+                + " WHERE name NOT LIKE 'sqlite_%' AND name != 'android_metadata'"
+                + " ORDER BY type, name", null);
+        try {
+            while (cursor.moveToNext()) {
+                String type = cursor.getString(0);
+                String name = cursor.getString(1);
+                if ("table".equals(type)) {
+                    objects.add("table " + name + " " + columns(database, name) + " rows "
+                            + DatabaseUtils.queryNumEntries(database, name));
+                } else {
+                    objects.add(type + " " + name + " on " + cursor.getString(2) + ": "
+                            + cursor.getString(3).replace("IF NOT EXISTS ", "")
+                                    .replaceAll("\\s+", " ").trim());
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return objects;
+    }
+
+    /**
+     * Returns the name, type, NOT NULL, default and primary key of every column of a table.
+     */
+    private static String columns(SQLiteDatabase database, String table) {
+        StringBuilder columns = new StringBuilder();
+        Cursor cursor = database.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.append('(').append(cursor.getString(1)).append(' ')
+                        .append(cursor.getString(2)).append(' ').append(cursor.getInt(3))
+                        .append(' ').append(cursor.getString(4)).append(' ')
+                        .append(cursor.getInt(5)).append(')');
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns.toString();
+    }
+}
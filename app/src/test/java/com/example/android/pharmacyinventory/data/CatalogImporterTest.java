@@ -0,0 +1,49 @@
+package com.example.android.pharmacyinventory.data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of the CSV record parsing of {@link CatalogImporter}, which run on the plain JVM.
+ */
+public class CatalogImporterTest {
+
+    @Test
+    public void plainFieldsAreSplitOnCommas() throws Exception {
+        assertEquals(Arrays.asList("Ibuprofen 200mg", "40", "4.99"),
+                CatalogImporter.parseRecord("Ibuprofen 200mg,40,4.99"));
+        assertEquals(Arrays.asList("", "40", ""), CatalogImporter.parseRecord(",40,"));
+        assertEquals(Arrays.asList(""), CatalogImporter.parseRecord(""));
+    }
+
+    @Test
+    public void quotedFieldsKeepCommas() throws Exception {
+        assertEquals(Arrays.asList("Paracetamol, 500mg", "12", "2.50"),
+                CatalogImporter.parseRecord("\"Paracetamol, 500mg\",12,2.50"));
+        assertEquals(Arrays.asList("", "12"), CatalogImporter.parseRecord("\"\",12"));
+    }
+
+    @Test
+    public void quotedFieldsKeepLineBreaks() throws Exception {
+        assertEquals(Arrays.asList("Aspirin\n100mg tablets", "8"),
+                CatalogImporter.parseRecord("\"Aspirin\n100mg tablets\",8"));
+        // Only the carriage returns of the line endings are dropped
+        assertEquals(Arrays.asList("Aspirin\r\n100mg", "8"),
+                CatalogImporter.parseRecord("\"Aspirin\r\n100mg\",8\r"));
+    }
+
+    @Test
+    public void doubledQuotesStandForOneQuote() throws Exception {
+        assertEquals(Arrays.asList("Vitamin \"D3\" drops", "3"),
+                CatalogImporter.parseRecord("\"Vitamin \"\"D3\"\" drops\",3"));
+        assertEquals(Arrays.asList("\"", "1"), CatalogImporter.parseRecord("\"\"\"\",1"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unclosedQuoteIsRejected() throws Exception {
+        CatalogImporter.parseRecord("\"Cough syrup,5,6.75");
+    }
+}
@@ -0,0 +1,310 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.pharmacyinventory.BuildConfig;
+import com.example.android.pharmacyinventory.data.DrugContract.DrugEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes and restores {@link DrugSnapshot}s of a database under Robolectric, including snapshots
+ * that were damaged after they were written.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class DrugSnapshotTest {
+
+    /** Columns compared before and after a restore */
+    private static final String[] COLUMNS = {
+            DrugEntry._ID,
+            DrugEntry.COLUMN_DRUG_NAME,
+            DrugEntry.COLUMN_DRUG_QUANTITY,
+            DrugEntry.COLUMN_DRUG_SOLD,
+            DrugEntry.COLUMN_DRUG_PRICE,
+            DrugEntry.COLUMN_DRUG_IMAGE,
+            DrugEntry.COLUMN_VELOCITY_SHORT,
+            DrugEntry.COLUMN_VELOCITY_LONG,
+            DrugEntry.COLUMN_VELOCITY_UPDATED_AT,
+            DrugEntry.COLUMN_STOCKOUT_AT,
+            DrugEntry.COLUMN_REORDER_THRESHOLD,
+            DrugEntry.COLUMN_REORDER_QUANTITY,
+            DrugEntry.COLUMN_ON_ORDER,
+            DrugEntry.COLUMN_VERSION,
+            DrugEntry.COLUMN_SYNC_ID};
+
+    private SQLiteDatabase mDatabase;
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mDatabase = new DrugDbHelper(RuntimeEnvironment.application).getWritableDatabase();
+        mFile = new File(RuntimeEnvironment.application.getFilesDir(), "drugs.snapshot");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDatabase.close();
+    }
+
+    @Test
+    public void restoreGivesBackEveryValue() throws Exception {
+        // IDs far apart in both directions, so the deltas overflow a long
+        insert(Long.MIN_VALUE + 1, "Lowest ID", 3, 1, 250, null);
+        insert(-5, "N\u00e9gative 200mg", null, null, 0, "content://media/external/images/media/1");
+        insert(0, "", 0, 0, 1, "content://media/external/images/media/12");
+        insert(1, "Shared prefix", 1, 0, 99, null);
+        // Shares its prefix with the last image that wasn't null
+        insert(2, "After a null image", 127, 128, 1L << 40, "content://media/external/images/media/123");
+        insert(Long.MAX_VALUE, "Highest ID", Integer.MAX_VALUE, -1, 100L * Integer.MAX_VALUE,
+                "file:///sdcard/ibuprofen.jpg");
+        List<String> written = dump();
+
+        assertEquals(6, writeSnapshot());
+
+        // Whatever the table holds at restore time is replaced
+        mDatabase.delete(DrugEntry.TABLE_NAME, null, null);
+        insert(7, "Not in the snapshot", 5, 0, 100, null);
+
+        assertEquals(6, DrugSnapshot.restore(mDatabase, mFile));
+        assertEquals(written, dump());
+    }
+
+    @Test
+    public void restoreKeepsVelocitiesAndReorderSettings() throws Exception {
+        insertDrugs();
+        long now = 1500000000000L;
+        for (int i = 1; i <= 100; i += 3) {
+            ContentValues values = new ContentValues();
+            values.put(DrugEntry.COLUMN_VELOCITY_SHORT, i / 7.0);
+            values.put(DrugEntry.COLUMN_VELOCITY_LONG, i == 1 ? Double.MIN_VALUE : i * 1e-3);
+            values.put(DrugEntry.COLUMN_VELOCITY_UPDATED_AT, now - i * 60000L);
+            values.put(DrugEntry.COLUMN_REORDER_THRESHOLD, i % 10);
+            values.put(DrugEntry.COLUMN_REORDER_QUANTITY, i % 4 * 25);
+            values.put(DrugEntry.COLUMN_ON_ORDER, i % 2 * 50);
+            assertEquals(1, mDatabase.update(DrugEntry.TABLE_NAME, values, DrugEntry._ID + " = ?",
+                    new String[] { String.valueOf(i) }));
+        }
+        List<String> written = dump();
+        long lastChangeSeq = maxChangeSeq();
+
+        writeSnapshot();
+        mDatabase.delete(DrugEntry.TABLE_NAME, null, null);
+        assertEquals(100, DrugSnapshot.restore(mDatabase, mFile));
+
+        // The stock-out projections come back as the trigger computed them
+        assertEquals(written, dump());
+
+        // Every restored drug is a change the next reorder run looks at
+        Cursor cursor = mDatabase.rawQuery("SELECT MIN(" + DrugEntry.COLUMN_CHANGE_SEQ + ") FROM "
+                + DrugEntry.TABLE_NAME, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            assertTrue(cursor.getLong(0) > lastChangeSeq);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void restoreIsPushedAndTombstonesWhatItReplaces() throws Exception {
+        insertDrugs();
+        writeSnapshot();
+        List<String> written = dump();
+
+        // After the snapshot, 40 units of drug 2 are pushed, drug 1 is deleted and drug 101 added
+        mDatabase.execSQL("UPDATE " + DrugEntry.TABLE_NAME + " SET "
+                + DrugEntry.COLUMN_SYNCED_QUANTITY + " = 40 WHERE " + DrugEntry._ID + " = 2");
+        mDatabase.delete(DrugEntry.TABLE_NAME, DrugEntry._ID + " = 1", null);
+        insert(101, "Not in the snapshot", 5, 0, 100, null);
+        String addedSyncId = queryString("SELECT " + DrugEntry.COLUMN_SYNC_ID + " FROM "
+                + DrugEntry.TABLE_NAME + " WHERE " + DrugEntry._ID + " = 101");
+        long lastSyncSeq = queryLong("SELECT " + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " FROM "
+                + DrugMigrations.SYNC_STATE_TABLE_NAME);
+
+        assertEquals(100, DrugSnapshot.restore(mDatabase, mFile));
+        assertEquals(written, dump());
+
+        // Every restored drug is a change of all its columns for the next push, numbered apart
+        assertEquals(100, queryLong("SELECT COUNT(DISTINCT " + DrugEntry.COLUMN_SYNC_SEQ + ") FROM "
+                + DrugEntry.TABLE_NAME + " WHERE " + DrugEntry.COLUMN_SYNC_SEQ + " > " + lastSyncSeq
+                + " AND " + DrugEntry.COLUMN_SYNC_FIELDS_SEQ + " = " + DrugEntry.COLUMN_SYNC_SEQ));
+        assertEquals(40, queryLong("SELECT " + DrugEntry.COLUMN_SYNCED_QUANTITY + " FROM "
+                + DrugEntry.TABLE_NAME + " WHERE " + DrugEntry._ID + " = 2"));
+
+        // Only the drug the restore removed is left to delete, after the restored drugs
+        assertEquals(addedSyncId, queryString("SELECT " + DrugEntry.COLUMN_SYNC_ID + " FROM "
+                + DrugMigrations.TOMBSTONE_TABLE_NAME));
+        long tombstoneSeq = queryLong("SELECT " + DrugEntry.COLUMN_SYNC_SEQ + " FROM "
+                + DrugMigrations.TOMBSTONE_TABLE_NAME);
+        assertTrue(tombstoneSeq > queryLong("SELECT MAX(" + DrugEntry.COLUMN_SYNC_SEQ + ") FROM "
+                + DrugEntry.TABLE_NAME));
+        assertTrue(queryLong("SELECT " + DrugMigrations.COLUMN_LAST_SYNC_SEQ + " FROM "
+                + DrugMigrations.SYNC_STATE_TABLE_NAME) >= tombstoneSeq);
+    }
+
+    @Test
+    public void emptyTableRoundTrips() throws Exception {
+        assertEquals(0, writeSnapshot());
+        insert(1, "Not in the snapshot", 5, 0, 100, null);
+
+        assertEquals(0, DrugSnapshot.restore(mDatabase, mFile));
+        assertEquals(0, dump().size());
+    }
+
+    @Test
+    public void truncatedSnapshotIsRejected() throws Exception {
+        insertDrugs();
+        writeSnapshot();
+        List<String> before = dump();
+
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(file.length() - 1);
+        } finally {
+            file.close();
+        }
+        assertRestoreFails();
+        assertEquals(before, dump());
+
+        // Cut inside the header
+        file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(10);
+        } finally {
+            file.close();
+        }
+        assertRestoreFails();
+        assertEquals(before, dump());
+    }
+
+    @Test
+    public void flippedChecksumIsRejected() throws Exception {
+        insertDrugs();
+        writeSnapshot();
+        List<String> before = dump();
+
+        // The CRC32 of the first column is the last int of its header entry
+        flipByte(4 * 4 + 4 + 8 + 8);
+        assertRestoreFails();
+        flipByte(4 * 4 + 4 + 8 + 8);
+
+        // The last byte of the file is in the last column
+        flipByte(mFile.length() - 1);
+        assertRestoreFails();
+        assertEquals(before, dump());
+    }
+
+    private void insertDrugs() {
+        for (int i = 1; i <= 100; i++) {
+            insert(i, "Drug " + i, i % 7, i % 3, 100 + i, i % 2 == 0 ? null : "content://images/" + i);
+        }
+    }
+
+    private void insert(long id, String name, Integer quantity, Integer sold, long price,
+                        String image) {
+        ContentValues values = new ContentValues();
+        values.put(DrugEntry._ID, id);
+        values.put(DrugEntry.COLUMN_DRUG_NAME, name);
+        values.put(DrugEntry.COLUMN_DRUG_QUANTITY, quantity);
+        values.put(DrugEntry.COLUMN_DRUG_SOLD, sold);
+        values.put(DrugEntry.COLUMN_DRUG_PRICE, price);
+        values.put(DrugEntry.COLUMN_DRUG_IMAGE, image);
+        mDatabase.insertOrThrow(DrugEntry.TABLE_NAME, null, values);
+    }
+
+    private long maxChangeSeq() {
+        return queryLong("SELECT MAX(" + DrugEntry.COLUMN_CHANGE_SEQ + ") FROM "
+                + DrugEntry.TABLE_NAME);
+    }
+
+    private long queryLong(String sql) {
+        Cursor cursor = mDatabase.rawQuery(sql, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private String queryString(String sql) {
+        Cursor cursor = mDatabase.rawQuery(sql, null);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private int writeSnapshot() throws IOException {
+        mDatabase.beginTransaction();
+        try {
+            int rows = DrugSnapshot.write(mDatabase, mFile);
+            mDatabase.setTransactionSuccessful();
+            return rows;
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    private void assertRestoreFails() {
+        try {
+            DrugSnapshot.restore(mDatabase, mFile);
+            fail("Restore should have failed");
+        } catch (IOException expected) {
+        }
+    }
+
+    private void flipByte(long position) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Returns every drug as a line of its values, in ID order, with the types SQLite stored them as.
+     */
+    private List<String> dump() {
+        List<String> rows = new ArrayList<>();
+        Cursor cursor = mDatabase.query(DrugEntry.TABLE_NAME, COLUMNS, null, null, null, null,
+                DrugEntry._ID);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    row.append(i == 0 ? "" : "|").append(cursor.getType(i)).append(':')
+                            .append(cursor.getString(i));
+                }
+                rows.add(row.toString());
+            }
+        } finally {
+            cursor.close();
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.android.pharmacyinventory.data;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link InventoryStore}, which run on the plain JVM.
+ */
+public class InventoryStoreTest {
+
+    @Test
+    public void sellTakesUnitsOutOfStock() throws Exception {
+        InventoryStore store = new InventoryStore(0);
+        store.put(1, 5);
+
+        assertEquals(InventoryStore.SOLD, store.sell(1, 2));
+        assertEquals(3, store.getQuantity(1));
+    }
+
+    @Test
+    public void sellNeverGoesBelowZero() throws Exception {
+        InventoryStore store = new InventoryStore(0);
+        store.put(1, 1);
+
+        assertEquals(InventoryStore.OUT_OF_STOCK, store.sell(1, 2));
+        assertEquals(1, store.getQuantity(1));
+        assertEquals(InventoryStore.UNKNOWN_DRUG, store.sell(2, 1));
+    }
+
+    @Test
+    public void removedDrugsAreForgotten() throws Exception {
+        InventoryStore store = new InventoryStore(0);
+        for (long id = 1; id <= 1000; id++) {
+            store.put(id, (int) id);
+        }
+        for (long id = 1; id <= 1000; id += 2) {
+            assertTrue(store.remove(id));
+        }
+
+        assertEquals(500, store.size());
+        assertFalse(store.remove(1));
+        for (long id = 1; id <= 1000; id++) {
+            assertEquals(id % 2 == 0 ? (int) id : InventoryStore.NO_QUANTITY, store.getQuantity(id));
+        }
+    }
+
+    @Test
+    public void failedCheckoutPutsLinesBack() throws Exception {
+        InventoryStore store = new InventoryStore(0);
+        store.put(1, 5);
+        store.put(2, 1);
+
+        assertEquals(1, store.checkout(new long[] { 1, 2 }, new int[] { 3, 2 }));
+        assertEquals(5, store.getQuantity(1));
+        assertEquals(1, store.getQuantity(2));
+
+        assertEquals(-1, store.checkout(new long[] { 1, 2 }, new int[] { 3, 1 }));
+        assertEquals(2, store.getQuantity(1));
+        assertEquals(0, store.getQuantity(2));
+    }
+
+    @Test
+    public void concurrentSalesNeverOversell() throws Exception {
+        final int stock = 10000;
+        final int threads = 8;
+        final InventoryStore store = new InventoryStore(0);
+        store.put(1, stock);
+
+        final AtomicInteger sold = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    // Try to sell more than there is, while drugs come and go around it
+                    for (int sale = 0; sale < stock / threads * 2; sale++) {
+                        if (store.sell(1, 1) == InventoryStore.SOLD) {
+                            sold.incrementAndGet();
+                        }
+                        long other = 2 + sale % 64;
+                        store.put(other, 1);
+                        store.remove(other);
+                    }
+                }
+            });
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertEquals(stock, sold.get());
+        assertEquals(0, store.getQuantity(1));
+    }
+}
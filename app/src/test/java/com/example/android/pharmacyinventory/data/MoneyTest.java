@@ -0,0 +1,80 @@
+package com.example.android.pharmacyinventory.data;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests of {@link Money}, which run on the plain JVM.
+ */
+public class MoneyTest {
+
+    @Test
+    public void parseCentsPadsMissingDecimals() throws Exception {
+        assertEquals(300, Money.parseCents("3"));
+        assertEquals(350, Money.parseCents("3.5"));
+        assertEquals(305, Money.parseCents("3.05"));
+        assertEquals(300, Money.parseCents("3."));
+        assertEquals(50, Money.parseCents(".5"));
+        assertEquals(0, Money.parseCents("0.00"));
+    }
+
+    @Test
+    public void parseCentsNeverRounds() throws Exception {
+        assertInvalid("3.999");
+        assertInvalid("3.005");
+        assertInvalid("0.001");
+    }
+
+    @Test
+    public void parseCentsRejectsNegativeAndBlankInput() throws Exception {
+        assertInvalid("-3");
+        assertInvalid("-0.50");
+        assertInvalid("");
+        assertInvalid(".");
+        assertInvalid(" ");
+        assertInvalid(" 3");
+        assertInvalid("3,50");
+        assertInvalid("1..2");
+    }
+
+    @Test
+    public void parseCentsRejectsAmountsThatCouldOverflow() throws Exception {
+        assertEquals(99999999999999999L, Money.parseCents("999999999999999.99"));
+        assertInvalid("1000000000000000");
+        assertInvalid("99999999999999999999");
+    }
+
+    @Test
+    public void formatAlwaysShowsTwoDecimals() throws Exception {
+        assertEquals("0.00", Money.format(0));
+        assertEquals("0.05", Money.format(5));
+        assertEquals("3.05", Money.format(305));
+        assertEquals("3.50", Money.format(350));
+        assertEquals("-3.05", Money.format(-305));
+        assertEquals("-0.05", Money.format(-5));
+    }
+
+    @Test
+    public void formatHandlesTheLongRange() throws Exception {
+        assertEquals("92233720368547758.07", Money.format(Long.MAX_VALUE));
+        assertEquals("-92233720368547758.08", Money.format(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void formattedPricesParseBack() throws Exception {
+        long[] prices = { 0, 1, 9, 10, 99, 100, 305, 350, 123456789, 99999999999999999L };
+        for (long cents : prices) {
+            assertEquals(cents, Money.parseCents(Money.format(cents)));
+        }
+    }
+
+    private static void assertInvalid(String text) {
+        try {
+            Money.parseCents(text);
+            fail("Parsed invalid price \"" + text + "\"");
+        } catch (NumberFormatException expected) {
+            // The editor shows an error for it
+        }
+    }
+}
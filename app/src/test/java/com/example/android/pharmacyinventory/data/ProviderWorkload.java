@@ -0,0 +1,424 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Replays a synthetic pharmacy day against {@link DrugProvider} through a {@link ContentResolver}.
+ * The catalog is seeded first, then several threads (the tills and the back office) run a mix of
+ * operations: sales of drugs picked with a Zipf distribution, so a few best sellers get most of
+ * the sales, restocks and editor saves that read a drug and write it back like EditorActivity
+ * does, list pages and deletes of slow movers.
+ *
+ * Every sale and restock the provider accepts is also counted here, so at the end the expected
+ * stock of each drug can be compared with the database. A difference is a lost update.
+ */
+final class ProviderWorkload {
+
+    /** The operations of the mix */
+    enum Operation { SELL, RESTOCK, SAVE, LIST, DELETE }
+
+    /** Units added by one restock */
+    private static final int RESTOCK_UNITS = 20;
+
+    /** Rows read by one list query, like a page of InventoryActivity */
+    private static final int LIST_PAGE_SIZE = 50;
+
+    /**
+     * Size and mix of the workload. Every field can be overridden with a system property named
+     * "workload." followed by the field name, for instance -Dworkload.drugs=100000.
+     */
+    static final class Config {
+        int drugs = 1000;
+        int initialQuantity = 100;
+        int threads = 4;
+        int operationsPerThread = 2500;
+        double zipfExponent = 1.1;
+        long seed = 1;
+        int sellWeight = 70;
+        int restockWeight = 5;
+        int saveWeight = 5;
+        int listWeight = 18;
+        int deleteWeight = 2;
+
+        /**
+         * Returns the default configuration with the overrides given as system properties.
+         */
+        static Config fromSystemProperties() {
+            Config config = new Config();
+            config.drugs = Integer.getInteger("workload.drugs", config.drugs);
+            config.initialQuantity = Integer.getInteger("workload.initialQuantity", config.initialQuantity);
+            config.threads = Integer.getInteger("workload.threads", config.threads);
+            config.operationsPerThread = Integer.getInteger("workload.operationsPerThread",
+                    config.operationsPerThread);
+            config.zipfExponent = Double.parseDouble(System.getProperty("workload.zipfExponent",
+                    String.valueOf(config.zipfExponent)));
+            config.seed = Long.getLong("workload.seed", config.seed);
+            config.sellWeight = Integer.getInteger("workload.sellWeight", config.sellWeight);
+            config.restockWeight = Integer.getInteger("workload.restockWeight", config.restockWeight);
+            config.saveWeight = Integer.getInteger("workload.saveWeight", config.saveWeight);
+            config.listWeight = Integer.getInteger("workload.listWeight", config.listWeight);
+            config.deleteWeight = Integer.getInteger("workload.deleteWeight", config.deleteWeight);
+            return config;
+        }
+
+        int[] weights() {
+            return new int[] { sellWeight, restockWeight, saveWeight, listWeight, deleteWeight };
+        }
+    }
+
+    /**
+     * What happened during a run.
+     */
+    static final class Report {
+        long elapsedNanos;
+        long totalOperations;
+
+        /** Latencies of each operation in nanoseconds, sorted, indexed by Operation.ordinal() */
+        long[][] latencies = new long[Operation.values().length][];
+
+        /** Drugs whose stock in the database differs from the sales and restocks accepted */
+        int lostUpdateDrugs;
+
+        /** Sum of those differences, in units */
+        long lostUpdateUnits;
+
+        /** Drugs whose stock went below zero, which the guarded sale must never allow */
+        int oversoldDrugs;
+
+        double throughput() {
+            return totalOperations * 1e9 / elapsedNanos;
+        }
+
+        long percentileNanos(Operation operation, double percentile) {
+            long[] sorted = latencies[operation.ordinal()];
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format(Locale.US, "%d operations in %.1f ms, %.0f operations/s%n",
+                    totalOperations, elapsedNanos / 1e6, throughput()));
+            for (Operation operation : Operation.values()) {
+                builder.append(String.format(Locale.US, "%-8s n=%-7d p50=%8.1f us  p99=%8.1f us%n",
+                        operation, latencies[operation.ordinal()].length,
+                        percentileNanos(operation, 50) / 1e3, percentileNanos(operation, 99) / 1e3));
+            }
+            builder.append(String.format(Locale.US,
+                    "lost updates: %d drugs, %d units; oversold drugs: %d",
+                    lostUpdateDrugs, lostUpdateUnits, oversoldDrugs));
+            return builder.toString();
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final Config mConfig;
+
+    /** IDs of the seeded drugs, by popularity rank */
+    private long[] mIds;
+
+    /** Cumulative Zipf probabilities of the ranks */
+    private double[] mZipf;
+
+    /** Stock each drug should have given the accepted sales and restocks, by rank */
+    private AtomicIntegerArray mExpected;
+
+    /** 1 for the drugs that were deleted, by rank */
+    private AtomicIntegerArray mDeleted;
+
+    ProviderWorkload(ContentResolver resolver, Config config) {
+        mResolver = resolver;
+        mConfig = config;
+    }
+
+    /**
+     * Seed the catalog, replay the workload and check the stock of every drug.
+     */
+    Report run() throws Exception {
+        seed();
+
+        final Report report = new Report();
+        final List<long[][]> threadLatencies = new ArrayList<>();
+        final List<Throwable> failures = new ArrayList<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[mConfig.threads];
+        for (int t = 0; t < threads.length; t++) {
+            final long[][] latencies = new long[Operation.values().length][mConfig.operationsPerThread + 1];
+            threadLatencies.add(latencies);
+            final Random random = new Random(mConfig.seed * 31 + t);
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        replay(random, latencies);
+                    } catch (Throwable e) {
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            }, "Workload-" + t);
+            threads[t].start();
+        }
+
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        report.elapsedNanos = System.nanoTime() - startNanos;
+        if (!failures.isEmpty()) {
+            throw new AssertionError("Workload thread failed", failures.get(0));
+        }
+
+        // Merge the latencies of every thread. Slot 0 of each row holds its count.
+        for (Operation operation : Operation.values()) {
+            int count = 0;
+            for (long[][] latencies : threadLatencies) {
+                count += (int) latencies[operation.ordinal()][0];
+            }
+            long[] merged = new long[count];
+            int position = 0;
+            for (long[][] latencies : threadLatencies) {
+                int threadCount = (int) latencies[operation.ordinal()][0];
+                System.arraycopy(latencies[operation.ordinal()], 1, merged, position, threadCount);
+                position += threadCount;
+            }
+            Arrays.sort(merged);
+            report.latencies[operation.ordinal()] = merged;
+            report.totalOperations += count;
+        }
+
+        checkStock(report);
+        return report;
+    }
+
+    /**
+     * Insert the catalog in one batch and rank the drugs by popularity.
+     */
+    private void seed() {
+        ContentValues[] drugs = new ContentValues[mConfig.drugs];
+        for (int i = 0; i < drugs.length; i++) {
+            drugs[i] = new ContentValues();
+            drugs[i].put(DrugContract.DrugEntry.COLUMN_DRUG_NAME, "Drug " + i);
+            drugs[i].put(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, mConfig.initialQuantity);
+            drugs[i].put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, 100L + i % 1000);
+            drugs[i].put(DrugContract.DrugEntry.COLUMN_DRUG_SOLD, 0);
+        }
+        mResolver.bulkInsert(DrugContract.DrugEntry.CONTENT_URI, drugs);
+
+        // Popularity doesn't follow the insertion order, so shuffle the IDs into ranks
+        mIds = new long[mConfig.drugs];
+        Cursor cursor = mResolver.query(DrugContract.DrugEntry.CONTENT_URI,
+                new String[] { DrugContract.DrugEntry._ID }, null, null, null);
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                mIds[i] = cursor.getLong(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        Random random = new Random(mConfig.seed);
+        for (int i = mIds.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            long id = mIds[i];
+            mIds[i] = mIds[j];
+            mIds[j] = id;
+        }
+
+        mZipf = new double[mConfig.drugs];
+        double sum = 0;
+        for (int rank = 0; rank < mZipf.length; rank++) {
+            sum += 1 / Math.pow(rank + 1, mConfig.zipfExponent);
+            mZipf[rank] = sum;
+        }
+        for (int rank = 0; rank < mZipf.length; rank++) {
+            mZipf[rank] /= sum;
+        }
+
+        mExpected = new AtomicIntegerArray(mConfig.drugs);
+        mDeleted = new AtomicIntegerArray(mConfig.drugs);
+        for (int rank = 0; rank < mConfig.drugs; rank++) {
+            mExpected.set(rank, mConfig.initialQuantity);
+        }
+    }
+
+    /**
+     * Run the operations of one thread, recording the latency of each one.
+     */
+    private void replay(Random random, long[][] latencies) {
+        int[] weights = mConfig.weights();
+        int totalWeight = 0;
+        for (int weight : weights) {
+            totalWeight += weight;
+        }
+
+        for (int i = 0; i < mConfig.operationsPerThread; i++) {
+            int pick = random.nextInt(totalWeight);
+            int operation = 0;
+            while (pick >= weights[operation]) {
+                pick -= weights[operation];
+                operation++;
+            }
+
+            long start = System.nanoTime();
+            switch (Operation.values()[operation]) {
+                case SELL:
+                    sell(zipfRank(random), 1 + (random.nextInt(10) == 0 ? 1 : 0));
+                    break;
+                case RESTOCK:
+                    restock(zipfRank(random));
+                    break;
+                case SAVE:
+                    save(zipfRank(random));
+                    break;
+                case LIST:
+                    list(random.nextInt(mConfig.drugs));
+                    break;
+                case DELETE:
+                    // Only slow movers are discontinued
+                    delete(mConfig.drugs / 2 + random.nextInt(mConfig.drugs - mConfig.drugs / 2));
+                    break;
+            }
+            long[] row = latencies[operation];
+            row[(int) ++row[0]] = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Returns a popularity rank with the Zipf distribution.
+     */
+    private int zipfRank(Random random) {
+        int rank = Arrays.binarySearch(mZipf, random.nextDouble());
+        return Math.min(rank < 0 ? -rank - 1 : rank, mZipf.length - 1);
+    }
+
+    private void sell(int rank, int units) {
+        ContentValues values = new ContentValues();
+        values.put(DrugContract.DrugEntry.SELL_QUANTITY, units);
+        if (mResolver.update(DrugContract.DrugEntry.buildSellUri(mIds[rank]), values, null, null) != 0) {
+            mExpected.addAndGet(rank, -units);
+        }
+    }
+
+    /**
+     * Read the quantity of a drug and write it back with more units, like EditorActivity's
+     * "Receive" button followed by a save.
+     */
+    private void restock(int rank) {
+        Uri uri = ContentUris.withAppendedId(DrugContract.DrugEntry.CONTENT_URI, mIds[rank]);
+        Integer quantity = readQuantity(uri);
+        if (quantity == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, quantity + RESTOCK_UNITS);
+        if (mResolver.update(uri, values, null, null) != 0) {
+            mExpected.addAndGet(rank, RESTOCK_UNITS);
+        }
+    }
+
+    /**
+     * Read a drug and write every field back unchanged, like opening and saving it in
+     * EditorActivity.
+     */
+    private void save(int rank) {
+        Uri uri = ContentUris.withAppendedId(DrugContract.DrugEntry.CONTENT_URI, mIds[rank]);
+        Cursor cursor = mResolver.query(uri, null, null, null, null);
+        ContentValues values = new ContentValues();
+        try {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            values.put(DrugContract.DrugEntry.COLUMN_DRUG_NAME, cursor.getString(
+                    cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_NAME)));
+            values.put(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, cursor.getInt(
+                    cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY)));
+            values.put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, cursor.getLong(
+                    cursor.getColumnIndex(DrugContract.DrugEntry.COLUMN_DRUG_PRICE)));
+        } finally {
+            cursor.close();
+        }
+        mResolver.update(uri, values, null, null);
+    }
+
+    /**
+     * Read the page of the list that starts at the drug with the given rank.
+     */
+    private void list(int rank) {
+        Cursor cursor = mResolver.query(
+                DrugContract.DrugEntry.buildPageUri(LIST_PAGE_SIZE, "Drug " + rank, 0),
+                new String[] { DrugContract.DrugEntry._ID, DrugContract.DrugEntry.COLUMN_DRUG_NAME,
+                        DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, DrugContract.DrugEntry.COLUMN_DRUG_SOLD },
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(1);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private void delete(int rank) {
+        Uri uri = ContentUris.withAppendedId(DrugContract.DrugEntry.CONTENT_URI, mIds[rank]);
+        if (mResolver.delete(uri, null, null) != 0) {
+            mDeleted.set(rank, 1);
+        }
+    }
+
+    private Integer readQuantity(Uri uri) {
+        Cursor cursor = mResolver.query(uri,
+                new String[] { DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY }, null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getInt(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Compare the stock of every drug that is still in the catalog with the expected stock.
+     */
+    private void checkStock(Report report) {
+        // Any write waits for the sales the provider is still writing in the background, even
+        // one that changes nothing
+        mResolver.update(DrugContract.DrugEntry.CONTENT_URI, new ContentValues(), null, null);
+
+        for (int rank = 0; rank < mConfig.drugs; rank++) {
+            if (mDeleted.get(rank) != 0) {
+                continue;
+            }
+            Integer quantity = readQuantity(
+                    ContentUris.withAppendedId(DrugContract.DrugEntry.CONTENT_URI, mIds[rank]));
+            if (quantity == null) {
+                continue;
+            }
+            if (quantity < 0) {
+                report.oversoldDrugs++;
+            }
+            int difference = quantity - mExpected.get(rank);
+            if (difference != 0) {
+                report.lostUpdateDrugs++;
+                report.lostUpdateUnits += Math.abs(difference);
+            }
+        }
+    }
+}
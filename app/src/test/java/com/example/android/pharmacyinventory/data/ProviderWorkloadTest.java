@@ -0,0 +1,45 @@
+package com.example.android.pharmacyinventory.data;
+
+import com.example.android.pharmacyinventory.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link ProviderWorkload} against {@link DrugProvider} under Robolectric and prints its
+ * report. The size and mix come from the "workload.*" system properties, see
+ * {@link ProviderWorkload.Config}.
+ *
+ * Robolectric runs SQLite on the host, so the numbers are for comparing runs on the same machine,
+ * not for predicting the latency on a device.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class ProviderWorkloadTest {
+
+    @Before
+    public void setUp() {
+        Robolectric.buildContentProvider(DrugProvider.class).create(DrugContract.CONTENT_AUTHORITY);
+    }
+
+    @Test
+    public void pharmacyDay() throws Exception {
+        ProviderWorkload.Config config = ProviderWorkload.Config.fromSystemProperties();
+        ProviderWorkload.Report report = new ProviderWorkload(
+                RuntimeEnvironment.application.getContentResolver(), config).run();
+
+        System.out.println(report);
+
+        // Lost updates are reported, not failed on: editor saves write back the quantity they
+        // read, so they can overwrite sales made in the meantime. Overselling must never happen.
+        assertEquals(0, report.oversoldDrugs);
+        assertEquals(config.threads * (long) config.operationsPerThread, report.totalOperations);
+    }
+}
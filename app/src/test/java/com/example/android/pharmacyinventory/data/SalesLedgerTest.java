@@ -0,0 +1,103 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pharmacyinventory.BuildConfig;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads the sales totals of {@link DrugProvider} before and after {@link SalesLedger#compact}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SalesLedgerTest {
+
+    private DrugProvider mProvider;
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mProvider = Robolectric.buildContentProvider(DrugProvider.class)
+                .create(DrugContract.CONTENT_AUTHORITY).get();
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+    }
+
+    @Test
+    public void salesCountBeforeTheyAreFolded() {
+        Uri drug = insertDrug("Ibuprofen", 10, 3);
+        Uri other = insertDrug("Paracetamol", 10, 4);
+        sell(drug, 2);
+        sell(drug, 1);
+        sell(other, 5);
+
+        // Saving the drug waits for the sales to be written
+        ContentValues values = new ContentValues();
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_NAME, "Ibuprofen 200mg");
+        assertEquals(1, mResolver.update(drug, values, null, null));
+
+        assertEquals(6, readSold(drug));
+        assertEquals(9, readSold(other));
+        assertEquals(15, readTotalSales());
+
+        // A deleted drug's sales are only kept in the history
+        mResolver.delete(other, null, null);
+        assertEquals(6, readTotalSales());
+
+        Bundle compaction = mProvider.call(DrugContract.METHOD_COMPACT_SALES, null, null);
+        assertEquals(3, compaction.getInt(DrugContract.EXTRA_SALES_FOLDED));
+        assertEquals(6, readSold(drug));
+        assertEquals(6, readTotalSales());
+    }
+
+    private Uri insertDrug(String name, int quantity, int sold) {
+        ContentValues values = new ContentValues();
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_NAME, name);
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, quantity);
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, 300L);
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_SOLD, sold);
+        return mResolver.insert(DrugContract.DrugEntry.CONTENT_URI, values);
+    }
+
+    private void sell(Uri drug, int units) {
+        ContentValues values = new ContentValues();
+        values.put(DrugContract.DrugEntry.SELL_QUANTITY, units);
+        assertEquals(1, mResolver.update(
+                DrugContract.DrugEntry.buildSellUri(ContentUris.parseId(drug)), values, null, null));
+    }
+
+    private int readSold(Uri drug) {
+        Cursor cursor = mResolver.query(drug,
+                new String[] { DrugContract.DrugEntry.COLUMN_DRUG_SOLD }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private long readTotalSales() {
+        Cursor cursor = mResolver.query(DrugContract.StatsEntry.CONTENT_URI,
+                new String[] { DrugContract.StatsEntry.COLUMN_TOTAL_SALES }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            cursor.close();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+
+import com.example.android.pharmacyinventory.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Syncs {@link DrugProvider} stores end to end through {@link SyncStandInServer}. Two stores of
+ * the same provider play two devices of the same pharmacy: they have separate databases, and so
+ * separate device IDs, and sync with the same server URL.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23)
+public class SyncEngineTest {
+
+    private static final String DEVICE_A = "till_a";
+    private static final String DEVICE_B = "till_b";
+
+    private DrugProvider mProvider;
+    private ContentResolver mResolver;
+    private SyncStandInServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mProvider = Robolectric.buildContentProvider(DrugProvider.class)
+                .create(DrugContract.CONTENT_AUTHORITY).get();
+        mResolver = RuntimeEnvironment.application.getContentResolver();
+        mServer = new SyncStandInServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.stop();
+    }
+
+    @Test
+    public void changesReachTheOtherDevice() throws Exception {
+        insertDrugs(DEVICE_A, 50);
+        assertEquals(50, sync(DEVICE_A).getInt(DrugContract.EXTRA_SYNC_PUSHED));
+        assertEquals(50, sync(DEVICE_B).getInt(DrugContract.EXTRA_SYNC_PULLED));
+        assertEquals(quantities(DEVICE_A), quantities(DEVICE_B));
+
+        // Changes flow the other way too, deletions included
+        long[] ids = drugIds(DEVICE_B);
+        ContentValues values = new ContentValues();
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, 7);
+        mResolver.update(drugUri(DEVICE_B, ids[0]), values, null, null);
+        mResolver.delete(drugUri(DEVICE_B, ids[1]), null, null);
+
+        Bundle pushed = sync(DEVICE_B);
+        assertEquals(2, pushed.getInt(DrugContract.EXTRA_SYNC_PUSHED));
+        // The pull doesn't bring back what the device pushed itself
+        assertEquals(0, pushed.getInt(DrugContract.EXTRA_SYNC_PULLED));
+        assertEquals(2, sync(DEVICE_A).getInt(DrugContract.EXTRA_SYNC_PULLED));
+        assertEquals(49, quantities(DEVICE_A).size());
+        assertEquals(quantities(DEVICE_B), quantities(DEVICE_A));
+
+        // Applying pulled changes doesn't make them changes to push back
+        assertEquals(0, sync(DEVICE_A).getInt(DrugContract.EXTRA_SYNC_PUSHED));
+    }
+
+    @Test
+    public void dayOfSalesTransfersOnlyTheDrugsSold() throws Exception {
+        insertDrugs(DEVICE_A, 5000);
+        long fullBytes = sync(DEVICE_A).getLong(DrugContract.EXTRA_SYNC_BYTES_SENT);
+        sync(DEVICE_B);
+
+        // A day of sales: 400 baskets over 40 different drugs
+        long[] ids = drugIds(DEVICE_A);
+        for (int basket = 0; basket < 400; basket++) {
+            Bundle extras = new Bundle();
+            extras.putString(DrugContract.EXTRA_STORE, DEVICE_A);
+            extras.putLongArray(DrugContract.EXTRA_DRUG_IDS, new long[] { ids[basket % 40] });
+            extras.putIntArray(DrugContract.EXTRA_QUANTITIES, new int[] { 1 });
+            Bundle result = mProvider.call(DrugContract.METHOD_CHECKOUT, null, extras);
+            assertEquals(1, result.getInt(DrugContract.EXTRA_UNITS_SOLD));
+        }
+
+        Bundle pushed = sync(DEVICE_A);
+        assertEquals(40, pushed.getInt(DrugContract.EXTRA_SYNC_PUSHED));
+        Bundle pulled = sync(DEVICE_B);
+        assertEquals(40, pulled.getInt(DrugContract.EXTRA_SYNC_PULLED));
+        assertEquals(quantities(DEVICE_A), quantities(DEVICE_B));
+
+        long bytesSent = pushed.getLong(DrugContract.EXTRA_SYNC_BYTES_SENT);
+        long bytesReceived = pulled.getLong(DrugContract.EXTRA_SYNC_BYTES_RECEIVED);
+        assertTrue(bytesSent < 4096);
+        assertTrue(bytesReceived < 4096);
+        assertTrue(bytesSent * 20 < fullBytes);
+    }
+
+    @Test
+    public void salesOnBothDevicesAddUp() throws Exception {
+        // One drug, 100 in stock on both devices
+        insertDrugs(DEVICE_A, 1);
+        sync(DEVICE_A);
+        sync(DEVICE_B);
+
+        // Both tills sell the drug before either syncs
+        checkout(DEVICE_A, drugIds(DEVICE_A)[0], 3);
+        checkout(DEVICE_B, drugIds(DEVICE_B)[0], 2);
+
+        sync(DEVICE_A);
+        sync(DEVICE_B);
+        sync(DEVICE_A);
+        assertEquals("95 at 250", quantities(DEVICE_A).get("Drug 0 200mg tablets"));
+        assertEquals(quantities(DEVICE_A), quantities(DEVICE_B));
+
+        // A change to the price still goes to the device that made it last, and the sales since
+        // still add up
+        ContentValues values = new ContentValues();
+        values.put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, 300);
+        mResolver.update(drugUri(DEVICE_B, drugIds(DEVICE_B)[0]), values, null, null);
+        checkout(DEVICE_A, drugIds(DEVICE_A)[0], 1);
+        checkout(DEVICE_B, drugIds(DEVICE_B)[0], 4);
+        sync(DEVICE_B);
+        sync(DEVICE_A);
+        sync(DEVICE_B);
+        assertEquals("90 at 300", quantities(DEVICE_A).get("Drug 0 200mg tablets"));
+        assertEquals(quantities(DEVICE_A), quantities(DEVICE_B));
+    }
+
+    @Test
+    public void lostPushReplyIsNotCountedTwice() throws Exception {
+        insertDrugs(DEVICE_A, 1);
+        sync(DEVICE_A);
+        sync(DEVICE_B);
+
+        // The server applies the sale but its reply never arrives
+        checkout(DEVICE_A, drugIds(DEVICE_A)[0], 3);
+        mServer.failAfter("push-reply", 0);
+        try {
+            sync(DEVICE_A);
+            fail("Sync should have failed");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(2, mServer.changeCount());
+
+        // The batch is sent again as it was, and the sale made since in a batch of its own
+        checkout(DEVICE_A, drugIds(DEVICE_A)[0], 2);
+        sync(DEVICE_A);
+        assertEquals(3, mServer.changeCount());
+        sync(DEVICE_B);
+        assertEquals("95 at 250", quantities(DEVICE_B).get("Drug 0 200mg tablets"));
+        assertEquals(quantities(DEVICE_A), quantities(DEVICE_B));
+    }
+
+    @Test
+    public void interruptedSyncResumes() throws Exception {
+        insertDrugs(DEVICE_A, 1200);
+
+        // The second batch of the push fails, the first one stays acknowledged
+        mServer.failAfter("push", 1);
+        try {
+            sync(DEVICE_A);
+            fail("Sync should have failed");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(500, mServer.changeCount());
+        assertEquals(700, sync(DEVICE_A).getInt(DrugContract.EXTRA_SYNC_PUSHED));
+        assertEquals(1200, mServer.changeCount());
+
+        // The second page of the pull fails, the first one stays applied
+        mServer.failAfter("pull", 1);
+        try {
+            sync(DEVICE_B);
+            fail("Sync should have failed");
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(500, quantities(DEVICE_B).size());
+        assertEquals(700, sync(DEVICE_B).getInt(DrugContract.EXTRA_SYNC_PULLED));
+        assertEquals(quantities(DEVICE_A), quantities(DEVICE_B));
+    }
+
+    private Bundle sync(String store) {
+        Bundle extras = new Bundle();
+        extras.putString(DrugContract.EXTRA_STORE, store);
+        return mProvider.call(DrugContract.METHOD_SYNC, mServer.url(), extras);
+    }
+
+    private void checkout(String store, long id, int units) {
+        Bundle extras = new Bundle();
+        extras.putString(DrugContract.EXTRA_STORE, store);
+        extras.putLongArray(DrugContract.EXTRA_DRUG_IDS, new long[] { id });
+        extras.putIntArray(DrugContract.EXTRA_QUANTITIES, new int[] { units });
+        Bundle result = mProvider.call(DrugContract.METHOD_CHECKOUT, null, extras);
+        assertEquals(units, result.getInt(DrugContract.EXTRA_UNITS_SOLD));
+    }
+
+    private void insertDrugs(String store, int count) {
+        ContentValues[] drugs = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            drugs[i] = new ContentValues();
+            drugs[i].put(DrugContract.DrugEntry.COLUMN_DRUG_NAME, "Drug " + i + " 200mg tablets");
+            drugs[i].put(DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY, 100 + i % 50);
+            drugs[i].put(DrugContract.DrugEntry.COLUMN_DRUG_PRICE, 250 + i);
+        }
+        assertEquals(count, mResolver.bulkInsert(storeUri(store), drugs));
+    }
+
+    private static Uri storeUri(String store) {
+        return DrugContract.forStore(DrugContract.DrugEntry.CONTENT_URI, store);
+    }
+
+    private static Uri drugUri(String store, long id) {
+        return DrugContract.forStore(
+                Uri.withAppendedPath(DrugContract.DrugEntry.CONTENT_URI, String.valueOf(id)), store);
+    }
+
+    private long[] drugIds(String store) {
+        Cursor cursor = mResolver.query(storeUri(store), new String[] { DrugContract.DrugEntry._ID },
+                null, null, DrugContract.DrugEntry._ID);
+        try {
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Returns the quantity and price of every drug of the store, by name.
+     */
+    private Map<String, String> quantities(String store) {
+        Cursor cursor = mResolver.query(storeUri(store), new String[] {
+                DrugContract.DrugEntry.COLUMN_DRUG_NAME, DrugContract.DrugEntry.COLUMN_DRUG_QUANTITY,
+                DrugContract.DrugEntry.COLUMN_DRUG_PRICE }, null, null, null);
+        HashMap<String, String> quantities = new HashMap<>();
+        try {
+            while (cursor.moveToNext()) {
+                quantities.put(cursor.getString(0), cursor.getInt(1) + " at " + cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return quantities;
+    }
+}
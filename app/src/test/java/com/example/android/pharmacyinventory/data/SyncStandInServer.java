@@ -0,0 +1,289 @@
+package com.example.android.pharmacyinventory.data;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * In-process HTTP server standing in for the sync server of one store, see {@link SyncEngine}
+ * for the protocol. It keeps every pushed change in memory, in order, and numbers them from 1,
+ * and ignores a batch it already applied. It can be told to fail a request, before or after
+ * applying it, to test that an interrupted sync resumes.
+ */
+final class SyncStandInServer {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * One pushed change, with the fields as they were received.
+     */
+    private static final class Entry {
+
+        final String device;
+        final LinkedHashMap<String, Object> fields;
+
+        Entry(String device, LinkedHashMap<String, Object> fields) {
+            this.device = device;
+            this.fields = fields;
+        }
+    }
+
+    private final HttpServer mServer;
+
+    /** Every change pushed so far. The sequence number of a change is its index + 1. */
+    private final ArrayList<Entry> mLog = new ArrayList<>();
+
+    /** ID of the last batch applied, by device */
+    private final HashMap<String, Long> mLastBatches = new HashMap<>();
+
+    /**
+     * Requests to let through before failing one, by path, or absent to never fail. The path
+     * "push-reply" fails a push after applying it, like a reply lost on the way back.
+     */
+    private final HashMap<String, Integer> mFailures = new HashMap<>();
+
+    SyncStandInServer() throws IOException {
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        mServer.createContext("/store/push", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (shouldFail("push")) {
+                        exchange.sendResponseHeaders(503, -1);
+                        return;
+                    }
+                    int accepted = push(readBody(exchange));
+                    if (shouldFail("push-reply")) {
+                        exchange.sendResponseHeaders(503, -1);
+                        return;
+                    }
+                    respond(exchange, "{\"accepted\":" + accepted + "}");
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.createContext("/store/pull", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (shouldFail("pull")) {
+                        exchange.sendResponseHeaders(503, -1);
+                        return;
+                    }
+                    Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+                    respond(exchange, pull(query.get("device"), Long.parseLong(query.get("since")),
+                            Integer.parseInt(query.get("limit"))));
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    /** Returns the URL to sync the store with */
+    String url() {
+        return "http://" + mServer.getAddress().getHostString() + ":" + mServer.getAddress().getPort()
+                + "/store";
+    }
+
+    void stop() {
+        mServer.stop(0);
+    }
+
+    /** Returns the number of changes pushed so far */
+    synchronized int changeCount() {
+        return mLog.size();
+    }
+
+    /**
+     * Let the given number of requests to the given path ("push", "push-reply" or "pull")
+     * through, then answer the next one with an error.
+     */
+    synchronized void failAfter(String path, int requests) {
+        mFailures.put(path, requests);
+    }
+
+    private synchronized boolean shouldFail(String path) {
+        Integer remaining = mFailures.get(path);
+        if (remaining == null) {
+            return false;
+        }
+        if (remaining == 0) {
+            mFailures.remove(path);
+            return true;
+        }
+        mFailures.put(path, remaining - 1);
+        return false;
+    }
+
+    private synchronized int push(InputStream body) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(body, UTF_8));
+        String device = null;
+        long batch = 0;
+        ArrayList<LinkedHashMap<String, Object>> changes = new ArrayList<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if ("device".equals(name)) {
+                device = reader.nextString();
+            } else if ("batch".equals(name)) {
+                batch = reader.nextLong();
+            } else if ("changes".equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    changes.add(readObject(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // A batch sent again because its reply was lost is acknowledged, not applied again
+        Long lastBatch = mLastBatches.get(device);
+        if (lastBatch != null && batch <= lastBatch) {
+            return changes.size();
+        }
+        mLastBatches.put(device, batch);
+        for (LinkedHashMap<String, Object> change : changes) {
+            mLog.add(new Entry(device, change));
+        }
+        return changes.size();
+    }
+
+    private synchronized String pull(String device, long since, int limit) throws IOException {
+        StringBuilder json = new StringBuilder("{\"changes\":[");
+        int index = (int) since;
+        int count = 0;
+        while (index < mLog.size() && count < limit) {
+            Entry entry = mLog.get(index++);
+            if (entry.device.equals(device)) {
+                continue;
+            }
+            json.append(count++ == 0 ? "\n" : ",\n");
+            writeObject(json, entry.fields);
+        }
+        json.append("],\"through\":").append(index)
+                .append(",\"more\":").append(index < mLog.size()).append("}\n");
+        return json.toString();
+    }
+
+    private static LinkedHashMap<String, Object> readObject(JsonReader reader) throws IOException {
+        LinkedHashMap<String, Object> fields = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (token == JsonToken.NULL) {
+                reader.nextNull();
+                fields.put(name, null);
+            } else if (token == JsonToken.BOOLEAN) {
+                fields.put(name, reader.nextBoolean());
+            } else if (token == JsonToken.NUMBER) {
+                fields.put(name, reader.nextLong());
+            } else {
+                fields.put(name, reader.nextString());
+            }
+        }
+        reader.endObject();
+        return fields;
+    }
+
+    private static void writeObject(StringBuilder json, Map<String, Object> fields) {
+        json.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            writeString(json, field.getKey());
+            json.append(':');
+            Object value = field.getValue();
+            if (value instanceof String) {
+                writeString(json, (String) value);
+            } else {
+                json.append(value);
+            }
+        }
+        json.append('}');
+    }
+
+    private static void writeString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static InputStream readBody(HttpExchange exchange) throws IOException {
+        InputStream body = exchange.getRequestBody();
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            body = new GZIPInputStream(body);
+        }
+        return body;
+    }
+
+    /**
+     * Send the given JSON, compressed if the client accepts gzip.
+     */
+    private static void respond(HttpExchange exchange, String json) throws IOException {
+        String accept = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = accept != null && accept.contains("gzip");
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        Writer writer = new OutputStreamWriter(gzip ? new GZIPOutputStream(body) : body, UTF_8);
+        writer.write(json);
+        writer.close();
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(200, body.size());
+        OutputStream output = exchange.getResponseBody();
+        body.writeTo(output);
+        output.close();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        HashMap<String, String> parameters = new HashMap<>();
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            parameters.put(URLDecoder.decode(pair.substring(0, equals), "UTF-8"),
+                    URLDecoder.decode(pair.substring(equals + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.android.pharmacyinventory.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Builds catalog databases for the benchmarks. Every catalog size is generated once into a
+ * template file and then copied for each benchmark trial, so writes of one trial never show up in
+ * the next one and the large catalogs aren't regenerated every time.
+ */
+final class Catalog {
+
+    /** Directory holding the template catalogs, kept between runs */
+    private static final File TEMPLATE_DIR = new File("build/jmh-catalogs");
+
+    /** Quantity of every generated drug, high enough that the sale benchmarks never run out */
+    static final int INITIAL_QUANTITY = 1000000;
+
+    private static final String[] NAME_STARTS = {
+            "Ibu", "Para", "Amoxi", "Cetiri", "Lorata", "Omepra", "Simva", "Metfor", "Atorva",
+            "Losar", "Amlo", "Cipro", "Doxy", "Predni", "Salbu", "Diclo", "Napro", "Ranit"};
+    private static final String[] NAME_ENDS = {
+            "profen", "cetamol", "cillin", "zine", "dine", "zole", "statin", "min", "pril",
+            "tan", "dipine", "floxacin", "cycline", "solone", "tamol", "fenac", "xen", "tidine"};
+
+    // This class only holds static helpers, so it should never be instantiated.
+    private Catalog() {}
+
+    /**
+     * Returns the name of the drug with the given ID. Names are derived from the ID, so a
+     * benchmark can look up any drug by name without keeping every name in memory. Many drugs
+     * share the start of their name, like a real catalog.
+     */
+    static String name(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        int start = (int) ((h >>> 40) % NAME_STARTS.length);
+        int end = (int) ((h >>> 20) % NAME_ENDS.length);
+        return NAME_STARTS[start] + NAME_ENDS[end] + " " + (id % 1000) + "mg " + id;
+    }
+
+    /**
+     * Returns the price of the drug with the given ID, in cents.
+     */
+    static long price(long id) {
+        return 100 + (id * 7919) % 10000;
+    }
+
+    /**
+     * Open a fresh copy of the catalog with the given number of drugs, whose IDs are 1 to size.
+     */
+    static Connection open(int size, File directory) throws IOException, SQLException {
+        File template = new File(TEMPLATE_DIR, "catalog-" + DrugSchema.VERSION + "-" + size + ".db");
+        if (!template.exists()) {
+            generate(template, size);
+        }
+
+        File copy = new File(directory, "catalog.db");
+        Files.copy(template.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + copy.getPath());
+
+        // The same settings as DrugDbHelper.Durability.POS_FAST, which the provider uses
+        Statement statement = connection.createStatement();
+        try {
+            statement.execute("PRAGMA journal_mode = WAL");
+            statement.execute("PRAGMA synchronous = NORMAL");
+            statement.execute("PRAGMA cache_size = 2000");
+        } finally {
+            statement.close();
+        }
+        return connection;
+    }
+
+    /**
+     * Create the schema in a new database file and fill it with the given number of drugs.
+     */
+    private static void generate(File template, int size) throws IOException, SQLException {
+        if (!TEMPLATE_DIR.isDirectory() && !TEMPLATE_DIR.mkdirs()) {
+            throw new IOException("Cannot create " + TEMPLATE_DIR);
+        }
+        File partial = new File(TEMPLATE_DIR, template.getName() + ".partial");
+        Files.deleteIfExists(partial.toPath());
+
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + partial.getPath());
+        try {
+            connection.setAutoCommit(false);
+            Statement statement = connection.createStatement();
+            try {
+                for (String sql : DrugSchema.CREATE) {
+                    statement.execute(sql);
+                }
+            } finally {
+                statement.close();
+            }
+
+            PreparedStatement insert = connection.prepareStatement(DrugSchema.SQL_INSERT_DRUG);
+            try {
+                for (long id = 1; id <= size; id++) {
+                    insert.setString(1, name(id));
+                    insert.setInt(2, INITIAL_QUANTITY);
+                    insert.setLong(3, price(id));
+                    insert.executeUpdate();
+                }
+            } finally {
+                insert.close();
+            }
+            connection.commit();
+        } finally {
+            connection.close();
+        }
+
+        // Only complete templates get the final name, so an interrupted run starts over
+        Files.move(partial.toPath(), template.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,259 @@
+package com.example.android.pharmacyinventory.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the statements {@link DrugSchema} drives through DrugProvider, on catalogs of
+ * different sizes. Every trial works on its own copy of the catalog.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DrugDatabaseBenchmark {
+
+    /** Number of drugs inserted by one batched insert */
+    private static final int BATCH_SIZE = 100;
+
+    /** Number of drugs in the catalog */
+    @Param({"1000", "100000", "1000000"})
+    public int catalogSize;
+
+    private File mDirectory;
+    private Connection mConnection;
+    private PreparedStatement mReadVelocity;
+    private PreparedStatement mSell;
+    private PreparedStatement mRecordSale;
+    private PreparedStatement mInsert;
+    private PreparedStatement mLookupByName;
+    private PreparedStatement mPageAfterName;
+    private PreparedStatement mFullScan;
+    private PreparedStatement mStatsAggregate;
+    private PreparedStatement mStatsTable;
+
+    /** Picks the drugs, seeded so every run touches the same ones */
+    private final Random mRandom = new Random(42);
+
+    /** Next ID handed out by an insert, so inserted drugs get realistic names too */
+    private long mNextId;
+
+    @Setup(Level.Trial)
+    public void openCatalog() throws Exception {
+        mDirectory = Files.createTempDirectory("drugs-benchmark").toFile();
+        mConnection = Catalog.open(catalogSize, mDirectory);
+
+        mReadVelocity = mConnection.prepareStatement(DrugSchema.SQL_READ_VELOCITY);
+        mSell = mConnection.prepareStatement(DrugSchema.SQL_SELL_DRUG);
+        mRecordSale = mConnection.prepareStatement(DrugSchema.SQL_RECORD_SALE);
+        mInsert = mConnection.prepareStatement(DrugSchema.SQL_INSERT_DRUG);
+        mLookupByName = mConnection.prepareStatement(
+                "SELECT _id, name, quantity, price FROM drugs WHERE name = ? COLLATE NOCASE");
+        mPageAfterName = mConnection.prepareStatement(
+                "SELECT _id, name, quantity, sales FROM drugs WHERE name COLLATE NOCASE >= ? AND "
+                        + "(name COLLATE NOCASE > ? OR _id > ?) "
+                        + "ORDER BY name COLLATE NOCASE, _id LIMIT 50");
+        mFullScan = mConnection.prepareStatement(
+                "SELECT _id, name, quantity, sales FROM drugs ORDER BY name COLLATE NOCASE, _id");
+        mStatsAggregate = mConnection.prepareStatement(
+                "SELECT SUM(IFNULL(quantity, 0)), SUM(IFNULL(quantity, 0) * price), "
+                        + "SUM(IFNULL(sales, 0)), SUM(IFNULL(quantity, 0) <= "
+                        + DrugSchema.LOW_STOCK_THRESHOLD + ") FROM drugs");
+        mStatsTable = mConnection.prepareStatement(
+                "SELECT total_units, stock_value, total_sales, low_stock_count FROM inventory_stats");
+    }
+
+    @Setup(Level.Iteration)
+    public void resetInsertedIds() {
+        mNextId = catalogSize + 1;
+    }
+
+    /**
+     * Remove the drugs inserted during the iteration, so the catalog keeps its size.
+     */
+    @TearDown(Level.Iteration)
+    public void deleteInsertedDrugs() throws SQLException {
+        PreparedStatement delete = mConnection.prepareStatement("DELETE FROM drugs WHERE _id > ?");
+        try {
+            delete.setLong(1, catalogSize);
+            delete.executeUpdate();
+        } finally {
+            delete.close();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void closeCatalog() throws SQLException {
+        mConnection.close();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    /**
+     * One guarded sale of one unit, committed on its own like a till sale: the averages are read,
+     * the stock and the averages written in one update and the sale appended to the ledger, in
+     * one transaction. The averages are written back a little higher rather than computed like
+     * SalesVelocity does, which costs nothing next to the statements.
+     */
+    @Benchmark
+    public int sell() throws SQLException {
+        long id = 1 + mRandom.nextInt(catalogSize);
+        long now = System.currentTimeMillis();
+        mConnection.setAutoCommit(false);
+        try {
+            double shortRate = 0;
+            double longRate = 0;
+            mReadVelocity.setLong(1, id);
+            ResultSet averages = mReadVelocity.executeQuery();
+            try {
+                if (averages.next()) {
+                    shortRate = averages.getDouble(1);
+                    longRate = averages.getDouble(2);
+                }
+            } finally {
+                averages.close();
+            }
+
+            mSell.setInt(1, 1);
+            mSell.setDouble(2, shortRate + 0.1);
+            mSell.setDouble(3, longRate + 0.01);
+            mSell.setLong(4, now);
+            mSell.setLong(5, id);
+            mSell.setInt(6, 1);
+            int rows = mSell.executeUpdate();
+            if (rows == 1) {
+                mRecordSale.setInt(1, 1);
+                mRecordSale.setLong(2, now);
+                mRecordSale.setLong(3, id);
+                mRecordSale.executeUpdate();
+            }
+            mConnection.commit();
+            return rows;
+        } finally {
+            mConnection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * One drug inserted and committed on its own, like DrugProvider.insert().
+     */
+    @Benchmark
+    public int insertSingle() throws SQLException {
+        return insert();
+    }
+
+    /**
+     * Drugs inserted {@link #BATCH_SIZE} to a transaction, like DrugProvider.bulkInsert().
+     * The score is per drug, so it compares directly with {@link #insertSingle}.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int insertBatched() throws SQLException {
+        int rows = 0;
+        mConnection.setAutoCommit(false);
+        try {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                rows += insert();
+            }
+            mConnection.commit();
+        } finally {
+            mConnection.setAutoCommit(true);
+        }
+        return rows;
+    }
+
+    private int insert() throws SQLException {
+        long id = mNextId++;
+        mInsert.setString(1, Catalog.name(id));
+        mInsert.setInt(2, Catalog.INITIAL_QUANTITY);
+        mInsert.setLong(3, Catalog.price(id));
+        return mInsert.executeUpdate();
+    }
+
+    /**
+     * Look up one drug by its exact name through the name index.
+     */
+    @Benchmark
+    public void lookupByName(Blackhole blackhole) throws SQLException {
+        mLookupByName.setString(1, Catalog.name(1 + mRandom.nextInt(catalogSize)));
+        consume(mLookupByName.executeQuery(), 4, blackhole);
+    }
+
+    /**
+     * Read the page of the list that continues after a random drug, like the paged list does
+     * deep in the catalog.
+     */
+    @Benchmark
+    public void pageAfterName(Blackhole blackhole) throws SQLException {
+        long id = 1 + mRandom.nextInt(catalogSize);
+        String name = Catalog.name(id);
+        mPageAfterName.setString(1, name);
+        mPageAfterName.setString(2, name);
+        mPageAfterName.setLong(3, id);
+        consume(mPageAfterName.executeQuery(), 4, blackhole);
+    }
+
+    /**
+     * Read the whole list in display order, like the list did before it was paged.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void fullScan(Blackhole blackhole) throws SQLException {
+        consume(mFullScan.executeQuery(), 4, blackhole);
+    }
+
+    /**
+     * Compute the inventory statistics with a scan of every drug.
+     */
+    @Benchmark
+    public void statsAggregate(Blackhole blackhole) throws SQLException {
+        consume(mStatsAggregate.executeQuery(), 4, blackhole);
+    }
+
+    /**
+     * Read the inventory statistics the triggers keep up to date, like DrugProvider does.
+     */
+    @Benchmark
+    public void statsTable(Blackhole blackhole) throws SQLException {
+        consume(mStatsTable.executeQuery(), 4, blackhole);
+    }
+
+    /**
+     * Read every column of every row of a result, so the driver can't skip any work.
+     */
+    private static void consume(ResultSet result, int columns, Blackhole blackhole)
+            throws SQLException {
+        try {
+            while (result.next()) {
+                for (int column = 1; column <= columns; column++) {
+                    blackhole.consume(result.getObject(column));
+                }
+            }
+        } finally {
+            result.close();
+        }
+    }
+}
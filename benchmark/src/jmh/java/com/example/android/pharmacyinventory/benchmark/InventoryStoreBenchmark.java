@@ -0,0 +1,75 @@
+package com.example.android.pharmacyinventory.benchmark;
+
+import com.example.android.pharmacyinventory.data.InventoryStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of the in-memory sales of {@link InventoryStore}, which DrugProvider runs before
+ * writing them to the database in the background. Compare with DrugDatabaseBenchmark.sell.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InventoryStoreBenchmark {
+
+    /** Number of drugs in the catalog */
+    @Param({"1000", "100000", "1000000"})
+    public int catalogSize;
+
+    private InventoryStore mStore;
+
+    @Setup(Level.Trial)
+    public void fillStore() {
+        mStore = new InventoryStore(catalogSize);
+    }
+
+    /**
+     * Fill up the stock before every iteration, so the sales never run out.
+     */
+    @Setup(Level.Iteration)
+    public void restock() {
+        for (long id = 1; id <= catalogSize; id++) {
+            mStore.put(id, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * One sale of one unit of a random drug.
+     */
+    @Benchmark
+    public int sell() {
+        return mStore.sell(1 + ThreadLocalRandom.current().nextInt(catalogSize), 1);
+    }
+
+    /**
+     * The same sale from four tills at once, which only contend when they sell the same drug.
+     */
+    @Benchmark
+    @Threads(4)
+    public int sellFromFourTills() {
+        return mStore.sell(1 + ThreadLocalRandom.current().nextInt(catalogSize), 1);
+    }
+
+    /**
+     * One sale of one unit of the same drug from four tills at once, the worst case of the
+     * compare-and-set loop.
+     */
+    @Benchmark
+    @Threads(4)
+    public int sellSameDrugFromFourTills() {
+        return mStore.sell(1, 1);
+    }
+}
@@ -0,0 +1,189 @@
+package com.example.android.pharmacyinventory.benchmark;
+
+/**
+ * The drugs schema as created by DrugDbHelper and DrugMigrations, written out as plain SQL so it
+ * runs on the JVM without the Android classes. It matches schema version 12, with every trigger a
+ * write goes through on a device. When a migration step is added to the app, add its statements
+ * here too, or the benchmarks measure an old schema. DrugSchemaTest, in the app's unit tests,
+ * fails until they match.
+ */
+final class DrugSchema {
+
+    /** Schema version these statements match */
+    static final int VERSION = 12;
+
+    /** Quantity at or under which a drug counts as low on stock */
+    static final int LOW_STOCK_THRESHOLD = 5;
+
+    /** Stock-out projection of a drug with no sales, like DrugEntry.NEVER_STOCKOUT */
+    private static final String NEVER = String.valueOf(Long.MAX_VALUE);
+
+    /** Whether the sync triggers should run, that is pulled changes aren't being applied */
+    private static final String NOT_APPLYING = "(SELECT applying FROM sync_state) = 0";
+
+    /** Statements creating the schema, in order */
+    static final String[] CREATE = {
+            "CREATE TABLE drugs (_id INTEGER PRIMARY KEY AUTOINCREMENT, name TEXT NOT NULL, "
+                    + "quantity INTEGER DEFAULT 0, sales INTEGER DEFAULT 0, "
+                    + "price INTEGER NOT NULL, image TEXT, "
+                    + "velocity_short REAL NOT NULL DEFAULT 0, velocity_long REAL NOT NULL DEFAULT 0, "
+                    + "velocity_updated_at INTEGER NOT NULL DEFAULT 0, "
+                    + "stockout_at INTEGER NOT NULL DEFAULT " + NEVER + ", "
+                    + "reorder_threshold INTEGER NOT NULL DEFAULT 0, "
+                    + "reorder_quantity INTEGER NOT NULL DEFAULT 0, "
+                    + "on_order INTEGER NOT NULL DEFAULT 0, change_seq INTEGER NOT NULL DEFAULT 0, "
+                    + "version INTEGER NOT NULL DEFAULT 1, sync_id TEXT, "
+                    + "sync_seq INTEGER NOT NULL DEFAULT 0, sync_fields_seq INTEGER NOT NULL DEFAULT 0, "
+                    + "synced_quantity INTEGER NOT NULL DEFAULT 0)",
+            "CREATE INDEX drugs_name_index ON drugs (name COLLATE NOCASE)",
+            "CREATE INDEX drugs_quantity_index ON drugs (quantity)",
+            "CREATE VIRTUAL TABLE drugs_fts USING fts4(name)",
+            "CREATE TRIGGER drugs_fts_insert AFTER INSERT ON drugs BEGIN "
+                    + "INSERT INTO drugs_fts (docid, name) VALUES (NEW._id, NEW.name); END",
+            "CREATE TRIGGER drugs_fts_update AFTER UPDATE OF name ON drugs BEGIN "
+                    + "UPDATE drugs_fts SET name = NEW.name WHERE docid = NEW._id; END",
+            "CREATE TRIGGER drugs_fts_delete AFTER DELETE ON drugs BEGIN "
+                    + "DELETE FROM drugs_fts WHERE docid = OLD._id; END",
+            "CREATE TABLE inventory_stats (_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                    + "total_units INTEGER NOT NULL, stock_value INTEGER NOT NULL, "
+                    + "total_sales INTEGER NOT NULL, low_stock_count INTEGER NOT NULL)",
+            "INSERT INTO inventory_stats VALUES (1, 0, 0, 0, 0)",
+            "CREATE TRIGGER drugs_stats_insert AFTER INSERT ON drugs BEGIN "
+                    + statsUpdate("+", "NEW") + "; END",
+            "CREATE TRIGGER drugs_stats_update AFTER UPDATE OF quantity, price, sales ON drugs BEGIN "
+                    + statsUpdate("-", "OLD") + "; " + statsUpdate("+", "NEW") + "; END",
+            "CREATE TRIGGER drugs_stats_delete AFTER DELETE ON drugs BEGIN "
+                    + statsUpdate("-", "OLD") + "; END",
+
+            // The sales ledger of SalesLedger
+            "CREATE TABLE sales (_id INTEGER PRIMARY KEY AUTOINCREMENT, drug_id INTEGER NOT NULL, "
+                    + "quantity INTEGER NOT NULL, price INTEGER NOT NULL, sold_at INTEGER NOT NULL)",
+            "CREATE INDEX sales_sold_at_index ON sales (sold_at)",
+            "CREATE TABLE sales_daily (_id INTEGER PRIMARY KEY, drug_id INTEGER NOT NULL, "
+                    + "day INTEGER NOT NULL, quantity INTEGER NOT NULL, revenue INTEGER NOT NULL, "
+                    + "UNIQUE (drug_id, day))",
+            "CREATE TABLE sales_ledger_state (_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                    + "folded_through INTEGER NOT NULL)",
+            "INSERT INTO sales_ledger_state VALUES (1, 0)",
+
+            // The stock-out projection of SalesVelocity
+            "CREATE INDEX drugs_stockout_index ON drugs (stockout_at)",
+            "CREATE TRIGGER drugs_stockout_update AFTER UPDATE OF quantity, velocity_short ON drugs "
+                    + "BEGIN UPDATE drugs SET stockout_at = CASE WHEN NEW.velocity_short > 0 AND "
+                    + "MAX(IFNULL(NEW.quantity, 0), 0) < NEW.velocity_short * 100000 "
+                    + "THEN NEW.velocity_updated_at + CAST(MAX(IFNULL(NEW.quantity, 0), 0) "
+                    + "* 86400000.0 / NEW.velocity_short AS INTEGER) ELSE " + NEVER + " END "
+                    + "WHERE _id = NEW._id; END",
+
+            // The change sequence numbers of ReorderEngine
+            "CREATE TABLE reorder_state (_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                    + "last_change_seq INTEGER NOT NULL, processed_through INTEGER NOT NULL, "
+                    + "next_order INTEGER NOT NULL)",
+            "INSERT INTO reorder_state VALUES (1, 0, 0, 1)",
+            "CREATE INDEX drugs_change_seq_index ON drugs (change_seq)",
+            "CREATE TRIGGER drugs_change_seq_insert AFTER INSERT ON drugs BEGIN "
+                    + nextChangeSeq() + "; END",
+            "CREATE TRIGGER drugs_change_seq_update AFTER UPDATE OF quantity, reorder_threshold, "
+                    + "reorder_quantity ON drugs WHEN OLD.quantity IS NOT NEW.quantity "
+                    + "OR OLD.reorder_threshold IS NOT NEW.reorder_threshold "
+                    + "OR OLD.reorder_quantity IS NOT NEW.reorder_quantity BEGIN "
+                    + nextChangeSeq() + "; END",
+
+            // The row versions the editor merges with
+            "CREATE TRIGGER drugs_version_update AFTER UPDATE OF name, quantity, price, image, "
+                    + "reorder_threshold, reorder_quantity ON drugs BEGIN "
+                    + "UPDATE drugs SET version = OLD.version + 1 WHERE _id = NEW._id; END",
+
+            // The change tracking of SyncEngine
+            "CREATE TABLE drug_tombstones (sync_id TEXT PRIMARY KEY, sync_seq INTEGER NOT NULL)",
+            "CREATE TABLE sync_state (_id INTEGER PRIMARY KEY CHECK (_id = 1), "
+                    + "device_id TEXT NOT NULL, last_sync_seq INTEGER NOT NULL, "
+                    + "pushed_through INTEGER NOT NULL, pulled_through INTEGER NOT NULL, "
+                    + "applying INTEGER NOT NULL, pending_through INTEGER NOT NULL DEFAULT 0, "
+                    + "pending_body BLOB)",
+            "INSERT INTO sync_state VALUES (1, lower(hex(randomblob(16))), 0, 0, 0, 0, 0, NULL)",
+            "CREATE TABLE sync_outbox (sync_id TEXT PRIMARY KEY, quantity_delta INTEGER NOT NULL)",
+            "CREATE UNIQUE INDEX drugs_sync_id_index ON drugs (sync_id)",
+            "CREATE INDEX drugs_sync_seq_index ON drugs (sync_seq)",
+            "CREATE INDEX drug_tombstones_sync_seq_index ON drug_tombstones (sync_seq)",
+            "CREATE TRIGGER drugs_sync_insert AFTER INSERT ON drugs BEGIN "
+                    + "UPDATE drugs SET sync_id = lower(hex(randomblob(16))) "
+                    + "WHERE _id = NEW._id AND NEW.sync_id IS NULL; " + nextSyncSeq(true) + "; END",
+            "CREATE TRIGGER drugs_sync_update AFTER UPDATE OF name, price, image, reorder_threshold, "
+                    + "reorder_quantity ON drugs WHEN " + NOT_APPLYING + " AND ("
+                    + "OLD.name IS NOT NEW.name OR OLD.price IS NOT NEW.price "
+                    + "OR OLD.image IS NOT NEW.image OR OLD.reorder_threshold IS NOT NEW.reorder_threshold "
+                    + "OR OLD.reorder_quantity IS NOT NEW.reorder_quantity) BEGIN "
+                    + nextSyncSeq(true) + "; END",
+            "CREATE TRIGGER drugs_sync_quantity AFTER UPDATE OF quantity ON drugs WHEN "
+                    + NOT_APPLYING + " AND OLD.quantity IS NOT NEW.quantity BEGIN "
+                    + nextSyncSeq(false) + "; END",
+            "CREATE TRIGGER drugs_sync_delete AFTER DELETE ON drugs WHEN " + NOT_APPLYING
+                    + " AND OLD.sync_id IS NOT NULL BEGIN "
+                    + "UPDATE sync_state SET last_sync_seq = last_sync_seq + 1; "
+                    + "INSERT OR REPLACE INTO drug_tombstones SELECT OLD.sync_id, last_sync_seq "
+                    + "FROM sync_state; END",
+    };
+
+    /** Reads the sales averages of a drug, like SalesVelocity. Bind order: drug ID. */
+    static final String SQL_READ_VELOCITY = "SELECT velocity_short, velocity_long, "
+            + "velocity_updated_at FROM drugs WHERE _id = ?";
+
+    /**
+     * The guarded sale of SalesLedger, which takes the units off the stock and writes the new
+     * averages in one update. Bind order: units, short, long, time, drug ID, units.
+     */
+    static final String SQL_SELL_DRUG = "UPDATE drugs SET quantity = quantity - ?, "
+            + "velocity_short = ?, velocity_long = ?, velocity_updated_at = ? "
+            + "WHERE _id = ? AND quantity >= ?";
+
+    /**
+     * Appends a sale to the ledger, in the same transaction as {@link #SQL_SELL_DRUG}.
+     * Bind order: units, time, drug ID.
+     */
+    static final String SQL_RECORD_SALE = "INSERT INTO sales (drug_id, quantity, price, sold_at) "
+            + "SELECT _id, ?, price, ? FROM drugs WHERE _id = ?";
+
+    /** Insert of a drug as done by DrugProvider. Bind order: name, quantity, price. */
+    static final String SQL_INSERT_DRUG = "INSERT INTO drugs (name, quantity, sales, price) "
+            + "VALUES (?, ?, 0, ?)";
+
+    // This class only holds constants, so it should never be instantiated.
+    private DrugSchema() {}
+
+    /**
+     * Returns the statement that adds ("+") or removes ("-") the given row ("NEW" or "OLD") to or
+     * from the statistics, like DrugMigrations does.
+     */
+    private static String statsUpdate(String sign, String row) {
+        String quantity = "IFNULL(" + row + ".quantity, 0)";
+        return "UPDATE inventory_stats SET "
+                + "total_units = total_units " + sign + " " + quantity + ", "
+                + "stock_value = stock_value " + sign + " " + quantity + " * " + row + ".price, "
+                + "total_sales = total_sales " + sign + " IFNULL(" + row + ".sales, 0), "
+                + "low_stock_count = low_stock_count " + sign + " (" + quantity + " <= "
+                + LOW_STOCK_THRESHOLD + ") WHERE _id = 1";
+    }
+
+    /**
+     * Returns the trigger statements that give the drug the next change sequence number, like
+     * ReorderEngine does.
+     */
+    private static String nextChangeSeq() {
+        return "UPDATE reorder_state SET last_change_seq = last_change_seq + 1; "
+                + "UPDATE drugs SET change_seq = (SELECT last_change_seq FROM reorder_state) "
+                + "WHERE _id = NEW._id";
+    }
+
+    /**
+     * Returns the trigger statements that give the drug the next sync sequence number, for all its
+     * columns or only its quantity, unless pulled changes are being applied, like SyncEngine does.
+     */
+    private static String nextSyncSeq(boolean fields) {
+        String seq = "(SELECT last_sync_seq FROM sync_state)";
+        return "UPDATE sync_state SET last_sync_seq = last_sync_seq + 1 WHERE applying = 0; "
+                + "UPDATE drugs SET sync_seq = " + seq
+                + (fields ? ", sync_fields_seq = " + seq : "")
+                + " WHERE _id = NEW._id AND " + NOT_APPLYING;
+    }
+}